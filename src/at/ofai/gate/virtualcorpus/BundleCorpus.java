@@ -0,0 +1,940 @@
+/*
+ * Copyright (c) 2010- Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-VirtualCorpus
+ * (see https://github.com/johann-petrak/gateplugin-VirtualCorpus)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package at.ofai.gate.virtualcorpus;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import gate.*;
+import gate.corpora.DocumentImpl;
+import gate.corpora.DocumentStaxUtils;
+import gate.creole.*;
+import gate.creole.metadata.*;
+import gate.event.CreoleListener;
+import gate.persist.PersistenceException;
+import gate.util.*;
+import gate.util.persistence.PersistenceManager;
+import org.apache.log4j.Logger;
+
+/** 
+ * A Corpus LR over one or more bundle files which contain one serialized
+ * document per line, so such files can be processed without splitting
+ * them into a directory of files first. Empty lines are ignored.
+ * <p>
+ * When the corpus is created, the byte offsets of all lines are found in
+ * a single pass over all bundles, with the bundles split into ranges which
+ * are scanned in parallel. The offsets are stored in a file with the 
+ * extension <code>.lineindex</code> next to each bundle, or in the 
+ * <code>indexDirectoryURL</code>, and reused as long as the size and 
+ * modification time of the bundle do not change. A document is then read 
+ * with a single positional read of its line.
+ * <p>
+ * Documents are named by the bundle file name and the number of the 
+ * document within the bundle, e.g. <code>part-0001.txt:42</code>. If 
+ * <code>mimeType</code> is empty, each line must be a GATE XML document 
+ * with all line breaks escaped as character references, otherwise each 
+ * line is the content of a document of that MIME type. 
+ * <p>
+ * Unless the corpus is read-only, the processed documents are written to
+ * a parallel bundle with the same name in <code>outputDirectoryURL</code>,
+ * as single line GATE XML and in the order of the corpus. A document is 
+ * written once it has been saved and unloaded and all the documents 
+ * before it have been written, documents which are finished early are 
+ * kept in temporary storage until then. A document which is unloaded 
+ * without being saved is written unchanged, and when the corpus is closed, 
+ * documents which were skipped are written unchanged, up to the last 
+ * document which was saved. If <code>mimeType</code> is set, such 
+ * unchanged documents are converted to GATE XML so that the output bundle
+ * only contains GATE XML.
+ * 
+ * @author Johann Petrak
+ */
+@CreoleResource(
+    name = "BundleCorpus",
+    interfaceName = "gate.Corpus", 
+    icon = "corpus", 
+    helpURL = "http://code.google.com/p/gateplugin-virtualcorpus/",
+    comment = "A corpus backed by files which contain one serialized document per line")
+public class BundleCorpus  
+  extends VirtualCorpus
+  implements Corpus, CreoleListener
+  {
+
+  //*****
+  // Fields
+  //******
+  
+  private static final long serialVersionUID = 6230457981440377218L;
+  
+  protected static final int INDEX_MAGIC = 0x5643424c;
+  protected static final String INDEX_SUFFIX = ".lineindex";
+  // the number of bytes of a bundle scanned by one indexing task
+  protected static final long SCAN_RANGE_SIZE = 64L*1024*1024;
+  // maximum number of bytes of a serialized document to keep in memory 
+  // while it waits to be written to the output bundle
+  protected static final int SPOOL_MEMORY_THRESHOLD = 1024*1024;
+  
+  private static final Logger logger = Logger.getLogger(BundleCorpus.class);
+  
+  /**
+   * A bundle file, its line index and its output bundle.
+   */
+  protected static class Bundle {
+    File file;
+    RandomAccessFile raf;
+    FileChannel channel;
+    // the corpus index of the first document of the bundle
+    int first;
+    // the offsets and lengths of the non-empty lines, without line breaks
+    long[] starts = new long[1024];
+    int[] lengths = new int[1024];
+    int size = 0;
+    // the output bundle, the next document to write to it and the saved
+    // documents waiting to be written
+    File outputFile;
+    OutputStream output;
+    int nextToWrite = 0;
+    TreeMap<Integer,SpooledOutputStream> pending = new TreeMap<Integer,SpooledOutputStream>();
+    
+    void addLine(long start, long length) throws IOException {
+      if(length > Integer.MAX_VALUE) {
+        throw new IOException("Line at offset "+start+" of "+file+" is too long");
+      }
+      if(size == starts.length) {
+        starts = Arrays.copyOf(starts, size * 2);
+        lengths = Arrays.copyOf(lengths, size * 2);
+      }
+      starts[size] = start;
+      lengths[size] = (int)length;
+      size++;
+    }
+  }
+  
+  protected List<Bundle> bundles = new ArrayList<Bundle>();
+  
+  //***************
+  // Parameters
+  //***************
+  
+  @CreoleParameter(comment = "The URLs of the bundle files, which contain one document per line")
+  public void setBundleURLs(List<URL> urls) {
+    this.bundleURLs = urls;
+  }
+  public List<URL> getBundleURLs() { return bundleURLs; }
+  protected List<URL> bundleURLs;
+  
+  @Optional
+  @CreoleParameter(comment = "The directory where the output bundles are written, required unless the corpus is read-only")
+  public void setOutputDirectoryURL(URL dirURL) {
+    this.outputDirectoryURL = dirURL;
+  }
+  public URL getOutputDirectoryURL() { return outputDirectoryURL; }
+  protected URL outputDirectoryURL = null;
+  
+  @Optional
+  @CreoleParameter(comment = "The directory for the line index files, if empty, next to the bundles")
+  public void setIndexDirectoryURL(URL dirURL) {
+    this.indexDirectoryURL = dirURL;
+  }
+  public URL getIndexDirectoryURL() { return indexDirectoryURL; }
+  protected URL indexDirectoryURL = null;
+  
+  @Optional
+  @CreoleParameter(comment = "MIME type of the document in each line, if empty, each line is GATE XML", defaultValue = "")
+  public void setMimeType(String type) {
+    this.mimeType = type;
+  }
+  public String getMimeType() { return mimeType; }
+  protected String mimeType = "";
+  
+  @Optional
+  @CreoleParameter(comment = "The encoding of the bundle files", defaultValue = "UTF-8")
+  public void setEncoding(String encoding) {
+    this.encoding = encoding;
+  }
+  public String getEncoding() { return encoding; }
+  protected String encoding = "UTF-8";
+  
+  @Optional
+  @CreoleParameter(comment = "Number of threads for indexing the bundles, 0 for the number of processors", defaultValue = "0")
+  public void setIndexThreads(Integer value) {
+    this.indexThreads = value;
+  }
+  public Integer getIndexThreads() { return indexThreads; }
+  protected Integer indexThreads = 0;
+  
+  /**
+   * Initializes the BundleCorpus LR
+   * @return 
+   * @throws ResourceInstantiationException
+   */
+  @Override
+  public Resource init() 
+    throws ResourceInstantiationException {
+    logger.info("BundleCorpus: calling init");
+    if(getBundleURLs() == null || getBundleURLs().isEmpty()) {
+      throw new ResourceInstantiationException("bundleURLs must be set");
+    }
+    if(!getReadonly() && getOutputDirectoryURL() == null) {
+      throw new ResourceInstantiationException(
+        "outputDirectoryURL must be set unless the corpus is read-only");
+    }
+    Map<String,File> byName = new HashMap<String,File>();
+    for(URL url : getBundleURLs()) {
+      Bundle bundle = new Bundle();
+      bundle.file = Files.fileFromURL(url);
+      File other = byName.put(bundle.file.getName(), bundle.file);
+      if(other != null) {
+        throw new ResourceInstantiationException(
+          "Bundles must have different file names: "+other+" and "+bundle.file);
+      }
+      try {
+        bundle.raf = new RandomAccessFile(bundle.file, "r");
+      } catch (IOException ex) {
+        throw new ResourceInstantiationException("Cannot open bundle "+bundle.file, ex);
+      }
+      bundle.channel = bundle.raf.getChannel();
+      bundles.add(bundle);
+    }
+    
+    try {
+        ourDS =
+          (DummyDataStore4BundleCorp) Factory.createDataStore("at.ofai.gate.virtualcorpus.DummyDataStore4BundleCorp", 
+            bundles.get(0).file.getAbsoluteFile().getParentFile().toURI().toURL().toString());
+        ourDS.setName("DummyDS4_" + this.getName());
+        ourDS.setComment("Dummy DataStore for BundleCorpus " + this.getName());
+        ourDS.setCorpus(this);
+    } catch (Exception ex) {
+        throw new ResourceInstantiationException(
+          "Could not create dummy data store", ex);
+    }
+    
+    try {
+      indexBundles();
+    } catch (IOException ex) {
+      throw new ResourceInstantiationException("Could not index the bundles", ex);
+    }
+    for(Bundle bundle : bundles) {
+      bundle.first = documentNames.size();
+      String prefix = bundle.file.getName()+":";
+      for(int i = 0; i < bundle.size; i++) {
+        String docName = prefix+i;
+        documentIndexes.put(docName, documentNames.size());
+        documentNames.add(docName);
+        isLoadeds.add(false);
+      }
+    }
+    logger.info("BundleCorpus/init: "+documentNames.size()+" documents in "+
+      bundles.size()+" bundles");
+    if(!getReadonly()) {
+      File outputDirectory = Files.fileFromURL(getOutputDirectoryURL());
+      outputDirectory.mkdirs();
+      for(Bundle bundle : bundles) {
+        bundle.outputFile = new File(outputDirectory, bundle.file.getName());
+        try {
+          if(bundle.outputFile.getCanonicalFile().equals(bundle.file.getCanonicalFile())) {
+            throw new ResourceInstantiationException(
+              "Output bundle would overwrite input bundle "+bundle.file);
+          }
+          bundle.output = new BufferedOutputStream(new FileOutputStream(bundle.outputFile));
+        } catch (IOException ex) {
+          throw new ResourceInstantiationException(
+            "Could not create output bundle "+bundle.outputFile, ex);
+        }
+      }
+    }
+    try {
+      PersistenceManager.registerPersistentEquivalent(
+          at.ofai.gate.virtualcorpus.BundleCorpus.class,
+          at.ofai.gate.virtualcorpus.BundleCorpusPersistence.class);
+    } catch (PersistenceException e) {
+      throw new ResourceInstantiationException(
+              "Could not register persistence",e);
+    }
+    Gate.getCreoleRegister().addCreoleListener(this);
+    startAutoSaving();
+    return this;
+  }
+
+  @Override
+  public VirtualSubsetCorpus createSubsetCorpus(String name) 
+    throws ResourceInstantiationException {
+    return createSubsetCorpus(
+      "at.ofai.gate.virtualcorpus.BundleSubsetCorpus", "bundleCorpus", name);
+  }
+
+  @Override
+  public void cleanup() {
+    stopAutoSaving();
+    synchronized(this) {
+      for(Bundle bundle : bundles) {
+        if(bundle.output != null) {
+          try {
+            finishOutput(bundle);
+          } catch (IOException ex) {
+            logger.error("BundleCorpus: could not write output bundle "+bundle.outputFile, ex);
+          }
+        }
+        try {
+          bundle.raf.close();
+        } catch (IOException ex) {
+          // ignore, we only read from it
+        }
+      }
+    }
+    Gate.getDataStoreRegister().remove(ourDS);
+  }
+
+  /**
+   * Syncing the corpus flushes the output bundles.
+   */
+  @Override
+  public synchronized void sync() {
+    for(Bundle bundle : bundles) {
+      if(bundle.output != null) {
+        try {
+          bundle.output.flush();
+        } catch (IOException ex) {
+          throw new GateRuntimeException("Could not write output bundle "+bundle.outputFile, ex);
+        }
+      }
+    }
+  }
+  
+  /**
+   * Unload the document and write all documents which are finished to the
+   * output bundle.
+   * 
+   * @param doc
+   * @param sync 
+   */
+  @Override
+  public void unloadDocument(Document doc, boolean sync) {
+    Integer index = documentIndexes.get(doc.getName());
+    boolean wasLoaded = index != null && isDocumentLoaded(index);
+    super.unloadDocument(doc, sync);
+    if(wasLoaded && !getReadonly()) {
+      synchronized(this) {
+        try {
+          Bundle bundle = getBundle(index);
+          int line = index - bundle.first;
+          // a document which is not saved is written unchanged, otherwise
+          // it would block writing all the documents after it
+          if(!sync && line >= bundle.nextToWrite && !bundle.pending.containsKey(line)) {
+            bundle.pending.put(line, spoolOriginal(bundle, line));
+          }
+          writeFinished(bundle);
+        } catch (IOException ex) {
+          throw new GateRuntimeException("Could not write output bundle", ex);
+        }
+      }
+    }
+  }
+
+  // Methods to be implemented from List
+
+  /**
+   * This method is not implemented and always throws a
+   * MethodNotImplementedException.
+   */
+  @Override
+  public boolean add(Document doc) {
+    throw new MethodNotImplementedException(notImplementedMessage("add(Document doc)"));
+  }
+
+  /**
+   * This method is not implemented and always throws a
+   * MethodNotImplementedException.
+   */
+  @Override
+  public void clear() {
+    throw new MethodNotImplementedException(notImplementedMessage("clear()"));
+  }
+  
+  /**
+   * This checks if a document with the same name as the document
+   * passed is already in the corpus. 
+   * IMPORTANT: The content is not considered 
+   * for this, only the name is relevant!
+   */
+  @Override
+  public boolean contains(Object docObj) {
+    Document doc = (Document)docObj;
+    String docName = doc.getName();
+    return (documentIndexes.get(docName) != null);
+  }
+
+  /**
+   * Return the document for the given index in the corpus.
+   * An IndexOutOfBoundsException is thrown when the index is not contained
+   * in the corpus.
+   * The document will be read from its bundle only if it is not already 
+   * loaded. If it is already loaded a reference to that document is returned.
+   * 
+   * @param index
+   * @return 
+   */
+  @Override
+  public Document get(int index) {
+    if(index < 0 || index >= documentNames.size()) {
+      throw new IndexOutOfBoundsException(
+          "Index "+index+" not in corpus "+this.getName()+
+          " of size "+documentNames.size());
+    }
+    String docName = documentNames.get(index);
+    if(isDocumentLoaded(index)) {
+      return getLoadedDocument(docName);
+    }
+    Document doc = readDocument(index);
+    loadedDocuments.put(docName, doc);
+    isLoadeds.set(index, true);
+    adoptDocument(doc);
+    return doc;
+  }
+
+  /**
+   * Returns the index of the document with the same name as the given document
+   * in the corpus. The content of the document is not considered for this.
+   * 
+   * @param docObj
+   * @return
+   */
+  @Override
+  public int indexOf(Object docObj) {
+    Document doc = (Document)docObj;
+    Integer index = documentIndexes.get(doc.getName());
+    if(index == null) {
+      return -1;
+    } else {
+      return index;
+    }
+  }
+
+  /**
+   * Returns an iterator to iterate through the documents of the
+   * corpus. The iterator does not allow modification of the corpus.
+   * 
+   * @return
+   */
+  @Override
+  public Iterator<Document> iterator() {
+    return new BundleCorpusIterator();
+  }
+
+  /**
+   * This method is not implemented and always throws a
+   * MethodNotImplementedException.
+   */
+  @Override
+  public Document remove(int index) {
+    throw new MethodNotImplementedException(notImplementedMessage("remove(int index)"));
+  }
+
+  /**
+   * This method is not implemented and always throws a
+   * MethodNotImplementedException.
+   */
+  @Override
+  public boolean remove(Object docObj) {
+    throw new MethodNotImplementedException(notImplementedMessage("remove(Object docObj)"));
+  }
+
+  /**
+   * This method is not implemented and always throws a
+   * MethodNotImplementedException.
+   */
+  @Override
+  public boolean removeAll(Collection coll) {
+    throw new MethodNotImplementedException(notImplementedMessage("removeAll(Collection coll)"));
+  }
+
+  @Override
+  public int size() {
+    return documentNames.size();
+  }
+
+  //**************************
+  // helper methods
+  // ************************
+  
+  // The document is serialized when it is saved, but only written to the
+  // output bundle once it is unloaded and all documents before it are 
+  // written.
+  @Override
+  protected void saveDocument(Document doc) {
+    if(getReadonly()) {
+      return;
+    }
+    Integer index = documentIndexes.get(doc.getName());
+    if(index == null) {
+      return;
+    }
+    Bundle bundle = getBundle(index);
+    int line = index - bundle.first;
+    SpooledOutputStream spool = serializeDocument(doc);
+    synchronized(this) {
+      if(line < bundle.nextToWrite) {
+        spool.dispose();
+        throw new GateRuntimeException("Document "+doc.getName()+
+          " has already been written to output bundle "+bundle.outputFile);
+      }
+      SpooledOutputStream old = bundle.pending.put(line, spool);
+      if(old != null) {
+        old.dispose();
+      }
+    }
+  }
+  
+  // Serialize the document as a single line of GATE XML.
+  protected SpooledOutputStream serializeDocument(Document doc) {
+    SpooledOutputStream spool = new SpooledOutputStream(SPOOL_MEMORY_THRESHOLD);
+    try {
+      Writer writer = new LineBreakEscapingWriter(spool.getWriter(getEncoding()));
+      XMLStreamWriter xsw = getXmlOutputFactory().createXMLStreamWriter(writer);
+      xsw.writeStartDocument(getEncoding(), "1.0");
+      DocumentStaxUtils.writeDocument(doc, xsw, "");
+      xsw.writeEndDocument();
+      xsw.close();
+      writer.close();
+    } catch (XMLStreamException ex) {
+      spool.dispose();
+      throw new GateRuntimeException("Could not write GATE XML for document "+doc.getName(), ex);
+    } catch (IOException ex) {
+      spool.dispose();
+      throw new GateRuntimeException("Could not save document "+doc.getName(), ex);
+    }
+    return spool;
+  }
+  
+  // Return the unchanged input document for the line as it should be
+  // written to the output bundle. Input lines are only copied as they are
+  // if they are GATE XML already, otherwise a document is created from 
+  // the line and serialized.
+  protected SpooledOutputStream spoolOriginal(Bundle bundle, int line) throws IOException {
+    if(getMimeType() == null || getMimeType().isEmpty()) {
+      SpooledOutputStream spool = new SpooledOutputStream(SPOOL_MEMORY_THRESHOLD);
+      spool.write(readLine(bundle, line));
+      spool.close();
+      return spool;
+    }
+    Document doc = readDocument(bundle.first + line);
+    try {
+      return serializeDocument(doc);
+    } finally {
+      Factory.deleteResource(doc);
+    }
+  }
+  
+  // Write the documents which are saved and unloaded to the output bundle,
+  // as far as there are no gaps.
+  protected void writeFinished(Bundle bundle) throws IOException {
+    while(true) {
+      SpooledOutputStream spool = bundle.pending.get(bundle.nextToWrite);
+      if(spool == null || isLoadeds.get(bundle.first + bundle.nextToWrite)) {
+        return;
+      }
+      writeLine(bundle, spool);
+    }
+  }
+  
+  // Write all saved documents, filling any gaps with the input lines.
+  protected void finishOutput(Bundle bundle) throws IOException {
+    int copied = 0;
+    while(!bundle.pending.isEmpty()) {
+      SpooledOutputStream spool = bundle.pending.get(bundle.nextToWrite);
+      if(spool == null) {
+        spool = spoolOriginal(bundle, bundle.nextToWrite);
+        copied++;
+      }
+      writeLine(bundle, spool);
+    }
+    if(copied > 0) {
+      logger.warn("BundleCorpus warning: "+copied+" documents which were not saved were copied unchanged to "+
+        bundle.outputFile);
+    }
+    bundle.output.close();
+    bundle.output = null;
+  }
+  
+  protected void writeLine(Bundle bundle, SpooledOutputStream spool) throws IOException {
+    InputStream in = spool.getInputStream();
+    try {
+      byte[] buffer = new byte[65536];
+      int n;
+      while((n = in.read(buffer)) > 0) {
+        bundle.output.write(buffer, 0, n);
+      }
+    } finally {
+      in.close();
+    }
+    bundle.output.write('\n');
+    spool.dispose();
+    bundle.pending.remove(bundle.nextToWrite);
+    bundle.nextToWrite++;
+  }
+  
+  protected Document readDocument(int index) {
+    String docName = documentNames.get(index);
+    Bundle bundle = getBundle(index);
+    byte[] line;
+    try {
+      line = readLine(bundle, index - bundle.first);
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Could not read document "+docName+
+        " from bundle "+bundle.file, ex);
+    }
+    if(getMimeType() == null || getMimeType().isEmpty()) {
+      return createDocumentFromXmlStream(docName, new ByteArrayInputStream(line), getEncoding());
+    }
+    FeatureMap params = Factory.newFeatureMap();
+    try {
+      params.put(Document.DOCUMENT_STRING_CONTENT_PARAMETER_NAME, new String(line, getEncoding()));
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Could not decode document "+docName, ex);
+    }
+    params.put(Document.DOCUMENT_MIME_TYPE_PARAMETER_NAME, getMimeType());
+    try {
+      return (Document) Factory.createResource(DocumentImpl.class.getName(),
+          params, null, docName);
+    } catch (ResourceInstantiationException ex) {
+      throw new GateRuntimeException("Could not create document "+docName, ex);
+    }
+  }
+  
+  protected byte[] readLine(Bundle bundle, int line) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(bundle.lengths[line]);
+    readFully(bundle.channel, buffer, bundle.starts[line]);
+    return buffer.array();
+  }
+  
+  // find the bundle which contains the document by binary search
+  protected Bundle getBundle(int index) {
+    int lo = 0;
+    int hi = bundles.size() - 1;
+    while(lo < hi) {
+      int mid = (lo + hi + 1) >>> 1;
+      if(bundles.get(mid).first <= index) {
+        lo = mid;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return bundles.get(lo);
+  }
+  
+  protected static void readFully(FileChannel channel, ByteBuffer buffer, long pos) 
+    throws IOException {
+    while(buffer.hasRemaining()) {
+      int n = channel.read(buffer, pos);
+      if(n < 0) {
+        throw new IOException("Unexpected end of file");
+      }
+      pos += n;
+    }
+  }
+  
+  /**
+   * Load the line index of each bundle, or build the missing ones in one
+   * parallel pass over all the bundles which need it.
+   */
+  protected void indexBundles() throws IOException {
+    List<Bundle> toIndex = new ArrayList<Bundle>();
+    for(Bundle bundle : bundles) {
+      File indexFile = getIndexFile(bundle);
+      if(!indexFile.exists() || !loadIndex(bundle, indexFile)) {
+        toIndex.add(bundle);
+      }
+    }
+    if(toIndex.isEmpty()) {
+      return;
+    }
+    int threads = getIndexThreads() == null || getIndexThreads() <= 0 ?
+      Runtime.getRuntime().availableProcessors() : getIndexThreads();
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      List<List<Future<long[]>>> scans = new ArrayList<List<Future<long[]>>>();
+      for(Bundle bundle : toIndex) {
+        List<Future<long[]>> ranges = new ArrayList<Future<long[]>>();
+        long length = bundle.channel.size();
+        for(long from = 0; from < length; from += SCAN_RANGE_SIZE) {
+          ranges.add(pool.submit(new RangeScan(bundle.channel, from, 
+            Math.min(length, from + SCAN_RANGE_SIZE))));
+        }
+        scans.add(ranges);
+      }
+      for(int b = 0; b < toIndex.size(); b++) {
+        Bundle bundle = toIndex.get(b);
+        long lineStart = 0;
+        for(Future<long[]> range : scans.get(b)) {
+          for(long newline : range.get()) {
+            long pos = newline >>> 1;
+            long end = pos - (newline & 1);
+            if(end > lineStart) {
+              bundle.addLine(lineStart, end - lineStart);
+            }
+            lineStart = pos + 1;
+          }
+        }
+        long length = bundle.channel.size();
+        if(length > lineStart) {
+          bundle.addLine(lineStart, length - lineStart);
+        }
+        logger.info("BundleCorpus: indexed "+bundle.size+" documents in "+bundle.file);
+        saveIndex(bundle, getIndexFile(bundle));
+      }
+    } catch (InterruptedException ex) {
+      throw new IOException("Indexing was interrupted", ex);
+    } catch (ExecutionException ex) {
+      throw new IOException("Could not index bundle", ex.getCause());
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+  
+  /**
+   * Find the line breaks in a range of a bundle. Each line break is 
+   * returned as its offset shifted left by one, with the lowest bit set if
+   * it is preceded by a carriage return.
+   */
+  protected static class RangeScan implements Callable<long[]> {
+    FileChannel channel;
+    long from;
+    long to;
+    RangeScan(FileChannel channel, long from, long to) {
+      this.channel = channel;
+      this.from = from;
+      this.to = to;
+    }
+    @Override
+    public long[] call() throws IOException {
+      long[] newlines = new long[1024];
+      int n = 0;
+      byte previous = 0;
+      if(from > 0) {
+        ByteBuffer one = ByteBuffer.allocate(1);
+        readFully(channel, one, from - 1);
+        previous = one.get(0);
+      }
+      ByteBuffer buffer = ByteBuffer.allocate(1024*1024);
+      byte[] bytes = buffer.array();
+      long pos = from;
+      while(pos < to) {
+        buffer.clear();
+        buffer.limit((int)Math.min(buffer.capacity(), to - pos));
+        readFully(channel, buffer, pos);
+        int len = buffer.position();
+        for(int i = 0; i < len; i++) {
+          if(bytes[i] == '\n') {
+            if(n == newlines.length) {
+              newlines = Arrays.copyOf(newlines, n * 2);
+            }
+            newlines[n++] = ((pos + i) << 1) | (previous == '\r' ? 1 : 0);
+          }
+          previous = bytes[i];
+        }
+        pos += len;
+      }
+      return Arrays.copyOf(newlines, n);
+    }
+  }
+  
+  protected File getIndexFile(Bundle bundle) {
+    File dir = getIndexDirectoryURL() == null ? 
+      bundle.file.getAbsoluteFile().getParentFile() : 
+      Files.fileFromURL(getIndexDirectoryURL());
+    return new File(dir, bundle.file.getName()+INDEX_SUFFIX);
+  }
+  
+  // The index stores the size and modification time of the bundle and 
+  // for each line the gap since the end of the previous line and its 
+  // length, as variable length numbers.
+  protected void saveIndex(Bundle bundle, File indexFile) {
+    File tmpFile = new File(indexFile.getPath()+".tmp");
+    try {
+      indexFile.getParentFile().mkdirs();
+      DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(tmpFile)));
+      try {
+        out.writeInt(INDEX_MAGIC);
+        out.writeLong(bundle.channel.size());
+        out.writeLong(bundle.file.lastModified());
+        out.writeInt(bundle.size);
+        long end = 0;
+        for(int i = 0; i < bundle.size; i++) {
+          long gap = bundle.starts[i] - end;
+          if(gap > Integer.MAX_VALUE) {
+            throw new IOException("Gap between lines too big at offset "+bundle.starts[i]);
+          }
+          ParentIndexSet.writeVarInt(out, (int)gap);
+          ParentIndexSet.writeVarInt(out, bundle.lengths[i]);
+          end = bundle.starts[i] + bundle.lengths[i];
+        }
+      } finally {
+        out.close();
+      }
+      java.nio.file.Files.move(tmpFile.toPath(), indexFile.toPath(), 
+        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException ex) {
+      // the index can always be built again
+      tmpFile.delete();
+      logger.warn("BundleCorpus warning: could not save line index "+indexFile, ex);
+    }
+  }
+  
+  // return false if the index is not for the current version of the bundle
+  protected boolean loadIndex(Bundle bundle, File indexFile) throws IOException {
+    DataInputStream in = new DataInputStream(
+      new BufferedInputStream(new FileInputStream(indexFile)));
+    try {
+      if(in.readInt() != INDEX_MAGIC) {
+        throw new IOException("Not a line index file: "+indexFile);
+      }
+      if(in.readLong() != bundle.channel.size() || 
+         in.readLong() != bundle.file.lastModified()) {
+        logger.info("BundleCorpus: bundle "+bundle.file+" has changed, indexing it again");
+        return false;
+      }
+      int n = in.readInt();
+      bundle.starts = new long[Math.max(1, n)];
+      bundle.lengths = new int[Math.max(1, n)];
+      long end = 0;
+      for(int i = 0; i < n; i++) {
+        long start = end + ParentIndexSet.readVarInt(in);
+        int length = ParentIndexSet.readVarInt(in);
+        bundle.starts[i] = start;
+        bundle.lengths[i] = length;
+        end = start + length;
+      }
+      bundle.size = n;
+      return true;
+    } finally {
+      in.close();
+    }
+  }
+  
+  /**
+   * A writer which escapes line breaks as XML character references, so 
+   * that the GATE XML of a document fits on a single line. Line breaks at 
+   * the end, after the root element, are dropped because character 
+   * references are not allowed there.
+   */
+  protected static class LineBreakEscapingWriter extends FilterWriter {
+    StringBuilder pendingBreaks = new StringBuilder();
+    LineBreakEscapingWriter(Writer out) {
+      super(out);
+    }
+    @Override
+    public void write(int c) throws IOException {
+      if(c == '\n') {
+        pendingBreaks.append("&#10;");
+      } else if(c == '\r') {
+        pendingBreaks.append("&#13;");
+      } else {
+        if(pendingBreaks.length() > 0) {
+          out.write(pendingBreaks.toString());
+          pendingBreaks.setLength(0);
+        }
+        out.write(c);
+      }
+    }
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+      for(int i = off; i < off + len; i++) {
+        write(cbuf[i]);
+      }
+    }
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+      for(int i = off; i < off + len; i++) {
+        write(str.charAt(i));
+      }
+    }
+  }
+
+  protected void adoptDocument(Document doc) {
+    try {
+      doc.setDataStore(ourDS);
+    } catch (PersistenceException ex) {
+      // ignore, see DirectoryCorpus
+    }
+    ourDS.trackDocument(doc);
+  }
+  
+  protected class BundleCorpusIterator implements Iterator<Document> {
+    int nextIndex = 0;
+    @Override
+    public boolean hasNext() {
+      while(documentNames.size() > nextIndex) {
+        if(lockForIteration(nextIndex)) {
+          return true;
+        }
+        nextIndex++;
+      }
+      return false;
+    }
+    @Override
+    public Document next() {
+      if(hasNext()) {
+        return get(nextIndex++);
+      } else {
+        return null;
+      }
+    }
+    @Override
+    public void remove() {
+      throw new MethodNotImplementedException();
+    }    
+  }
+
+} // class BundleCorpus
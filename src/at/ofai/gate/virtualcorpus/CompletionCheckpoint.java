@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2010- Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-VirtualCorpus
+ * (see https://github.com/johann-petrak/gateplugin-VirtualCorpus)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.ofai.gate.virtualcorpus;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * The set of documents of a virtual corpus which have been completely
+ * processed, so that a run which was interrupted can be resumed without
+ * processing these documents again.
+ * <p>
+ * The documents are kept as a bitmap over the corpus indexes, which is 
+ * stored in a compressed form, see {@link ParentIndexSet#write}. The 
+ * checkpoint also remembers which documents were completed since it was
+ * last saved, so that it can be stored incrementally, e.g. in a database
+ * table.
+ *
+ * @author Johann Petrak
+ */
+public class CompletionCheckpoint {
+
+  protected static final int MAGIC = 0x56434350;
+
+  protected ParentIndexSet completed = new ParentIndexSet();
+  protected int[] newlyCompleted = new int[16];
+  protected int nNewlyCompleted = 0;
+
+  /**
+   * Record the document with the given corpus index as completed.
+   * @param index
+   * @return false if it was already completed
+   */
+  public synchronized boolean markCompleted(int index) {
+    if(completed.add(index) < 0) {
+      return false;
+    }
+    if(nNewlyCompleted == newlyCompleted.length) {
+      newlyCompleted = Arrays.copyOf(newlyCompleted, nNewlyCompleted * 2);
+    }
+    newlyCompleted[nNewlyCompleted++] = index;
+    return true;
+  }
+
+  public synchronized boolean isCompleted(int index) {
+    return completed.contains(index);
+  }
+
+  /**
+   * The number of completed documents.
+   * @return
+   */
+  public synchronized int size() {
+    return completed.size();
+  }
+
+  /**
+   * True if documents were completed since the checkpoint was created,
+   * loaded or saved.
+   * @return
+   */
+  public synchronized boolean isModified() {
+    return nNewlyCompleted > 0;
+  }
+
+  /**
+   * Return the indexes of the documents completed since the checkpoint 
+   * was created, loaded or saved and forget about them, which makes the
+   * checkpoint unmodified.
+   * @return
+   */
+  public synchronized int[] takeNewlyCompleted() {
+    int[] result = Arrays.copyOf(newlyCompleted, nNewlyCompleted);
+    nNewlyCompleted = 0;
+    return result;
+  }
+
+  /**
+   * Return the indexes of all completed documents, in ascending order.
+   * @return
+   */
+  public synchronized int[] getCompleted() {
+    int[] result = new int[completed.size()];
+    for(int i = 0; i < result.length; i++) {
+      result[i] = completed.get(i);
+    }
+    return result;
+  }
+
+  /**
+   * Save the checkpoint to a file, together with the size and name list
+   * fingerprint of the corpus it belongs to. The file is replaced 
+   * atomically, so an interrupted save leaves the previous checkpoint.
+   *
+   * @param file
+   * @param corpusSize
+   * @param fingerprint
+   * @throws IOException
+   */
+  public synchronized void save(File file, int corpusSize, long fingerprint) throws IOException {
+    File tmpFile = new File(file.getPath()+".tmp");
+    DataOutputStream out = new DataOutputStream(
+      new BufferedOutputStream(new FileOutputStream(tmpFile)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(corpusSize);
+      out.writeLong(fingerprint);
+      completed.write(out);
+    } finally {
+      out.close();
+    }
+    java.nio.file.Files.move(tmpFile.toPath(), file.toPath(), 
+      StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    nNewlyCompleted = 0;
+  }
+
+  /**
+   * Load a checkpoint saved by {@link #save(java.io.File, int, long)}. 
+   * If the file was saved for a corpus with a different size or name 
+   * list, nothing is loaded.
+   *
+   * @param file
+   * @param corpusSize
+   * @param fingerprint
+   * @return false if the file was not written for this corpus
+   * @throws IOException
+   */
+  public synchronized boolean load(File file, int corpusSize, long fingerprint) throws IOException {
+    DataInputStream in = new DataInputStream(
+      new BufferedInputStream(new FileInputStream(file)));
+    try {
+      if(in.readInt() != MAGIC) {
+        throw new IOException("Not a checkpoint file: "+file);
+      }
+      if(in.readInt() != corpusSize || in.readLong() != fingerprint) {
+        return false;
+      }
+      completed = ParentIndexSet.read(in);
+    } finally {
+      in.close();
+    }
+    nNewlyCompleted = 0;
+    return true;
+  }
+
+}
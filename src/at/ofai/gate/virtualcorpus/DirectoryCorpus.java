@@ -23,8 +23,11 @@ package at.ofai.gate.virtualcorpus;
 
 import java.io.IOException;
 import java.io.File;
+import java.io.RandomAccessFile;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
@@ -44,8 +47,18 @@ import gate.event.CreoleListener;
 import gate.persist.PersistenceException;
 import gate.util.*;
 import gate.util.persistence.PersistenceManager;
+import java.lang.management.ManagementFactory;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.Random;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import org.apache.commons.io.FileUtils;
 import org.apache.log4j.Logger;
 
@@ -115,6 +128,29 @@ import org.apache.log4j.Logger;
  * "Save as XML" function will still also re-save the documents in the 
  * corpus directory unless the <code>saveDocuments</code> option is set to 
  * false.
+ * <p>
+ * If <code>coordinationDirectoryURL</code> is specified, several corpora 
+ * in different processes, possibly on different machines, can share the
+ * work of processing the directory. The sorted list of document names is
+ * divided into chunks of <code>chunkSize</code> documents and each corpus
+ * starts out empty and claims one chunk after the other by atomically 
+ * creating a lease file for it in the shared coordination directory. 
+ * The first chunk is claimed when the corpus is created, the documents of
+ * the next claimed chunk get added to the end of the corpus when the last
+ * document has been handed out by <code>get</code> or the iterator. Leases 
+ * are renewed in the background and a lease which has not been renewed for
+ * <code>leaseSeconds</code> can be taken over by another corpus. The 
+ * documents of a chunk whose lease was taken over and which have not been
+ * handed out yet are removed from the end of the corpus. A chunk
+ * is marked as done once all its documents have been handed out and 
+ * unloaded again.
+ * <p>
+ * If <code>manifestFileURL</code> is specified, the corpus only contains 
+ * the files which are new or have changed since they were last processed.
+ * The manifest file records the size and modification time of each file 
+ * when its document was unloaded after syncing, and the files found when
+ * the corpus is created are compared with it without reading them, see
+ * {@link DirectoryManifest}.
  * 
  * @author Johann Petrak
  */
@@ -199,9 +235,100 @@ public class DirectoryCorpus
   public Boolean getRecurseDirectory() { return recurseDirectory; }
   protected Boolean recurseDirectory;
   
+  /**
+   * A directory shared by all the corpora which process the same corpus 
+   * directory together. If this is specified, the corpus only contains 
+   * the documents from the chunks it claimed, see the class documentation.
+   * 
+   * @param dirURL 
+   */
+  @Optional
+  @CreoleParameter(comment = "Shared directory for the chunk lease files, if specified, the documents are distributed between all corpora using it")
+  public void setCoordinationDirectoryURL(URL dirURL) {
+    this.coordinationDirectoryURL = dirURL;
+  }
+  public URL getCoordinationDirectoryURL() { return coordinationDirectoryURL; }
+  protected URL coordinationDirectoryURL = null;
+  
+  @Optional
+  @CreoleParameter(comment = "Number of documents in a chunk if a coordination directory is used", defaultValue = "100")
+  public void setChunkSize(Integer value) {
+    this.chunkSize = value;
+  }
+  public Integer getChunkSize() { return chunkSize; }
+  protected Integer chunkSize = 100;
+  
+  /**
+   * The number of seconds after which the lease of a chunk which has not
+   * been renewed can be taken over by another corpus. Leases are renewed 
+   * every quarter of that time, so this should be much larger than any 
+   * delay in the shared filesystem. 
+   * 
+   * @param value 
+   */
+  @Optional
+  @CreoleParameter(comment = "Number of seconds after which a chunk lease which was not renewed can be taken over", defaultValue = "600")
+  public void setLeaseSeconds(Integer value) {
+    this.leaseSeconds = value;
+  }
+  public Integer getLeaseSeconds() { return leaseSeconds; }
+  protected Integer leaseSeconds = 600;
+  
+  @Optional
+  @CreoleParameter(comment = "Id of this worker for the chunk leases, if empty, a unique id is generated", defaultValue = "")
+  public void setWorkerId(String id) { workerId = id; }
+  public String getWorkerId() { return workerId; }
+  protected String workerId = "";
+
+  /**
+   * A file where the state of the processed files is recorded, see the 
+   * class documentation. If specified, only files which are not in the
+   * manifest or have changed since are included in the corpus. The 
+   * manifest is saved at the same times as the checkpoint, see 
+   * {@link VirtualCorpus#setCheckpointSaveInterval(java.lang.Integer)}.
+   * 
+   * @param url 
+   */
+  @Optional
+  @CreoleParameter(comment = "File recording the processed files, if specified, only new or changed files are included")
+  public void setManifestFileURL(URL url) { manifestFileURL = url; }
+  public URL getManifestFileURL() { return manifestFileURL; }
+  protected URL manifestFileURL = null;
+
+  /**
+   * If true, the manifest also records a hash of the content of each 
+   * processed file, and a file whose modification time changed but whose
+   * size did not is only included if its content changed. 
+   * 
+   * @param value 
+   */
+  @Optional
+  @CreoleParameter(comment = "Record content hashes in the manifest and check them for files with a new modification time", defaultValue = "false")
+  public void setUseContentHashes(Boolean value) { useContentHashes = value; }
+  public Boolean getUseContentHashes() { return useContentHashes; }
+  protected Boolean useContentHashes = false;
+  
   
   Map<String,DocumentExporter> extension2Exporter = new HashMap<String,DocumentExporter>();
   
+  // the locks held on documents, see lockDocument
+  protected Map<String,FileLock> documentLocks = new HashMap<String,FileLock>();
+  
+  // if a coordination directory is used: all document names in sorted 
+  // order, the chunks we currently own and the number of documents of the
+  // corpus which have been handed out by get
+  protected File coordinationDirectory = null;
+  protected List<String> allDocumentNames = null;
+  protected long[] allDocumentSizes = null;
+  protected List<Chunk> ownedChunks = new ArrayList<Chunk>();
+  protected int nextChunk = 0;
+  protected int handedOut = 0;
+  protected ScheduledExecutorService leaseRenewer = null;
+  
+  // the manifest of processed files, null if no manifest is used
+  protected DirectoryManifest manifest = null;
+  protected long lastManifestSave = 0L;
+  
   private static final Logger logger = Logger.getLogger(DirectoryCorpus.class);
   
   /**
@@ -277,6 +404,11 @@ public class DirectoryCorpus
     if(supportedExtensions.isEmpty()) {
       throw new ResourceInstantiationException("DirectoryCorpus could not be created, no file format supported or loaded");
     }
+    if(isCheckpointEnabled() && getCoordinationDirectoryURL() != null) {
+      // the completed chunks are already recorded in the coordination directory
+      throw new ResourceInstantiationException(
+        "checkpointFileURL cannot be used together with coordinationDirectoryURL");
+    }
     
     backingDirectoryFile = Files.fileFromURL(directoryURL);
     try {
@@ -305,6 +437,10 @@ public class DirectoryCorpus
 
     
     
+    if(getManifestFileURL() != null) {
+      loadManifest();
+    }
+    int unchanged = 0;
     Iterator<File> fileIt = 
             FileUtils.iterateFiles(backingDirectoryFile, 
             supportedExtensions.toArray(new String[0]), getRecurseDirectory());
@@ -326,15 +462,48 @@ public class DirectoryCorpus
           }
           filename = backingDirectoryFile.toURI().relativize(file.toURI()).getPath();
         }
+        long length = file.length();
+        if(manifest != null && !manifest.isChanged(filename, file, length)) {
+          unchanged++;
+          continue;
+        }
         documentNames.add(filename);
         isLoadeds.add(false);
         documentIndexes.put(filename, i);
+        setDocumentSize(i, length);
         i++;
       }
     }
-    if(i==0) {
+    if(manifest != null) {
+      int removed = manifest.removeUnseen();
+      logger.info("DirectoryCorpus: "+i+" new or changed files, "+unchanged+
+        " unchanged files skipped, "+removed+" files removed since the last run");
+    } else if(i==0) {
       logger.warn("DirectoryCorpus warning: empty immutable corpus created, no files found");
     }
+    applyDocumentOrder();
+    if(getCoordinationDirectoryURL() != null) {
+      prepareChunks();
+    }
+    if(getIndexedFeatures() != null && !getIndexedFeatures().isEmpty()) {
+      featureIndex = new FeatureIndex(getIndexedFeatures());
+      File indexFile = getFeatureIndexFile();
+      if(indexFile.exists()) {
+        try {
+          if(!featureIndex.load(indexFile, documentNames.size(), getNameListFingerprint())) {
+            logger.warn("DirectoryCorpus warning: the files have changed since feature index "+
+              indexFile+" was saved, starting with an empty index");
+          }
+        } catch (IOException ex) {
+          throw new ResourceInstantiationException(
+            "Could not read feature index "+indexFile, ex);
+        }
+      }
+    }
+    startCheckpointing();
+    if(allDocumentNames != null) {
+      claimNextChunk();
+    }
     try {
       PersistenceManager.registerPersistentEquivalent(
           at.ofai.gate.virtualcorpus.DirectoryCorpus.class,
@@ -344,19 +513,532 @@ public class DirectoryCorpus
               "Could not register persistence",e);
     }
     Gate.getCreoleRegister().addCreoleListener(this);
+    startAutoSaving();
     return this;
   }
   
 
 
+  @Override
+  public VirtualSubsetCorpus createSubsetCorpus(String name) 
+    throws ResourceInstantiationException {
+    return createSubsetCorpus(
+      "at.ofai.gate.virtualcorpus.DirectorySubsetCorpus", "directoryCorpus", name);
+  }
+
   @Override
   public void cleanup() {
     // TODO:
     // deregister our listener for resources of type document
     //
+    stopAutoSaving();
+    if(leaseRenewer != null) {
+      leaseRenewer.shutdownNow();
+      leaseRenewer = null;
+      try {
+        finishChunks(true);
+      } catch (GateRuntimeException ex) {
+        logger.error("DirectoryCorpus: could not finish the claimed chunks", ex);
+      }
+    }
+    unlockAllDocuments();
+    try {
+      saveFeatureIndex();
+    } catch (GateRuntimeException ex) {
+      logger.error("DirectoryCorpus: could not save the feature index", ex);
+    }
+    try {
+      saveCheckpointIfModified();
+    } catch (GateRuntimeException ex) {
+      logger.error("DirectoryCorpus: could not save the checkpoint", ex);
+    }
+    try {
+      saveManifestIfModified();
+    } catch (GateRuntimeException ex) {
+      logger.error("DirectoryCorpus: could not save the manifest", ex);
+    }
     Gate.getDataStoreRegister().remove(ourDS);
   }
 
+  /**
+   * Syncing the corpus saves the feature index, the checkpoint and the 
+   * manifest if they have changed.
+   */
+  @Override
+  public void sync() {
+    saveFeatureIndex();
+    saveCheckpointIfModified();
+    saveManifestIfModified();
+  }
+
+  /**
+   * Save the feature index to the file 
+   * <code>.virtualcorpus-features</code> in the corpus directory, if 
+   * features are indexed and the index has changed. This happens 
+   * automatically when the corpus is synced or closed.
+   */
+  public void saveFeatureIndex() {
+    if(featureIndex == null || !featureIndex.isModified()) {
+      return;
+    }
+    File indexFile = getFeatureIndexFile();
+    try {
+      featureIndex.save(indexFile, documentNames.size(), getNameListFingerprint());
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Could not save feature index "+indexFile, ex);
+    }
+  }
+  
+  /**
+   * Lock the document by locking the file <code>.locks/docName.lock</code>
+   * in the corpus directory. The lock is held by the operating system, 
+   * so it is released when the process ends in any way. The lock files 
+   * are never removed, because removing them could let two processes 
+   * lock different files for the same document.
+   * 
+   * @param docName
+   * @return 
+   */
+  @Override
+  public synchronized boolean lockDocument(String docName) {
+    if(documentLocks.containsKey(docName)) {
+      return true;
+    }
+    File lockFile = new File(new File(backingDirectoryFile, ".locks"), docName+".lock");
+    lockFile.getParentFile().mkdirs();
+    RandomAccessFile file = null;
+    try {
+      file = new RandomAccessFile(lockFile, "rw");
+      FileLock lock = file.getChannel().tryLock();
+      if(lock == null) {
+        file.close();
+        return false;
+      }
+      documentLocks.put(docName, lock);
+      return true;
+    } catch (OverlappingFileLockException ex) {
+      // locked by another corpus in this JVM
+      closeQuietly(file);
+      return false;
+    } catch (IOException ex) {
+      closeQuietly(file);
+      throw new GateRuntimeException("Could not lock document "+docName+" with "+lockFile, ex);
+    }
+  }
+
+  @Override
+  public synchronized void unlockDocument(String docName) {
+    FileLock lock = documentLocks.remove(docName);
+    if(lock == null) {
+      return;
+    }
+    try {
+      lock.release();
+      lock.channel().close();
+    } catch (IOException ex) {
+      logger.warn("DirectoryCorpus: could not release lock for document "+docName, ex);
+    }
+  }
+  
+  protected synchronized void unlockAllDocuments() {
+    for(String docName : new ArrayList<String>(documentLocks.keySet())) {
+      unlockDocument(docName);
+    }
+  }
+  
+  private static void closeQuietly(RandomAccessFile file) {
+    if(file != null) {
+      try {
+        file.close();
+      } catch (IOException ex) {
+        // ignore
+      }
+    }
+  }
+  
+  // the file name starts with a dot, so it is never taken for a document
+  protected File getFeatureIndexFile() {
+    return new File(backingDirectoryFile, ".virtualcorpus-features");
+  }
+  
+  /**
+   * A chunk of the sorted document names which this corpus has claimed.
+   */
+  protected static class Chunk {
+    int number;
+    // the range of corpus indexes of the documents of the chunk
+    int start;
+    int end;
+    File leaseFile;
+    // set if the lease was taken over by another worker
+    boolean lost = false;
+  }
+  
+  protected void loadManifest() throws ResourceInstantiationException {
+    // all the corpora would record their own files in the same manifest
+    if(getCoordinationDirectoryURL() != null) {
+      throw new ResourceInstantiationException(
+        "manifestFileURL cannot be used together with coordinationDirectoryURL");
+    }
+    manifest = new DirectoryManifest(getUseContentHashes());
+    File manifestFile = Files.fileFromURL(getManifestFileURL());
+    if(manifestFile.exists()) {
+      try {
+        manifest.load(manifestFile);
+      } catch (IOException ex) {
+        throw new ResourceInstantiationException(
+          "Could not read manifest "+manifestFile, ex);
+      }
+    }
+    lastManifestSave = System.currentTimeMillis();
+  }
+  
+  /**
+   * Save the manifest if files were processed since it was last saved. 
+   * This happens automatically when the corpus is synced or closed.
+   */
+  public synchronized void saveManifestIfModified() {
+    if(manifest == null || !manifest.isModified()) {
+      return;
+    }
+    File manifestFile = Files.fileFromURL(getManifestFileURL());
+    try {
+      manifest.save(manifestFile);
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Could not save manifest "+manifestFile, ex);
+    }
+    lastManifestSave = System.currentTimeMillis();
+  }
+  
+  /**
+   * Record the state of the file of the completed document, which may have
+   * just been saved, in the manifest.
+   */
+  @Override
+  protected void documentCompleted(int index) {
+    if(manifest != null) {
+      String docName = documentNames.get(index);
+      try {
+        manifest.update(docName, new File(backingDirectoryFile, docName));
+      } catch (IOException ex) {
+        throw new GateRuntimeException("Could not record "+docName+" in the manifest", ex);
+      }
+      long interval = getCheckpointSaveInterval() == null ? 0L : getCheckpointSaveInterval() * 1000L;
+      if(System.currentTimeMillis() - lastManifestSave >= interval) {
+        try {
+          saveManifestIfModified();
+        } catch (GateRuntimeException ex) {
+          // try again with the next completed document
+          logger.error("DirectoryCorpus: could not save the manifest", ex);
+          lastManifestSave = System.currentTimeMillis();
+        }
+      }
+    }
+    super.documentCompleted(index);
+  }
+  
+  /**
+   * Set up the corpus for claiming chunks from the coordination directory:
+   * the corpus starts out empty and all the document names found are 
+   * sorted, by name or in the documentOrder, so that all corpora using the
+   * same coordination directory agree on the chunks.
+   * 
+   * @throws ResourceInstantiationException 
+   */
+  protected void prepareChunks() throws ResourceInstantiationException {
+    if(getChunkSize() == null || getChunkSize() <= 0) {
+      throw new ResourceInstantiationException("chunkSize must be a positive number");
+    }
+    if(getLeaseSeconds() == null || getLeaseSeconds() <= 0) {
+      throw new ResourceInstantiationException("leaseSeconds must be a positive number");
+    }
+    // the index would refer to the order in which this corpus claimed the
+    // documents and all the corpora would overwrite each others index
+    if(getIndexedFeatures() != null && !getIndexedFeatures().isEmpty()) {
+      throw new ResourceInstantiationException(
+        "indexedFeatures cannot be used together with coordinationDirectoryURL");
+    }
+    coordinationDirectory = Files.fileFromURL(getCoordinationDirectoryURL());
+    if(!coordinationDirectory.isDirectory() && !coordinationDirectory.mkdirs()) {
+      throw new ResourceInstantiationException(
+        "Could not create coordination directory "+coordinationDirectory);
+    }
+    if(workerId == null || workerId.isEmpty()) {
+      workerId = ManagementFactory.getRuntimeMXBean().getName()+"/"+UUID.randomUUID();
+    }
+    // with a documentOrder, all corpora see the same sizes and agree on 
+    // the order already
+    if(getDocumentOrder() == null || getDocumentOrder().isEmpty()) {
+      Integer[] byName = new Integer[documentNames.size()];
+      for(int i = 0; i < byName.length; i++) {
+        byName[i] = i;
+      }
+      Arrays.sort(byName, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer a, Integer b) {
+          return documentNames.get(a).compareTo(documentNames.get(b));
+        }
+      });
+      int[] order = new int[byName.length];
+      for(int i = 0; i < order.length; i++) {
+        order[i] = byName[i];
+      }
+      reorderDocuments(order);
+    }
+    allDocumentNames = new ArrayList<String>(documentNames);
+    allDocumentSizes = new long[allDocumentNames.size()];
+    for(int i = 0; i < allDocumentSizes.length; i++) {
+      allDocumentSizes[i] = getDocumentSize(i);
+    }
+    documentNames.clear();
+    isLoadeds.clear();
+    documentIndexes.clear();
+    documentSizes = null;
+    checkCoordinationInfo();
+    // start at a random chunk so that corpora which are started at the
+    // same time do not all compete for the same chunks
+    int chunks = getNumberOfChunks();
+    nextChunk = chunks == 0 ? 0 : new Random().nextInt(chunks);
+    leaseRenewer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "LeaseRenewer-"+getName());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    long period = Math.max(1000L, getLeaseSeconds() * 250L);
+    leaseRenewer.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        renewLeases();
+      }
+    }, period, period, TimeUnit.MILLISECONDS);
+    logger.info("DirectoryCorpus: worker "+workerId+" sharing "+allDocumentNames.size()+
+      " documents in "+chunks+" chunks through "+coordinationDirectory);
+  }
+  
+  // The first corpus to use the coordination directory records the number 
+  // of documents, the chunk size and the name fingerprint there, all others
+  // check that they see the same documents, otherwise the chunk numbers
+  // would refer to different documents.
+  protected void checkCoordinationInfo() throws ResourceInstantiationException {
+    File infoFile = new File(coordinationDirectory, "corpus.info");
+    String info = "documents="+allDocumentNames.size()+" chunkSize="+getChunkSize()+
+      " fingerprint="+Long.toHexString(getNameListFingerprint(allDocumentNames));
+    try {
+      if(!infoFile.exists()) {
+        File tmpFile = new File(coordinationDirectory, "corpus.info."+UUID.randomUUID());
+        FileUtils.writeStringToFile(tmpFile, info, "UTF-8");
+        if(!tmpFile.renameTo(infoFile)) {
+          tmpFile.delete();
+        }
+      }
+      String existing = FileUtils.readFileToString(infoFile, "UTF-8");
+      if(!existing.equals(info)) {
+        throw new ResourceInstantiationException(
+          "Coordination directory "+coordinationDirectory+" is used for different documents or chunk size: "+
+          existing+", this corpus has "+info);
+      }
+    } catch (IOException ex) {
+      throw new ResourceInstantiationException(
+        "Could not access coordination info file "+infoFile, ex);
+    }
+  }
+  
+  protected int getNumberOfChunks() {
+    return (allDocumentNames.size() + getChunkSize() - 1) / getChunkSize();
+  }
+  
+  protected File getLeaseFile(int chunk) {
+    return new File(coordinationDirectory, "chunk-"+chunk+".lease");
+  }
+  
+  protected File getDoneFile(int chunk) {
+    return new File(coordinationDirectory, "chunk-"+chunk+".done");
+  }
+  
+  /**
+   * Claim the next chunk which is neither done nor leased by another 
+   * worker and add its documents to the end of the corpus.
+   * 
+   * @return false if there was no chunk left to claim
+   */
+  protected synchronized boolean claimChunk() {
+    int chunks = getNumberOfChunks();
+    for(int tried = 0; tried < chunks; tried++) {
+      int number = nextChunk;
+      nextChunk = (nextChunk + 1) % chunks;
+      if(getDoneFile(number).exists()) {
+        continue;
+      }
+      File leaseFile = getLeaseFile(number);
+      if(!createLease(leaseFile)) {
+        continue;
+      }
+      // another worker may have finished the chunk and removed its lease
+      // just before we created ours
+      if(getDoneFile(number).exists()) {
+        leaseFile.delete();
+        continue;
+      }
+      Chunk chunk = new Chunk();
+      chunk.number = number;
+      chunk.leaseFile = leaseFile;
+      chunk.start = documentNames.size();
+      int from = number * getChunkSize();
+      int to = Math.min(from + getChunkSize(), allDocumentNames.size());
+      for(int i = from; i < to; i++) {
+        String docName = allDocumentNames.get(i);
+        setDocumentSize(documentNames.size(), allDocumentSizes[i]);
+        documentIndexes.put(docName, documentNames.size());
+        documentNames.add(docName);
+        isLoadeds.add(false);
+      }
+      chunk.end = documentNames.size();
+      ownedChunks.add(chunk);
+      logger.info("DirectoryCorpus: claimed chunk "+number+" with "+(to - from)+" documents");
+      return true;
+    }
+    return false;
+  }
+  
+  // Atomically create the lease file or take it over if it has not been
+  // renewed for leaseSeconds, return true if we own the lease.
+  protected boolean createLease(File leaseFile) {
+    try {
+      if(!leaseFile.createNewFile()) {
+        if(!isStale(leaseFile)) {
+          return false;
+        }
+        // only one worker can rename the stale lease file away, all others
+        // fail to rename it or find the new lease file which is not stale
+        File staleFile = new File(coordinationDirectory, 
+          leaseFile.getName()+"."+UUID.randomUUID()+".stale");
+        if(!leaseFile.renameTo(staleFile)) {
+          return false;
+        }
+        if(!isStale(staleFile)) {
+          // the lease was renewed or replaced after we looked at it
+          staleFile.renameTo(leaseFile);
+          return false;
+        }
+        staleFile.delete();
+        if(!leaseFile.createNewFile()) {
+          return false;
+        }
+        logger.info("DirectoryCorpus: taking over stale lease "+leaseFile);
+      }
+      FileUtils.writeStringToFile(leaseFile, workerId, "UTF-8");
+      return true;
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Could not create lease file "+leaseFile, ex);
+    }
+  }
+  
+  protected boolean isStale(File leaseFile) {
+    long modified = leaseFile.lastModified();
+    return modified != 0L && 
+      modified + getLeaseSeconds() * 1000L < System.currentTimeMillis();
+  }
+  
+  /**
+   * Finish the chunks which have been processed and claim the next chunk.
+   * 
+   * @return false if there was no chunk left to claim
+   */
+  protected synchronized boolean claimNextChunk() {
+    dropLostDocuments();
+    finishChunks(false);
+    return claimChunk();
+  }
+  
+  /**
+   * Renew the leases of all the chunks we own. This is called periodically
+   * in the background while the corpus exists. If a lease has been taken 
+   * over by another worker, the chunk is marked as lost and its documents
+   * which have not been handed out yet are dropped the next time the corpus
+   * hands out a document, see {@link #dropLostDocuments()}.
+   */
+  protected synchronized void renewLeases() {
+    long now = System.currentTimeMillis();
+    for(Chunk chunk : ownedChunks) {
+      if(chunk.lost) {
+        continue;
+      }
+      try {
+        String owner = chunk.leaseFile.exists() ? 
+          FileUtils.readFileToString(chunk.leaseFile, "UTF-8") : "";
+        if(!owner.equals(workerId)) {
+          logger.warn("DirectoryCorpus warning: lease for chunk "+chunk.number+
+            " was lost to worker "+owner+", its remaining documents are dropped");
+          chunk.lost = true;
+        } else if(!chunk.leaseFile.setLastModified(now)) {
+          logger.warn("DirectoryCorpus warning: could not renew lease "+chunk.leaseFile);
+        }
+      } catch (IOException ex) {
+        logger.warn("DirectoryCorpus warning: could not renew lease "+chunk.leaseFile, ex);
+      }
+    }
+  }
+  
+  /**
+   * Remove the documents which have not been handed out yet of all chunks 
+   * whose lease was taken over by another worker. Chunks are only claimed
+   * once all documents before them have been handed out, so these 
+   * documents are always at the end of the corpus.
+   */
+  protected synchronized void dropLostDocuments() {
+    for(Chunk chunk : ownedChunks) {
+      if(!chunk.lost || chunk.end <= handedOut) {
+        continue;
+      }
+      int from = Math.max(handedOut, chunk.start);
+      for(int i = chunk.end - 1; i >= from; i--) {
+        String docName = documentNames.remove(i);
+        documentIndexes.remove(docName);
+        isLoadeds.remove(i);
+        unlockDocument(docName);
+      }
+      logger.info("DirectoryCorpus: dropped "+(chunk.end - from)+
+        " documents of lost chunk "+chunk.number);
+      chunk.end = from;
+    }
+  }
+  
+  /**
+   * Mark the chunks whose documents have all been handed out and unloaded
+   * again as done and remove their leases. A chunk whose lease was lost is
+   * left to the worker which took it over.
+   * 
+   * @param release if true, also give up the leases of all other chunks
+   * so other workers can claim them right away
+   */
+  protected synchronized void finishChunks(boolean release) {
+    Iterator<Chunk> it = ownedChunks.iterator();
+    while(it.hasNext()) {
+      Chunk chunk = it.next();
+      boolean finished = handedOut >= chunk.end;
+      for(int i = chunk.start; finished && i < chunk.end; i++) {
+        finished = !isLoadeds.get(i);
+      }
+      if(finished && !chunk.lost) {
+        File doneFile = getDoneFile(chunk.number);
+        try {
+          doneFile.createNewFile();
+        } catch (IOException ex) {
+          throw new GateRuntimeException("Could not create file "+doneFile, ex);
+        }
+      }
+      if(finished || release) {
+        if(!chunk.lost) {
+          chunk.leaseFile.delete();
+        }
+        it.remove();
+      }
+    }
+  }
+
 
   // Methods to be implemented from List
 
@@ -466,17 +1148,28 @@ public class DirectoryCorpus
           "Index "+index+" not in corpus "+this.getName()+
           " of size "+documentNames.size());
     }
+    handedOut = Math.max(handedOut, index + 1);
+    if(allDocumentNames != null) {
+      dropLostDocuments();
+    }
     String docName = documentNames.get(index);
+    Document doc;
     if(isDocumentLoaded(index)) {
-      Document doc = loadedDocuments.get(docName);
+      doc = getLoadedDocument(docName);
       //System.out.println("Returning loaded document "+doc);
-      return doc;
+    } else {
+      //System.out.println("Document not loaded, reading");
+      doc = readDocument(docName);
+      loadedDocuments.put(docName, doc);
+      isLoadeds.set(index, true);
+      adoptDocument(doc);
+    }
+    if(allDocumentNames != null && handedOut >= documentNames.size()) {
+      // the last claimed document is handed out, claim the next chunk so
+      // the corpus has grown when the caller checks the size again. This
+      // is done after loading, so the chunk of the document is not finished
+      claimNextChunk();
     }
-    //System.out.println("Document not loaded, reading");
-    Document doc = readDocument(docName);
-    loadedDocuments.put(docName, doc);
-    isLoadeds.set(index, true);
-    adoptDocument(doc);
     return doc;
   }
 
@@ -630,6 +1323,25 @@ public class DirectoryCorpus
             notImplementedMessage("set(int,Object)"));
   }
   
+  /**
+   * False if a coordination directory is used, since the corpus then grows
+   * as chunks get claimed.
+   * 
+   * @return 
+   */
+  @Override
+  public boolean hasFixedSize() {
+    return allDocumentNames == null;
+  }
+
+  /**
+   * Return the number of documents in the corpus. If a coordination 
+   * directory is used, this is the number of documents of the chunks 
+   * claimed so far, the next chunk is claimed by <code>get</code> and the
+   * iterator, never by this method.
+   * 
+   * @return 
+   */
   @Override
   public int size() {
     return documentNames.size();
@@ -680,13 +1392,20 @@ public class DirectoryCorpus
     DocumentExporter de = extension2Exporter.get(ext);
     logger.info("DirectoryCorpus/saveDocument exit is "+ext+" exporter "+de);
     File docFile = new File(backingDirectoryFile, docName);
+    // export to a hidden temporary file first, so that a failed export 
+    // never leaves a truncated document file behind
+    File tmpFile = new File(docFile.getParentFile(), "."+docFile.getName()+".tmp");
     try {
       logger.info("DirectoryCorpus/saveDocument trying to save document "+doc.getName()+" using exporter "+de);
-      de.export(doc, docFile);
+      de.export(doc, tmpFile);
+      java.nio.file.Files.move(tmpFile.toPath(), docFile.toPath(), 
+        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
       logger.info("DirectoryCorpus/saveDocument saved: "+doc.getName());
     } catch (IOException ex) {
+      tmpFile.delete();
       throw new GateRuntimeException("Could not save file: "+docFile,ex);
     }
+    updateFeatureIndex(doc);
   }
   
   protected Document readDocument(String docName) {
@@ -730,13 +1449,31 @@ public class DirectoryCorpus
     } catch (PersistenceException ex) {
       //System.err.println("Got exception when adopting: "+ex);
     }
+    ourDS.trackDocument(doc);
   }
   
   protected class DirectoryCorpusIterator implements Iterator<Document> {
     int nextIndex = 0;
     @Override
     public boolean hasNext() {
-      return (documentNames.size() > nextIndex);
+      while(true) {
+        if(allDocumentNames != null) {
+          dropLostDocuments();
+        }
+        while(size() > nextIndex) {
+          if(lockForIteration(nextIndex)) {
+            return true;
+          }
+          nextIndex++;
+          // skipped documents count as handed out, so they never get 
+          // dropped from under the iterator
+          handedOut = Math.max(handedOut, nextIndex);
+        }
+        // with a coordination directory, chunks may have become claimable
+        if(allDocumentNames == null || !claimNextChunk()) {
+          return false;
+        }
+      }
     }
     @Override
     public Document next() {
@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2010- Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-VirtualCorpus
+ * (see https://github.com/johann-petrak/gateplugin-VirtualCorpus)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.ofai.gate.virtualcorpus;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * The size, modification time and optionally the content hash of the 
+ * files of a DirectoryCorpus as they were when the files were last 
+ * processed, so that a later run can process only new and changed files.
+ * <p>
+ * Files are compared by size and modification time only, without reading
+ * them. If content hashes are used, a file whose modification time 
+ * changed but whose size did not is read once to check if the content 
+ * really changed, e.g. after it was copied or touched.
+ *
+ * @author Johann Petrak
+ */
+public class DirectoryManifest {
+
+  protected static final int MAGIC = 0x5643444d;
+  protected static final String HASH_ALGORITHM = "SHA-1";
+
+  protected static class Entry {
+    long size;
+    long lastModified;
+    byte[] hash;
+    boolean seen;
+  }
+
+  protected Map<String,Entry> entries = new HashMap<String,Entry>();
+  protected boolean useHashes;
+  protected boolean modified = false;
+
+  public DirectoryManifest(boolean useHashes) {
+    this.useHashes = useHashes;
+  }
+
+  /**
+   * The number of files in the manifest.
+   * @return
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * True if the manifest has changed since it was created, loaded or saved.
+   * @return
+   */
+  public synchronized boolean isModified() {
+    return modified;
+  }
+
+  /**
+   * Check if the file is new or has changed since it was recorded in the
+   * manifest. This also marks the file as seen, see 
+   * {@link #removeUnseen()}.
+   *
+   * @param name the name of the file in the manifest
+   * @param file
+   * @param size the current length of the file
+   * @return
+   */
+  public synchronized boolean isChanged(String name, File file, long size) {
+    Entry entry = entries.get(name);
+    if(entry == null) {
+      return true;
+    }
+    entry.seen = true;
+    if(entry.size != size) {
+      return true;
+    }
+    long lastModified = file.lastModified();
+    if(entry.lastModified == lastModified) {
+      return false;
+    }
+    if(!useHashes || entry.hash == null) {
+      return true;
+    }
+    try {
+      if(!Arrays.equals(entry.hash, hash(file))) {
+        return true;
+      }
+    } catch (IOException ex) {
+      return true;
+    }
+    entry.lastModified = lastModified;
+    modified = true;
+    return false;
+  }
+
+  /**
+   * Record the current state of the file, or remove it from the manifest
+   * if it does not exist.
+   *
+   * @param name
+   * @param file
+   * @throws IOException if the content hash could not be calculated
+   */
+  public synchronized void update(String name, File file) throws IOException {
+    modified = true;
+    if(!file.exists()) {
+      entries.remove(name);
+      return;
+    }
+    Entry entry = new Entry();
+    entry.size = file.length();
+    entry.lastModified = file.lastModified();
+    entry.seen = true;
+    if(useHashes) {
+      entry.hash = hash(file);
+    }
+    entries.put(name, entry);
+  }
+
+  /**
+   * Remove the files which were not seen since the manifest was loaded,
+   * because they do not exist any more.
+   * @return the number of files removed
+   */
+  public synchronized int removeUnseen() {
+    int removed = 0;
+    Iterator<Entry> it = entries.values().iterator();
+    while(it.hasNext()) {
+      if(!it.next().seen) {
+        it.remove();
+        removed++;
+      }
+    }
+    if(removed > 0) {
+      modified = true;
+    }
+    return removed;
+  }
+
+  /**
+   * Save the manifest to a file. The file is replaced atomically, so an 
+   * interrupted save leaves the previous manifest.
+   * @param file
+   * @throws IOException
+   */
+  public synchronized void save(File file) throws IOException {
+    File tmpFile = new File(file.getPath()+".tmp");
+    DataOutputStream out = new DataOutputStream(
+      new BufferedOutputStream(new FileOutputStream(tmpFile)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(entries.size());
+      for(Map.Entry<String,Entry> e : entries.entrySet()) {
+        Entry entry = e.getValue();
+        out.writeUTF(e.getKey());
+        out.writeLong(entry.size);
+        out.writeLong(entry.lastModified);
+        if(entry.hash == null) {
+          out.writeByte(0);
+        } else {
+          out.writeByte(entry.hash.length);
+          out.write(entry.hash);
+        }
+      }
+    } finally {
+      out.close();
+    }
+    java.nio.file.Files.move(tmpFile.toPath(), file.toPath(), 
+      StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    modified = false;
+  }
+
+  /**
+   * Load a manifest saved by {@link #save(java.io.File)}. All files are
+   * marked as not seen.
+   * @param file
+   * @throws IOException
+   */
+  public synchronized void load(File file) throws IOException {
+    DataInputStream in = new DataInputStream(
+      new BufferedInputStream(new FileInputStream(file)));
+    try {
+      if(in.readInt() != MAGIC) {
+        throw new IOException("Not a manifest file: "+file);
+      }
+      int n = in.readInt();
+      entries = new HashMap<String,Entry>();
+      for(int i = 0; i < n; i++) {
+        String name = in.readUTF();
+        Entry entry = new Entry();
+        entry.size = in.readLong();
+        entry.lastModified = in.readLong();
+        int hashLength = in.readUnsignedByte();
+        if(hashLength > 0) {
+          entry.hash = new byte[hashLength];
+          in.readFully(entry.hash);
+        }
+        entries.put(name, entry);
+      }
+    } finally {
+      in.close();
+    }
+    modified = false;
+  }
+
+  protected static byte[] hash(File file) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance(HASH_ALGORITHM);
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IOException("No "+HASH_ALGORITHM+" support", ex);
+    }
+    InputStream in = new FileInputStream(file);
+    try {
+      byte[] buffer = new byte[65536];
+      int n;
+      while((n = in.read(buffer)) > 0) {
+        digest.update(buffer, 0, n);
+      }
+    } finally {
+      in.close();
+    }
+    return digest.digest();
+  }
+
+}
@@ -49,7 +49,7 @@ public class DummyDataStore4DirCorp
    * @throws PersistenceException
    */
   @Override
-  public void sync(LanguageResource lr) throws PersistenceException {
+  public synchronized void sync(LanguageResource lr) throws PersistenceException {
     if(lr instanceof Document && ourCorpus.isDocumentLoaded((Document)lr)) {
       //System.err.println("Syncing document: "+lr.getName());
       ourCorpus.saveDocument((Document)lr);
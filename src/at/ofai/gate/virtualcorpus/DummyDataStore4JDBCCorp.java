@@ -48,6 +48,7 @@ public class DummyDataStore4JDBCCorp
   String ourComment = "Dummy Datastore for a JDBCCorpus";
 
   public void setCorpus(JDBCCorpus corpus) {
+    super.setCorpus(corpus);
     ourCorpus = corpus;
   }
 
@@ -66,7 +67,7 @@ public class DummyDataStore4JDBCCorp
    * @throws PersistenceException
    */
   @Override
-  public void sync(LanguageResource lr) throws PersistenceException {
+  public synchronized void sync(LanguageResource lr) throws PersistenceException {
     if(lr instanceof Document && ourCorpus.isDocumentLoaded((Document)lr)) {
       try {
         //System.err.println("Syncing document: "+lr.getName());
@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2010- Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-VirtualCorpus
+ * (see https://github.com/johann-petrak/gateplugin-VirtualCorpus)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.ofai.gate.virtualcorpus;
+
+/**
+ * A dummy datastore so that documents that are returned by a PackedCorpus
+ * are not looking like transient documents. This will help getting them
+ * unloaded. Empty transient corpora are adopted as PackedSubsetCorpus 
+ * instances.
+ * 
+ * @author Johann Petrak
+ */
+public class DummyDataStore4PackedCorp
+  extends DummyDataStore4Virtuals {
+
+}
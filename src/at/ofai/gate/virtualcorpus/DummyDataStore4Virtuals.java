@@ -21,13 +21,39 @@
 
 package at.ofai.gate.virtualcorpus;
 
+import gate.AnnotationSet;
 import gate.Corpus;
 import gate.DataStore;
+import gate.Document;
 import gate.FeatureMap;
 import gate.LanguageResource;
+import gate.corpora.CorpusImpl;
+import gate.corpora.DocumentImpl;
+import gate.event.AnnotationSetEvent;
+import gate.event.AnnotationSetListener;
 import gate.event.DatastoreListener;
+import gate.event.DocumentEvent;
+import gate.event.DocumentListener;
+import gate.event.FeatureMapListener;
+import gate.creole.ResourceInstantiationException;
 import gate.persist.PersistenceException;
+import gate.util.GateRuntimeException;
+import gate.util.MethodNotImplementedException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import org.apache.log4j.Logger;
 
 /**
  * 
@@ -42,6 +68,38 @@ implements DataStore {
   protected String ourComment = "Dummy DataStore for a VirtualCorpus";
   protected VirtualCorpus ourCorpus;
 
+  /**
+   * The LR type of the documents in this datastore.
+   */
+  public static final String DOCUMENT_TYPE = DocumentImpl.class.getName();
+
+  /**
+   * The key of a {@link Restriction} on the document name, see
+   * {@link #findLrIds(java.util.List)}.
+   */
+  public static final String NAME_KEY = "gate.name";
+
+  // the indexes of the documents of the corpus in the order of their names
+  protected int[] sortedIndexes;
+
+  /**
+   * The maximum factor by which the autosave interval is increased while
+   * the pipeline is busy.
+   */
+  public static final int AUTOSAVE_MAX_BACKOFF = 8;
+
+  protected volatile boolean autoSaving = false;
+  protected int autoSaveInterval = 60;
+  protected int autoSaveBatchSize = 100;
+  // the current delay between autosave runs in milliseconds
+  protected long autoSaveDelay;
+  protected ScheduledExecutorService autoSaver = null;
+  // the loaded documents watched for changes while autosaving
+  protected final Map<Document,DirtyTracker> trackedDocuments = 
+    new IdentityHashMap<Document,DirtyTracker>();
+
+  private static final Logger logger = Logger.getLogger(DummyDataStore4Virtuals.class);
+
   public void setCorpus(VirtualCorpus corpus) {
     ourCorpus = corpus;
   }
@@ -83,6 +141,8 @@ implements DataStore {
    * @throws PersistenceException
    */
   public void close() throws PersistenceException {
+    logger.debug("Datastore "+getName()+
+      " is closed automatically when corpus "+getCorpusName()+" is closed");
   }
 
   /**
@@ -121,24 +181,330 @@ implements DataStore {
    * @param lr
    * @throws PersistenceException
    */
-  public abstract void sync(LanguageResource lr) throws PersistenceException;
+  public synchronized void sync(LanguageResource lr) throws PersistenceException {
+    if(lr instanceof Document && ourCorpus.isDocumentLoaded((Document)lr)) {
+      ourCorpus.saveDocument((Document)lr);
+    }
+  }
 
   /**
-   * This does nothing.
+   * Turn autosaving on or off. While autosaving is on, all documents 
+   * which get loaded from the corpus are watched for changes to their 
+   * annotation sets, annotations and document features. A background 
+   * thread saves changed documents every autoSaveInterval seconds, at most
+   * autoSaveBatchSize documents each time, by syncing them in the same 
+   * way as when they are unloaded.
+   * <p>
+   * GATE documents must not be changed while they are saved, so a changed
+   * document is only saved once it is idle: it has neither been changed 
+   * nor returned by the corpus for a whole interval, or it has been 
+   * released with {@link VirtualCorpus#releaseDocument(gate.Document)}.
+   * A document is acquired again when it is returned by the corpus or 
+   * unloaded, which waits for a save of the document which is in progress.
+   * If an idle document still gets changed while it is saved, the save 
+   * may fail or be incomplete, and the document stays marked as changed
+   * so it is saved again later. If all changed documents are still in 
+   * processing, the pipeline is considered busy and the interval is 
+   * doubled each time, up to {@link #AUTOSAVE_MAX_BACKOFF} times the 
+   * configured interval. Changes to annotation features are not detected.
    * 
    * @param autoSaving
    * @throws UnsupportedOperationException
    * @throws PersistenceException
    */
-  public void setAutoSaving(boolean autoSaving) throws UnsupportedOperationException, PersistenceException {
+  public synchronized void setAutoSaving(boolean autoSaving) throws UnsupportedOperationException, PersistenceException {
+    if(autoSaving == this.autoSaving) {
+      return;
+    }
+    this.autoSaving = autoSaving;
+    if(autoSaving) {
+      autoSaveDelay = autoSaveInterval * 1000L;
+      autoSaver = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "AutoSave-"+getName());
+          thread.setDaemon(true);
+          thread.setPriority(Thread.MIN_PRIORITY);
+          return thread;
+        }
+      });
+      scheduleAutoSave();
+    } else {
+      // a flush which is running is allowed to finish
+      autoSaver.shutdown();
+      autoSaver = null;
+      synchronized(trackedDocuments) {
+        for(DirtyTracker tracker : trackedDocuments.values()) {
+          tracker.detach();
+        }
+        trackedDocuments.clear();
+      }
+    }
   }
 
   /**
-   * This always returns false as autosaving is not supported at all.
+   * True if autosaving is turned on, see {@link #setAutoSaving(boolean)}.
    * @return
    */
   public boolean isAutoSaving() {
-    return false;
+    return autoSaving;
+  }
+
+  public void setAutoSaveInterval(int seconds) {
+    if(seconds <= 0) {
+      throw new IllegalArgumentException("Autosave interval must be positive: "+seconds);
+    }
+    autoSaveInterval = seconds;
+  }
+
+  public int getAutoSaveInterval() {
+    return autoSaveInterval;
+  }
+
+  public void setAutoSaveBatchSize(int size) {
+    if(size <= 0) {
+      throw new IllegalArgumentException("Autosave batch size must be positive: "+size);
+    }
+    autoSaveBatchSize = size;
+  }
+
+  public int getAutoSaveBatchSize() {
+    return autoSaveBatchSize;
+  }
+
+  /**
+   * Start watching a document which has just been loaded from the corpus
+   * for changes, if autosaving is on.
+   * 
+   * @param doc 
+   */
+  public void trackDocument(Document doc) {
+    if(!autoSaving) {
+      return;
+    }
+    DirtyTracker tracker = new DirtyTracker(doc);
+    synchronized(trackedDocuments) {
+      if(trackedDocuments.containsKey(doc)) {
+        return;
+      }
+      trackedDocuments.put(doc, tracker);
+    }
+    tracker.attach();
+  }
+
+  /**
+   * Mark the document as not being changed by anyone until it is acquired
+   * again, so that it can be autosaved.
+   * 
+   * @param doc 
+   */
+  public void releaseDocument(Document doc) {
+    DirtyTracker tracker;
+    synchronized(trackedDocuments) {
+      tracker = trackedDocuments.get(doc);
+    }
+    if(tracker != null) {
+      synchronized(tracker) {
+        tracker.released = true;
+      }
+    }
+  }
+
+  /**
+   * Mark the document as being used again, so it is not autosaved. If the
+   * document is being autosaved, this waits until the save is finished.
+   * 
+   * @param doc 
+   */
+  public void acquireDocument(Document doc) {
+    DirtyTracker tracker;
+    synchronized(trackedDocuments) {
+      tracker = trackedDocuments.get(doc);
+    }
+    if(tracker != null) {
+      synchronized(tracker) {
+        tracker.released = false;
+        tracker.lastUsed = System.currentTimeMillis();
+      }
+    }
+  }
+
+  /**
+   * Stop watching a document which gets unloaded from the corpus.
+   * 
+   * @param doc 
+   */
+  public void untrackDocument(Document doc) {
+    DirtyTracker tracker;
+    synchronized(trackedDocuments) {
+      tracker = trackedDocuments.remove(doc);
+    }
+    if(tracker != null) {
+      tracker.detach();
+    }
+  }
+
+  protected void scheduleAutoSave() {
+    try {
+      autoSaver.schedule(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            autoSave();
+          } catch (Throwable ex) {
+            logger.error("Autosave failed for "+getName(), ex);
+          }
+          synchronized(DummyDataStore4Virtuals.this) {
+            if(autoSaving && autoSaver != null) {
+              scheduleAutoSave();
+            }
+          }
+        }
+      }, autoSaveDelay, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException ex) {
+      // autosaving was turned off
+    }
+  }
+
+  /**
+   * Save up to autoSaveBatchSize changed documents which are idle or have
+   * been released, and adapt the delay until the next run.
+   */
+  protected void autoSave() {
+    List<DirtyTracker> trackers;
+    synchronized(trackedDocuments) {
+      trackers = new ArrayList<DirtyTracker>(trackedDocuments.values());
+    }
+    int saved = 0;
+    int busy = 0;
+    long idleSince = System.currentTimeMillis() - autoSaveInterval * 1000L;
+    for(DirtyTracker tracker : trackers) {
+      if(!autoSaving || saved >= autoSaveBatchSize) {
+        break;
+      }
+      if(!tracker.dirty) {
+        continue;
+      }
+      // holding the tracker keeps the document from being acquired again
+      // while it is saved
+      synchronized(tracker) {
+        if(!tracker.released && tracker.lastUsed > idleSince) {
+          busy++;
+          continue;
+        }
+        synchronized(trackedDocuments) {
+          if(!trackedDocuments.containsKey(tracker.doc)) {
+            continue;
+          }
+        }
+        tracker.dirty = false;
+        long started = System.currentTimeMillis();
+        try {
+          sync(tracker.doc);
+          saved++;
+          if(tracker.lastUsed >= started) {
+            // changed while it was saved, the save may be incomplete
+            tracker.dirty = true;
+          }
+        } catch (Exception ex) {
+          logger.error("Autosave of "+tracker.doc.getName()+" failed, retrying later", ex);
+          tracker.dirty = true;
+        }
+      }
+    }
+    if(saved > 0) {
+      synchronized(this) {
+        ourCorpus.sync();
+      }
+      logger.info("Autosaved "+saved+" documents of corpus "+ourCorpus.getName());
+    }
+    if(saved == 0 && busy > 0) {
+      autoSaveDelay = Math.min(autoSaveDelay * 2, 
+        autoSaveInterval * 1000L * AUTOSAVE_MAX_BACKOFF);
+    } else {
+      autoSaveDelay = autoSaveInterval * 1000L;
+    }
+  }
+
+  /**
+   * Watches a loaded document for changes.
+   */
+  protected class DirtyTracker 
+    implements DocumentListener, AnnotationSetListener, FeatureMapListener {
+    protected Document doc;
+    protected volatile boolean dirty = false;
+    // when the document was last changed or returned by the corpus
+    protected volatile long lastUsed = System.currentTimeMillis();
+    // guarded by the tracker
+    protected boolean released = false;
+    
+    public DirtyTracker(Document doc) {
+      this.doc = doc;
+    }
+    
+    protected void changed() {
+      lastUsed = System.currentTimeMillis();
+      dirty = true;
+    }
+    
+    protected void attach() {
+      doc.addDocumentListener(this);
+      if(doc.getFeatures() != null) {
+        doc.getFeatures().addFeatureMapListener(this);
+      }
+      doc.getAnnotations().addAnnotationSetListener(this);
+      Map<String,AnnotationSet> sets = doc.getNamedAnnotationSets();
+      if(sets != null) {
+        for(AnnotationSet set : sets.values()) {
+          set.addAnnotationSetListener(this);
+        }
+      }
+    }
+    
+    protected void detach() {
+      doc.removeDocumentListener(this);
+      if(doc.getFeatures() != null) {
+        doc.getFeatures().removeFeatureMapListener(this);
+      }
+      doc.getAnnotations().removeAnnotationSetListener(this);
+      Map<String,AnnotationSet> sets = doc.getNamedAnnotationSets();
+      if(sets != null) {
+        for(AnnotationSet set : sets.values()) {
+          set.removeAnnotationSetListener(this);
+        }
+      }
+    }
+
+    @Override
+    public void annotationSetAdded(DocumentEvent e) {
+      doc.getAnnotations(e.getAnnotationSetName()).addAnnotationSetListener(this);
+      changed();
+    }
+
+    @Override
+    public void annotationSetRemoved(DocumentEvent e) {
+      changed();
+    }
+
+    @Override
+    public void contentEdited(DocumentEvent e) {
+      changed();
+    }
+
+    @Override
+    public void annotationAdded(AnnotationSetEvent e) {
+      changed();
+    }
+
+    @Override
+    public void annotationRemoved(AnnotationSetEvent e) {
+      changed();
+    }
+
+    @Override
+    public void featureMapUpdated() {
+      changed();
+    }
   }
 
   /**
@@ -147,40 +513,412 @@ implements DataStore {
    * document. If adding a new document is not supported a persistence exception
    * is thrown.
    * 
+   * A document can only be adopted if it already belongs to this datastore,
+   * in which case nothing is done. An empty transient corpus is adopted
+   * by returning a new subset corpus of the corpus with the same name
+   * and features, if the corpus supports subset corpora.
+   * 
    * @param lr
-   * @param secInfo
    * @return
    * @throws PersistenceException
    */
-  public abstract LanguageResource adopt(LanguageResource lr) throws PersistenceException;
+  public LanguageResource adopt(LanguageResource lr) throws PersistenceException {
+    if(lr instanceof Document) {
+      if(lr.getDataStore() != this) {
+        throw new PersistenceException("Cannot adopt document, already in a different datastore: "+lr.getName());
+      }
+      return lr;
+    } else if(lr instanceof CorpusImpl) {
+      Corpus corpus = (Corpus)lr;
+      if(corpus.getDataStore() != null) {
+        throw new PersistenceException(
+          "Cannot adopt corpus "+corpus.getName()+
+          " which belongs to datastore "+corpus.getDataStore().getName());
+      }
+      if(corpus.size() != 0) {
+        throw new PersistenceException(
+          "Cannot adopt corpus "+corpus.getName()+
+          " which is non empty, number of documents contained: "+
+          corpus.size());
+      }
+      VirtualSubsetCorpus newCorpus;
+      try {
+        newCorpus = ourCorpus.createSubsetCorpus(corpus.getName());
+      } catch (ResourceInstantiationException ex) {
+        throw new PersistenceException("Could not adopt corpus "+corpus.getName(),ex);
+      } catch (MethodNotImplementedException ex) {
+        throw new PersistenceException("Cannot adopt LR: "+lr.getName(),ex);
+      }
+      newCorpus.getFeatures().putAll(corpus.getFeatures());
+      return newCorpus;
+    }
+    throw new PersistenceException("Cannot adopt LR: "+lr.getName());
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName()+" "+getName()+" for "+getCorpusName();
+  }
 
+  private String getCorpusName() {
+    if(getCorpus() != null) {
+      return getCorpus().getName();
+    } else {
+      return "";
+    }
+  }
+
+  /**
+   * Return the document with the given name from the corpus. The document
+   * is retrieved through the corpus in the same way as with 
+   * <code>corpus.get(index)</code>, so it is loaded only if it is not 
+   * loaded already.
+   * 
+   * @param lrClassName the document class name
+   * @param lrId the document name
+   * @return the document
+   * @throws PersistenceException if there is no such document
+   */
   public LanguageResource getLr(String lrClassName, Object lrId) throws PersistenceException {
-    throw new UnsupportedOperationException("Not supported.");
+    if(!isDocumentType(lrClassName)) {
+      throw new PersistenceException("Datastore "+getName()+
+        " only contains documents, not "+lrClassName);
+    }
+    int index = getDocumentIndex(lrId);
+    if(index < 0) {
+      throw new PersistenceException("No document "+lrId+" in corpus "+ourCorpus.getName());
+    }
+    return ourCorpus.get(index);
   }
 
+  /**
+   * The only LR type in this datastore is the document class.
+   * @return
+   * @throws PersistenceException 
+   */
   public List getLrTypes() throws PersistenceException {
-    throw new UnsupportedOperationException("Not supported.");
+    return Collections.singletonList(DOCUMENT_TYPE);
   }
 
+  /**
+   * Return the ids of all documents of the corpus, in corpus order. The 
+   * id of a document is its name. The list is a read-only view of the 
+   * document names of the corpus, the names are not copied.
+   * 
+   * @param lrType
+   * @return
+   * @throws PersistenceException 
+   */
   public List getLrIds(String lrType) throws PersistenceException {
-    throw new UnsupportedOperationException("Not supported.");
+    if(!isDocumentType(lrType)) {
+      return Collections.emptyList();
+    }
+    return Collections.unmodifiableList(ourCorpus.documentNames);
   }
 
+  /**
+   * Return the names of all documents, which are the same as the ids, 
+   * see {@link #getLrIds(java.lang.String)}.
+   * 
+   * @param lrType
+   * @return
+   * @throws PersistenceException 
+   */
   public List getLrNames(String lrType) throws PersistenceException {
-    throw new UnsupportedOperationException("Not supported.");
+    return getLrIds(lrType);
   }
 
+  /**
+   * Find the ids of the documents which match all the given constraints.
+   * A constraint which is a String is a prefix the document name must 
+   * start with. A constraint which is a Map, e.g. a FeatureMap, holds 
+   * feature names and the values the documents must have for them; 
+   * these features must be indexed by the corpus, see 
+   * {@link VirtualCorpus#setIndexedFeatures(java.util.List)}. A constraint
+   * which is a {@link Restriction} with the equation or like operator 
+   * restricts an indexed feature, or the document name if its key is 
+   * {@link #NAME_KEY}; like uses the SQL wildcards % and _. An empty list 
+   * of constraints matches all documents. The ids are returned in the 
+   * order of their names.
+   * <p>
+   * The first query builds a sorted index over the document names of 
+   * the corpus, after that a name prefix query takes logarithmic time. 
+   * No document is loaded and the names of the documents found are 
+   * only retrieved from the corpus when the returned list is accessed.
+   * 
+   * @param constraints
+   * @return
+   * @throws PersistenceException 
+   */
   public List findLrIds(List constraints) throws PersistenceException {
-    throw new UnsupportedOperationException("Not supported.");
+    String prefix = "";
+    Map<Object,Object> features = new HashMap<Object,Object>();
+    List<Pattern> namePatterns = new ArrayList<Pattern>();
+    Map<String,List<Pattern>> featurePatterns = new HashMap<String,List<Pattern>>();
+    for(Object constraint : constraints) {
+      Restriction restriction = Restriction.from(constraint);
+      if(restriction != null) {
+        String key = restriction.getKey();
+        Object value = restriction.getValue();
+        int operator = restriction.getOperator();
+        if(operator == Restriction.OPERATOR_EQUATION && !NAME_KEY.equals(key)) {
+          constraint = Collections.singletonMap(key, value);
+        } else if(operator == Restriction.OPERATOR_EQUATION || 
+                  operator == Restriction.OPERATOR_LIKE) {
+          String pattern = String.valueOf(value);
+          if(operator == Restriction.OPERATOR_EQUATION) {
+            // the name must match exactly, which is the longest prefix
+            namePatterns.add(Pattern.compile(Pattern.quote(pattern)));
+            constraint = pattern;
+          } else if(NAME_KEY.equals(key)) {
+            namePatterns.add(likeToPattern(pattern));
+            // the part before the first wildcard is a prefix of the name
+            constraint = pattern.split("[%_]", -1)[0];
+          } else {
+            List<Pattern> patterns = featurePatterns.get(key);
+            if(patterns == null) {
+              patterns = new ArrayList<Pattern>();
+              featurePatterns.put(key, patterns);
+            }
+            patterns.add(likeToPattern(pattern));
+            continue;
+          }
+        } else {
+          throw new UnsupportedOperationException(
+            "Datastore "+getName()+" only supports the equation and like operators, got "+
+            operator+" for "+key);
+        }
+      }
+      if(constraint instanceof Map) {
+        for(Map.Entry<?,?> feature : ((Map<?,?>)constraint).entrySet()) {
+          Object value = features.get(feature.getKey());
+          if(value != null && !value.equals(feature.getValue())) {
+            // two different values for the same feature cannot both match
+            return Collections.emptyList();
+          }
+          features.put(feature.getKey(), feature.getValue());
+        }
+        continue;
+      }
+      if(!(constraint instanceof String)) {
+        throw new UnsupportedOperationException(
+          "Datastore "+getName()+" only supports name prefix, feature and restriction constraints, got "+
+          constraint);
+      }
+      String other = (String)constraint;
+      if(other.startsWith(prefix)) {
+        prefix = other;
+      } else if(!prefix.startsWith(other)) {
+        // two prefixes which cannot both match the same name
+        return Collections.emptyList();
+      }
+    }
+    if(features.isEmpty() && featurePatterns.isEmpty()) {
+      return findByPrefix(prefix, null, namePatterns);
+    }
+    FeatureIndex featureIndex = ourCorpus.getFeatureIndex();
+    if(featureIndex == null) {
+      throw new UnsupportedOperationException(
+        "Feature constraints need indexedFeatures for corpus "+ourCorpus.getName());
+    }
+    ParentIndexSet matching = null;
+    try {
+      if(!features.isEmpty()) {
+        matching = featureIndex.find(features);
+      }
+      for(Map.Entry<String,List<Pattern>> entry : featurePatterns.entrySet()) {
+        for(Pattern pattern : entry.getValue()) {
+          ParentIndexSet docs = featureIndex.findMatching(entry.getKey(), pattern);
+          if(matching == null) {
+            matching = docs;
+          } else {
+            matching.and(docs);
+          }
+        }
+      }
+    } catch (GateRuntimeException ex) {
+      throw new PersistenceException(ex.getMessage());
+    }
+    return findByPrefix(prefix, matching, namePatterns);
+  }
+  
+  /**
+   * Convert a pattern with the SQL LIKE wildcards % and _ to a regular 
+   * expression.
+   * 
+   * @param like
+   * @return 
+   */
+  protected static Pattern likeToPattern(String like) {
+    StringBuilder regex = new StringBuilder();
+    int start = 0;
+    for(int i = 0; i < like.length(); i++) {
+      char c = like.charAt(i);
+      if(c == '%' || c == '_') {
+        if(i > start) {
+          regex.append(Pattern.quote(like.substring(start, i)));
+        }
+        regex.append(c == '%' ? ".*" : ".");
+        start = i + 1;
+      }
+    }
+    if(like.length() > start) {
+      regex.append(Pattern.quote(like.substring(start)));
+    }
+    return Pattern.compile(regex.toString(), Pattern.DOTALL);
   }
 
   public List findLrIds(List constraints, String lrType) throws PersistenceException {
-    throw new UnsupportedOperationException("Not supported.");
+    if(!isDocumentType(lrType)) {
+      return Collections.emptyList();
+    }
+    return findLrIds(constraints);
   }
 
   @Override
   public String getLrName(Object lrId) throws PersistenceException {
-    throw new UnsupportedOperationException("Not supported.");
+    if(getDocumentIndex(lrId) < 0) {
+      throw new PersistenceException("No document "+lrId+" in corpus "+ourCorpus.getName());
+    }
+    return (String)lrId;
+  }
+
+  protected static boolean isDocumentType(String lrType) {
+    return lrType == null || lrType.equals(DOCUMENT_TYPE) || lrType.equals(Document.class.getName());
+  }
+
+  protected int getDocumentIndex(Object lrId) {
+    Integer index = ourCorpus.documentIndexes.get(lrId);
+    return index == null ? -1 : index;
+  }
+
+  // true if the name matches each of the patterns
+  protected static boolean matchesAll(String name, List<Pattern> patterns) {
+    for(Pattern pattern : patterns) {
+      if(!pattern.matcher(name).matches()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Return a read-only list of the names of all documents which start with
+   * the prefix, in sorted order.
+   * 
+   * @param prefix
+   * @return 
+   */
+  protected List<String> findByPrefix(String prefix) {
+    return findByPrefix(prefix, null, null);
+  }
+
+  /**
+   * Return a read-only list of the names of all documents which start with
+   * the prefix, whose index is in the set, if the set is not null, and
+   * whose name matches all the patterns, if any.
+   * 
+   * @param prefix
+   * @param indexes
+   * @param namePatterns
+   * @return 
+   */
+  protected synchronized List<String> findByPrefix(String prefix, ParentIndexSet indexes,
+      List<Pattern> namePatterns) {
+    final List<String> names = ourCorpus.documentNames;
+    final int[] sorted = getSortedIndexes();
+    int size = sorted.length;
+    // the names which start with the prefix come after all names which are
+    // smaller than the prefix and before all other names
+    int from = 0;
+    int to = size;
+    while(from < to) {
+      int mid = (from + to) >>> 1;
+      if(names.get(sorted[mid]).compareTo(prefix) < 0) {
+        from = mid + 1;
+      } else {
+        to = mid;
+      }
+    }
+    to = size;
+    int low = from;
+    while(low < to) {
+      int mid = (low + to) >>> 1;
+      if(names.get(sorted[mid]).startsWith(prefix)) {
+        low = mid + 1;
+      } else {
+        to = mid;
+      }
+    }
+    int[] range = Arrays.copyOfRange(sorted, from, to);
+    if(indexes != null) {
+      int n = 0;
+      for(int index : range) {
+        if(indexes.contains(index)) {
+          range[n++] = index;
+        }
+      }
+      range = Arrays.copyOf(range, n);
+    }
+    if(namePatterns != null && !namePatterns.isEmpty()) {
+      int n = 0;
+      for(int index : range) {
+        if(matchesAll(names.get(index), namePatterns)) {
+          range[n++] = index;
+        }
+      }
+      range = Arrays.copyOf(range, n);
+    }
+    final int[] found = range;
+    return new AbstractList<String>() {
+      @Override
+      public String get(int index) {
+        return names.get(found[index]);
+      }
+      @Override
+      public int size() {
+        return found.length;
+      }
+    };
+  }
+
+  // Documents are never removed from a virtual corpus, only added at the
+  // end, so the sorted index has to be rebuilt only if the size changed
+  protected int[] getSortedIndexes() {
+    int size = ourCorpus.documentNames.size();
+    if(sortedIndexes == null || sortedIndexes.length != size) {
+      int[] indexes = new int[size];
+      for(int i = 0; i < size; i++) {
+        indexes[i] = i;
+      }
+      sortByName(indexes, new int[size], 0, size, ourCorpus.documentNames);
+      sortedIndexes = indexes;
+    }
+    return sortedIndexes;
+  }
+
+  // merge sort of the indexes by the names they refer to, on primitive
+  // arrays to avoid boxing millions of indexes
+  protected static void sortByName(int[] a, int[] tmp, int from, int to, List<String> names) {
+    if(to - from < 2) {
+      return;
+    }
+    int mid = (from + to) >>> 1;
+    sortByName(a, tmp, from, mid, names);
+    sortByName(a, tmp, mid, to, names);
+    if(names.get(a[mid - 1]).compareTo(names.get(a[mid])) <= 0) {
+      return;
+    }
+    System.arraycopy(a, from, tmp, from, to - from);
+    int i = from;
+    int j = mid;
+    for(int k = from; k < to; k++) {
+      if(j >= to || (i < mid && names.get(tmp[i]).compareTo(names.get(tmp[j])) <= 0)) {
+        a[k] = tmp[i++];
+      } else {
+        a[k] = tmp[j++];
+      }
+    }
   }
 
   /**
@@ -223,14 +961,39 @@ implements DataStore {
     throw new UnsupportedOperationException("Not supported yet.");
   }
 
+  /**
+   * Lock a document of the corpus, see 
+   * {@link VirtualCorpus#lockDocument(java.lang.String)}. This never waits
+   * for a document locked by someone else but returns false.
+   * 
+   * @param lr
+   * @return true if the lock was acquired
+   * @throws PersistenceException 
+   */
   @Override
   public boolean lockLr(LanguageResource lr) throws PersistenceException {
-    throw new UnsupportedOperationException("Not supported yet.");
+    if(!(lr instanceof Document)) {
+      throw new UnsupportedOperationException("Only documents can be locked");
+    }
+    try {
+      return ourCorpus.lockDocument(lr.getName());
+    } catch (GateRuntimeException ex) {
+      throw new PersistenceException(ex.getMessage());
+    }
   }
 
+  /**
+   * Release the lock on a document of the corpus if it is held.
+   * 
+   * @param lr
+   * @throws PersistenceException 
+   */
   @Override
   public void unlockLr(LanguageResource lr) throws PersistenceException {
-    throw new UnsupportedOperationException("Not supported yet.");
+    if(!(lr instanceof Document)) {
+      throw new UnsupportedOperationException("Only documents can be locked");
+    }
+    ourCorpus.unlockDocument(lr.getName());
   }
 
   @Override
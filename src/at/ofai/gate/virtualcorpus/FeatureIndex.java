@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) 2010- Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-VirtualCorpus
+ * (see https://github.com/johann-petrak/gateplugin-VirtualCorpus)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.virtualcorpus;
+
+import gate.util.GateRuntimeException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * An inverted index from document feature values to the documents of a
+ * virtual corpus which have them.
+ * <p>
+ * Only the features given when the index is created are indexed. For
+ * each feature and each distinct value (as a String) the index holds the
+ * bitmap of the corpus indexes of the documents with that value, so this
+ * is meant for features with a limited number of distinct values, like
+ * a language or a processing status. The index is updated by the corpus
+ * whenever a document is saved, so it reflects the features of the saved
+ * documents.
+ *
+ * @author Johann Petrak
+ */
+public class FeatureIndex {
+
+  /**
+   * Values with a longer String representation are not indexed.
+   */
+  public static final int MAX_VALUE_LENGTH = 1000;
+
+  protected static final int MAGIC = 0x56434649;
+
+  protected Set<String> features;
+  protected Map<String,Map<String,ParentIndexSet>> index =
+    new HashMap<String,Map<String,ParentIndexSet>>();
+  protected boolean modified = false;
+
+  public FeatureIndex(Collection<String> featureNames) {
+    features = new LinkedHashSet<String>(featureNames);
+    for(String feature : features) {
+      index.put(feature, new HashMap<String,ParentIndexSet>());
+    }
+  }
+
+  public Set<String> getIndexedFeatures() {
+    return Collections.unmodifiableSet(features);
+  }
+
+  /**
+   * True if the index has changed since it was created, loaded or saved.
+   * @return
+   */
+  public synchronized boolean isModified() {
+    return modified;
+  }
+
+  /**
+   * Replace the indexed values of the document with the given corpus
+   * index by the values in the feature map.
+   *
+   * @param docIndex
+   * @param docFeatures the features of the document
+   * @return the indexed features of the document and their values
+   */
+  public synchronized Map<String,String> update(int docIndex, Map<?,?> docFeatures) {
+    Map<String,String> values = new LinkedHashMap<String,String>();
+    for(String feature : features) {
+      String value = toValue(docFeatures == null ? null : docFeatures.get(feature));
+      Iterator<Map.Entry<String,ParentIndexSet>> it = index.get(feature).entrySet().iterator();
+      while(it.hasNext()) {
+        Map.Entry<String,ParentIndexSet> entry = it.next();
+        if(entry.getKey().equals(value)) {
+          continue;
+        }
+        ParentIndexSet docs = entry.getValue();
+        int pos = docs.indexOf(docIndex);
+        if(pos >= 0) {
+          docs.remove(pos);
+          modified = true;
+          if(docs.size() == 0) {
+            it.remove();
+          }
+        }
+      }
+      if(value != null) {
+        values.put(feature, value);
+        add(docIndex, feature, value);
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Add a single feature value of a document to the index. Features which
+   * are not indexed are ignored.
+   *
+   * @param docIndex
+   * @param feature
+   * @param value
+   */
+  public synchronized void add(int docIndex, String feature, String value) {
+    Map<String,ParentIndexSet> byValue = index.get(feature);
+    if(byValue == null || value == null) {
+      return;
+    }
+    ParentIndexSet docs = byValue.get(value);
+    if(docs == null) {
+      docs = new ParentIndexSet();
+      byValue.put(value, docs);
+    }
+    if(docs.add(docIndex) >= 0) {
+      modified = true;
+    }
+  }
+
+  /**
+   * Find the documents which have all the given feature values.
+   *
+   * @param constraints a map from feature names to values
+   * @return a new set of the corpus indexes of these documents
+   * @throws GateRuntimeException if one of the features is not indexed
+   */
+  public synchronized ParentIndexSet find(Map<?,?> constraints) {
+    ParentIndexSet result = null;
+    for(Map.Entry<?,?> constraint : constraints.entrySet()) {
+      Map<String,ParentIndexSet> byValue = index.get(constraint.getKey());
+      if(byValue == null) {
+        throw new GateRuntimeException("Feature "+constraint.getKey()+" is not indexed");
+      }
+      ParentIndexSet docs = byValue.get(toValue(constraint.getValue()));
+      if(docs == null) {
+        return new ParentIndexSet();
+      }
+      if(result == null) {
+        result = new ParentIndexSet();
+        result.or(docs);
+      } else {
+        result.and(docs);
+      }
+    }
+    return result == null ? new ParentIndexSet() : result;
+  }
+
+  /**
+   * Find the documents which have a value for the feature which matches
+   * the pattern.
+   *
+   * @param feature
+   * @param pattern
+   * @return a new set of the corpus indexes of these documents
+   * @throws GateRuntimeException if the feature is not indexed
+   */
+  public synchronized ParentIndexSet findMatching(String feature, Pattern pattern) {
+    Map<String,ParentIndexSet> byValue = index.get(feature);
+    if(byValue == null) {
+      throw new GateRuntimeException("Feature "+feature+" is not indexed");
+    }
+    ParentIndexSet result = new ParentIndexSet();
+    for(Map.Entry<String,ParentIndexSet> entry : byValue.entrySet()) {
+      if(pattern.matcher(entry.getKey()).matches()) {
+        result.or(entry.getValue());
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Return the distinct indexed values of the feature, sorted.
+   * @param feature
+   * @return
+   */
+  public synchronized Set<String> getValues(String feature) {
+    Map<String,ParentIndexSet> byValue = index.get(feature);
+    if(byValue == null) {
+      return Collections.emptySet();
+    }
+    return new TreeSet<String>(byValue.keySet());
+  }
+
+  /**
+   * Save the index to a file, together with the size and name list
+   * fingerprint of the corpus it belongs to.
+   *
+   * @param file
+   * @param corpusSize
+   * @param fingerprint
+   * @throws IOException
+   */
+  public synchronized void save(File file, int corpusSize, long fingerprint) throws IOException {
+    File tmpFile = new File(file.getPath()+".tmp");
+    DataOutputStream out = new DataOutputStream(
+      new BufferedOutputStream(new FileOutputStream(tmpFile)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(corpusSize);
+      out.writeLong(fingerprint);
+      out.writeInt(features.size());
+      for(String feature : features) {
+        Map<String,ParentIndexSet> byValue = index.get(feature);
+        out.writeUTF(feature);
+        out.writeInt(byValue.size());
+        for(Map.Entry<String,ParentIndexSet> entry : byValue.entrySet()) {
+          out.writeUTF(entry.getKey());
+          entry.getValue().write(out);
+        }
+      }
+    } finally {
+      out.close();
+    }
+    java.nio.file.Files.move(tmpFile.toPath(), file.toPath(), 
+      StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    modified = false;
+  }
+
+  /**
+   * Load the values of the indexed features from a file written by
+   * {@link #save(java.io.File, int, long)}. Features in the file which
+   * are not indexed by this index are skipped. If the file was saved for
+   * a corpus with a different size or name list, nothing is loaded.
+   *
+   * @param file
+   * @param corpusSize
+   * @param fingerprint
+   * @return false if the file was not written for this corpus
+   * @throws IOException
+   */
+  public synchronized boolean load(File file, int corpusSize, long fingerprint) throws IOException {
+    DataInputStream in = new DataInputStream(
+      new BufferedInputStream(new FileInputStream(file)));
+    try {
+      if(in.readInt() != MAGIC) {
+        throw new IOException("Not a feature index file: "+file);
+      }
+      if(in.readInt() != corpusSize || in.readLong() != fingerprint) {
+        return false;
+      }
+      int nFeatures = in.readInt();
+      for(int f = 0; f < nFeatures; f++) {
+        String feature = in.readUTF();
+        Map<String,ParentIndexSet> byValue = index.get(feature);
+        int nValues = in.readInt();
+        for(int v = 0; v < nValues; v++) {
+          String value = in.readUTF();
+          ParentIndexSet docs = ParentIndexSet.read(in);
+          if(byValue != null) {
+            byValue.put(value, docs);
+          }
+        }
+      }
+    } finally {
+      in.close();
+    }
+    modified = false;
+    return true;
+  }
+
+  protected static String toValue(Object value) {
+    if(value == null) {
+      return null;
+    }
+    String string = value.toString();
+    return string.length() > MAX_VALUE_LENGTH ? null : string;
+  }
+
+}
@@ -24,13 +24,19 @@ package at.ofai.gate.virtualcorpus;
 import java.io.FileFilter;
 import java.io.IOException;
 import java.net.URL;
+import java.nio.file.StandardCopyOption;
 import java.sql.SQLException;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
 
 import gate.*;
 import gate.corpora.DocumentImpl;
@@ -41,17 +47,41 @@ import gate.event.CreoleListener;
 import gate.persist.PersistenceException;
 import gate.util.*;
 import gate.util.persistence.PersistenceManager;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.io.Writer;
 import java.sql.Connection;
+import java.sql.DatabaseMetaData;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLIntegrityConstraintViolationException;
 import java.sql.Statement;
+import java.sql.Types;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
+import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 
 /** 
@@ -65,6 +95,36 @@ import org.apache.log4j.Logger;
  * to specify a different format by specifying a mime type when the corpus
  * is created.
  * <p>
+ * If the id field is an integer column, the keys are kept as numbers and
+ * bound as numbers in all queries, the document names are the decimal
+ * representation of the keys.
+ * <p>
+ * If the <code>useCompression</code> parameter is true, the content field
+ * must be a binary field and documents are stored gzip-compressed.
+ * <p>
+ * By default, documents are saved back to the content field they were read
+ * from. If <code>outDocumentContentField</code> is specified, the corpus
+ * is used in "from-to" mode: the input field is never written and documents
+ * are saved to the output field, either in the same row or, if
+ * <code>outTableName</code> is specified, to a row with the same document
+ * name in the output table, which is inserted or updated as needed.
+ * <p>
+ * If <code>workStatusField</code> is specified, the corpus is used in 
+ * "work-queue" mode: rows which still need processing are claimed in 
+ * batches while the corpus is processed, so several corpora in different 
+ * processes can share one table. Rows are claimed with 
+ * <code>SELECT ... FOR UPDATE SKIP LOCKED</code> where the database 
+ * supports it, and with conditional updates otherwise. Claims are renewed
+ * while the corpus exists and expire <code>workLeaseSeconds</code> after
+ * the last renewal, rows are marked done when the document is saved and 
+ * the claims of rows which were not processed are released when the 
+ * corpus is closed.
+ * <p>
+ * If <code>snapshotFileUrl</code> is specified, the selected document keys 
+ * are stored in that file and reused as long as <code>changeTokenSQL</code>
+ * returns the same value, so the possibly expensive <code>selectSQL</code>
+ * query only needs to run when the table has changed.
+ * <p>
  * NOTE: this corpus is immutable, none of the methods to add or remove documents
  * is supported!
  * <p>
@@ -182,13 +242,385 @@ public class JDBCCorpus
   }
   protected String selectSQL = "SELECT ${documentNameField} from ${tableName}";
 
+  /**
+   * If true, documents are saved gzip-compressed into a binary (BLOB) content
+   * field and read back through a binary stream which is decompressed on
+   * the fly. Rows which still contain uncompressed content are detected
+   * automatically when reading, so an existing table can be converted 
+   * gradually just by processing it with this option enabled.
+   * 
+   * @param value 
+   */
+  @Optional
+  @CreoleParameter(
+    comment = "Store document content gzip-compressed in a binary field",
+    defaultValue = "false")
+  public void setUseCompression(Boolean value) { useCompression = value; }
+  public Boolean getUseCompression() { return useCompression; }
+  protected Boolean useCompression = false;
+
+  /**
+   * The field to save processed documents to. If this is left empty, 
+   * documents are written back to the content field they were read from
+   * ("in-place" mode). Otherwise the corpus operates in "from-to" mode:
+   * the content field is only ever read and the processed documents are
+   * written to this field, either in the same table or in the table given
+   * by <code>outTableName</code>.
+   * 
+   * @param name 
+   */
+  @Optional
+  @CreoleParameter(
+    comment = "The field to save documents to, if empty, save to the content field",
+    defaultValue = "")
+  public void setOutDocumentContentField(String name) { outDocumentContentField = name; }
+  public String getOutDocumentContentField() { return outDocumentContentField; }
+  protected String outDocumentContentField = "";
+
+  /**
+   * The table to save processed documents to. If this is specified, the
+   * <code>outDocumentContentField</code> must be specified too and 
+   * documents are saved by inserting or updating (upserting) the row with
+   * the document name as key in the output table. 
+   * 
+   * @param name 
+   */
+  @Optional
+  @CreoleParameter(
+    comment = "The table to save documents to, if empty, save to the input table",
+    defaultValue = "")
+  public void setOutTableName(String name) { outTableName = name; }
+  public String getOutTableName() { return outTableName; }
+  protected String outTableName = "";
+  
+  @Optional
+  @CreoleParameter(
+    comment = "The document id/name field of the output table, if empty, the same as documentNameField",
+    defaultValue = "")
+  public void setOutDocumentNameField(String name) { outDocumentNameField = name; }
+  public String getOutDocumentNameField() { return outDocumentNameField; }
+  protected String outDocumentNameField = "";
+  
+  /**
+   * The number of saved documents to collect before sending them to the
+   * database as a single batch. Pending writes are always sent when the
+   * corpus is synced or removed. 
+   * 
+   * @param value 
+   */
+  @Optional
+  @CreoleParameter(
+    comment = "Number of document saves to send to the database as one batch",
+    defaultValue = "1")
+  public void setWriteBatchSize(Integer value) { writeBatchSize = value; }
+  public Integer getWriteBatchSize() { return writeBatchSize; }
+  protected Integer writeBatchSize = 1;
+
+  /**
+   * The database profile to use: one of generic, h2, sqlite, mysql or 
+   * postgresql. If left empty, the profile is chosen based on the 
+   * <code>jdbcDriver</code> class name. The profile applies known 
+   * throughput settings for that database and decides which SQL is used
+   * for bulk writes, see {@link JDBCDialect}.
+   * 
+   * @param name 
+   */
+  @Optional
+  @CreoleParameter(
+    comment = "Database profile (generic, h2, sqlite, mysql, postgresql), if empty, detect from jdbcDriver",
+    defaultValue = "")
+  public void setJdbcDialect(String name) { jdbcDialect = name; }
+  public String getJdbcDialect() { return jdbcDialect; }
+  protected String jdbcDialect = "";
+
+  /**
+   * If specified, the corpus runs in work-queue mode: instead of selecting
+   * all documents at initialization time, the corpus claims batches of 
+   * rows which are not processed yet whenever it runs out of documents, 
+   * so that any number of corpora, possibly in different processes, can 
+   * work on the same table. The field must be an integer column where 
+   * NULL or 0 means the document still needs to be processed, 1 means
+   * the document has been claimed and 2 that it has been processed.
+   * A row gets marked as processed when its document is saved, i.e. when 
+   * it is unloaded by the pipeline. If the corpus is readonly, nothing is
+   * written to the table except the claims, so processed rows are never
+   * marked and can be claimed again once their claim has expired.
+   * In this mode, <code>selectSQL</code> is not used.
+   * 
+   * @param name 
+   */
+  @Optional
+  @CreoleParameter(
+    comment = "Integer status field for work-queue mode, if empty, all selected rows are in the corpus",
+    defaultValue = "")
+  public void setWorkStatusField(String name) { workStatusField = name; }
+  public String getWorkStatusField() { return workStatusField; }
+  protected String workStatusField = "";
+
+  /**
+   * The field which holds the time until a claim is valid, in milliseconds 
+   * since the epoch. This must be a BIGINT column and is required for the 
+   * work-queue mode. A row whose claim has expired can be claimed again,
+   * so rows claimed by a worker that died get processed eventually.
+   * 
+   * @param name 
+   */
+  @Optional
+  @CreoleParameter(
+    comment = "BIGINT field with the claim expiry time in milliseconds for work-queue mode",
+    defaultValue = "")
+  public void setWorkLeaseField(String name) { workLeaseField = name; }
+  public String getWorkLeaseField() { return workLeaseField; }
+  protected String workLeaseField = "";
+
+  /**
+   * An optional character field which gets set to the <code>workerId</code>
+   * of the corpus which claimed the row. If specified, a corpus will only
+   * mark rows as processed which are still claimed by itself.
+   * 
+   * @param name 
+   */
+  @Optional
+  @CreoleParameter(
+    comment = "Field for the id of the claiming worker in work-queue mode",
+    defaultValue = "")
+  public void setWorkOwnerField(String name) { workOwnerField = name; }
+  public String getWorkOwnerField() { return workOwnerField; }
+  protected String workOwnerField = "";
+
+  @Optional
+  @CreoleParameter(
+    comment = "Id of this worker for work-queue mode and document locks, if empty, a unique id is generated",
+    defaultValue = "")
+  public void setWorkerId(String id) { workerId = id; }
+  public String getWorkerId() { return workerId; }
+  protected String workerId = "";
+
+  @Optional
+  @CreoleParameter(
+    comment = "Number of rows to claim at once in work-queue mode",
+    defaultValue = "10")
+  public void setWorkClaimSize(Integer value) { workClaimSize = value; }
+  public Integer getWorkClaimSize() { return workClaimSize; }
+  protected Integer workClaimSize = 10;
+
+  @Optional
+  @CreoleParameter(
+    comment = "Number of seconds a claim is valid in work-queue mode",
+    defaultValue = "3600")
+  public void setWorkLeaseSeconds(Integer value) { workLeaseSeconds = value; }
+  public Integer getWorkLeaseSeconds() { return workLeaseSeconds; }
+  protected Integer workLeaseSeconds = 3600;
+
+  /**
+   * The number of documents to read and parse ahead of the current 
+   * position in a background thread. The background thread uses its own
+   * database connection. This only helps if documents are accessed in
+   * order, as done by a pipeline or the iterator. If 0, documents are 
+   * only read when they are requested.
+   * 
+   * @param value 
+   */
+  @Optional
+  @CreoleParameter(
+    comment = "Number of documents to read ahead in a background thread, 0 to disable",
+    defaultValue = "0")
+  public void setPrefetchSize(Integer value) { prefetchSize = value; }
+  public Integer getPrefetchSize() { return prefetchSize; }
+  protected Integer prefetchSize = 0;
+
+  /**
+   * A file where the list of document keys selected by <code>selectSQL</code>
+   * is stored, so it can be reused the next time the corpus is created
+   * instead of running the query again. The snapshot is only reused if 
+   * the query is unchanged and <code>changeTokenSQL</code> returns the 
+   * same as when the snapshot was written.
+   * 
+   * @param url 
+   */
+  @Optional
+  @CreoleParameter(
+    comment = "File to store the selected document keys in for reuse, if empty, no snapshot is used")
+  public void setSnapshotFileUrl(URL url) { snapshotFileUrl = url; }
+  public URL getSnapshotFileUrl() { return snapshotFileUrl; }
+  protected URL snapshotFileUrl = null;
+
+  /**
+   * If true, the size of the content of each document is selected from the
+   * table when the corpus is created, so that the documentOrder parameter
+   * and {@link SizeScheduler} can be used. This needs an additional query 
+   * over the whole table and is ignored in work-queue mode.
+   * 
+   * @param value 
+   */
+  @Optional
+  @CreoleParameter(
+    comment = "If true, select the content size of all documents when the corpus is created",
+    defaultValue = "false")
+  public void setSelectDocumentSizes(Boolean value) { selectDocumentSizes = value; }
+  public Boolean getSelectDocumentSizes() { return selectDocumentSizes; }
+  protected Boolean selectDocumentSizes = false;
+
+  /**
+   * A cheap query which returns a single row that changes whenever the 
+   * result of <code>selectSQL</code> may have changed, for example
+   * <code>SELECT MAX(updated_at), COUNT(*) FROM ${tableName}</code>. If 
+   * empty, a snapshot is never considered to be up to date.
+   * 
+   * @param sql 
+   */
+  @Optional
+  @CreoleParameter(
+    comment = "Query whose result changes when the selected documents change, for snapshot reuse",
+    defaultValue = "")
+  public void setChangeTokenSQL(String sql) { changeTokenSQL = sql; }
+  public String getChangeTokenSQL() { return changeTokenSQL; }
+  protected String changeTokenSQL = "";
+
+  /**
+   * If true, the numeric document keys are assumed to only ever increase 
+   * and rows are never deleted, so an outdated snapshot is refreshed by
+   * only selecting the keys which are bigger than the biggest key in the
+   * snapshot. This is ignored for non-numeric keys.
+   * 
+   * @param value 
+   */
+  @Optional
+  @CreoleParameter(
+    comment = "If true, refresh an outdated snapshot by selecting only keys bigger than the last one",
+    defaultValue = "false")
+  public void setMonotonicKeys(Boolean value) { monotonicKeys = value; }
+  public Boolean getMonotonicKeys() { return monotonicKeys; }
+  protected Boolean monotonicKeys = false;
+
+  /**
+   * The table where the values of the indexedFeatures of saved documents 
+   * are stored, one row per document and feature with the columns 
+   * doc_name, feature_name and feature_value. If empty, the table name
+   * is the tableName with "_features" appended. The table is created if
+   * it does not exist. This is only used if indexedFeatures is set.
+   * 
+   * @param name 
+   */
+  @Optional
+  @CreoleParameter(
+    comment = "Table for the indexed feature values, default: tableName_features",
+    defaultValue = "")
+  public void setFeatureIndexTable(String name) { featureIndexTable = name; }
+  public String getFeatureIndexTable() { return featureIndexTable; }
+  protected String featureIndexTable = "";
+
+  /**
+   * The table for document locks, see {@link #lockDocument(java.lang.String)},
+   * with the columns doc_name, owner and lease_until. If empty, the table 
+   * name is the tableName with "_locks" appended. The table is created if
+   * it does not exist. 
+   * <p>
+   * The lock of a document is removed when the document is unloaded, so
+   * locks only prevent that a document is processed by several workers at
+   * the same time, not that it is processed again later. Use the 
+   * checkpointTable to skip documents which have already been processed.
+   * 
+   * @param name 
+   */
+  @Optional
+  @CreoleParameter(
+    comment = "Table for document locks, default: tableName_locks",
+    defaultValue = "")
+  public void setLockTable(String name) { lockTable = name; }
+  public String getLockTable() { return lockTable; }
+  protected String lockTable = "";
+
+  /**
+   * The table where the names of completed documents are stored, see 
+   * {@link VirtualCorpus#setCheckpointFileURL(java.net.URL)}, with the 
+   * single column doc_name. If not empty, the checkpoint is kept in this
+   * table instead of a file, so it can be shared and inspected with SQL.
+   * The table is created if it does not exist. Delete its rows to 
+   * process all documents again.
+   * 
+   * @param name 
+   */
+  @Optional
+  @CreoleParameter(
+    comment = "Table for recording completed documents instead of a checkpoint file",
+    defaultValue = "")
+  public void setCheckpointTable(String name) { checkpointTable = name; }
+  public String getCheckpointTable() { return checkpointTable; }
+  protected String checkpointTable = "";
+
 
-  protected DummyDataStore4JDBCCorp ourDS = null;
+  // the main connection is used by the processing thread and the autosave
+  // thread, so all methods which use it are synchronized on the corpus
   protected Connection dbConnection = null;
+  // the connection parameters after variable expansion, for opening 
+  // additional connections
+  protected String connectionUrl;
+  protected String connectionUser;
+  protected String connectionPassword;
+  protected String getContentSQL;
+  protected JDBCPrefetcher prefetcher = null;
   protected PreparedStatement getContentStatement = null;
   protected PreparedStatement updateContentStatement = null;
+  // only used if we need to upsert but the database does not support it
+  protected PreparedStatement insertContentStatement = null;
+  // parameter positions in the updateContentStatement
+  protected int saveContentParameter = 1;
+  protected int saveNameParameter = 2;
+  // saves added to the current write batch but not executed yet
+  protected List<String> pendingNames = new ArrayList<String>();
+  protected List<SpooledOutputStream> pendingSaves = new ArrayList<SpooledOutputStream>();
+  // where documents get saved to
+  protected String saveTableName;
+  protected String saveNameField;
+  protected String saveContentField;
+  // if batches are written through the bulk upsert of the dialect
+  protected boolean useBulkUpsert = false;
+  protected JDBCDialect dialect = JDBCDialect.GENERIC;
+  // if the document name field is an integer column, this holds the keys
+  // and backs the documentNames and documentIndexes views, otherwise null
+  protected LongKeyIndex numericKeys = null;
+  // the statements for work-queue mode, null if not in work-queue mode
+  protected PreparedStatement claimSelectStatement = null;
+  protected PreparedStatement claimUpdateStatement = null;
+  protected PreparedStatement markDoneStatement = null;
+  protected PreparedStatement claimRenewStatement = null;
+  protected PreparedStatement claimReleaseStatement = null;
+  // the names of the rows we claimed which are not marked done yet, their
+  // claims are renewed while the corpus exists
+  protected Set<String> claimedNames = new HashSet<String>();
+  // true if claimSelectStatement locks the rows it returns
+  protected boolean claimSelectLocks = false;
+  // the statements for the feature index table, null if no features are indexed
+  protected PreparedStatement featureDeleteStatement = null;
+  protected PreparedStatement featureInsertStatement = null;
+  // the indexed feature values of the saves in the current write batch, 
+  // parallel to pendingNames
+  protected List<Map<String,String>> pendingFeatures = new ArrayList<Map<String,String>>();
+  // the statements for the lock table, prepared when the first lock is taken
+  protected PreparedStatement lockInsertStatement = null;
+  protected PreparedStatement lockTakeOverStatement = null;
+  protected PreparedStatement lockDeleteStatement = null;
+  protected PreparedStatement lockRenewStatement = null;
+  protected String lockInsertSQL = null;
+  // the names of the documents locked by this corpus
+  protected Set<String> lockedDocuments = new HashSet<String>();
+  // renews the leases of the locks and claims we hold while the corpus exists
+  protected ScheduledExecutorService leaseRenewer = null;
+  // the documents which were unloaded while their save was still pending 
+  // in the write batch, they are completed once the batch is written
+  protected Set<Integer> completedPending = new HashSet<Integer>();
+  protected PreparedStatement checkpointInsertStatement = null;
+  // one more than the highest index of a document handed out by get
+  protected int handedOut = 0;
+  
+  public static final int WORK_STATUS_CLAIMED = 1;
+  public static final int WORK_STATUS_DONE = 2;
 
   private static final String DEFAULT_MIME_TYPE = "application/xml";
+  // maximum number of bytes of a serialized document to keep in memory 
+  // before spooling to a temporary file when saving
+  protected static final int SPOOL_MEMORY_THRESHOLD = 1024*1024;
   String encoding = "utf-8";
 
   private static Logger logger = Logger.getLogger(JDBCCorpus.class);
@@ -215,6 +647,11 @@ public class JDBCCorpus
     query = query.replaceAll(Pattern.quote("${tableName}"), getTableName());
     query = query.replaceAll(Pattern.quote("${documentNameField}"), getDocumentNameField());
     String expandedUrl = "";
+    try {
+      dialect = JDBCDialect.getDialect(getJdbcDialect(), getJdbcDriver());
+    } catch (IllegalArgumentException ex) {
+      throw new ResourceInstantiationException("Unknown jdbcDialect "+getJdbcDialect(),ex);
+    }
     try {
       Class.forName(getJdbcDriver());
       String dbdirectory = "";
@@ -234,27 +671,44 @@ public class JDBCCorpus
       String expandedPassword = 
         gate.Utils.replaceVariablesInString(jdbcPassword, dbdirectoryMap, this);
       
-      System.out.println("Using JDBC URL: "+expandedUrl);
-      dbConnection = DriverManager.getConnection(expandedUrl, expandedUser, expandedPassword);
+      expandedUrl = dialect.prepareUrl(expandedUrl);
+      System.out.println("Using JDBC URL: "+expandedUrl+" with profile "+dialect);
+      connectionUrl = expandedUrl;
+      connectionUser = expandedUser;
+      connectionPassword = expandedPassword;
+      dbConnection = openConnection();
     } catch (Exception ex) {
       throw new ResourceInstantiationException("Could not get driver/connection",ex);
     }
-    Statement stmt = null;
+    if(getWorkerId() == null || getWorkerId().isEmpty()) {
+      workerId = ManagementFactory.getRuntimeMXBean().getName()+"/"+UUID.randomUUID();
+    }
+    if(isWorkQueue()) {
+      if(getWorkLeaseField() == null || getWorkLeaseField().isEmpty()) {
+        throw new ResourceInstantiationException("workStatusField requires workLeaseField");
+      }
+      // no documents are selected now, but we still need to know the key type
+      query = "SELECT "+getDocumentNameField()+" FROM "+getTableName()+" WHERE 1 = 0";
+    }
     try {
-      stmt = dbConnection.createStatement();
-      ResultSet rs = null;
-      rs = stmt.executeQuery(query);
-      int i = 0;
-      while(rs.next()) {
-        String docName = rs.getString(getDocumentNameField());
-        documentNames.add(docName);
-        isLoadeds.add(false);
-        documentIndexes.put(docName, i);
-        i++;
+      if(isWorkQueue() || getSnapshotFileUrl() == null) {
+        selectDocuments(query, null);
+      } else {
+        selectDocumentsWithSnapshot(query);
       }
     } catch(SQLException ex) {
       throw new ResourceInstantiationException("Problem accessing database",ex);
+    } catch(IOException ex) {
+      throw new ResourceInstantiationException("Problem accessing snapshot file",ex);
     }
+    if(getSelectDocumentSizes() && !isWorkQueue()) {
+      try {
+        selectDocumentSizes();
+      } catch(SQLException ex) {
+        throw new ResourceInstantiationException("Could not select document sizes",ex);
+      }
+    }
+    applyDocumentOrder();
     try {
       PersistenceManager.registerPersistentEquivalent(
           at.ofai.gate.virtualcorpus.JDBCCorpus.class,
@@ -265,13 +719,14 @@ public class JDBCCorpus
     }
       try {
         // TODO: use more fields or a hash to make this unique?
-        ourDS =
+        DummyDataStore4JDBCCorp ds =
           (DummyDataStore4JDBCCorp) Factory.createDataStore(
                 "at.ofai.gate.virtualcorpus.DummyDataStore4JDBCCorp", 
                 expandedUrl + "//" + getTableName());
-        ourDS.setName("DummyDS4_" + this.getName());
-        ourDS.setComment("Dummy DataStore for JDBCCorpus " + this.getName());
-        ourDS.setCorpus(this);
+        ds.setName("DummyDS4_" + this.getName());
+        ds.setComment("Dummy DataStore for JDBCCorpus " + this.getName());
+        ds.setCorpus(this);
+        ourDS = ds;
         //System.err.println("Created dummy corpus: "+ourDS+" with name "+ourDS.getName());
       } catch (Exception ex) {
         throw new ResourceInstantiationException(
@@ -285,130 +740,764 @@ public class JDBCCorpus
       query = "SELECT "+getDocumentContentField()+" FROM "+
         getTableName()+" WHERE "+getDocumentNameField()+" = ?";
       System.out.println("Preparing get document statement: "+query);
+      getContentSQL = query;
       getContentStatement = dbConnection.prepareStatement(query);
     } catch (SQLException ex) {
       throw new ResourceInstantiationException("Could not prepare statement",ex);
     }
 
+    if(getOutTableName() != null && !getOutTableName().isEmpty() && 
+       (getOutDocumentContentField() == null || getOutDocumentContentField().isEmpty())) {
+      throw new ResourceInstantiationException("outTableName requires outDocumentContentField");
+    }
     try {
-      String updstmt = "UPDATE "+getTableName()+
-              " SET "+getDocumentContentField()+" = ? "+
-              " WHERE "+getDocumentNameField()+" = ?";
-      System.out.println("Preparing update document statement: "+updstmt);
-      updateContentStatement = dbConnection.prepareStatement(updstmt);
+      saveTableName = getTableName();
+      saveNameField = getDocumentNameField();
+      saveContentField = getDocumentContentField();
+      if(getOutDocumentContentField() != null && !getOutDocumentContentField().isEmpty()) {
+        saveContentField = getOutDocumentContentField();
+      }
+      if(getOutTableName() != null && !getOutTableName().isEmpty()) {
+        saveTableName = getOutTableName();
+        if(getOutDocumentNameField() != null && !getOutDocumentNameField().isEmpty()) {
+          saveNameField = getOutDocumentNameField();
+        }
+        String updstmt = dialect.supportsUpsert(dbConnection) ? 
+          dialect.getUpsertSQL(saveTableName, saveNameField, saveContentField) : null;
+        saveNameParameter = 1;
+        saveContentParameter = 2;
+        if(updstmt == null) {
+          // no upsert statement for this database: try to update and 
+          // insert if nothing was updated, which cannot be batched.
+          updstmt = "UPDATE "+saveTableName+
+              " SET "+saveContentField+" = ? "+
+              " WHERE "+saveNameField+" = ?";
+          saveContentParameter = 1;
+          saveNameParameter = 2;
+          String insstmt = "INSERT INTO "+saveTableName+
+              " ( "+saveNameField+", "+saveContentField+" ) VALUES ( ?, ? )";
+          System.out.println("Preparing insert document statement: "+insstmt);
+          insertContentStatement = dbConnection.prepareStatement(insstmt);
+          if(getWriteBatchSize() != null && getWriteBatchSize() > 1) {
+            logger.warn("JDBCCorpus: no upsert support for profile "+dialect+
+                ", writeBatchSize is ignored");
+            writeBatchSize = 1;
+          }
+        } else if(getWriteBatchSize() != null && getWriteBatchSize() > 1 &&
+                  dialect.supportsBulkUpsert(dbConnection)) {
+          useBulkUpsert = true;
+          System.out.println("Using bulk upsert for batches of "+getWriteBatchSize()+" documents");
+        }
+        System.out.println("Preparing upsert document statement: "+updstmt);
+        updateContentStatement = dbConnection.prepareStatement(updstmt);
+      } else {
+        String updstmt = "UPDATE "+saveTableName+
+              " SET "+saveContentField+" = ? "+
+              " WHERE "+saveNameField+" = ?";
+        System.out.println("Preparing update document statement: "+updstmt);
+        updateContentStatement = dbConnection.prepareStatement(updstmt);
+      }
     } catch (SQLException ex) {
       throw new ResourceInstantiationException("Could not prepare statement",ex);
     }
+    if(isWorkQueue()) {
+      try {
+        prepareWorkQueueStatements();
+      } catch (SQLException ex) {
+        throw new ResourceInstantiationException("Could not prepare work-queue statements",ex);
+      }
+      System.out.println("Work-queue mode, worker id "+getWorkerId());
+    }
+    if(getIndexedFeatures() != null && !getIndexedFeatures().isEmpty()) {
+      try {
+        prepareFeatureIndex();
+      } catch (SQLException ex) {
+        throw new ResourceInstantiationException("Could not load feature index table",ex);
+      }
+    }
+    if(isCheckpointEnabled() && isWorkQueue()) {
+      // the work status field already records the completed documents
+      throw new ResourceInstantiationException(
+        "A checkpoint cannot be used together with workStatusField");
+    }
+    startCheckpointing();
+    if(isWorkQueue()) {
+      startLeaseRenewer();
+      claimDocuments();
+    }
+    if(getPrefetchSize() != null && getPrefetchSize() > 0) {
+      try {
+        prefetcher = new JDBCPrefetcher(getPrefetchSize());
+      } catch (SQLException ex) {
+        throw new ResourceInstantiationException("Could not create prefetch connection",ex);
+      }
+    }
+    if(isWorkQueue() && getAutoSaveInterval() != null && getAutoSaveInterval() > 0) {
+      // saving a document marks its row as done, which must only happen 
+      // when it is unloaded; an expired claim gets the row processed again
+      logger.warn("JDBCCorpus: autoSaveInterval is ignored in work-queue mode");
+    } else {
+      startAutoSaving();
+    }
 
     return this;
   }
   
   /**
-   * This method is not implemented and throws a
-   * gate.util.MethodNotImplementedException.
-   * 
-   * @param directory
-   * @param filter
-   * @param encoding
-   * @param recurseDirectories
+   * Open a new connection to the database of this corpus.
    */
-  public void populate(
-      URL directory, FileFilter filter, 
-      String encoding, boolean recurseDirectories) {
-      populate(directory, filter, encoding, null, recurseDirectories);
+  protected Connection openConnection() throws SQLException {
+    Connection connection = 
+      DriverManager.getConnection(connectionUrl, connectionUser, connectionPassword);
+    dialect.initConnection(connection);
+    return connection;
   }
-
+  
   /**
-   * This method is not implemented and throws a
-   * gate.util.MethodNotImplementedException.
-   *
-   * @param directory
-   * @param filter
-   * @param encoding
-   * @param mimeType
-   * @param recurseDirectories
+   * Run the query which selects document names and add all documents to
+   * the corpus. If afterKey is not null, the query is restricted to numeric
+   * keys bigger than afterKey. 
    */
-  public void populate (
-      URL directory, FileFilter filter, 
-      String encoding, String mimeType, 
-      boolean recurseDirectories) {
-    /* TEMPORARY
-    if(isTransientCorpus) {
-      throw new GateRuntimeException("Cannot populate a transient JDBC corpus");
-    } else {
-      try {
-        CorpusImpl.populate(this, directory, filter, encoding, mimeType, recurseDirectories);
-      } catch (IOException ex) {
-        throw new GateRuntimeException("IO error",ex);
+  protected void selectDocuments(String query, Long afterKey) throws SQLException {
+    if(afterKey != null) {
+      query = "SELECT "+getDocumentNameField()+" FROM ( "+query+" ) vc_sub WHERE "+
+        getDocumentNameField()+" > ? ORDER BY "+getDocumentNameField();
+    }
+    boolean autoCommit = dbConnection.getAutoCommit();
+    if(dialect.needsTransactionForFetchSize()) {
+      dbConnection.setAutoCommit(false);
+    }
+    try {
+      PreparedStatement stmt = dbConnection.prepareStatement(query);
+      if(dialect.getFetchSize() > 0) {
+        stmt.setFetchSize(dialect.getFetchSize());
+      }
+      if(afterKey != null) {
+        stmt.setLong(1, afterKey);
+      }
+      ResultSet rs = null;
+      rs = stmt.executeQuery();
+      // some drivers (e.g. the SQLite one) close an empty result set right
+      // away, so for an empty result the key type has to come from the 
+      // statement, if the driver can tell it at all
+      boolean haveRow = rs.next();
+      ResultSetMetaData metaData = haveRow ? rs.getMetaData() : stmt.getMetaData();
+      int nameColumn = haveRow ? rs.findColumn(getDocumentNameField()) : 
+        findColumn(metaData, getDocumentNameField());
+      if(documentNames.isEmpty() && numericKeys == null && nameColumn > 0 &&
+         isIntegerColumn(metaData, nameColumn)) {
+        useNumericKeys();
+      }
+      if(!haveRow) {
+        // nothing to add
+      } else if(numericKeys != null) {
+        do {
+          numericKeys.add(rs.getLong(nameColumn));
+          isLoadeds.add(false);
+        } while(rs.next());
+      } else {
+        int i = documentNames.size();
+        do {
+          String docName = rs.getString(nameColumn);
+          documentNames.add(docName);
+          isLoadeds.add(false);
+          documentIndexes.put(docName, i);
+          i++;
+        } while(rs.next());
+      }
+      rs.close();
+      stmt.close();
+    } finally {
+      if(dialect.needsTransactionForFetchSize()) {
+        dbConnection.commit();
+        dbConnection.setAutoCommit(autoCommit);
       }
     }
-    */
   }
-
-
-  @Override
-  public void cleanup() {
-      // TODO:
-      // deregister our listener for resources of type document
-      //
+  
+  /**
+   * Run a query which returns document keys in its first column and return
+   * the indexes of these documents in this corpus. Keys which are not in 
+   * the corpus are ignored. No documents are loaded for this.
+   * 
+   * @param query
+   * @return the indexes, in the order returned by the query
+   * @throws SQLException 
+   */
+  protected synchronized int[] selectDocumentIndexes(String query) throws SQLException {
+    int[] indexes = new int[1024];
+    int n = 0;
+    int notFound = 0;
+    boolean autoCommit = dbConnection.getAutoCommit();
+    if(dialect.needsTransactionForFetchSize()) {
+      dbConnection.setAutoCommit(false);
+    }
     try {
-      if(dbConnection != null && !dbConnection.isClosed()) {
-        dbConnection.close();
+      Statement stmt = dbConnection.createStatement();
+      if(dialect.getFetchSize() > 0) {
+        stmt.setFetchSize(dialect.getFetchSize());
+      }
+      ResultSet rs = stmt.executeQuery(query);
+      while(rs.next()) {
+        int index;
+        if(numericKeys != null) {
+          long key = rs.getLong(1);
+          index = rs.wasNull() ? -1 : numericKeys.indexOf(key);
+        } else {
+          Integer i = documentIndexes.get(rs.getString(1));
+          index = i == null ? -1 : i;
+        }
+        if(index < 0) {
+          notFound++;
+          continue;
+        }
+        if(n == indexes.length) {
+          indexes = Arrays.copyOf(indexes, n * 2);
+        }
+        indexes[n++] = index;
+      }
+      rs.close();
+      stmt.close();
+    } finally {
+      if(dialect.needsTransactionForFetchSize()) {
+        dbConnection.commit();
+        dbConnection.setAutoCommit(autoCommit);
       }
-    } catch (SQLException ex) {
-      // TODO: log, but otherwise ignore
     }
-      Gate.getDataStoreRegister().remove(ourDS);
-  }
-
-  @Override
-  public void setName(String name) {
-    super.setName(name);
-    if(ourDS != null) {
-      ourDS.setName("DummyDS4_"+this.getName());
-      ourDS.setComment("Dummy DataStore for JDBCCorpus "+this.getName());
+    if(notFound > 0) {
+      logger.warn("JDBCCorpus: "+notFound+" keys selected are not in corpus "+getName());
     }
+    return Arrays.copyOf(indexes, n);
   }
-
-
-  // Methods to be implemented from List
-
+  
   /**
-   * Add a document to the corpus. If the document has a name that is already
-   * in the list of documents, return false and do not add the document.
-   * Note that only the name is checked!
-   * If the name of the document added is not ending in ".xml", a 
-   * GateRuntimeException is thrown.
-   * If the document is already adopted by some data store throw an exception.
+   * Select the size of the content of all documents in the table and 
+   * record it for the documents in the corpus. 
    */
-  public boolean add(Document doc) {
-    System.err.println("CALLED add(Document) for document "+doc.getName()+" NOT IMPLEMENTED");
-    /* TEMPORARY
-    if(!saveDocuments) {
-      return false;
+  protected void selectDocumentSizes() throws SQLException {
+    String query = "SELECT "+getDocumentNameField()+", "+dialect.getSizeFunction()+
+      "("+getDocumentContentField()+") FROM "+getTableName();
+    boolean autoCommit = dbConnection.getAutoCommit();
+    if(dialect.needsTransactionForFetchSize()) {
+      dbConnection.setAutoCommit(false);
     }
-    //System.out.println("JDBCCorp: called add(Object): "+doc.getName());
-    String docName = doc.getName();
-    Integer index = documentIndexes.get(docName);
-    if(index != null) {
-      return false;  // if that name is already in the corpus, do not add
-    } else {
-      if(doc.getDataStore() != null) {
-        throw new GateRuntimeException("Cannot add "+doc.getName()+" which belongs to datastore "+doc.getDataStore().getName());
+    try {
+      Statement stmt = dbConnection.createStatement();
+      if(dialect.getFetchSize() > 0) {
+        stmt.setFetchSize(dialect.getFetchSize());
       }
-      try {
-        insertDocument(doc);
-      } catch (Exception ex) {
-        throw new GateRuntimeException("Problem inserting document "+docName,ex);
+      ResultSet rs = stmt.executeQuery(query);
+      while(rs.next()) {
+        int index;
+        if(numericKeys != null) {
+          long key = rs.getLong(1);
+          index = rs.wasNull() ? -1 : numericKeys.indexOf(key);
+        } else {
+          Integer i = documentIndexes.get(rs.getString(1));
+          index = i == null ? -1 : i;
+        }
+        if(index >= 0) {
+          // a NULL content counts as empty
+          setDocumentSize(index, rs.getLong(2));
+        }
       }
-      int i = documentNames.size();
-      documentNames.add(docName);
-      documentIndexes.put(docName, i);
-      isLoadeds.add(false);
-      if(!isTransientCorpus) {
-        adoptDocument(doc);
+      rs.close();
+      stmt.close();
+    } finally {
+      if(dialect.needsTransactionForFetchSize()) {
+        dbConnection.commit();
+        dbConnection.setAutoCommit(autoCommit);
       }
-      fireDocumentAdded(new CorpusEvent(
+    }
+  }
+  
+  @Override
+  protected void reorderDocuments(int[] order) {
+    if(numericKeys == null) {
+      super.reorderDocuments(order);
+      return;
+    }
+    LongKeyIndex keys = new LongKeyIndex();
+    long[] sizes = new long[order.length];
+    for(int i = 0; i < order.length; i++) {
+      keys.add(numericKeys.getKey(order[i]));
+      sizes[i] = getDocumentSize(order[i]);
+    }
+    numericKeys = keys;
+    documentNames = numericKeys.asNameList();
+    documentIndexes = numericKeys.asIndexMap();
+    documentSizes = sizes;
+  }
+  
+  protected void useNumericKeys() {
+    numericKeys = new LongKeyIndex();
+    documentNames = numericKeys.asNameList();
+    documentIndexes = numericKeys.asIndexMap();
+  }
+  
+  // strings are written as length-prefixed UTF-8 since writeUTF cannot 
+  // write more than 64KB, snapshots written with writeUTF ("VCS1") are
+  // ignored and written again
+  protected static final int SNAPSHOT_MAGIC = 0x56435332; // "VCS2"
+  
+  /**
+   * Add the documents from the snapshot file if it is still valid for
+   * the query, otherwise run the query or, if keys are monotonic, 
+   * only select the keys added since the snapshot was written, and 
+   * write a new snapshot.
+   */
+  protected void selectDocumentsWithSnapshot(String query) throws SQLException, IOException {
+    File snapshotFile = Files.fileFromURL(getSnapshotFileUrl());
+    String token = getChangeToken();
+    boolean snapshotRead = false;
+    String snapshotToken = null;
+    if(snapshotFile.exists()) {
+      DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(snapshotFile)));
+      try {
+        if(in.readInt() == SNAPSHOT_MAGIC && readString(in).equals(query)) {
+          snapshotToken = in.readBoolean() ? readString(in) : null;
+          boolean numeric = in.readBoolean();
+          int n = in.readInt();
+          if(numeric) {
+            useNumericKeys();
+            for(int i = 0; i < n; i++) {
+              numericKeys.add(in.readLong());
+            }
+          } else {
+            for(int i = 0; i < n; i++) {
+              String docName = readString(in);
+              documentNames.add(docName);
+              documentIndexes.put(docName, i);
+            }
+          }
+          isLoadeds.addAll(Collections.nCopies(n, false));
+          snapshotRead = true;
+        } else {
+          logger.info("JDBCCorpus: snapshot "+snapshotFile+" is for a different query or version, ignored");
+        }
+      } finally {
+        in.close();
+      }
+    }
+    if(snapshotRead && token != null && token.equals(snapshotToken)) {
+      System.out.println("Using snapshot "+snapshotFile+" with "+documentNames.size()+" documents");
+      return;
+    }
+    if(snapshotRead && numericKeys != null && getMonotonicKeys()) {
+      long maxKey = Long.MIN_VALUE;
+      for(int i = 0; i < numericKeys.size(); i++) {
+        maxKey = Math.max(maxKey, numericKeys.getKey(i));
+      }
+      int before = documentNames.size();
+      selectDocuments(query, maxKey);
+      System.out.println("Refreshed snapshot "+snapshotFile+" with "+
+        (documentNames.size()-before)+" new documents");
+    } else {
+      if(snapshotRead) {
+        numericKeys = null;
+        documentNames = new ArrayList<String>();
+        documentIndexes = new HashMap<String,Integer>();
+        isLoadeds.clear();
+      }
+      selectDocuments(query, null);
+    }
+    writeSnapshot(snapshotFile, query, token);
+  }
+  
+  /**
+   * Return the result of the change token query as a single string or
+   * null if no change token query is specified or it did not return a row.
+   */
+  protected String getChangeToken() throws SQLException {
+    if(getChangeTokenSQL() == null || getChangeTokenSQL().isEmpty()) {
+      return null;
+    }
+    String sql = getChangeTokenSQL();
+    sql = sql.replaceAll(Pattern.quote("${tableName}"), getTableName());
+    sql = sql.replaceAll(Pattern.quote("${documentNameField}"), getDocumentNameField());
+    Statement stmt = dbConnection.createStatement();
+    try {
+      ResultSet rs = stmt.executeQuery(sql);
+      if(!rs.next()) {
+        return null;
+      }
+      StringBuilder sb = new StringBuilder();
+      for(int i = 1; i <= rs.getMetaData().getColumnCount(); i++) {
+        sb.append(rs.getString(i)).append("\t");
+      }
+      rs.close();
+      return sb.toString();
+    } finally {
+      stmt.close();
+    }
+  }
+  
+  // Write to a temporary file first, so an interrupted write does not 
+  // leave a truncated snapshot behind
+  protected void writeSnapshot(File snapshotFile, String query, String token) throws IOException {
+    File tmpFile = new File(snapshotFile.getPath()+".tmp");
+    DataOutputStream out = new DataOutputStream(
+      new BufferedOutputStream(new FileOutputStream(tmpFile)));
+    try {
+      out.writeInt(SNAPSHOT_MAGIC);
+      writeString(out, query);
+      out.writeBoolean(token != null);
+      if(token != null) {
+        writeString(out, token);
+      }
+      out.writeBoolean(numericKeys != null);
+      out.writeInt(documentNames.size());
+      for(int i = 0; i < documentNames.size(); i++) {
+        if(numericKeys != null) {
+          out.writeLong(numericKeys.getKey(i));
+        } else {
+          writeString(out, documentNames.get(i));
+        }
+      }
+    } finally {
+      out.close();
+    }
+    java.nio.file.Files.move(tmpFile.toPath(), snapshotFile.toPath(), 
+      StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+  }
+  
+  protected static void writeString(DataOutputStream out, String str) throws IOException {
+    byte[] bytes = str.getBytes("UTF-8");
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+  
+  protected static String readString(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if(length < 0) {
+      throw new IOException("Invalid string length "+length+" in snapshot");
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+  
+  protected boolean isWorkQueue() {
+    return getWorkStatusField() != null && !getWorkStatusField().isEmpty();
+  }
+  
+  protected void prepareWorkQueueStatements() throws SQLException {
+    String table = getTableName();
+    String nameField = getDocumentNameField();
+    String status = getWorkStatusField();
+    String lease = getWorkLeaseField();
+    boolean haveOwner = getWorkOwnerField() != null && !getWorkOwnerField().isEmpty();
+    String claimable = "( "+status+" IS NULL OR "+status+" = 0 OR ( "+
+      status+" = "+WORK_STATUS_CLAIMED+" AND "+lease+" < ? ) )";
+    String select = dialect.getClaimSQL(table, nameField, claimable, getWorkClaimSize());
+    claimSelectLocks = (select != null);
+    if(select == null) {
+      select = "SELECT "+nameField+" FROM "+table+" WHERE "+claimable+
+        " ORDER BY "+nameField;
+    }
+    System.out.println("Preparing claim select statement: "+select);
+    claimSelectStatement = dbConnection.prepareStatement(select);
+    String update = "UPDATE "+table+" SET "+status+" = "+WORK_STATUS_CLAIMED+", "+lease+" = ?"+
+      (haveOwner ? ", "+getWorkOwnerField()+" = ?" : "")+
+      " WHERE "+nameField+" = ?";
+    if(!claimSelectLocks) {
+      // without row locks, the claim must re-check that the row is still
+      // claimable so that only one worker succeeds
+      update += " AND "+claimable;
+    }
+    System.out.println("Preparing claim update statement: "+update);
+    claimUpdateStatement = dbConnection.prepareStatement(update);
+    String done = "UPDATE "+table+" SET "+status+" = "+WORK_STATUS_DONE+
+      " WHERE "+nameField+" = ?"+
+      (haveOwner ? " AND "+getWorkOwnerField()+" = ?" : "");
+    System.out.println("Preparing mark done statement: "+done);
+    markDoneStatement = dbConnection.prepareStatement(done);
+    String ours = " WHERE "+nameField+" = ? AND "+status+" = "+WORK_STATUS_CLAIMED+
+      (haveOwner ? " AND "+getWorkOwnerField()+" = ?" : "");
+    claimRenewStatement = dbConnection.prepareStatement(
+      "UPDATE "+table+" SET "+lease+" = ?"+ours);
+    claimReleaseStatement = dbConnection.prepareStatement(
+      "UPDATE "+table+" SET "+status+" = 0"+ours);
+  }
+  
+  /**
+   * Claim the next batch of unprocessed rows in work-queue mode and add
+   * them to the end of the corpus.
+   * 
+   * @return the number of documents claimed
+   */
+  protected synchronized int claimDocuments() {
+    long now = System.currentTimeMillis();
+    long leaseUntil = now + getWorkLeaseSeconds() * 1000L;
+    boolean haveOwner = getWorkOwnerField() != null && !getWorkOwnerField().isEmpty();
+    List<Object> claimed = new ArrayList<Object>();
+    try {
+      if(claimSelectLocks) {
+        // the rows returned are locked until we commit and other workers
+        // skip them, so they can be claimed unconditionally
+        boolean autoCommit = dbConnection.getAutoCommit();
+        dbConnection.setAutoCommit(false);
+        try {
+          claimSelectStatement.setLong(1, now);
+          ResultSet rs = claimSelectStatement.executeQuery();
+          while(rs.next()) {
+            claimed.add(rs.getObject(1));
+          }
+          rs.close();
+          for(Object key : claimed) {
+            setClaimUpdateParameters(leaseUntil, haveOwner, key, now);
+            claimUpdateStatement.addBatch();
+          }
+          if(!claimed.isEmpty()) {
+            claimUpdateStatement.executeBatch();
+          }
+          dbConnection.commit();
+        } catch (SQLException ex) {
+          dbConnection.rollback();
+          throw ex;
+        } finally {
+          dbConnection.setAutoCommit(autoCommit);
+        }
+      } else {
+        // fetch more candidates than we need and try to claim them in 
+        // random order, each claim is a conditional update which only 
+        // succeeds for one worker. Retry if others got all the candidates.
+        int claimSize = getWorkClaimSize();
+        boolean retry = true;
+        while(retry) {
+          claimSelectStatement.setMaxRows(claimSize * 4);
+          claimSelectStatement.setLong(1, now);
+          List<Object> candidates = new ArrayList<Object>();
+          ResultSet rs = claimSelectStatement.executeQuery();
+          while(rs.next()) {
+            candidates.add(rs.getObject(1));
+          }
+          rs.close();
+          Collections.shuffle(candidates);
+          for(Object key : candidates) {
+            if(claimed.size() >= claimSize) {
+              break;
+            }
+            setClaimUpdateParameters(leaseUntil, haveOwner, key, now);
+            if(claimUpdateStatement.executeUpdate() == 1) {
+              claimed.add(key);
+            }
+          }
+          retry = claimed.isEmpty() && !candidates.isEmpty();
+        }
+      }
+    } catch (SQLException ex) {
+      throw new GateRuntimeException("Could not claim documents from "+getTableName(), ex);
+    }
+    int added = 0;
+    for(Object key : claimed) {
+      String docName = key.toString();
+      if(documentIndexes.get(docName) == null) {
+        documentIndexes.put(docName, documentNames.size());
+        documentNames.add(docName);
+        isLoadeds.add(false);
+        added++;
+      }
+      claimedNames.add(docName);
+    }
+    logger.debug("JDBCCorpus: claimed "+added+" documents");
+    return added;
+  }
+  
+  protected void setClaimUpdateParameters(long leaseUntil, boolean haveOwner, Object key, long now) 
+    throws SQLException {
+    int p = 1;
+    claimUpdateStatement.setLong(p++, leaseUntil);
+    if(haveOwner) {
+      claimUpdateStatement.setString(p++, getWorkerId());
+    }
+    claimUpdateStatement.setObject(p++, key);
+    if(!claimSelectLocks) {
+      claimUpdateStatement.setLong(p++, now);
+    }
+  }
+  
+  protected void setMarkDoneParameters(String docName) throws SQLException {
+    setNameParameter(markDoneStatement, 1, docName);
+    if(getWorkOwnerField() != null && !getWorkOwnerField().isEmpty()) {
+      markDoneStatement.setString(2, getWorkerId());
+    }
+  }
+  
+  // Set the parameters of the statements which renew or release a claim
+  // of ours, after the parameters before the name.
+  protected void setOwnClaimParameters(PreparedStatement stmt, int p, String docName) 
+    throws SQLException {
+    setNameParameter(stmt, p++, docName);
+    if(getWorkOwnerField() != null && !getWorkOwnerField().isEmpty()) {
+      stmt.setString(p, getWorkerId());
+    }
+  }
+  
+  /**
+   * Release the claims of all rows which were claimed but not processed,
+   * so that other workers can claim them right away. 
+   */
+  protected synchronized void releaseClaims() {
+    for(String docName : claimedNames) {
+      try {
+        setOwnClaimParameters(claimReleaseStatement, 1, docName);
+        claimReleaseStatement.executeUpdate();
+      } catch (SQLException ex) {
+        logger.warn("JDBCCorpus warning: could not release claim for document "+docName, ex);
+      }
+    }
+    claimedNames.clear();
+  }
+  
+  /**
+   * This method is not implemented and throws a
+   * gate.util.MethodNotImplementedException.
+   * 
+   * @param directory
+   * @param filter
+   * @param encoding
+   * @param recurseDirectories
+   */
+  public void populate(
+      URL directory, FileFilter filter, 
+      String encoding, boolean recurseDirectories) {
+      populate(directory, filter, encoding, null, recurseDirectories);
+  }
+
+  /**
+   * This method is not implemented and throws a
+   * gate.util.MethodNotImplementedException.
+   *
+   * @param directory
+   * @param filter
+   * @param encoding
+   * @param mimeType
+   * @param recurseDirectories
+   */
+  public void populate (
+      URL directory, FileFilter filter, 
+      String encoding, String mimeType, 
+      boolean recurseDirectories) {
+    /* TEMPORARY
+    if(isTransientCorpus) {
+      throw new GateRuntimeException("Cannot populate a transient JDBC corpus");
+    } else {
+      try {
+        CorpusImpl.populate(this, directory, filter, encoding, mimeType, recurseDirectories);
+      } catch (IOException ex) {
+        throw new GateRuntimeException("IO error",ex);
+      }
+    }
+    */
+  }
+
+
+  @Override
+  public VirtualSubsetCorpus createSubsetCorpus(String name) 
+    throws ResourceInstantiationException {
+    return createSubsetCorpus(
+      "at.ofai.gate.virtualcorpus.JDBCSubsetCorpus", "jdbcCorpus", name);
+  }
+
+  @Override
+  public void cleanup() {
+      // TODO:
+      // deregister our listener for resources of type document
+      //
+    stopAutoSaving();
+    if(leaseRenewer != null) {
+      leaseRenewer.shutdownNow();
+      leaseRenewer = null;
+    }
+    unlockAllDocuments();
+    if(prefetcher != null) {
+      prefetcher.stop();
+      logger.info("JDBCCorpus "+getName()+" prefetch: "+prefetcher.getStatistics());
+      prefetcher = null;
+    }
+    try {
+      flushPendingSaves();
+    } catch (GateRuntimeException ex) {
+      logger.error("JDBCCorpus: could not write pending documents", ex);
+    }
+    if(isWorkQueue() && claimReleaseStatement != null) {
+      releaseClaims();
+    }
+    try {
+      saveCheckpointIfModified();
+    } catch (GateRuntimeException ex) {
+      logger.error("JDBCCorpus: could not save the checkpoint", ex);
+    }
+    try {
+      if(dbConnection != null && !dbConnection.isClosed()) {
+        dbConnection.close();
+      }
+    } catch (SQLException ex) {
+      // TODO: log, but otherwise ignore
+    }
+      Gate.getDataStoreRegister().remove(ourDS);
+  }
+
+  /**
+   * Syncing the corpus sends any document saves which are still pending 
+   * in the current write batch to the database and saves the checkpoint.
+   */
+  @Override
+  public void sync() {
+    flushPendingSaves();
+    saveCheckpointIfModified();
+  }
+
+  @Override
+  public void setName(String name) {
+    super.setName(name);
+    if(ourDS != null) {
+      ourDS.setName("DummyDS4_"+this.getName());
+      ourDS.setComment("Dummy DataStore for JDBCCorpus "+this.getName());
+    }
+  }
+
+
+  // Methods to be implemented from List
+
+  /**
+   * Add a document to the corpus. If the document has a name that is already
+   * in the list of documents, return false and do not add the document.
+   * Note that only the name is checked!
+   * If the name of the document added is not ending in ".xml", a 
+   * GateRuntimeException is thrown.
+   * If the document is already adopted by some data store throw an exception.
+   */
+  public boolean add(Document doc) {
+    System.err.println("CALLED add(Document) for document "+doc.getName()+" NOT IMPLEMENTED");
+    /* TEMPORARY
+    if(!saveDocuments) {
+      return false;
+    }
+    //System.out.println("JDBCCorp: called add(Object): "+doc.getName());
+    String docName = doc.getName();
+    Integer index = documentIndexes.get(docName);
+    if(index != null) {
+      return false;  // if that name is already in the corpus, do not add
+    } else {
+      if(doc.getDataStore() != null) {
+        throw new GateRuntimeException("Cannot add "+doc.getName()+" which belongs to datastore "+doc.getDataStore().getName());
+      }
+      try {
+        insertDocument(doc);
+      } catch (Exception ex) {
+        throw new GateRuntimeException("Problem inserting document "+docName,ex);
+      }
+      int i = documentNames.size();
+      documentNames.add(docName);
+      documentIndexes.put(docName, i);
+      isLoadeds.add(false);
+      if(!isTransientCorpus) {
+        adoptDocument(doc);
+      }
+      fireDocumentAdded(new CorpusEvent(
           t    }
 his, doc, i, CorpusEvent.DOCUMENT_ADDED));
       
@@ -468,20 +1557,32 @@ his, doc, i, CorpusEvent.DOCUMENT_ADDED));
           " of size "+documentNames.size());
     }
     String docName = documentNames.get(index);
+    handedOut = Math.max(handedOut, index + 1);
+    if(isWorkQueue() && handedOut >= documentNames.size()) {
+      // the last claimed document is handed out, claim the next batch so
+      // the corpus has grown when the caller checks the size again
+      claimDocuments();
+    }
     //System.err.println("Trying to get docname "+docName+" for index "+index);
     if(isDocumentLoaded(index)) {
       //System.err.println("Document is already loaded, returning");
-      Document doc = loadedDocuments.get(docName);
+      Document doc = getLoadedDocument(docName);
       //System.out.println("Returning loaded document "+doc);
       return doc;
     }
     //System.err.println("Document is not loaded, trying to read");
     //System.out.println("Document not loaded, reading");
-    Document doc;
-    try {
-      doc = readDocument(docName);
-    } catch (Exception ex) {
-      throw new GateRuntimeException("Problem retrieving document data for "+docName,ex);
+    Document doc = null;
+    if(prefetcher != null) {
+      doc = prefetcher.take(index);
+      prefetcher.schedule(index + 1);
+    }
+    if(doc == null) {
+      try {
+        doc = readDocument(docName);
+      } catch (Exception ex) {
+        throw new GateRuntimeException("Problem retrieving document data for "+docName,ex);
+      }
     }
     //System.err.println("did readDocument without exception, should have a document: "+(doc==null ? "NULL" : doc.getName()));
     loadedDocuments.put(docName, doc);
@@ -612,6 +1713,21 @@ his, doc, i, CorpusEvent.DOCUMENT_ADDED));
   }
   */
 
+  @Override
+  public boolean hasFixedSize() {
+    return !isWorkQueue();
+  }
+
+  /**
+   * Return the number of documents in the corpus. In work-queue mode, 
+   * this is the number of rows claimed so far. The first batch of rows is
+   * claimed when the corpus is created and the next batch when the last
+   * claimed document is retrieved with get or the iterator reaches the 
+   * end, so the corpus grows while it is being processed, until there 
+   * are no unprocessed rows left. Calling this method never claims rows.
+   * 
+   * @return 
+   */
   public int size() {
     return documentNames.size();
   }
@@ -621,18 +1737,625 @@ his, doc, i, CorpusEvent.DOCUMENT_ADDED));
   // ************************
   // TODO: this should allow saving to a different field? 
   @Override
-  protected void saveDocument(Document doc) {
+  protected synchronized void saveDocument(Document doc) {
+    String docName = doc.getName();
     if(getReadonly()) {
+      // nothing is written, the claim of the row is not renewed any more
+      // and expires
+      claimedNames.remove(docName);
+      return;
+    }
+    // The document is serialized into a spooled buffer which overflows into
+    // a temporary file for big documents and is then streamed into the 
+    // statement parameter, so we never need the whole serialization as a
+    // single String or byte array.
+    SpooledOutputStream spool = new SpooledOutputStream(SPOOL_MEMORY_THRESHOLD);
+    boolean batched = false;
+    try {
+      serializeDocument(doc, spool);
+      Map<String,String> features = updateFeatureIndex(doc);
+      if(useBulkUpsert) {
+        // the names in a bulk batch must be unique, the last save wins
+        int pos = pendingNames.indexOf(docName);
+        if(pos >= 0) {
+          pendingSaves.get(pos).dispose();
+          pendingSaves.set(pos, spool);
+          pendingFeatures.set(pos, features);
+        } else {
+          pendingNames.add(docName);
+          pendingSaves.add(spool);
+          pendingFeatures.add(features);
+        }
+        batched = true;
+      } else {
+        setNameParameter(updateContentStatement, saveNameParameter, docName);
+        setContentParameter(updateContentStatement, saveContentParameter, spool);
+        if(getWriteBatchSize() != null && getWriteBatchSize() > 1) {
+          // the spooled data must stay available until the batch is executed
+          updateContentStatement.addBatch();
+          pendingNames.add(docName);
+          pendingSaves.add(spool);
+          pendingFeatures.add(features);
+          batched = true;
+        } else {
+          int count = updateContentStatement.executeUpdate();
+          if(count == 0 && insertContentStatement != null) {
+            setNameParameter(insertContentStatement, 1, docName);
+            setContentParameter(insertContentStatement, 2, spool);
+            insertContentStatement.executeUpdate();
+          }
+          if(features != null) {
+            addFeatureRows(docName, features);
+            featureDeleteStatement.executeBatch();
+            featureInsertStatement.executeBatch();
+          }
+          if(isWorkQueue()) {
+            setMarkDoneParameters(docName);
+            markDoneStatement.executeUpdate();
+            claimedNames.remove(docName);
+          }
+        }
+      }
+    } catch (Exception ex) {
+      throw new GateRuntimeException("Error when trying to update database row for document "+docName,ex);
+    } finally {
+      if(!batched) {
+        spool.dispose();
+      }
+    }
+    if(batched && pendingSaves.size() >= getWriteBatchSize()) {
+      flushPendingSaves();
+    }
+  }
+  
+  /**
+   * Serialize the document as GATE XML into the spool, compressed if
+   * the useCompression parameter is true.
+   */
+  protected void serializeDocument(Document doc, SpooledOutputStream spool) throws IOException {
+    Writer writer;
+    if(getUseCompression()) {
+      writer = new OutputStreamWriter(new GZIPOutputStream(spool), encoding);
+    } else {
+      writer = spool.getWriter(encoding);
+    }
+    writeDocumentXml(doc, writer, encoding);
+    writer.close();
+  }
+  
+  /**
+   * Set the statement parameter to the document name, as a number if the
+   * name field of the table is an integer column.
+   */
+  protected void setNameParameter(PreparedStatement stmt, int parameter, 
+      String docName) throws SQLException {
+    if(numericKeys != null) {
+      stmt.setLong(parameter, LongKeyIndex.parseKey(docName));
+    } else {
+      stmt.setString(parameter, docName);
+    }
+  }
+
+  /**
+   * Return the index of the column with the given name or label, ignoring
+   * case, or 0 if the metadata is null or there is no such column.
+   */
+  protected static int findColumn(ResultSetMetaData metaData, String name)
+    throws SQLException {
+    if(metaData == null) {
+      return 0;
+    }
+    for(int i = 1; i <= metaData.getColumnCount(); i++) {
+      if(name.equalsIgnoreCase(metaData.getColumnLabel(i)) ||
+         name.equalsIgnoreCase(metaData.getColumnName(i))) {
+        return i;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Check if the result set column holds whole numbers which fit into a long.
+   */
+  protected static boolean isIntegerColumn(ResultSetMetaData metaData, int column) 
+    throws SQLException {
+    switch(metaData.getColumnType(column)) {
+      case Types.BIGINT:
+      case Types.INTEGER:
+      case Types.SMALLINT:
+      case Types.TINYINT:
+        return true;
+      case Types.NUMERIC:
+      case Types.DECIMAL:
+        return metaData.getScale(column) == 0 && metaData.getPrecision(column) > 0 &&
+               metaData.getPrecision(column) <= 18;
+      default:
+        return false;
+    }
+  }
+  
+  /**
+   * Set the statement parameter to the content of the spool. The content
+   * is streamed from the spool, unless the driver does not support this.
+   * The stream methods with a long length are not implemented by all the
+   * drivers we support, so content of 2G bytes or characters or more is 
+   * rejected with an IOException.
+   */
+  protected void setContentParameter(PreparedStatement stmt, int parameter,
+      SpooledOutputStream spool) throws SQLException, IOException {
+    long length = getUseCompression() ? spool.size() : spool.getCharCount();
+    if(length > Integer.MAX_VALUE) {
+      throw new IOException("Document content of length "+length+
+        " is too big to be stored in the database");
+    }
+    if(getUseCompression()) {
+      if(dialect.supportsStreams()) {
+        stmt.setBinaryStream(parameter, spool.getInputStream(), (int)length);
+      } else {
+        InputStream is = spool.getInputStream();
+        try {
+          stmt.setBytes(parameter, IOUtils.toByteArray(is));
+        } finally {
+          is.close();
+        }
+      }
+    } else {
+      if(dialect.supportsStreams()) {
+        stmt.setCharacterStream(parameter, 
+          spool.getReader(encoding), (int)length);
+      } else {
+        Reader reader = spool.getReader(encoding);
+        try {
+          stmt.setString(parameter, IOUtils.toString(reader));
+        } finally {
+          reader.close();
+        }
+      }
+    }
+  }
+  
+  /**
+   * Execute all document saves which have been added to the current
+   * write batch in a single transaction.
+   */
+  protected synchronized void flushPendingSaves() {
+    if(pendingSaves.isEmpty()) {
       return;
     }
-    String docContent = doc.toXml();
-    String docName = doc.getName();
     try {
-      updateContentStatement.setString(2, docName);
-      updateContentStatement.setString(1, docContent);
-      updateContentStatement.execute();
+      boolean autoCommit = dbConnection.getAutoCommit();
+      dbConnection.setAutoCommit(false);
+      try {
+        if(useBulkUpsert) {
+          dialect.bulkUpsert(dbConnection, saveTableName, saveNameField, 
+            saveContentField, pendingNames, pendingSaves, getUseCompression(), encoding);
+        } else {
+          updateContentStatement.executeBatch();
+        }
+        if(isWorkQueue()) {
+          for(String docName : pendingNames) {
+            setMarkDoneParameters(docName);
+            markDoneStatement.addBatch();
+          }
+          markDoneStatement.executeBatch();
+        }
+        if(featureDeleteStatement != null) {
+          for(int i = 0; i < pendingNames.size(); i++) {
+            if(pendingFeatures.get(i) != null) {
+              addFeatureRows(pendingNames.get(i), pendingFeatures.get(i));
+            }
+          }
+          featureDeleteStatement.executeBatch();
+          featureInsertStatement.executeBatch();
+        }
+        dbConnection.commit();
+        if(isWorkQueue()) {
+          claimedNames.removeAll(pendingNames);
+        }
+      } catch (SQLException ex) {
+        dbConnection.rollback();
+        throw ex;
+      } catch (IOException ex) {
+        dbConnection.rollback();
+        throw ex;
+      } finally {
+        dbConnection.setAutoCommit(autoCommit);
+      }
     } catch (Exception ex) {
-      throw new GateRuntimeException("Error when trying to update database row for document doc.getName()",ex);
+      // the documents of the batch were not written, so they are not completed
+      completedPending.clear();
+      throw new GateRuntimeException("Error when trying to write batch of "+
+        pendingSaves.size()+" documents",ex);
+    } finally {
+      for(SpooledOutputStream spool : pendingSaves) {
+        spool.dispose();
+      }
+      pendingSaves.clear();
+      pendingNames.clear();
+      pendingFeatures.clear();
+    }
+    for(int index : completedPending) {
+      markCompleted(index);
+    }
+    completedPending.clear();
+  }
+  
+  @Override
+  protected boolean isCheckpointEnabled() {
+    return super.isCheckpointEnabled() || 
+      (getCheckpointTable() != null && !getCheckpointTable().isEmpty());
+  }
+  
+  @Override
+  protected void documentCompleted(int index) {
+    if(checkpoint != null && pendingNames.contains(documentNames.get(index))) {
+      completedPending.add(index);
+    } else {
+      markCompleted(index);
+    }
+  }
+  
+  /**
+   * Load the completed documents from the checkpoint table, creating the
+   * table first if it does not exist, or from the checkpoint file.
+   */
+  @Override
+  protected void loadCheckpoint() throws IOException {
+    if(getCheckpointTable() == null || getCheckpointTable().isEmpty()) {
+      super.loadCheckpoint();
+      return;
+    }
+    String table = getCheckpointTable();
+    try {
+      createTableIfMissing(table, "checkpoint",
+        "CREATE TABLE "+table+" ( doc_name VARCHAR(255) NOT NULL PRIMARY KEY )");
+      int[] indexes = selectDocumentIndexes("SELECT doc_name FROM "+table);
+      for(int index : indexes) {
+        checkpoint.markCompleted(index);
+      }
+      checkpoint.takeNewlyCompleted();
+      checkpointInsertStatement = dbConnection.prepareStatement(
+        "INSERT INTO "+table+" ( doc_name ) VALUES ( ? )");
+    } catch (SQLException ex) {
+      throw new IOException("Could not load checkpoint table "+table, ex);
+    }
+  }
+  
+  /**
+   * Insert the documents completed since the last save into the checkpoint
+   * table, or save the checkpoint file.
+   */
+  @Override
+  protected void saveCheckpoint() throws IOException {
+    if(checkpointInsertStatement == null) {
+      super.saveCheckpoint();
+      return;
+    }
+    for(int index : checkpoint.takeNewlyCompleted()) {
+      String docName = documentNames.get(index);
+      try {
+        checkpointInsertStatement.setString(1, docName);
+        checkpointInsertStatement.executeUpdate();
+      } catch (SQLException ex) {
+        // most likely a duplicate key: the document is already recorded
+        logger.debug("JDBCCorpus: could not insert "+docName+" into the checkpoint table", ex);
+      }
+    }
+  }
+  
+  /**
+   * Create the feature index from the rows of the feature index table, 
+   * creating the table first if it does not exist, and prepare the 
+   * statements for updating it.
+   */
+  protected void prepareFeatureIndex() throws SQLException {
+    String table = getFeatureIndexTable();
+    if(table == null || table.isEmpty()) {
+      table = getTableName()+"_features";
+    }
+    featureIndex = new FeatureIndex(getIndexedFeatures());
+    createTableIfMissing(table, "feature index",
+      "CREATE TABLE "+table+" ( doc_name VARCHAR(255) NOT NULL, "+
+        "feature_name VARCHAR(255) NOT NULL, feature_value VARCHAR("+
+        FeatureIndex.MAX_VALUE_LENGTH+") )",
+      "CREATE INDEX "+table+"_doc ON "+table+" ( doc_name )");
+    boolean autoCommit = dbConnection.getAutoCommit();
+    if(dialect.needsTransactionForFetchSize()) {
+      dbConnection.setAutoCommit(false);
+    }
+    int notFound = 0;
+    Statement stmt = dbConnection.createStatement();
+    try {
+      if(dialect.getFetchSize() > 0) {
+        stmt.setFetchSize(dialect.getFetchSize());
+      }
+      ResultSet rs = stmt.executeQuery(
+        "SELECT doc_name, feature_name, feature_value FROM "+table);
+      while(rs.next()) {
+        Integer index = documentIndexes.get(rs.getString(1));
+        if(index == null) {
+          notFound++;
+        } else {
+          featureIndex.add(index, rs.getString(2), rs.getString(3));
+        }
+      }
+      rs.close();
+      stmt.close();
+    } finally {
+      if(dialect.needsTransactionForFetchSize()) {
+        dbConnection.commit();
+        dbConnection.setAutoCommit(autoCommit);
+      }
+    }
+    if(notFound > 0) {
+      logger.info("JDBCCorpus: ignored "+notFound+" rows of "+table+
+        " for documents not in corpus "+getName());
+    }
+    featureDeleteStatement = dbConnection.prepareStatement(
+      "DELETE FROM "+table+" WHERE doc_name = ?");
+    featureInsertStatement = dbConnection.prepareStatement(
+      "INSERT INTO "+table+" ( doc_name, feature_name, feature_value ) VALUES ( ?, ?, ? )");
+  }
+  
+  /**
+   * Lock the document by inserting a row for it into the lock table. A 
+   * lock expires after workLeaseSeconds unless it is renewed, which is 
+   * done in the background while the corpus exists, so locks of crashed
+   * workers do not block documents forever.
+   * <p>
+   * The lock is removed when the document is unloaded, so it does not
+   * prevent that the document gets processed again later.
+   * 
+   * @param docName
+   * @return 
+   */
+  @Override
+  public synchronized boolean lockDocument(String docName) {
+    if(lockedDocuments.contains(docName)) {
+      return true;
+    }
+    long now = System.currentTimeMillis();
+    long leaseUntil = now + getWorkLeaseSeconds() * 1000L;
+    try {
+      prepareLockStatements();
+      boolean inserted;
+      lockInsertStatement.setString(1, docName);
+      lockInsertStatement.setString(2, getWorkerId());
+      lockInsertStatement.setLong(3, leaseUntil);
+      try {
+        inserted = lockInsertStatement.executeUpdate() == 1;
+      } catch (SQLException ex) {
+        if(!isConstraintViolation(ex)) {
+          throw ex;
+        }
+        // the document is locked or the lock has expired. Some drivers 
+        // (e.g. the bundled SQLite one) cannot use a statement again 
+        // after it failed, so the insert is prepared again
+        inserted = false;
+        lockInsertStatement.close();
+        lockInsertStatement = dbConnection.prepareStatement(lockInsertSQL);
+      }
+      if(!inserted) {
+        lockTakeOverStatement.setString(1, getWorkerId());
+        lockTakeOverStatement.setLong(2, leaseUntil);
+        lockTakeOverStatement.setString(3, docName);
+        lockTakeOverStatement.setLong(4, now);
+        if(lockTakeOverStatement.executeUpdate() != 1) {
+          return false;
+        }
+      }
+    } catch (SQLException ex) {
+      throw new GateRuntimeException("Could not lock document "+docName, ex);
+    }
+    lockedDocuments.add(docName);
+    return true;
+  }
+
+  @Override
+  public synchronized void unlockDocument(String docName) {
+    if(!lockedDocuments.remove(docName)) {
+      return;
+    }
+    try {
+      lockDeleteStatement.setString(1, docName);
+      lockDeleteStatement.setString(2, getWorkerId());
+      lockDeleteStatement.executeUpdate();
+    } catch (SQLException ex) {
+      logger.warn("JDBCCorpus: could not release lock for document "+docName, ex);
+    }
+  }
+  
+  /**
+   * Renew the leases of all the document locks and work-queue claims we 
+   * hold. This is called periodically in the background while the corpus
+   * exists. If a lock or claim has been taken over by another worker in
+   * the meantime, the document may get processed by both workers.
+   */
+  protected synchronized void renewLeases() {
+    long leaseUntil = System.currentTimeMillis() + getWorkLeaseSeconds() * 1000L;
+    for(String docName : new ArrayList<String>(claimedNames)) {
+      try {
+        claimRenewStatement.setLong(1, leaseUntil);
+        setOwnClaimParameters(claimRenewStatement, 2, docName);
+        if(claimRenewStatement.executeUpdate() != 1) {
+          logger.warn("JDBCCorpus warning: claim for document "+docName+
+            " was lost to another worker, it may get processed twice");
+          claimedNames.remove(docName);
+        }
+      } catch (SQLException ex) {
+        logger.warn("JDBCCorpus warning: could not renew claim for document "+docName, ex);
+      }
+    }
+    for(String docName : new ArrayList<String>(lockedDocuments)) {
+      try {
+        lockRenewStatement.setLong(1, leaseUntil);
+        lockRenewStatement.setString(2, docName);
+        lockRenewStatement.setString(3, getWorkerId());
+        if(lockRenewStatement.executeUpdate() != 1) {
+          logger.warn("JDBCCorpus warning: lock for document "+docName+
+            " was lost to another worker, it may get processed twice");
+          lockedDocuments.remove(docName);
+        }
+      } catch (SQLException ex) {
+        logger.warn("JDBCCorpus warning: could not renew lock for document "+docName, ex);
+      }
+    }
+  }
+  
+  protected synchronized void startLeaseRenewer() {
+    if(leaseRenewer != null) {
+      return;
+    }
+    leaseRenewer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "LeaseRenewer-"+getName());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    long period = Math.max(1000L, getWorkLeaseSeconds() * 250L);
+    leaseRenewer.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        renewLeases();
+      }
+    }, period, period, TimeUnit.MILLISECONDS);
+  }
+  
+  /**
+   * Create a table of the corpus with the given statements, unless the 
+   * database metadata shows that it exists already. Other errors, e.g. 
+   * missing permissions, are not mistaken for a missing table this way.
+   * 
+   * @param table the table name, optionally qualified with a schema
+   * @param kind what the table is used for, for logging
+   * @param statements the statements which create the table
+   */
+  protected void createTableIfMissing(String table, String kind, String... statements) 
+    throws SQLException {
+    if(tableExists(table)) {
+      return;
+    }
+    logger.info("JDBCCorpus: creating "+kind+" table "+table);
+    Statement stmt = dbConnection.createStatement();
+    try {
+      for(String sql : statements) {
+        stmt.executeUpdate(sql);
+      }
+    } finally {
+      stmt.close();
+    }
+  }
+  
+  /**
+   * True if the table exists. Since databases store unquoted names in 
+   * upper or lower case, the name is looked up as given and in both cases.
+   * 
+   * @param table the table name, optionally qualified with a schema
+   */
+  protected boolean tableExists(String table) throws SQLException {
+    DatabaseMetaData metaData = dbConnection.getMetaData();
+    String schema = null;
+    String name = table;
+    int dot = table.lastIndexOf('.');
+    if(dot >= 0) {
+      schema = table.substring(0, dot);
+      name = table.substring(dot + 1);
+    }
+    String escape = metaData.getSearchStringEscape();
+    String[][] candidates = {
+      { schema, name },
+      { schema == null ? null : schema.toUpperCase(), name.toUpperCase() },
+      { schema == null ? null : schema.toLowerCase(), name.toLowerCase() } };
+    for(String[] candidate : candidates) {
+      String pattern = candidate[1];
+      if(escape != null && !escape.isEmpty()) {
+        pattern = pattern.replace(escape, escape+escape).
+          replace("_", escape+"_").replace("%", escape+"%");
+      }
+      ResultSet rs = metaData.getTables(null, candidate[0], pattern, null);
+      try {
+        // the pattern may match other names if it could not be escaped
+        while(rs.next()) {
+          if(candidate[1].equalsIgnoreCase(rs.getString("TABLE_NAME"))) {
+            return true;
+          }
+        }
+      } finally {
+        rs.close();
+      }
+    }
+    return false;
+  }
+  
+  /**
+   * True if the exception reports a violated constraint, e.g. a duplicate
+   * key, which is SQLState class 23. Old SQLite drivers set neither the 
+   * SQLState nor the SQLite error code SQLITE_CONSTRAINT, so for SQLite 
+   * the message is checked too.
+   */
+  protected boolean isConstraintViolation(SQLException ex) {
+    if(ex instanceof SQLIntegrityConstraintViolationException) {
+      return true;
+    }
+    String state = ex.getSQLState();
+    if(state != null) {
+      return state.startsWith("23");
+    }
+    if(dialect != JDBCDialect.SQLITE) {
+      return false;
+    }
+    String message = String.valueOf(ex.getMessage()).toLowerCase();
+    return ex.getErrorCode() == 19 || message.contains("constraint") || 
+      message.contains("not unique");
+  }
+  
+  protected synchronized void unlockAllDocuments() {
+    for(String docName : new ArrayList<String>(lockedDocuments)) {
+      unlockDocument(docName);
+    }
+  }
+  
+  /**
+   * Prepare the statements for the lock table, creating the table first 
+   * if it does not exist.
+   */
+  protected void prepareLockStatements() throws SQLException {
+    if(lockInsertStatement != null) {
+      return;
+    }
+    String table = getLockTable();
+    if(table == null || table.isEmpty()) {
+      table = getTableName()+"_locks";
+    }
+    createTableIfMissing(table, "lock",
+      "CREATE TABLE "+table+" ( doc_name VARCHAR(255) NOT NULL PRIMARY KEY, "+
+        "owner VARCHAR(255) NOT NULL, lease_until BIGINT NOT NULL )");
+    lockInsertSQL = "INSERT INTO "+table+" ( doc_name, owner, lease_until ) VALUES ( ?, ?, ? )";
+    lockInsertStatement = dbConnection.prepareStatement(lockInsertSQL);
+    lockTakeOverStatement = dbConnection.prepareStatement(
+      "UPDATE "+table+" SET owner = ?, lease_until = ? WHERE doc_name = ? AND lease_until < ?");
+    lockDeleteStatement = dbConnection.prepareStatement(
+      "DELETE FROM "+table+" WHERE doc_name = ? AND owner = ?");
+    lockRenewStatement = dbConnection.prepareStatement(
+      "UPDATE "+table+" SET lease_until = ? WHERE doc_name = ? AND owner = ?");
+    startLeaseRenewer();
+  }
+  
+  /**
+   * Add the statements which replace the feature index table rows of the
+   * document to the batches of the feature index statements.
+   */
+  protected void addFeatureRows(String docName, Map<String,String> features) 
+    throws SQLException {
+    featureDeleteStatement.setString(1, docName);
+    featureDeleteStatement.addBatch();
+    for(Map.Entry<String,String> feature : features.entrySet()) {
+      featureInsertStatement.setString(1, docName);
+      featureInsertStatement.setString(2, feature.getKey());
+      featureInsertStatement.setString(3, feature.getValue());
+      featureInsertStatement.addBatch();
     }
   }
 
@@ -680,17 +2403,57 @@ his, doc, i, CorpusEvent.DOCUMENT_ADDED));
   */
   
   protected InputStream getGZIPCompressedInputStream(String theString, String theEncoding) 
+    throws IOException {
+    ByteArrayInputStream inputStream = 
+      new ByteArrayInputStream(getGZIPCompressedBytes(theString, theEncoding));
+    return inputStream;
+  }
+  
+  protected byte[] getGZIPCompressedBytes(String theString, String theEncoding) 
     throws IOException {
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
     GZIPOutputStream gos = new GZIPOutputStream(baos);
     gos.write(theString.getBytes(theEncoding));
     gos.close();
-    ByteArrayInputStream inputStream = new ByteArrayInputStream(baos.toByteArray());
-    return inputStream;
+    return baos.toByteArray();
+  }
+  
+  /**
+   * Wrap the binary content stream of a row so that gzip-compressed content
+   * gets decompressed on the fly. If the content does not start with the
+   * gzip magic number, it is a legacy row with uncompressed content and 
+   * the stream is returned unchanged.
+   * 
+   * @param is the raw binary stream of the content field
+   * @return a stream of the uncompressed content bytes
+   * @throws IOException 
+   */
+  protected InputStream getDecompressingInputStream(InputStream is) 
+    throws IOException {
+    BufferedInputStream bis = new BufferedInputStream(is);
+    bis.mark(2);
+    int b1 = bis.read();
+    int b2 = bis.read();
+    bis.reset();
+    if(b1 == (GZIPInputStream.GZIP_MAGIC & 0xff) && 
+       b2 == ((GZIPInputStream.GZIP_MAGIC >> 8) & 0xff)) {
+      return new GZIPInputStream(bis);
+    } else {
+      return bis;
+    }
   }
   
   
-  protected Document readDocument(String docName) throws SQLException, IOException {
+  protected synchronized Document readDocument(String docName) throws SQLException, IOException {
+    return readDocument(getContentStatement, docName);
+  }
+  
+  /**
+   * Read the document using the given get content statement, which may 
+   * belong to a different connection than the main connection of the corpus.
+   */
+  protected Document readDocument(PreparedStatement getContentStatement, String docName) 
+    throws SQLException, IOException {
     //System.out.println("JDBCCorp: read doc "+docName);
     Document doc = null;
 
@@ -698,34 +2461,107 @@ his, doc, i, CorpusEvent.DOCUMENT_ADDED));
     String docEncoding = encoding;
     
     //System.out.println("Trying to get content for "+docName);
-    getContentStatement.setString(1, docName);
+    setNameParameter(getContentStatement, 1, docName);
     //System.out.println("After setString: "+getContentStatement);
     rs = getContentStatement.executeQuery();
     if (!rs.next()) {
       throw new GateRuntimeException("Document not found int the DB table: " + docName);
     }
-    if (!rs.isLast()) {
-      throw new GateRuntimeException("More than one row found for document name " + docName);
-    }
 
 
-    String content = null;
-    content = rs.getString(1);
-    String docMimeType = mimeType;
-    FeatureMap params = Factory.newFeatureMap();
-    params.put(Document.DOCUMENT_STRING_CONTENT_PARAMETER_NAME, content);
-    params.put(Document.DOCUMENT_ENCODING_PARAMETER_NAME, docEncoding);
-    params.put(Document.DOCUMENT_MIME_TYPE_PARAMETER_NAME, docMimeType);
     try {
-      doc =
-        (Document) Factory.createResource(DocumentImpl.class.getName(),
-        params, null, docName);
-    } catch (Exception ex) {
-      throw new GateRuntimeException("Exception creating the document", ex);
+      if(isGateXmlContent()) {
+        // GATE XML gets parsed directly from the content stream of the row
+        if(getUseCompression()) {
+          InputStream is = getContentInputStream(rs);
+          if(is == null) {
+            throw new GateRuntimeException("Content is NULL for document " + docName);
+          }
+          InputStream isdec = getDecompressingInputStream(is);
+          try {
+            doc = createDocumentFromXmlStream(docName, isdec, docEncoding);
+          } finally {
+            isdec.close();
+          }
+        } else {
+          Reader reader = getContentReader(rs);
+          if(reader == null) {
+            throw new GateRuntimeException("Content is NULL for document " + docName);
+          }
+          try {
+            doc = createDocumentFromXmlStream(docName, reader);
+          } finally {
+            reader.close();
+          }
+        }
+      } else {
+        // any other format needs the content as a String for the 
+        // document format to parse it
+        String content = null;
+        if(getUseCompression()) {
+          InputStream is = getContentInputStream(rs);
+          if(is == null) {
+            throw new GateRuntimeException("Content is NULL for document " + docName);
+          }
+          InputStream isdec = getDecompressingInputStream(is);
+          try {
+            content = IOUtils.toString(isdec, docEncoding);
+          } finally {
+            isdec.close();
+          }
+        } else {
+          content = rs.getString(1);
+        }
+        String docMimeType = mimeType;
+        FeatureMap params = Factory.newFeatureMap();
+        params.put(Document.DOCUMENT_STRING_CONTENT_PARAMETER_NAME, content);
+        params.put(Document.DOCUMENT_ENCODING_PARAMETER_NAME, docEncoding);
+        params.put(Document.DOCUMENT_MIME_TYPE_PARAMETER_NAME, docMimeType);
+        try {
+          doc =
+            (Document) Factory.createResource(DocumentImpl.class.getName(),
+            params, null, docName);
+        } catch (Exception ex) {
+          throw new GateRuntimeException("Exception creating the document", ex);
+        }
+      }
+      if(rs.next()) {
+        Factory.deleteResource(doc);
+        throw new GateRuntimeException("More than one row found for document name " + docName);
+      }
+    } finally {
+      rs.close();
     }
     return doc;
   }
   
+  protected InputStream getContentInputStream(ResultSet rs) throws SQLException {
+    if(dialect.supportsStreams()) {
+      return rs.getBinaryStream(1);
+    } else {
+      byte[] bytes = rs.getBytes(1);
+      return bytes == null ? null : new ByteArrayInputStream(bytes);
+    }
+  }
+  
+  protected Reader getContentReader(ResultSet rs) throws SQLException {
+    if(dialect.supportsStreams()) {
+      return rs.getCharacterStream(1);
+    } else {
+      String content = rs.getString(1);
+      return content == null ? null : new StringReader(content);
+    }
+  }
+  
+  /**
+   * Check if the content field is expected to contain GATE XML. This is 
+   * the case if no mime type has been specified.
+   * @return 
+   */
+  protected boolean isGateXmlContent() {
+    return mimeType == null || mimeType.isEmpty();
+  }
+  
   protected void removeDocument(String docName) {
     throw new GateRuntimeException("Removing a document from JDBC corpus not supported");
   }
@@ -751,13 +2587,218 @@ his, doc, i, CorpusEvent.DOCUMENT_ADDED));
     } catch (PersistenceException ex) {
       System.err.println("Got exception when adopting: "+ex);
     }
+    ourDS.trackDocument(doc);
+  }
+  
+  /**
+   * Return a summary of how often the pipeline had to wait for the 
+   * background prefetcher and how often the prefetcher had to wait for
+   * the pipeline, or an empty string if prefetching is not used.
+   * 
+   * @return 
+   */
+  public String getPrefetchStatistics() {
+    return prefetcher == null ? "" : prefetcher.getStatistics();
+  }
+  
+  /**
+   * Reads and parses documents ahead of the current position in a
+   * background thread which uses its own connection.
+   * <p>
+   * All methods except run are called from the thread which uses the
+   * corpus. Requests for the documents after the current position are
+   * put into a queue from which the background thread takes them and 
+   * the finished documents are put into a bounded result queue in the 
+   * same order. If a document is requested which is not the next one
+   * in the queue, everything in the queue is discarded and prefetching 
+   * starts over from the new position.
+   */
+  protected class JDBCPrefetcher implements Runnable {
+    protected int size;
+    protected Connection connection;
+    protected PreparedStatement statement;
+    protected Thread thread;
+    protected volatile boolean stopped = false;
+    // incremented whenever the queues get discarded, results of an older
+    // generation are thrown away
+    protected volatile int generation = 0;
+    protected BlockingQueue<PrefetchEntry> requests = new LinkedBlockingQueue<PrefetchEntry>();
+    protected BlockingQueue<PrefetchEntry> results;
+    // the indexes requested and not taken yet, in order
+    protected LinkedList<Integer> inFlight = new LinkedList<Integer>();
+    // the next index to request
+    protected int nextRequest = 0;
+    // statistics
+    protected long takes = 0;
+    protected long starved = 0;
+    protected long starvedNanos = 0;
+    protected long misses = 0;
+    protected volatile long blocked = 0;
+    protected volatile long blockedNanos = 0;
+
+    public JDBCPrefetcher(int size) throws SQLException {
+      this.size = size;
+      results = new LinkedBlockingQueue<PrefetchEntry>(size);
+      connection = openConnection();
+      statement = connection.prepareStatement(getContentSQL);
+      thread = new Thread(this, "JDBCCorpus prefetcher for "+getName());
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    /**
+     * Request the documents from index on, up to the prefetch size ahead.
+     * Only documents of the corpus as it is now get requested, so in 
+     * work-queue mode no new claims are made by this.
+     */
+    public void schedule(int index) {
+      if(nextRequest < index) {
+        nextRequest = index;
+      }
+      int end = Math.min(index + size, documentNames.size());
+      while(nextRequest < end) {
+        inFlight.add(nextRequest);
+        requests.add(new PrefetchEntry(generation, nextRequest, 
+          documentNames.get(nextRequest)));
+        nextRequest++;
+      }
+    }
+
+    /**
+     * Return the prefetched document for the index or null if that 
+     * document was not requested as the next document. 
+     */
+    public Document take(int index) {
+      takes++;
+      if(inFlight.isEmpty() || inFlight.getFirst() != index) {
+        if(!inFlight.isEmpty()) {
+          misses++;
+        }
+        discard();
+        nextRequest = index + 1;
+        return null;
+      }
+      inFlight.removeFirst();
+      while(true) {
+        PrefetchEntry entry = results.poll();
+        if(entry == null) {
+          // the pipeline is faster than the database
+          starved++;
+          long start = System.nanoTime();
+          try {
+            entry = results.take();
+          } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new GateRuntimeException("Interrupted while waiting for document "+index, ex);
+          } finally {
+            starvedNanos += System.nanoTime() - start;
+          }
+        }
+        if(entry.generation != generation) {
+          if(entry.document != null) {
+            Factory.deleteResource(entry.document);
+          }
+          continue;
+        }
+        if(entry.error != null) {
+          throw new GateRuntimeException("Problem retrieving document data for "+
+            entry.name, entry.error);
+        }
+        return entry.document;
+      }
+    }
+
+    // throw away everything requested or prefetched so far
+    protected void discard() {
+      generation++;
+      requests.clear();
+      inFlight.clear();
+      PrefetchEntry entry;
+      while((entry = results.poll()) != null) {
+        if(entry.document != null) {
+          Factory.deleteResource(entry.document);
+        }
+      }
+    }
+
+    @Override
+    public void run() {
+      while(!stopped) {
+        try {
+          PrefetchEntry entry = requests.take();
+          if(entry.generation != generation) {
+            continue;
+          }
+          try {
+            entry.document = readDocument(statement, entry.name);
+          } catch (Exception ex) {
+            entry.error = ex;
+          }
+          if(!results.offer(entry)) {
+            // the database is faster than the pipeline
+            blocked++;
+            long start = System.nanoTime();
+            results.put(entry);
+            blockedNanos += System.nanoTime() - start;
+          }
+        } catch (InterruptedException ex) {
+          break;
+        }
+      }
+    }
+
+    public void stop() {
+      stopped = true;
+      thread.interrupt();
+      try {
+        thread.join(10000);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+      discard();
+      try {
+        connection.close();
+      } catch (SQLException ex) {
+        // ignore, we are only cleaning up
+      }
+    }
+
+    public String getStatistics() {
+      return "documents taken="+takes+", out of order="+misses+
+        ", pipeline waited="+starved+" times for "+(starvedNanos/1000000)+"ms"+
+        ", prefetcher waited="+blocked+" times for "+(blockedNanos/1000000)+"ms";
+    }
+  }
+  
+  protected static class PrefetchEntry {
+    int generation;
+    int index;
+    String name;
+    Document document;
+    Exception error;
+    PrefetchEntry(int generation, int index, String name) {
+      this.generation = generation;
+      this.index = index;
+      this.name = name;
+    }
   }
   
   protected class JDBCCorpusIterator implements Iterator<Document> {
     int nextIndex = 0;
     @Override
     public boolean hasNext() {
-      return (documentNames.size() > nextIndex);
+      while(true) {
+        while(size() > nextIndex) {
+          if(lockForIteration(nextIndex)) {
+            return true;
+          }
+          nextIndex++;
+        }
+        // in work-queue mode, rows may have become claimable again
+        if(!isWorkQueue() || claimDocuments() == 0) {
+          return false;
+        }
+      }
     }
     @Override
     public Document next() {
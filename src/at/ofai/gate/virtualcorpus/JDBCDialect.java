@@ -0,0 +1,483 @@
+/*
+ * Copyright (c) 2010- Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-VirtualCorpus
+ * (see https://github.com/johann-petrak/gateplugin-VirtualCorpus)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.virtualcorpus;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.log4j.Logger;
+import org.postgresql.PGConnection;
+
+/**
+ * Database specific settings and SQL used by the JDBCCorpus.
+ * <p>
+ * There is one profile for each of the databases for which a JDBC driver
+ * is included with the plugin, and a generic profile which only uses
+ * standard SQL and JDBC features. The profile to use can be specified
+ * by name or detected from the JDBC driver class name.
+ *
+ * @author Johann Petrak
+ */
+public enum JDBCDialect {
+
+  GENERIC {
+  },
+
+  H2 {
+    @Override
+    public int getFetchSize() {
+      return 1000;
+    }
+    @Override
+    public String getUpsertSQL(String table, String nameField, String contentField) {
+      return "MERGE INTO "+table+" ( "+nameField+", "+contentField+" ) KEY ( "+
+        nameField+" ) VALUES ( ?, ? )";
+    }
+  },
+
+  /**
+   * SQLite uses WAL journaling and normal instead of full synchronous mode,
+   * which is safe with WAL. The bundled driver does not implement any of
+   * the stream methods, so content is always bound as String or bytes.
+   * The upsert is only used with SQLite 3.24 or later, older versions, 
+   * like the one of the bundled driver, update and insert separately.
+   */
+  SQLITE {
+    @Override
+    public void initConnection(Connection connection) throws SQLException {
+      Statement stmt = connection.createStatement();
+      try {
+        ResultSet rs = stmt.executeQuery("PRAGMA journal_mode=WAL");
+        if(rs.next() && !"wal".equalsIgnoreCase(rs.getString(1))) {
+          logger.info("JDBCDialect: WAL journaling not supported, using journal mode "+
+            rs.getString(1));
+        }
+        rs.close();
+        stmt.executeUpdate("PRAGMA synchronous=NORMAL");
+      } finally {
+        stmt.close();
+      }
+    }
+    @Override
+    public boolean supportsStreams() {
+      return false;
+    }
+    @Override
+    public String getUpsertSQL(String table, String nameField, String contentField) {
+      // unlike INSERT OR REPLACE, this keeps the row and all other columns
+      // of an existing document, but it needs SQLite 3.24 or later
+      return "INSERT INTO "+table+" ( "+nameField+", "+contentField+" ) VALUES ( ?, ? )"+
+        " ON CONFLICT("+nameField+") DO UPDATE SET "+contentField+" = excluded."+contentField;
+    }
+    @Override
+    public boolean supportsUpsert(Connection connection) throws SQLException {
+      return isVersionAtLeast(queryVersion(connection, "SELECT sqlite_version()"), 3, 24);
+    }
+  },
+
+  /**
+   * MySQL gets the batched statements rewritten into multi-row statements
+   * by the driver and uses server side cursors for fetching. Claiming rows
+   * in work-queue mode needs MySQL 8.0 or later for SKIP LOCKED.
+   */
+  MYSQL {
+    @Override
+    public String prepareUrl(String url) {
+      url = addUrlParameter(url, "rewriteBatchedStatements", "true");
+      url = addUrlParameter(url, "useCursorFetch", "true");
+      return url;
+    }
+    @Override
+    public int getFetchSize() {
+      return 1000;
+    }
+    @Override
+    public String getClaimSQL(String table, String nameField, String condition, int limit) {
+      return "SELECT "+nameField+" FROM "+table+" WHERE "+condition+
+        " ORDER BY "+nameField+" LIMIT "+limit+" FOR UPDATE SKIP LOCKED";
+    }
+    @Override
+    public String getUpsertSQL(String table, String nameField, String contentField) {
+      return "INSERT INTO "+table+" ( "+nameField+", "+contentField+" ) VALUES ( ?, ? )"+
+        " ON DUPLICATE KEY UPDATE "+contentField+" = VALUES("+contentField+")";
+    }
+  },
+
+  /**
+   * PostgreSQL only uses cursors for fetching if autocommit is off, which
+   * the JDBCCorpus does for the big queries. Batches of documents for an
+   * output table are bulk loaded with COPY into a temporary table and then
+   * upserted from there in a single statement. Both the upsert and the
+   * bulk loading need PostgreSQL 9.5 or later, older versions update and 
+   * insert separately.
+   */
+  POSTGRESQL {
+    @Override
+    public int getFetchSize() {
+      return 1000;
+    }
+    @Override
+    public boolean needsTransactionForFetchSize() {
+      return true;
+    }
+    @Override
+    public String getSizeFunction() {
+      // LENGTH counts characters for text columns
+      return "OCTET_LENGTH";
+    }
+    @Override
+    public String getUpsertSQL(String table, String nameField, String contentField) {
+      return "INSERT INTO "+table+" ( "+nameField+", "+contentField+" ) VALUES ( ?, ? )"+
+        " ON CONFLICT ( "+nameField+" ) DO UPDATE SET "+contentField+" = EXCLUDED."+contentField;
+    }
+    @Override
+    public boolean supportsUpsert(Connection connection) throws SQLException {
+      // ON CONFLICT and CREATE TABLE ... IF NOT EXISTS AS need 9.5
+      return isVersionAtLeast(queryVersion(connection, "SHOW server_version"), 9, 5);
+    }
+    @Override
+    public String getClaimSQL(String table, String nameField, String condition, int limit) {
+      return "SELECT "+nameField+" FROM "+table+" WHERE "+condition+
+        " ORDER BY "+nameField+" LIMIT "+limit+" FOR UPDATE SKIP LOCKED";
+    }
+    @Override
+    public boolean supportsBulkUpsert(Connection connection) {
+      return connection instanceof PGConnection;
+    }
+    @Override
+    public void bulkUpsert(Connection connection, String table, String nameField,
+        String contentField, List<String> names, List<SpooledOutputStream> contents,
+        boolean binary, String encoding) throws SQLException, IOException {
+      String staging = "vc_staging_"+Math.abs(table.toLowerCase().hashCode());
+      Statement stmt = connection.createStatement();
+      try {
+        // the temporary table is private to this connection and session
+        stmt.executeUpdate("CREATE TEMPORARY TABLE IF NOT EXISTS "+staging+
+          " AS SELECT "+nameField+", "+contentField+" FROM "+table+" LIMIT 0");
+        stmt.executeUpdate("TRUNCATE "+staging);
+        SpooledOutputStream copyData =
+          new SpooledOutputStream(JDBCCorpus.SPOOL_MEMORY_THRESHOLD);
+        try {
+          for(int i = 0; i < names.size(); i++) {
+            writeCopyText(copyData, names.get(i).getBytes(encoding));
+            copyData.write('\t');
+            if(binary) {
+              writeCopyBytea(copyData, contents.get(i).getInputStream());
+            } else {
+              writeCopyText(copyData, contents.get(i).getInputStream());
+            }
+            copyData.write('\n');
+          }
+          ((PGConnection)connection).getCopyAPI().copyIn(
+            getCopySQL(staging, nameField, contentField, encoding), copyData.getInputStream());
+        } finally {
+          copyData.dispose();
+        }
+        stmt.executeUpdate("INSERT INTO "+table+" ( "+nameField+", "+contentField+" )"+
+          " SELECT "+nameField+", "+contentField+" FROM "+staging+
+          " ON CONFLICT ( "+nameField+" ) DO UPDATE SET "+contentField+" = EXCLUDED."+contentField);
+      } finally {
+        stmt.close();
+      }
+    }
+    @Override
+    public String getCopySQL(String table, String nameField, String contentField,
+        String encoding) {
+      // the option list in parentheses is the only syntax which takes an
+      // encoding, PostgreSQL understands the Java names like UTF-8 too
+      return "COPY "+table+" ( "+nameField+", "+contentField+" ) FROM STDIN"+
+        " WITH ( FORMAT text, ENCODING '"+encoding+"' )";
+    }
+  };
+
+  private static final Logger logger = Logger.getLogger(JDBCDialect.class);
+
+  /**
+   * Get the dialect with the given name, or, if the name is null or empty,
+   * the dialect detected from the JDBC driver class name.
+   *
+   * @param name the name of a dialect, case is ignored
+   * @param jdbcDriver the JDBC driver class name
+   * @return the dialect to use
+   */
+  public static JDBCDialect getDialect(String name, String jdbcDriver) {
+    if(name != null && !name.isEmpty()) {
+      return JDBCDialect.valueOf(name.toUpperCase());
+    }
+    String driver = jdbcDriver == null ? "" : jdbcDriver.toLowerCase();
+    if(driver.contains("h2")) {
+      return H2;
+    } else if(driver.contains("sqlite")) {
+      return SQLITE;
+    } else if(driver.contains("mysql") || driver.contains("mariadb")) {
+      return MYSQL;
+    } else if(driver.contains("postgresql")) {
+      return POSTGRESQL;
+    } else {
+      return GENERIC;
+    }
+  }
+
+  /**
+   * Add any connection settings for this database to the JDBC URL.
+   * @param url
+   * @return
+   */
+  public String prepareUrl(String url) {
+    return url;
+  }
+
+  /**
+   * Apply any settings for this database to a newly opened connection.
+   * @param connection
+   * @throws SQLException
+   */
+  public void initConnection(Connection connection) throws SQLException {
+  }
+
+  /**
+   * The fetch size to use for queries which return many rows, 0 to use
+   * the driver default.
+   * @return
+   */
+  public int getFetchSize() {
+    return 0;
+  }
+
+  /**
+   * True if the fetch size is only respected when autocommit is off.
+   * @return
+   */
+  public boolean needsTransactionForFetchSize() {
+    return false;
+  }
+
+  /**
+   * Return the SQL function which gives the size in bytes of a content 
+   * field.
+   * @return
+   */
+  public String getSizeFunction() {
+    return "LENGTH";
+  }
+
+  /**
+   * True if the driver supports streaming parameters and result columns.
+   * If not, content must be bound and read as String or byte array.
+   * @return
+   */
+  public boolean supportsStreams() {
+    return true;
+  }
+
+  /**
+   * Return a statement which inserts a row with the document name and
+   * content as parameters 1 and 2 into the table, or updates the content
+   * if a row with that name already exists. Returns null if there is no
+   * such statement for the database.
+   *
+   * @param table
+   * @param nameField
+   * @param contentField
+   * @return
+   */
+  public String getUpsertSQL(String table, String nameField, String contentField) {
+    return null;
+  }
+
+  /**
+   * True if the statement returned by {@link #getUpsertSQL} can be used 
+   * with the given connection, which may depend on the database version.
+   * @param connection
+   * @return
+   * @throws SQLException 
+   */
+  public boolean supportsUpsert(Connection connection) throws SQLException {
+    return true;
+  }
+
+  /**
+   * Return a query which selects at most limit names of rows which match
+   * the condition and locks them so that concurrent queries skip them,
+   * or null if the database does not support this. 
+   *
+   * @param table
+   * @param nameField
+   * @param condition
+   * @param limit
+   * @return
+   */
+  public String getClaimSQL(String table, String nameField, String condition, int limit) {
+    return null;
+  }
+
+  /**
+   * True if {@link #bulkUpsert} can be used with the given connection.
+   * @param connection
+   * @return
+   */
+  public boolean supportsBulkUpsert(Connection connection) {
+    return false;
+  }
+
+  /**
+   * Upsert a batch of documents into the table through the bulk loading
+   * facility of the database. The names of the documents must be unique
+   * within the batch.
+   *
+   * @param connection the connection to use
+   * @param table the table to upsert into
+   * @param nameField the key field of the table
+   * @param contentField the content field of the table
+   * @param names the document names
+   * @param contents the serialized documents, parallel to names
+   * @param binary if the content is binary (compressed) or text
+   * @param encoding the encoding of text content and names
+   * @throws SQLException
+   * @throws IOException
+   */
+  public void bulkUpsert(Connection connection, String table, String nameField,
+      String contentField, List<String> names, List<SpooledOutputStream> contents,
+      boolean binary, String encoding) throws SQLException, IOException {
+    throw new UnsupportedOperationException("No bulk upsert for "+this);
+  }
+
+  /**
+   * Return the statement which bulk loads rows in text format from the
+   * client into the name and content columns of the table, or null if the
+   * database has no such statement.
+   *
+   * @param table
+   * @param nameField
+   * @param contentField
+   * @param encoding the encoding of the data sent
+   * @return
+   */
+  public String getCopySQL(String table, String nameField, String contentField,
+      String encoding) {
+    return null;
+  }
+
+  /**
+   * Run a query which returns a version string like "3.24.0" or 
+   * "9.6.3 (Debian)" as its only value, or return null if it returns 
+   * nothing.
+   */
+  protected static String queryVersion(Connection connection, String query) 
+    throws SQLException {
+    Statement stmt = connection.createStatement();
+    try {
+      ResultSet rs = stmt.executeQuery(query);
+      String version = rs.next() ? rs.getString(1) : null;
+      rs.close();
+      return version;
+    } finally {
+      stmt.close();
+    }
+  }
+
+  /**
+   * True if the version string starts with a version number which is at
+   * least major.minor. A missing minor version counts as 0, anything 
+   * which cannot be parsed as false.
+   */
+  protected static boolean isVersionAtLeast(String version, int major, int minor) {
+    if(version == null) {
+      return false;
+    }
+    Matcher m = VERSION_PATTERN.matcher(version.trim());
+    if(!m.lookingAt()) {
+      return false;
+    }
+    int vMajor = Integer.parseInt(m.group(1));
+    int vMinor = m.group(2) == null ? 0 : Integer.parseInt(m.group(2));
+    return vMajor > major || (vMajor == major && vMinor >= minor);
+  }
+  
+  private static final Pattern VERSION_PATTERN = Pattern.compile("(\\d{1,6})(?:\\.(\\d{1,6}))?");
+
+  protected static String addUrlParameter(String url, String name, String value) {
+    if(url.contains(name+"=")) {
+      return url;
+    }
+    return url + (url.contains("?") ? "&" : "?") + name + "=" + value;
+  }
+
+  // Write bytes escaped for the COPY text format
+  protected static void writeCopyText(OutputStream out, byte[] bytes) throws IOException {
+    for(byte b : bytes) {
+      writeCopyTextByte(out, b);
+    }
+  }
+
+  protected static void writeCopyText(OutputStream out, InputStream in) throws IOException {
+    byte[] buf = new byte[8192];
+    int n;
+    try {
+      while((n = in.read(buf)) > 0) {
+        for(int i = 0; i < n; i++) {
+          writeCopyTextByte(out, buf[i]);
+        }
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void writeCopyTextByte(OutputStream out, byte b) throws IOException {
+    switch(b) {
+      case '\\': out.write('\\'); out.write('\\'); break;
+      case '\t': out.write('\\'); out.write('t'); break;
+      case '\n': out.write('\\'); out.write('n'); break;
+      case '\r': out.write('\\'); out.write('r'); break;
+      default: out.write(b);
+    }
+  }
+
+  private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+  // Write bytes as a bytea value in hex format, escaped for the COPY text format
+  protected static void writeCopyBytea(OutputStream out, InputStream in) throws IOException {
+    out.write('\\');
+    out.write('\\');
+    out.write('x');
+    byte[] buf = new byte[8192];
+    int n;
+    try {
+      while((n = in.read(buf)) > 0) {
+        for(int i = 0; i < n; i++) {
+          out.write(HEX[(buf[i] >> 4) & 0x0f]);
+          out.write(HEX[buf[i] & 0x0f]);
+        }
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+}
@@ -23,8 +23,11 @@ package at.ofai.gate.virtualcorpus;
 
 
 import gate.*;
+import gate.creole.ResourceInstantiationException;
 import gate.creole.metadata.*;
 import gate.event.CreoleListener;
+import java.sql.SQLException;
+import java.util.regex.Pattern;
 
 /** 
  * A JDBC corpus that contains a subset of the documents of an existing
@@ -35,6 +38,11 @@ import gate.event.CreoleListener;
  * Its main purpose is to support the Learning plugin
  * with a JDBCCorpus.
  * <p>
+ * The initial content can be specified with a SQL condition
+ * (<code>whereClause</code>) or a query for the document keys 
+ * (<code>keySQL</code>), so large subsets can be created without loading
+ * a single document.
+ * <p>
  * NOTE: for now, only a non-transient JDBCCorpus can have a
  * JDBCSubsetCorpus.
  * <p>
@@ -90,5 +98,73 @@ public class JDBCSubsetCorpus  extends VirtualSubsetCorpus
     return (JDBCCorpus)this.virtualCorpus;
   }
 
+  /**
+   * A SQL condition on the table of the parent corpus: all documents 
+   * of the parent corpus whose rows match the condition become the 
+   * initial content of this corpus.
+   * 
+   * @param clause 
+   */
+  @Optional
+  @CreoleParameter(
+    comment = "SQL WHERE condition which selects the initial documents from the parent table",
+    defaultValue = "")
+  public void setWhereClause(String clause) { whereClause = clause; }
+  public String getWhereClause() { return whereClause; }
+  protected String whereClause = "";
+
+  /**
+   * A SQL query which returns the keys of the initial documents of this 
+   * corpus in its first column. The variables ${tableName} and 
+   * ${documentNameField} are replaced with those of the parent corpus.
+   * Keys which are not in the parent corpus are ignored.
+   * 
+   * @param sql 
+   */
+  @Optional
+  @CreoleParameter(
+    comment = "SQL query which returns the keys of the initial documents in its first column",
+    defaultValue = "")
+  public void setKeySQL(String sql) { keySQL = sql; }
+  public String getKeySQL() { return keySQL; }
+  protected String keySQL = "";
+
+  /**
+   * Initializes the JDBCSubsetCorpus LR. If a where clause or key query
+   * is specified, the matching documents are added by their keys, without
+   * loading any document.
+   * 
+   * @return
+   * @throws ResourceInstantiationException 
+   */
+  @Override
+  public Resource init() throws ResourceInstantiationException {
+    super.init();
+    JDBCCorpus parent = getJdbcCorpus();
+    String sql = null;
+    if(getWhereClause() != null && !getWhereClause().isEmpty()) {
+      sql = "SELECT "+parent.getDocumentNameField()+" FROM "+parent.getTableName()+
+        " WHERE "+getWhereClause();
+    }
+    if(getKeySQL() != null && !getKeySQL().isEmpty()) {
+      if(sql != null) {
+        throw new ResourceInstantiationException("Only one of whereClause and keySQL can be specified");
+      }
+      sql = getKeySQL();
+      sql = sql.replaceAll(Pattern.quote("${tableName}"), parent.getTableName());
+      sql = sql.replaceAll(Pattern.quote("${documentNameField}"), parent.getDocumentNameField());
+    }
+    if(sql != null) {
+      try {
+        int[] indexes = parent.selectDocumentIndexes(sql);
+        int added = addParentIndexes(indexes, indexes.length);
+        System.out.println("JDBCSubsetCorpus "+getName()+": added "+added+" documents");
+      } catch (SQLException ex) {
+        throw new ResourceInstantiationException("Could not select documents with "+sql, ex);
+      }
+    }
+    return this;
+  }
+
   
 } // class JDBCSubsetCorpus
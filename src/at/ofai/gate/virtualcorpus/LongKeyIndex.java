@@ -0,0 +1,345 @@
+/*
+ * Copyright (c) 2010- Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-VirtualCorpus
+ * (see https://github.com/johann-petrak/gateplugin-VirtualCorpus)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.virtualcorpus;
+
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An ordered list of numeric document keys together with the reverse
+ * mapping from key to position, both kept in primitive arrays.
+ * <p>
+ * This is used by the JDBCCorpus for tables with an integer key column:
+ * instead of one String and one boxed map entry per document, only a long
+ * per document is stored in the list plus a long and an int per slot in an
+ * open addressing hash table. The document names, which are just the
+ * decimal representation of the keys, are created on demand by the
+ * list and map views returned by {@link #asNameList()} and
+ * {@link #asIndexMap()}.
+ *
+ * @author Johann Petrak
+ */
+public class LongKeyIndex {
+
+  protected long[] keys = new long[16];
+  protected int size = 0;
+
+  // the hash table: slotIndexes holds the position of the key plus one,
+  // 0 marks an empty slot
+  protected long[] slotKeys = new long[32];
+  protected int[] slotIndexes = new int[32];
+  protected int used = 0;
+
+  /**
+   * The number of keys in the list.
+   * @return
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Get the key at the given position.
+   * @param index
+   * @return
+   */
+  public long getKey(int index) {
+    if(index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index "+index+", size "+size);
+    }
+    return keys[index];
+  }
+
+  /**
+   * Get the position of the key in the list or -1 if the key is not
+   * contained.
+   * @param key
+   * @return
+   */
+  public int indexOf(long key) {
+    int slot = findSlot(key);
+    return slotIndexes[slot] - 1;
+  }
+
+  /**
+   * Append the key to the list. If the key is already contained, the
+   * mapping from the key is changed to the new position.
+   *
+   * @param key
+   * @return the position of the new key
+   */
+  public int add(long key) {
+    if(size == keys.length) {
+      keys = Arrays.copyOf(keys, size * 2);
+    }
+    keys[size] = key;
+    putIndex(key, size);
+    return size++;
+  }
+
+  /**
+   * Remove the key at the given position from the list. The positions of
+   * all following keys are shifted down by one.
+   * @param index
+   * @return the key removed
+   */
+  public long remove(int index) {
+    long key = getKey(index);
+    System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+    size--;
+    if(indexOf(key) == index) {
+      removeIndex(key);
+    }
+    for(int i = index; i < size; i++) {
+      if(indexOf(keys[i]) == i + 1) {
+        putIndex(keys[i], i);
+      }
+    }
+    return key;
+  }
+
+  /**
+   * Return a view of the keys as a list of document names. Adding or
+   * removing names through the view changes this index.
+   * @return
+   */
+  public List<String> asNameList() {
+    return new AbstractList<String>() {
+      @Override
+      public String get(int index) {
+        return Long.toString(getKey(index));
+      }
+      @Override
+      public int size() {
+        return size;
+      }
+      @Override
+      public void add(int index, String name) {
+        if(index != size) {
+          throw new UnsupportedOperationException("Names can only be appended");
+        }
+        LongKeyIndex.this.add(parseKey(name));
+      }
+      @Override
+      public String remove(int index) {
+        return Long.toString(LongKeyIndex.this.remove(index));
+      }
+      @Override
+      public boolean contains(Object name) {
+        return indexOf(name) >= 0;
+      }
+      @Override
+      public int indexOf(Object name) {
+        Long key = toKey(name);
+        return key == null ? -1 : LongKeyIndex.this.indexOf(key);
+      }
+    };
+  }
+
+  /**
+   * Return a view of the mapping from document name to position.
+   * Putting a name changes the position the key is mapped to, removing
+   * a name removes only the mapping, not the key from the list.
+   * @return
+   */
+  public Map<String,Integer> asIndexMap() {
+    return new AbstractMap<String,Integer>() {
+      @Override
+      public Integer get(Object name) {
+        Long key = toKey(name);
+        if(key == null) {
+          return null;
+        }
+        int index = indexOf(key);
+        return index < 0 ? null : index;
+      }
+      @Override
+      public boolean containsKey(Object name) {
+        return get(name) != null;
+      }
+      @Override
+      public Integer put(String name, Integer index) {
+        Integer old = get(name);
+        putIndex(parseKey(name), index);
+        return old;
+      }
+      @Override
+      public Integer remove(Object name) {
+        Integer old = get(name);
+        if(old != null) {
+          removeIndex(toKey(name));
+        }
+        return old;
+      }
+      @Override
+      public int size() {
+        return used;
+      }
+      @Override
+      public Set<Map.Entry<String,Integer>> entrySet() {
+        return new AbstractSet<Map.Entry<String,Integer>>() {
+          @Override
+          public int size() {
+            return used;
+          }
+          @Override
+          public Iterator<Map.Entry<String,Integer>> iterator() {
+            return new Iterator<Map.Entry<String,Integer>>() {
+              int slot = nextSlot(0);
+              @Override
+              public boolean hasNext() {
+                return slot < slotIndexes.length;
+              }
+              @Override
+              public Map.Entry<String,Integer> next() {
+                if(!hasNext()) {
+                  throw new NoSuchElementException();
+                }
+                Map.Entry<String,Integer> entry =
+                  new AbstractMap.SimpleImmutableEntry<String,Integer>(
+                    Long.toString(slotKeys[slot]), slotIndexes[slot] - 1);
+                slot = nextSlot(slot + 1);
+                return entry;
+              }
+              @Override
+              public void remove() {
+                throw new UnsupportedOperationException("Not supported");
+              }
+            };
+          }
+        };
+      }
+    };
+  }
+
+  /**
+   * Convert a document name to its key.
+   * @param name
+   * @return
+   * @throws IllegalArgumentException if the name is not a number
+   */
+  public static long parseKey(String name) {
+    try {
+      return Long.parseLong(name);
+    } catch (NumberFormatException ex) {
+      throw new IllegalArgumentException("Not a numeric document name: "+name, ex);
+    }
+  }
+
+  // Convert a name to a key, null if it is not a valid name for a key
+  protected static Long toKey(Object name) {
+    if(!(name instanceof String)) {
+      return null;
+    }
+    try {
+      return Long.parseLong((String)name);
+    } catch (NumberFormatException ex) {
+      return null;
+    }
+  }
+
+  protected int nextSlot(int slot) {
+    while(slot < slotIndexes.length && slotIndexes[slot] == 0) {
+      slot++;
+    }
+    return slot;
+  }
+
+  protected static int hash(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int)(h ^ (h >>> 32));
+  }
+
+  // Find the slot which contains the key or the empty slot where it
+  // would have to go
+  protected int findSlot(long key) {
+    int mask = slotIndexes.length - 1;
+    int slot = hash(key) & mask;
+    while(slotIndexes[slot] != 0 && slotKeys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  protected void putIndex(long key, int index) {
+    int slot = findSlot(key);
+    if(slotIndexes[slot] == 0) {
+      if((used + 1) * 2 > slotIndexes.length) {
+        rehash(slotIndexes.length * 2);
+        slot = findSlot(key);
+      }
+      slotKeys[slot] = key;
+      used++;
+    }
+    slotIndexes[slot] = index + 1;
+  }
+
+  // Remove the key from the hash table, moving back any following entries
+  // of the same probe sequence so that lookups do not need tombstones
+  protected void removeIndex(long key) {
+    int mask = slotIndexes.length - 1;
+    int slot = findSlot(key);
+    if(slotIndexes[slot] == 0) {
+      return;
+    }
+    used--;
+    int gap = slot;
+    int next = (gap + 1) & mask;
+    while(slotIndexes[next] != 0) {
+      int home = hash(slotKeys[next]) & mask;
+      // move the entry into the gap unless its home is cyclically in (gap,next]
+      boolean inRange = gap <= next ? (gap < home && home <= next) : (gap < home || home <= next);
+      if(!inRange) {
+        slotKeys[gap] = slotKeys[next];
+        slotIndexes[gap] = slotIndexes[next];
+        gap = next;
+      }
+      next = (next + 1) & mask;
+    }
+    slotIndexes[gap] = 0;
+  }
+
+  protected void rehash(int capacity) {
+    long[] oldKeys = slotKeys;
+    int[] oldIndexes = slotIndexes;
+    slotKeys = new long[capacity];
+    slotIndexes = new int[capacity];
+    int mask = capacity - 1;
+    for(int i = 0; i < oldIndexes.length; i++) {
+      if(oldIndexes[i] != 0) {
+        int slot = hash(oldKeys[i]) & mask;
+        while(slotIndexes[slot] != 0) {
+          slot = (slot + 1) & mask;
+        }
+        slotKeys[slot] = oldKeys[i];
+        slotIndexes[slot] = oldIndexes[i];
+      }
+    }
+  }
+
+}
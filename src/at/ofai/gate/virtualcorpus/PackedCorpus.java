@@ -0,0 +1,995 @@
+/*
+ * Copyright (c) 2010- Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-VirtualCorpus
+ * (see https://github.com/johann-petrak/gateplugin-VirtualCorpus)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package at.ofai.gate.virtualcorpus;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import gate.*;
+import gate.creole.*;
+import gate.creole.metadata.*;
+import gate.event.CorpusEvent;
+import gate.event.CreoleListener;
+import gate.persist.PersistenceException;
+import gate.util.*;
+import gate.util.persistence.PersistenceManager;
+import org.apache.log4j.Logger;
+
+/** 
+ * A Corpus LR that stores its documents as records in a few large, 
+ * append-only segment files in a directory, instead of one file per 
+ * document. This avoids the cost of creating, listing, opening and closing
+ * millions of small files.
+ * <p>
+ * Each record holds the name and the GATE XML serialization of one 
+ * document, gzip-compressed if <code>useCompression</code> is true. The
+ * file <code>packed.index</code> in the directory maps each document name
+ * to the segment, offset and length of its current record, so a document
+ * is read with a single positional read. When a document is saved, a new
+ * record is appended to the current segment and the index entry is 
+ * repointed, the old record becomes dead space. Once the fraction of dead
+ * space in a segment exceeds <code>compactionThreshold</code>, its live
+ * records are copied to the current segment in the background and the 
+ * segment file is removed. A new segment is started whenever the current
+ * one would grow beyond <code>maxSegmentMB</code>.
+ * <p>
+ * The index is written when the corpus is synced or closed. Since every
+ * record also contains the document name, records appended after the 
+ * index was last written are recovered from the segment files when the
+ * corpus is opened again, and an incomplete record at the end of a segment
+ * is discarded.
+ * <p>
+ * Unlike the other virtual corpora, documents can be added to this corpus:
+ * this is how a new, empty packed corpus gets filled. Documents cannot be
+ * removed.
+ * 
+ * @author Johann Petrak
+ */
+@CreoleResource(
+    name = "PackedCorpus",
+    interfaceName = "gate.Corpus", 
+    icon = "corpus", 
+    helpURL = "http://code.google.com/p/gateplugin-virtualcorpus/",
+    comment = "A corpus backed by GATE documents packed into large append-only segment files")
+public class PackedCorpus  
+  extends VirtualCorpus
+  implements Corpus, CreoleListener
+  {
+
+  //*****
+  // Fields
+  //******
+  
+  private static final long serialVersionUID = -2728839451207624091L;
+  
+  /**
+   * The magic number at the start of each record in a segment file.
+   */
+  public static final int RECORD_MAGIC = 0x56435052;
+  
+  protected static final int INDEX_MAGIC = 0x56435049;
+  protected static final String INDEX_FILE_NAME = "packed.index";
+  protected static final String FEATURE_INDEX_FILE_NAME = "features.index";
+  protected static final String SEGMENT_PREFIX = "segment-";
+  protected static final String SEGMENT_SUFFIX = ".vcp";
+  protected static final String ENCODING = "UTF-8";
+  protected static final int FLAG_COMPRESSED = 1;
+  // maximum number of bytes of a serialized document to keep in memory 
+  // before spooling to a temporary file when saving
+  protected static final int SPOOL_MEMORY_THRESHOLD = 1024*1024;
+  // the number of records copied while holding the lock during compaction
+  protected static final int COMPACTION_BATCH_SIZE = 100;
+  
+  private static final Logger logger = Logger.getLogger(PackedCorpus.class);
+  
+  protected File backingDirectoryFile;
+  
+  /**
+   * A segment file, which is kept open while the corpus exists.
+   */
+  protected static class Segment {
+    int number;
+    File file;
+    RandomAccessFile raf;
+    FileChannel channel;
+    // the end of the last complete record
+    long end;
+    // the number of bytes in records which are still referenced by the index
+    long liveBytes;
+    // true if records were written since the data was last forced to disk
+    boolean dirty = false;
+    
+    void close() {
+      try {
+        raf.close();
+      } catch (IOException ex) {
+        logger.warn("PackedCorpus: could not close segment "+file, ex);
+      }
+    }
+  }
+  
+  protected TreeMap<Integer,Segment> segments = new TreeMap<Integer,Segment>();
+  protected Segment currentSegment = null;
+  
+  // for each document, by corpus index: the segment, offset and length of
+  // the current record
+  protected int[] recordSegments = new int[1024];
+  protected long[] recordOffsets = new long[1024];
+  protected int[] recordLengths = new int[1024];
+  protected boolean indexModified = false;
+  
+  protected ExecutorService compactor = null;
+  // set when the corpus is closed, a compaction which is running stops 
+  // after the current batch
+  protected volatile boolean stopCompaction = false;
+  protected Set<Integer> pendingCompactions = new HashSet<Integer>();
+
+  //***************
+  // Parameters
+  //***************
+  
+  /**
+   * Setter for the <code>directoryURL</code> LR initialization parameter.
+   * @param dirURL The URL of the directory which contains the segment and
+   * index files. If the directory does not exist, it is created and the 
+   * corpus is empty.
+   */
+  @CreoleParameter(comment = "The directory URL where the segment files are stored")
+  public void setDirectoryURL(URL dirURL) {
+    this.directoryURL = dirURL;
+  }
+  public URL getDirectoryURL() {
+    return this.directoryURL;
+  }
+  protected URL directoryURL = null;
+  
+  @Optional
+  @CreoleParameter(comment = "Maximum size of a segment file in megabytes", defaultValue = "1024")
+  public void setMaxSegmentMB(Integer value) {
+    this.maxSegmentMB = value;
+  }
+  public Integer getMaxSegmentMB() { return maxSegmentMB; }
+  protected Integer maxSegmentMB = 1024;
+  
+  @Optional
+  @CreoleParameter(comment = "Store documents gzip-compressed", defaultValue = "true")
+  public void setUseCompression(Boolean value) {
+    this.useCompression = value;
+  }
+  public Boolean getUseCompression() { return useCompression; }
+  protected Boolean useCompression = true;
+  
+  /**
+   * @param value The fraction of dead space in a segment above which the
+   * segment gets compacted in the background. 
+   */
+  @Optional
+  @CreoleParameter(comment = "Fraction of dead space above which a segment is compacted", defaultValue = "0.5")
+  public void setCompactionThreshold(Double value) {
+    this.compactionThreshold = value;
+  }
+  public Double getCompactionThreshold() { return compactionThreshold; }
+  protected Double compactionThreshold = 0.5;
+  
+  /**
+   * Initializes the PackedCorpus LR
+   * @return 
+   * @throws ResourceInstantiationException
+   */
+  @Override
+  public Resource init() 
+    throws ResourceInstantiationException {
+    logger.info("PackedCorpus: calling init");
+    if(directoryURL == null) {
+      throw new ResourceInstantiationException("directoryURL must be set");
+    }
+    if(getMaxSegmentMB() == null || getMaxSegmentMB() <= 0) {
+      throw new ResourceInstantiationException("maxSegmentMB must be a positive number");
+    }
+    backingDirectoryFile = Files.fileFromURL(directoryURL);
+    try {
+      backingDirectoryFile = backingDirectoryFile.getCanonicalFile();
+    } catch (IOException ex) {
+      throw new ResourceInstantiationException(
+              "Cannot get canonical file for "+backingDirectoryFile,ex);
+    }
+    if(!backingDirectoryFile.exists() && !getReadonly()) {
+      backingDirectoryFile.mkdirs();
+    }
+    if(!backingDirectoryFile.isDirectory()) {
+      throw new ResourceInstantiationException(
+              "Not a directory "+backingDirectoryFile);
+    }
+    
+    try {
+        ourDS =
+          (DummyDataStore4PackedCorp) Factory.createDataStore("at.ofai.gate.virtualcorpus.DummyDataStore4PackedCorp", backingDirectoryFile.getAbsoluteFile().toURI().toURL().toString());
+        ourDS.setName("DummyDS4_" + this.getName());
+        ourDS.setComment("Dummy DataStore for PackedCorpus " + this.getName());
+        ourDS.setCorpus(this);
+    } catch (Exception ex) {
+        throw new ResourceInstantiationException(
+          "Could not create dummy data store", ex);
+    }
+    logger.info("PackedCorpus/init: ds created: "+ourDS.getName());
+    
+    try {
+      loadIndex();
+    } catch (IOException ex) {
+      throw new ResourceInstantiationException(
+        "Could not open packed corpus in "+backingDirectoryFile, ex);
+    }
+    logger.info("PackedCorpus/init: "+documentNames.size()+" documents in "+
+      segments.size()+" segments");
+    if(getIndexedFeatures() != null && !getIndexedFeatures().isEmpty()) {
+      featureIndex = new FeatureIndex(getIndexedFeatures());
+      File indexFile = new File(backingDirectoryFile, FEATURE_INDEX_FILE_NAME);
+      if(indexFile.exists()) {
+        try {
+          if(!featureIndex.load(indexFile, documentNames.size(), getNameListFingerprint())) {
+            logger.warn("PackedCorpus warning: the corpus has changed since feature index "+
+              indexFile+" was saved, starting with an empty index");
+          }
+        } catch (IOException ex) {
+          throw new ResourceInstantiationException(
+            "Could not read feature index "+indexFile, ex);
+        }
+      }
+    }
+    if(!getReadonly()) {
+      compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "Compactor-"+getName());
+          thread.setDaemon(true);
+          thread.setPriority(Thread.MIN_PRIORITY);
+          return thread;
+        }
+      });
+      for(Segment segment : segments.values()) {
+        scheduleCompaction(segment);
+      }
+    }
+    try {
+      PersistenceManager.registerPersistentEquivalent(
+          at.ofai.gate.virtualcorpus.PackedCorpus.class,
+          at.ofai.gate.virtualcorpus.PackedCorpusPersistence.class);
+    } catch (PersistenceException e) {
+      throw new ResourceInstantiationException(
+              "Could not register persistence",e);
+    }
+    Gate.getCreoleRegister().addCreoleListener(this);
+    startAutoSaving();
+    return this;
+  }
+
+  @Override
+  public VirtualSubsetCorpus createSubsetCorpus(String name) 
+    throws ResourceInstantiationException {
+    return createSubsetCorpus(
+      "at.ofai.gate.virtualcorpus.PackedSubsetCorpus", "packedCorpus", name);
+  }
+
+  @Override
+  public void cleanup() {
+    stopAutoSaving();
+    if(compactor != null) {
+      // a compaction which is running stops after the current batch, the
+      // thread is not interrupted since that would close the segment 
+      // channels it uses
+      stopCompaction = true;
+      compactor.shutdown();
+      try {
+        if(!compactor.awaitTermination(60, TimeUnit.SECONDS)) {
+          logger.warn("PackedCorpus warning: compaction did not stop in time");
+        }
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+      compactor = null;
+    }
+    synchronized(this) {
+      try {
+        sync();
+      } catch (GateRuntimeException ex) {
+        logger.error("PackedCorpus: could not save the index", ex);
+      }
+      for(Segment segment : segments.values()) {
+        segment.close();
+      }
+      segments.clear();
+      currentSegment = null;
+    }
+    Gate.getDataStoreRegister().remove(ourDS);
+  }
+
+  /**
+   * Syncing the corpus forces all new records to disk and saves the index
+   * and the feature index if they have changed.
+   */
+  @Override
+  public synchronized void sync() {
+    if(getReadonly()) {
+      return;
+    }
+    try {
+      saveIndex();
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Could not save index of packed corpus "+
+        backingDirectoryFile, ex);
+    }
+    if(featureIndex != null && featureIndex.isModified()) {
+      File indexFile = new File(backingDirectoryFile, FEATURE_INDEX_FILE_NAME);
+      try {
+        featureIndex.save(indexFile, documentNames.size(), getNameListFingerprint());
+      } catch (IOException ex) {
+        throw new GateRuntimeException("Could not save feature index "+indexFile, ex);
+      }
+    }
+  }
+  
+  /**
+   * Compact all segments except the current one which contain any dead
+   * space. This runs in the calling thread, but the corpus can be used 
+   * by other threads while this is running.
+   * 
+   * @throws IOException 
+   */
+  public void compact() throws IOException {
+    List<Integer> numbers;
+    synchronized(this) {
+      numbers = new ArrayList<Integer>();
+      for(Segment segment : segments.values()) {
+        if(segment != currentSegment && segment.liveBytes < segment.end) {
+          numbers.add(segment.number);
+        }
+      }
+    }
+    for(int number : numbers) {
+      compactSegment(number);
+    }
+  }
+
+  // Methods to be implemented from List
+
+  /**
+   * Add a document to the corpus by appending a record for it. If the 
+   * document has a name that is already in the corpus, return false and 
+   * do not add the document. Note that only the name is checked!
+   * The document itself is not changed and not adopted by the corpus, 
+   * so it remains owned by the caller.
+   * If the document belongs to a datastore, or if the corpus is read-only,
+   * a GateRuntimeException is thrown.
+   * 
+   * @param doc
+   * @return true if the document was added
+   */
+  @Override
+  public boolean add(Document doc) {
+    if(getReadonly()) {
+      throw new GateRuntimeException("Cannot add documents to read-only corpus "+getName());
+    }
+    String docName = doc.getName();
+    if(documentIndexes.get(docName) != null) {
+      return false;
+    }
+    if(doc.getDataStore() != null) {
+      throw new GateRuntimeException("Cannot add "+docName+" which belongs to datastore "+doc.getDataStore().getName());
+    }
+    writeDocument(doc);
+    updateFeatureIndex(doc);
+    fireDocumentAdded(new CorpusEvent(
+        this, doc, documentIndexes.get(docName), CorpusEvent.DOCUMENT_ADDED));
+    return true;
+  }
+
+  /**
+   * Write the document to this corpus, adding it if there is no document
+   * with the same name yet and replacing the record of that document 
+   * otherwise. Unlike {@link #add(gate.Document)}, this accepts documents
+   * which belong to a datastore, so a packed corpus can be used to store
+   * the results of processing some other corpus.
+   * 
+   * @param doc 
+   */
+  public void store(Document doc) {
+    if(getReadonly()) {
+      throw new GateRuntimeException("Cannot store documents in read-only corpus "+getName());
+    }
+    boolean isNew = documentIndexes.get(doc.getName()) == null;
+    writeDocument(doc);
+    updateFeatureIndex(doc);
+    if(isNew) {
+      fireDocumentAdded(new CorpusEvent(
+          this, doc, documentIndexes.get(doc.getName()), CorpusEvent.DOCUMENT_ADDED));
+    }
+  }
+
+  /**
+   * This method is not implemented and always throws a
+   * MethodNotImplementedException.
+   */
+  @Override
+  public void clear() {
+    throw new MethodNotImplementedException(notImplementedMessage("clear()"));
+  }
+  
+  /**
+   * This checks if a document with the same name as the document
+   * passed is already in the corpus. 
+   * IMPORTANT: The content is not considered 
+   * for this, only the name is relevant!
+   */
+  @Override
+  public boolean contains(Object docObj) {
+    Document doc = (Document)docObj;
+    String docName = doc.getName();
+    return (documentIndexes.get(docName) != null);
+  }
+
+  /**
+   * Return the document for the given index in the corpus.
+   * An IndexOutOfBoundsException is thrown when the index is not contained
+   * in the corpus.
+   * The document will be read from its segment only if it is not already 
+   * loaded. If it is already loaded a reference to that document is returned.
+   * 
+   * @param index
+   * @return 
+   */
+  @Override
+  public Document get(int index) {
+    if(index < 0 || index >= documentNames.size()) {
+      throw new IndexOutOfBoundsException(
+          "Index "+index+" not in corpus "+this.getName()+
+          " of size "+documentNames.size());
+    }
+    String docName = documentNames.get(index);
+    if(isDocumentLoaded(index)) {
+      return getLoadedDocument(docName);
+    }
+    Document doc = readDocument(index);
+    loadedDocuments.put(docName, doc);
+    isLoadeds.set(index, true);
+    adoptDocument(doc);
+    return doc;
+  }
+
+  /**
+   * Returns the index of the document with the same name as the given document
+   * in the corpus. The content of the document is not considered for this.
+   * 
+   * @param docObj
+   * @return
+   */
+  @Override
+  public int indexOf(Object docObj) {
+    Document doc = (Document)docObj;
+    Integer index = documentIndexes.get(doc.getName());
+    if(index == null) {
+      return -1;
+    } else {
+      return index;
+    }
+  }
+
+  /**
+   * Returns an iterator to iterate through the documents of the
+   * corpus. The iterator does not allow modification of the corpus.
+   * 
+   * @return
+   */
+  @Override
+  public Iterator<Document> iterator() {
+    return new PackedCorpusIterator();
+  }
+
+  /**
+   * This method is not implemented and always throws a
+   * MethodNotImplementedException.
+   */
+  @Override
+  public Document remove(int index) {
+    throw new MethodNotImplementedException(notImplementedMessage("remove(int index)"));
+  }
+
+  /**
+   * This method is not implemented and always throws a
+   * MethodNotImplementedException.
+   */
+  @Override
+  public boolean remove(Object docObj) {
+    throw new MethodNotImplementedException(notImplementedMessage("remove(Object docObj)"));
+  }
+
+  /**
+   * This method is not implemented and always throws a
+   * MethodNotImplementedException.
+   */
+  @Override
+  public boolean removeAll(Collection coll) {
+    throw new MethodNotImplementedException(notImplementedMessage("removeAll(Collection coll)"));
+  }
+
+  @Override
+  public int size() {
+    return documentNames.size();
+  }
+
+  //**************************
+  // helper methods
+  // ************************
+  
+  // This method should only get called by the datastore when a document
+  // is synced. This will happen automatically when a document is unloaded
+  // or when a document is deliberately synced via its datastore. 
+  @Override
+  protected void saveDocument(Document doc) {
+    if(getReadonly()) {
+      return;
+    }
+    writeDocument(doc);
+    updateFeatureIndex(doc);
+  }
+  
+  // Serialize the document outside of the lock, then append the record.
+  protected void writeDocument(Document doc) {
+    String docName = doc.getName();
+    SpooledOutputStream spool = new SpooledOutputStream(SPOOL_MEMORY_THRESHOLD);
+    try {
+      Writer writer;
+      if(getUseCompression()) {
+        writer = new OutputStreamWriter(new GZIPOutputStream(spool), ENCODING);
+      } else {
+        writer = spool.getWriter(ENCODING);
+      }
+      writeDocumentXml(doc, writer, ENCODING);
+      writer.close();
+      ByteArrayOutputStream header = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(header);
+      out.writeInt(RECORD_MAGIC);
+      out.writeInt(0);
+      out.writeUTF(docName);
+      out.writeByte(getUseCompression() ? FLAG_COMPRESSED : 0);
+      out.close();
+      long length = header.size() + spool.size();
+      if(length > Integer.MAX_VALUE) {
+        throw new GateRuntimeException("Document "+docName+" is too big for a packed corpus");
+      }
+      byte[] headerBytes = header.toByteArray();
+      ByteBuffer.wrap(headerBytes).putInt(4, (int)length);
+      InputStream content = spool.getInputStream();
+      try {
+        appendRecord(docName, headerBytes, content, (int)length);
+      } finally {
+        content.close();
+      }
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Could not save document "+docName+
+        " to packed corpus "+backingDirectoryFile, ex);
+    } finally {
+      spool.dispose();
+    }
+  }
+  
+  protected Document readDocument(int index) {
+    String docName = documentNames.get(index);
+    byte[] record;
+    try {
+      record = readRecord(index);
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Could not read document "+docName, ex);
+    }
+    try {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+      in.readInt();
+      in.readInt();
+      in.readUTF();
+      InputStream content = in;
+      if((in.readByte() & FLAG_COMPRESSED) != 0) {
+        content = new GZIPInputStream(in);
+      }
+      return createDocumentFromXmlStream(docName, content, ENCODING);
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Could not read document "+docName, ex);
+    }
+  }
+  
+  protected synchronized byte[] readRecord(int index) throws IOException {
+    Segment segment = segments.get(recordSegments[index]);
+    ByteBuffer buffer = ByteBuffer.allocate(recordLengths[index]);
+    readFully(segment.channel, buffer, recordOffsets[index]);
+    return buffer.array();
+  }
+  
+  /**
+   * Append a record to the current segment and point the index entry for 
+   * the document to it.
+   */
+  protected synchronized void appendRecord(String docName, byte[] header, 
+      InputStream content, int length) throws IOException {
+    if(currentSegment.end > 0 && 
+       currentSegment.end + length > getMaxSegmentMB() * 1024L * 1024L) {
+      Segment previous = currentSegment;
+      currentSegment = openSegment(previous.number + 1);
+      scheduleCompaction(previous);
+    }
+    long offset = currentSegment.end;
+    long pos = offset;
+    ByteBuffer buffer = ByteBuffer.wrap(header);
+    while(buffer.hasRemaining()) {
+      pos += currentSegment.channel.write(buffer, pos);
+    }
+    byte[] bytes = new byte[65536];
+    int n;
+    while((n = content.read(bytes)) > 0) {
+      buffer = ByteBuffer.wrap(bytes, 0, n);
+      while(buffer.hasRemaining()) {
+        pos += currentSegment.channel.write(buffer, pos);
+      }
+    }
+    if(pos - offset != length) {
+      throw new IOException("Record for "+docName+" has "+(pos - offset)+
+        " bytes instead of "+length);
+    }
+    currentSegment.end = pos;
+    currentSegment.dirty = true;
+    putRecord(docName, currentSegment.number, offset, length);
+  }
+  
+  // Point the index entry of the document to the record, adding the 
+  // document to the end of the corpus if it is new.
+  protected void putRecord(String docName, int segmentNumber, long offset, int length) {
+    Integer index = documentIndexes.get(docName);
+    if(index == null) {
+      index = documentNames.size();
+      if(index == recordSegments.length) {
+        int capacity = index * 2;
+        recordSegments = Arrays.copyOf(recordSegments, capacity);
+        recordOffsets = Arrays.copyOf(recordOffsets, capacity);
+        recordLengths = Arrays.copyOf(recordLengths, capacity);
+      }
+      documentNames.add(docName);
+      isLoadeds.add(false);
+      documentIndexes.put(docName, index);
+    } else {
+      Segment old = segments.get(recordSegments[index]);
+      old.liveBytes -= recordLengths[index];
+      scheduleCompaction(old);
+    }
+    recordSegments[index] = segmentNumber;
+    recordOffsets[index] = offset;
+    recordLengths[index] = length;
+    segments.get(segmentNumber).liveBytes += length;
+    indexModified = true;
+  }
+  
+  protected Segment openSegment(int number) throws IOException {
+    Segment segment = new Segment();
+    segment.number = number;
+    segment.file = new File(backingDirectoryFile, 
+      String.format("%s%06d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    segment.raf = new RandomAccessFile(segment.file, getReadonly() ? "r" : "rw");
+    segment.channel = segment.raf.getChannel();
+    segments.put(number, segment);
+    return segment;
+  }
+  
+  protected static void readFully(FileChannel channel, ByteBuffer buffer, long pos) 
+    throws IOException {
+    while(buffer.hasRemaining()) {
+      int n = channel.read(buffer, pos);
+      if(n < 0) {
+        throw new IOException("Unexpected end of segment file");
+      }
+      pos += n;
+    }
+  }
+  
+  /**
+   * Open all segment files and load the index. Records which are not in
+   * the index yet are recovered by scanning the segments from the end 
+   * recorded in the index.
+   */
+  protected void loadIndex() throws IOException {
+    File[] files = backingDirectoryFile.listFiles();
+    for(File file : files) {
+      String name = file.getName();
+      if(name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+        try {
+          openSegment(Integer.parseInt(name.substring(
+            SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+        } catch (NumberFormatException ex) {
+          logger.warn("PackedCorpus warning: ignoring file "+file);
+        }
+      }
+    }
+    Map<Integer,Long> indexedEnds = new HashMap<Integer,Long>();
+    File indexFile = new File(backingDirectoryFile, INDEX_FILE_NAME);
+    if(indexFile.exists()) {
+      DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(indexFile)));
+      try {
+        if(in.readInt() != INDEX_MAGIC) {
+          throw new IOException("Not a packed corpus index file: "+indexFile);
+        }
+        int nSegments = in.readInt();
+        for(int s = 0; s < nSegments; s++) {
+          indexedEnds.put(in.readInt(), in.readLong());
+        }
+        int n = in.readInt();
+        for(int i = 0; i < n; i++) {
+          String docName = in.readUTF();
+          int segment = in.readInt();
+          long offset = in.readLong();
+          int length = in.readInt();
+          if(!segments.containsKey(segment)) {
+            throw new IOException("Index "+indexFile+" refers to missing segment "+segment);
+          }
+          putRecord(docName, segment, offset, length);
+        }
+      } finally {
+        in.close();
+      }
+    }
+    for(Segment segment : segments.values()) {
+      Long end = indexedEnds.get(segment.number);
+      scanSegment(segment, end == null ? 0L : end);
+    }
+    if(segments.isEmpty()) {
+      if(getReadonly()) {
+        logger.warn("PackedCorpus warning: empty corpus created, no segment files found");
+        return;
+      }
+      openSegment(0);
+    }
+    currentSegment = segments.lastEntry().getValue();
+    indexModified = false;
+  }
+  
+  // Add the records of the segment from the given position on to the
+  // index. An incomplete record at the end, left by a crash, is cut off.
+  protected void scanSegment(Segment segment, long from) throws IOException {
+    long size = segment.channel.size();
+    long pos = from;
+    int recovered = 0;
+    ByteBuffer header = ByteBuffer.allocate(10);
+    while(pos < size) {
+      header.clear();
+      if(size - pos < header.capacity()) {
+        break;
+      }
+      readFully(segment.channel, header, pos);
+      header.flip();
+      int magic = header.getInt();
+      int length = header.getInt();
+      int nameLength = header.getShort() & 0xffff;
+      if(magic != RECORD_MAGIC || length < header.capacity() + nameLength + 1 || 
+         pos + length > size) {
+        break;
+      }
+      ByteBuffer name = ByteBuffer.allocate(2 + nameLength);
+      readFully(segment.channel, name, pos + 8);
+      String docName = new DataInputStream(
+        new ByteArrayInputStream(name.array())).readUTF();
+      putRecord(docName, segment.number, pos, length);
+      pos += length;
+      recovered++;
+    }
+    if(pos < size) {
+      logger.warn("PackedCorpus warning: discarding "+(size - pos)+
+        " bytes of incomplete records at the end of "+segment.file);
+      if(!getReadonly()) {
+        segment.channel.truncate(pos);
+      }
+    }
+    if(recovered > 0 && from > 0) {
+      logger.info("PackedCorpus: recovered "+recovered+" records from "+segment.file);
+    }
+    segment.end = pos;
+  }
+  
+  /**
+   * Force new records to disk and write the index to a temporary file 
+   * which then replaces the index file, if the index has changed.
+   */
+  protected synchronized void saveIndex() throws IOException {
+    if(!indexModified) {
+      return;
+    }
+    for(Segment segment : segments.values()) {
+      if(segment.dirty) {
+        segment.channel.force(false);
+        segment.dirty = false;
+      }
+    }
+    File indexFile = new File(backingDirectoryFile, INDEX_FILE_NAME);
+    File tmpFile = new File(backingDirectoryFile, INDEX_FILE_NAME+".tmp");
+    DataOutputStream out = new DataOutputStream(
+      new BufferedOutputStream(new FileOutputStream(tmpFile)));
+    try {
+      out.writeInt(INDEX_MAGIC);
+      out.writeInt(segments.size());
+      for(Segment segment : segments.values()) {
+        out.writeInt(segment.number);
+        out.writeLong(segment.end);
+      }
+      int n = documentNames.size();
+      out.writeInt(n);
+      for(int i = 0; i < n; i++) {
+        out.writeUTF(documentNames.get(i));
+        out.writeInt(recordSegments[i]);
+        out.writeLong(recordOffsets[i]);
+        out.writeInt(recordLengths[i]);
+      }
+    } finally {
+      out.close();
+    }
+    java.nio.file.Files.move(tmpFile.toPath(), indexFile.toPath(), 
+      StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    indexModified = false;
+  }
+  
+  // Schedule a background compaction of the segment if it is not the 
+  // current segment and has too much dead space.
+  protected synchronized void scheduleCompaction(Segment segment) {
+    if(compactor == null || segment == currentSegment || segment.end == 0 ||
+       pendingCompactions.contains(segment.number)) {
+      return;
+    }
+    double dead = 1.0 - (double)segment.liveBytes / segment.end;
+    if(dead <= getCompactionThreshold()) {
+      return;
+    }
+    final int number = segment.number;
+    pendingCompactions.add(number);
+    compactor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          compactSegment(number);
+        } catch (Exception ex) {
+          logger.error("PackedCorpus: could not compact segment "+number, ex);
+        } finally {
+          synchronized(PackedCorpus.this) {
+            pendingCompactions.remove(number);
+          }
+        }
+      }
+    });
+  }
+  
+  /**
+   * Copy the live records of the segment to the end of the current segment
+   * and remove the segment file. The records are copied in small batches,
+   * so the corpus can be used while a segment is being compacted. 
+   * 
+   * @param number the number of the segment
+   * @throws IOException 
+   */
+  protected void compactSegment(int number) throws IOException {
+    int i = 0;
+    while(true) {
+      synchronized(this) {
+        Segment segment = segments.get(number);
+        if(segment == null || segment == currentSegment || currentSegment == null) {
+          return;
+        }
+        if(stopCompaction) {
+          return;
+        }
+        int n = documentNames.size();
+        int copied = 0;
+        for(; i < n && copied < COMPACTION_BATCH_SIZE; i++) {
+          if(recordSegments[i] == number) {
+            byte[] record = readRecord(i);
+            appendRecord(documentNames.get(i), record, 
+              new ByteArrayInputStream(record, 0, 0), record.length);
+            copied++;
+          }
+        }
+        if(i >= n) {
+          // the index must not refer to the segment any more before it 
+          // can be removed
+          indexModified = true;
+          saveIndex();
+          segments.remove(number);
+          segment.close();
+          if(!segment.file.delete()) {
+            logger.warn("PackedCorpus warning: could not remove compacted segment "+segment.file);
+          }
+          logger.info("PackedCorpus: compacted segment "+segment.file);
+          return;
+        }
+      }
+    }
+  }
+
+  protected void adoptDocument(Document doc) {
+    try {
+      doc.setDataStore(ourDS);
+    } catch (PersistenceException ex) {
+      // ignore, see DirectoryCorpus
+    }
+    ourDS.trackDocument(doc);
+  }
+  
+  protected class PackedCorpusIterator implements Iterator<Document> {
+    int nextIndex = 0;
+    @Override
+    public boolean hasNext() {
+      while(documentNames.size() > nextIndex) {
+        if(lockForIteration(nextIndex)) {
+          return true;
+        }
+        nextIndex++;
+      }
+      return false;
+    }
+    @Override
+    public Document next() {
+      if(hasNext()) {
+        return get(nextIndex++);
+      } else {
+        return null;
+      }
+    }
+    @Override
+    public void remove() {
+      throw new MethodNotImplementedException();
+    }    
+  }
+
+} // class PackedCorpus
@@ -0,0 +1,352 @@
+/*
+ * Copyright (c) 2010- Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-VirtualCorpus
+ * (see https://github.com/johann-petrak/gateplugin-VirtualCorpus)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.virtualcorpus;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The set of parent corpus indexes which are members of a subset corpus.
+ * <p>
+ * The members are kept in ascending order of the parent index, so the
+ * position of a document in the subset corpus is the number of members
+ * with a smaller parent index. Nothing but the parent indexes is stored,
+ * document names are always looked up in the parent corpus.
+ * <p>
+ * The set is a bitmap over the parent indexes together with a Fenwick
+ * tree over the number of members in each 64 bit word of the bitmap, so
+ * that finding the position of a member, the member at a position, adding
+ * and removing a member all take O(log n) time.
+ *
+ * @author Johann Petrak
+ */
+public class ParentIndexSet {
+
+  protected long[] bits = new long[1];
+  // tree[i] for i >= 1 holds the number of members in the words
+  // (i - lowbit(i)) to (i - 1)
+  protected int[] tree = new int[2];
+  protected int size = 0;
+
+  /**
+   * The number of members.
+   * @return
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Return the parent index of the member at the given position.
+   * @param position
+   * @return
+   */
+  public int get(int position) {
+    if(position < 0 || position >= size) {
+      throw new IndexOutOfBoundsException("Position "+position+", size "+size);
+    }
+    // descend the tree to find the word which contains the member
+    int word = 0;
+    int remaining = position;
+    for(int step = Integer.highestOneBit(bits.length); step > 0; step >>= 1) {
+      int next = word + step;
+      if(next <= bits.length && tree[next] <= remaining) {
+        word = next;
+        remaining -= tree[next];
+      }
+    }
+    long w = bits[word];
+    for(int i = 0; i < remaining; i++) {
+      w &= w - 1;
+    }
+    return word * 64 + Long.numberOfTrailingZeros(w);
+  }
+
+  /**
+   * Return the position of the parent index or -1 if it is not a member.
+   * @param parentIndex
+   * @return
+   */
+  public int indexOf(int parentIndex) {
+    if(!contains(parentIndex)) {
+      return -1;
+    }
+    return rank(parentIndex);
+  }
+
+  public boolean contains(int parentIndex) {
+    int word = parentIndex >>> 6;
+    return parentIndex >= 0 && word < bits.length &&
+      (bits[word] & (1L << parentIndex)) != 0;
+  }
+
+  /**
+   * Add the parent index.
+   * @param parentIndex
+   * @return the position of the new member or -1 if it was already a member
+   */
+  public int add(int parentIndex) {
+    if(parentIndex < 0) {
+      throw new IllegalArgumentException("Negative index "+parentIndex);
+    }
+    if(contains(parentIndex)) {
+      return -1;
+    }
+    ensureCapacity(parentIndex);
+    bits[parentIndex >>> 6] |= 1L << parentIndex;
+    update(parentIndex >>> 6, 1);
+    size++;
+    return rank(parentIndex);
+  }
+
+  /**
+   * Add all the parent indexes, which can be in any order and may contain
+   * duplicates.
+   * @param parentIndexes
+   * @param n the number of entries of the array to use
+   * @return the number of new members
+   */
+  public int addAll(int[] parentIndexes, int n) {
+    int max = -1;
+    for(int i = 0; i < n; i++) {
+      if(parentIndexes[i] < 0) {
+        throw new IllegalArgumentException("Negative index "+parentIndexes[i]);
+      }
+      max = Math.max(max, parentIndexes[i]);
+    }
+    if(max < 0) {
+      return 0;
+    }
+    ensureCapacity(max);
+    int added = 0;
+    for(int i = 0; i < n; i++) {
+      int p = parentIndexes[i];
+      long mask = 1L << p;
+      if((bits[p >>> 6] & mask) == 0) {
+        bits[p >>> 6] |= mask;
+        added++;
+      }
+    }
+    size += added;
+    rebuildTree();
+    return added;
+  }
+
+  /**
+   * Remove the member at the given position.
+   * @param position
+   * @return the parent index of the removed member
+   */
+  public int remove(int position) {
+    int parentIndex = get(position);
+    bits[parentIndex >>> 6] &= ~(1L << parentIndex);
+    update(parentIndex >>> 6, -1);
+    size--;
+    return parentIndex;
+  }
+
+  public void clear() {
+    bits = new long[1];
+    tree = new int[2];
+    size = 0;
+  }
+
+  /**
+   * Add all members of the other set.
+   * @param other
+   * @return the number of new members
+   */
+  public int or(ParentIndexSet other) {
+    if(other.bits.length > bits.length) {
+      bits = Arrays.copyOf(bits, other.bits.length);
+    }
+    for(int i = 0; i < other.bits.length; i++) {
+      bits[i] |= other.bits[i];
+    }
+    return recount();
+  }
+
+  /**
+   * Remove all members which are not in the other set.
+   * @param other
+   * @return the number of members removed
+   */
+  public int and(ParentIndexSet other) {
+    for(int i = 0; i < bits.length; i++) {
+      bits[i] &= i < other.bits.length ? other.bits[i] : 0L;
+    }
+    return -recount();
+  }
+
+  /**
+   * Remove all members which are in the other set.
+   * @param other
+   * @return the number of members removed
+   */
+  public int andNot(ParentIndexSet other) {
+    int words = Math.min(bits.length, other.bits.length);
+    for(int i = 0; i < words; i++) {
+      bits[i] &= ~other.bits[i];
+    }
+    return -recount();
+  }
+
+  /**
+   * Write the set in a compressed form. The bitmap is written as a
+   * sequence of runs, each consisting of a number of words which are all
+   * zero or all one bits, followed by a number of literal words.
+   *
+   * @param out
+   * @throws IOException
+   */
+  public void write(DataOutput out) throws IOException {
+    int words = bits.length;
+    while(words > 0 && bits[words - 1] == 0L) {
+      words--;
+    }
+    out.writeInt(words);
+    int i = 0;
+    while(i < words) {
+      long fill = bits[i];
+      int fills = 0;
+      if(fill == 0L || fill == -1L) {
+        while(i < words && bits[i] == fill) {
+          fills++;
+          i++;
+        }
+      }
+      int literalStart = i;
+      while(i < words && bits[i] != 0L && bits[i] != -1L) {
+        i++;
+      }
+      writeVarInt(out, (fills << 1) | (fill == -1L && fills > 0 ? 1 : 0));
+      writeVarInt(out, i - literalStart);
+      for(int j = literalStart; j < i; j++) {
+        out.writeLong(bits[j]);
+      }
+    }
+  }
+
+  /**
+   * Read a set written by {@link #write(java.io.DataOutput)}.
+   * @param in
+   * @return
+   * @throws IOException
+   */
+  public static ParentIndexSet read(DataInput in) throws IOException {
+    int words = in.readInt();
+    if(words < 0) {
+      throw new IOException("Invalid bitmap size "+words);
+    }
+    ParentIndexSet set = new ParentIndexSet();
+    set.bits = new long[Math.max(1, words)];
+    int i = 0;
+    while(i < words) {
+      int fill = readVarInt(in);
+      int fills = fill >>> 1;
+      int literals = readVarInt(in);
+      if(fills > words - i || literals > words - i - fills) {
+        throw new IOException("Corrupt bitmap, run exceeds the bitmap size");
+      }
+      if((fill & 1) != 0) {
+        Arrays.fill(set.bits, i, i + fills, -1L);
+      }
+      i += fills;
+      for(int j = 0; j < literals; j++) {
+        set.bits[i++] = in.readLong();
+      }
+    }
+    set.recount();
+    return set;
+  }
+
+  // set the size from the bitmap and rebuild the tree, return the change
+  // in size
+  protected int recount() {
+    int count = 0;
+    for(long w : bits) {
+      count += Long.bitCount(w);
+    }
+    int delta = count - size;
+    size = count;
+    rebuildTree();
+    return delta;
+  }
+
+  protected static void writeVarInt(DataOutput out, int value) throws IOException {
+    while((value & ~0x7f) != 0) {
+      out.writeByte((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte(value);
+  }
+
+  protected static int readVarInt(DataInput in) throws IOException {
+    int value = 0;
+    for(int shift = 0; shift < 32; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (b & 0x7f) << shift;
+      if((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Corrupt bitmap, invalid number");
+  }
+
+  // the number of members smaller than the parent index
+  protected int rank(int parentIndex) {
+    int word = parentIndex >>> 6;
+    int count = 0;
+    for(int i = word; i > 0; i -= i & -i) {
+      count += tree[i];
+    }
+    return count + Long.bitCount(bits[word] & ((1L << parentIndex) - 1));
+  }
+
+  protected void update(int word, int delta) {
+    for(int i = word + 1; i <= bits.length; i += i & -i) {
+      tree[i] += delta;
+    }
+  }
+
+  protected void ensureCapacity(int parentIndex) {
+    int words = (parentIndex >>> 6) + 1;
+    if(words > bits.length) {
+      bits = Arrays.copyOf(bits, Math.max(words, bits.length * 2));
+      rebuildTree();
+    }
+  }
+
+  // build the tree from the bitmap in linear time
+  protected void rebuildTree() {
+    tree = new int[bits.length + 1];
+    for(int i = 1; i <= bits.length; i++) {
+      tree[i] += Long.bitCount(bits[i - 1]);
+      int parent = i + (i & -i);
+      if(parent <= bits.length) {
+        tree[parent] += tree[i];
+      }
+    }
+  }
+
+}
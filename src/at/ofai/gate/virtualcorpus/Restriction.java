@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2010- Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-VirtualCorpus
+ * (see https://github.com/johann-petrak/gateplugin-VirtualCorpus)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package at.ofai.gate.virtualcorpus;
+
+import java.io.Serializable;
+import java.lang.reflect.Method;
+
+/**
+ * A constraint for {@link DummyDataStore4Virtuals#findLrIds(java.util.List)}
+ * which restricts a feature or the document name with an operator. This 
+ * has the same API and operator values as the class 
+ * <code>gate.persist.Restriction</code> of older GATE versions, which does
+ * not exist any more, and instances of that class are accepted too.
+ * 
+ * @author Johann Petrak
+ */
+public class Restriction implements Serializable {
+
+  private static final long serialVersionUID = 2961409368527613117L;
+  
+  public static final int OPERATOR_EQUATION = 100;
+  public static final int OPERATOR_LESS = 101;
+  public static final int OPERATOR_BIGGER = 102;
+  public static final int OPERATOR_EQUATION_OR_BIGGER = 103;
+  public static final int OPERATOR_EQUATION_OR_LESS = 104;
+  public static final int OPERATOR_LIKE = 105;
+  
+  protected String key;
+  protected Object value;
+  protected int operator;
+  
+  /**
+   * Create a restriction.
+   * 
+   * @param key the feature name, or {@link DummyDataStore4Virtuals#NAME_KEY}
+   * for the document name
+   * @param value the value, for the like operator a pattern with the SQL
+   * wildcards % and _
+   * @param operator one of the operator constants
+   */
+  public Restriction(String key, Object value, int operator) {
+    this.key = key;
+    this.value = value;
+    this.operator = operator;
+  }
+  
+  public String getKey() {
+    return key;
+  }
+  
+  public Object getValue() {
+    return value;
+  }
+  
+  public String getStringValue() {
+    return String.valueOf(value);
+  }
+  
+  public int getOperator() {
+    return operator;
+  }
+  
+  /**
+   * Return the constraint as a Restriction if it is one, or if it is an
+   * instance of the class gate.persist.Restriction of older GATE versions, 
+   * otherwise return null.
+   * 
+   * @param constraint
+   * @return 
+   */
+  public static Restriction from(Object constraint) {
+    if(constraint instanceof Restriction) {
+      return (Restriction)constraint;
+    }
+    if(constraint == null || 
+       !constraint.getClass().getName().equals("gate.persist.Restriction")) {
+      return null;
+    }
+    try {
+      Class<?> clazz = constraint.getClass();
+      Method getKey = clazz.getMethod("getKey");
+      Method getValue = clazz.getMethod("getValue");
+      Method getOperator = clazz.getMethod("getOperator");
+      return new Restriction((String)getKey.invoke(constraint), 
+        getValue.invoke(constraint), (Integer)getOperator.invoke(constraint));
+    } catch (Exception ex) {
+      throw new UnsupportedOperationException("Cannot use restriction "+constraint, ex);
+    }
+  }
+  
+  @Override
+  public String toString() {
+    return "Restriction("+key+" "+operator+" "+value+")";
+  }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2010- Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-VirtualCorpus
+ * (see https://github.com/johann-petrak/gateplugin-VirtualCorpus)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.ofai.gate.virtualcorpus;
+
+import gate.creole.ResourceInstantiationException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Orders and distributes the documents of a virtual corpus by their size,
+ * so that a few very big documents do not hold up the end of a run.
+ * <p>
+ * The sizes are the byte sizes recorded by the corpus when the document
+ * names were read, see {@link VirtualCorpus#getDocumentSize(int)}. 
+ * Documents with an unknown size count as size 0. No document is ever
+ * loaded and documents with the same size keep the order of their index,
+ * so the result is always the same for the same corpus.
+ * <p>
+ * Example: distribute the documents over 4 parallel pipelines so that 
+ * each gets about the same number of bytes:
+ * <pre>
+ * SizeScheduler scheduler = new SizeScheduler(corpus);
+ * List&lt;VirtualSubsetCorpus&gt; shards = scheduler.createShards(corpus,
+ *   new String[]{"shard0","shard1","shard2","shard3"});
+ * </pre>
+ *
+ * @author Johann Petrak
+ */
+public class SizeScheduler {
+
+  /** Keep the order of the corpus. */
+  public static final String ORDER_NONE = "";
+  /** The biggest documents first. */
+  public static final String ORDER_LARGEST_FIRST = "largestFirst";
+  /** Alternate between the biggest and the smallest remaining documents. */
+  public static final String ORDER_BALANCED = "balanced";
+
+  protected long[] sizes;
+
+  public SizeScheduler(VirtualCorpus corpus) {
+    int n = corpus.size();
+    sizes = new long[n];
+    for(int i = 0; i < n; i++) {
+      sizes[i] = Math.max(0L, corpus.getDocumentSize(i));
+    }
+  }
+
+  /**
+   * Create a scheduler for the given sizes, one for each corpus index.
+   * @param sizes
+   */
+  public SizeScheduler(long[] sizes) {
+    this.sizes = new long[sizes.length];
+    for(int i = 0; i < sizes.length; i++) {
+      this.sizes[i] = Math.max(0L, sizes[i]);
+    }
+  }
+
+  /**
+   * Return the corpus indexes in the given order, one of the ORDER_
+   * constants.
+   * @param order
+   * @return
+   */
+  public int[] getOrder(String order) {
+    if(order == null || order.equals(ORDER_NONE)) {
+      int[] indexes = new int[sizes.length];
+      for(int i = 0; i < indexes.length; i++) {
+        indexes[i] = i;
+      }
+      return indexes;
+    } else if(order.equals(ORDER_LARGEST_FIRST)) {
+      return largestFirst();
+    } else if(order.equals(ORDER_BALANCED)) {
+      return balanced();
+    } else {
+      throw new IllegalArgumentException("Unknown document order: "+order);
+    }
+  }
+
+  /**
+   * Return the corpus indexes, biggest documents first. When the documents
+   * are processed in parallel in this order, the big documents start 
+   * early and the small ones fill up the end of the run.
+   * @return
+   */
+  public int[] largestFirst() {
+    Integer[] indexes = new Integer[sizes.length];
+    for(int i = 0; i < indexes.length; i++) {
+      indexes[i] = i;
+    }
+    Arrays.sort(indexes, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        if(sizes[a] != sizes[b]) {
+          return sizes[a] > sizes[b] ? -1 : 1;
+        }
+        return a.compareTo(b);
+      }
+    });
+    int[] result = new int[indexes.length];
+    for(int i = 0; i < result.length; i++) {
+      result[i] = indexes[i];
+    }
+    return result;
+  }
+
+  /**
+   * Return the corpus indexes alternating between the biggest and the 
+   * smallest remaining document, so that any block of consecutive 
+   * documents, like a chunk or a batch, has about the average size.
+   * @return
+   */
+  public int[] balanced() {
+    int[] sorted = largestFirst();
+    int[] result = new int[sorted.length];
+    int big = 0;
+    int small = sorted.length - 1;
+    for(int i = 0; i < result.length; i++) {
+      result[i] = (i & 1) == 0 ? sorted[big++] : sorted[small--];
+    }
+    return result;
+  }
+
+  /**
+   * Distribute the documents over the given number of shards so that the
+   * total sizes of the shards are about the same. Each document, biggest
+   * first, goes to the shard with the smallest total so far, which gives 
+   * totals within 4/3 of the best possible distribution.
+   * 
+   * @param shards
+   * @return the corpus indexes of each shard, in ascending order
+   */
+  public int[][] assignShards(int shards) {
+    if(shards <= 0) {
+      throw new IllegalArgumentException("Number of shards must be positive: "+shards);
+    }
+    // each entry holds the total size and the shard number
+    PriorityQueue<long[]> totals = new PriorityQueue<long[]>(shards, new Comparator<long[]>() {
+      @Override
+      public int compare(long[] a, long[] b) {
+        if(a[0] != b[0]) {
+          return a[0] < b[0] ? -1 : 1;
+        }
+        return a[1] < b[1] ? -1 : (a[1] == b[1] ? 0 : 1);
+      }
+    });
+    for(int s = 0; s < shards; s++) {
+      totals.add(new long[]{0L, s});
+    }
+    int[] shardOf = new int[sizes.length];
+    int[] counts = new int[shards];
+    for(int i : largestFirst()) {
+      long[] smallest = totals.poll();
+      int s = (int)smallest[1];
+      shardOf[i] = s;
+      counts[s]++;
+      smallest[0] += sizes[i];
+      totals.add(smallest);
+    }
+    int[][] result = new int[shards][];
+    for(int s = 0; s < shards; s++) {
+      result[s] = new int[counts[s]];
+      counts[s] = 0;
+    }
+    for(int i = 0; i < shardOf.length; i++) {
+      int s = shardOf[i];
+      result[s][counts[s]++] = i;
+    }
+    return result;
+  }
+
+  /**
+   * Return the total size of the documents with the given indexes.
+   * @param indexes
+   * @return
+   */
+  public long getTotalSize(int[] indexes) {
+    long total = 0L;
+    for(int i : indexes) {
+      total += sizes[i];
+    }
+    return total;
+  }
+
+  /**
+   * Create one subset corpus for each name with the documents of one shard,
+   * see {@link #assignShards(int)}.
+   *
+   * @param parent the corpus the sizes were taken from
+   * @param names the names of the new corpora, one for each shard
+   * @return the new corpora
+   * @throws ResourceInstantiationException
+   */
+  public List<VirtualSubsetCorpus> createShards(VirtualCorpus parent, String[] names)
+    throws ResourceInstantiationException {
+    if(parent.size() != sizes.length) {
+      throw new IllegalArgumentException("The corpus has "+parent.size()+
+        " documents but there are "+sizes.length+" sizes");
+    }
+    int[][] shards = assignShards(names.length);
+    List<VirtualSubsetCorpus> corpora = new ArrayList<VirtualSubsetCorpus>();
+    for(int s = 0; s < shards.length; s++) {
+      VirtualSubsetCorpus corpus = parent.createSubsetCorpus(names[s]);
+      corpus.addParentIndexesAndFire(shards[s], shards[s].length);
+      corpora.add(corpus);
+    }
+    return corpora;
+  }
+
+}
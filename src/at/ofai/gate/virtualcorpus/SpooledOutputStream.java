@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2010- Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-VirtualCorpus
+ * (see https://github.com/johann-petrak/gateplugin-VirtualCorpus)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.virtualcorpus;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+
+/**
+ * An output stream that keeps the data in memory up to a threshold and
+ * spills it to a temporary file once the threshold is exceeded.
+ * <p>
+ * This is used to serialize documents for a JDBC parameter without ever
+ * holding the whole serialization in one huge String or byte array: once
+ * everything has been written, the data can be read back as a stream
+ * of known length. The temporary file, if any, is removed by
+ * {@link #dispose()}.
+ *
+ * @author Johann Petrak
+ */
+public class SpooledOutputStream extends OutputStream {
+
+  protected int threshold;
+  protected ByteArrayOutputStream memory = new ByteArrayOutputStream();
+  protected File spoolFile = null;
+  protected OutputStream fileStream = null;
+  protected long size = 0;
+  protected long charCount = 0;
+  protected boolean closed = false;
+
+  /**
+   * Create a spooled output stream which keeps at most threshold bytes
+   * in memory.
+   * @param threshold
+   */
+  public SpooledOutputStream(int threshold) {
+    this.threshold = threshold;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    ensureCapacity(1);
+    if(fileStream != null) {
+      fileStream.write(b);
+    } else {
+      memory.write(b);
+    }
+    size++;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    ensureCapacity(len);
+    if(fileStream != null) {
+      fileStream.write(b, off, len);
+    } else {
+      memory.write(b, off, len);
+    }
+    size += len;
+  }
+
+  @Override
+  public void flush() throws IOException {
+    if(fileStream != null) {
+      fileStream.flush();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if(!closed) {
+      closed = true;
+      if(fileStream != null) {
+        fileStream.close();
+      }
+    }
+  }
+
+  protected void ensureCapacity(int len) throws IOException {
+    if(closed) {
+      throw new IOException("Spooled stream already closed");
+    }
+    if(fileStream == null && size + len > threshold) {
+      spoolFile = File.createTempFile("virtualcorpus", ".spool");
+      spoolFile.deleteOnExit();
+      fileStream = new BufferedOutputStream(new FileOutputStream(spoolFile));
+      memory.writeTo(fileStream);
+      memory = null;
+    }
+  }
+
+  /**
+   * The number of bytes written so far.
+   * @return
+   */
+  public long size() {
+    return size;
+  }
+
+  /**
+   * The number of characters written through writers returned by
+   * {@link #getWriter(String)}.
+   * @return
+   */
+  public long getCharCount() {
+    return charCount;
+  }
+
+  /**
+   * Get a writer which encodes characters into this stream using the
+   * given encoding and counts the number of characters written.
+   * Closing the writer closes this stream.
+   *
+   * @param encoding
+   * @return
+   * @throws IOException
+   */
+  public Writer getWriter(String encoding) throws IOException {
+    return new FilterWriter(new OutputStreamWriter(this, encoding)) {
+      @Override
+      public void write(int c) throws IOException {
+        super.write(c);
+        charCount++;
+      }
+      @Override
+      public void write(char[] cbuf, int off, int len) throws IOException {
+        super.write(cbuf, off, len);
+        charCount += len;
+      }
+      @Override
+      public void write(String str, int off, int len) throws IOException {
+        super.write(str, off, len);
+        charCount += len;
+      }
+    };
+  }
+
+  /**
+   * Close the stream and return a new input stream over all the
+   * data written.
+   * @return
+   * @throws IOException
+   */
+  public InputStream getInputStream() throws IOException {
+    close();
+    if(spoolFile != null) {
+      return new BufferedInputStream(new FileInputStream(spoolFile));
+    } else {
+      return new ByteArrayInputStream(memory.toByteArray());
+    }
+  }
+
+  /**
+   * Close the stream and return a reader over all the data written,
+   * decoded using the given encoding.
+   * @param encoding
+   * @return
+   * @throws IOException
+   */
+  public Reader getReader(String encoding) throws IOException {
+    return new InputStreamReader(getInputStream(), encoding);
+  }
+
+  /**
+   * Release all resources held by this stream, including the temporary
+   * file, if one was created.
+   */
+  public void dispose() {
+    try {
+      close();
+    } catch (IOException ex) {
+      // ignore, we are only cleaning up
+    }
+    memory = null;
+    if(spoolFile != null) {
+      spoolFile.delete();
+      spoolFile = null;
+    }
+  }
+
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright (c) 2010- Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-VirtualCorpus
+ * (see https://github.com/johann-petrak/gateplugin-VirtualCorpus)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.virtualcorpus;
+
+import gate.creole.ResourceInstantiationException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Creates random samples and splits of a virtual corpus as subset corpora.
+ * <p>
+ * Only the document names of the parent corpus are used, no document is
+ * ever loaded. The result only depends on the seed and the names and
+ * order of the documents in the parent corpus, so the same seed always
+ * gives the same samples and splits.
+ * <p>
+ * Optionally, the documents can be stratified, either by the directory
+ * prefix of their names or by a bucket derived from a hash of the name.
+ * Each stratum is then sampled or split separately, so that all strata
+ * are represented in proportion to their size.
+ * <p>
+ * Example: create an 80/10/10 split stratified by top level directory:
+ * <pre>
+ * SubsetSampler sampler = new SubsetSampler(corpus, 42);
+ * sampler.setStratifyByDirectory(1);
+ * List&lt;VirtualSubsetCorpus&gt; splits = sampler.createSplits(
+ *   new String[]{"train","dev","test"}, 0.8, 0.1, 0.1);
+ * </pre>
+ *
+ * @author Johann Petrak
+ */
+public class SubsetSampler {
+
+  protected VirtualCorpus parent;
+  protected long seed;
+  protected int directoryDepth = 0;
+  protected int keyBuckets = 0;
+
+  public SubsetSampler(VirtualCorpus parent, long seed) {
+    this.parent = parent;
+    this.seed = seed;
+  }
+
+  /**
+   * Stratify by the first depth path segments of the document names.
+   * Documents with fewer segments use their whole directory as stratum.
+   * 0 turns off stratification by directory.
+   * @param depth
+   */
+  public void setStratifyByDirectory(int depth) {
+    directoryDepth = depth;
+    keyBuckets = 0;
+  }
+
+  /**
+   * Stratify by a hash bucket of the document name. This is mainly
+   * useful with a small number of buckets to get splits which have the
+   * same distribution over the buckets. 0 turns off stratification by
+   * bucket.
+   * @param buckets
+   */
+  public void setStratifyByKeyBucket(int buckets) {
+    keyBuckets = buckets;
+    directoryDepth = 0;
+  }
+
+  /**
+   * Split the parent corpus into parts with the given fractions of the
+   * documents. If the fractions add up to less than 1, the remaining
+   * documents are not in any part.
+   *
+   * @param fractions
+   * @return the parent indexes of each part
+   */
+  public int[][] split(double... fractions) {
+    double total = 0.0;
+    for(double f : fractions) {
+      if(f < 0.0) {
+        throw new IllegalArgumentException("Negative fraction "+f);
+      }
+      total += f;
+    }
+    if(total > 1.0 + 1e-9) {
+      throw new IllegalArgumentException("Fractions add up to more than 1: "+total);
+    }
+    int[][] parts = new int[fractions.length][];
+    int[] partSizes = new int[fractions.length];
+    for(int p = 0; p < parts.length; p++) {
+      parts[p] = new int[16];
+    }
+    for(Map.Entry<String,int[]> stratum : getStrata().entrySet()) {
+      int[] indexes = stratum.getValue();
+      int n = indexes[0];
+      shuffle(indexes, 1, n + 1, n, getRandom(stratum.getKey()));
+      // cut the shuffled stratum at the rounded cumulative fractions
+      double cumulative = 0.0;
+      int from = 1;
+      for(int p = 0; p < parts.length; p++) {
+        cumulative += fractions[p];
+        int to = 1 + (int)Math.round(cumulative * n);
+        for(int i = from; i < to; i++) {
+          if(partSizes[p] == parts[p].length) {
+            parts[p] = Arrays.copyOf(parts[p], partSizes[p] * 2);
+          }
+          parts[p][partSizes[p]++] = indexes[i];
+        }
+        from = to;
+      }
+    }
+    for(int p = 0; p < parts.length; p++) {
+      parts[p] = Arrays.copyOf(parts[p], partSizes[p]);
+    }
+    return parts;
+  }
+
+  /**
+   * Draw a random sample of n documents, or all documents if the parent
+   * corpus has fewer. Without stratification this is done with reservoir
+   * sampling in a single pass, otherwise each stratum contributes in
+   * proportion to its size.
+   *
+   * @param n
+   * @return the parent indexes of the sample
+   */
+  public int[] sample(int n) {
+    int size = parent.size();
+    n = Math.min(n, size);
+    if(directoryDepth <= 0 && keyBuckets <= 0) {
+      Random random = getRandom("");
+      int[] reservoir = new int[n];
+      for(int i = 0; i < size; i++) {
+        if(i < n) {
+          reservoir[i] = i;
+        } else {
+          int j = random.nextInt(i + 1);
+          if(j < n) {
+            reservoir[j] = i;
+          }
+        }
+      }
+      return reservoir;
+    }
+    // allocate the sample to the strata by the largest remainder method
+    Map<String,int[]> strata = getStrata();
+    int[] quota = new int[strata.size()];
+    double[] remainder = new double[strata.size()];
+    int allocated = 0;
+    int s = 0;
+    for(int[] indexes : strata.values()) {
+      double exact = (double)n * indexes[0] / size;
+      quota[s] = (int)exact;
+      remainder[s] = exact - quota[s];
+      allocated += quota[s];
+      s++;
+    }
+    while(allocated < n) {
+      int best = 0;
+      for(int i = 1; i < remainder.length; i++) {
+        if(remainder[i] > remainder[best]) {
+          best = i;
+        }
+      }
+      quota[best]++;
+      remainder[best] = -1.0;
+      allocated++;
+    }
+    int[] result = new int[n];
+    int m = 0;
+    s = 0;
+    for(Map.Entry<String,int[]> stratum : strata.entrySet()) {
+      int[] indexes = stratum.getValue();
+      shuffle(indexes, 1, indexes[0] + 1, quota[s], getRandom(stratum.getKey()));
+      System.arraycopy(indexes, 1, result, m, quota[s]);
+      m += quota[s];
+      s++;
+    }
+    return result;
+  }
+
+  /**
+   * Create one subset corpus for each fraction, see {@link #split(double...)}.
+   *
+   * @param names the names of the new corpora, one for each fraction
+   * @param fractions
+   * @return the new corpora
+   * @throws ResourceInstantiationException
+   */
+  public List<VirtualSubsetCorpus> createSplits(String[] names, double... fractions)
+    throws ResourceInstantiationException {
+    if(names.length != fractions.length) {
+      throw new IllegalArgumentException("Need one name for each fraction");
+    }
+    int[][] parts = split(fractions);
+    List<VirtualSubsetCorpus> corpora = new ArrayList<VirtualSubsetCorpus>();
+    for(int p = 0; p < parts.length; p++) {
+      VirtualSubsetCorpus corpus = parent.createSubsetCorpus(names[p]);
+      corpus.addParentIndexesAndFire(parts[p], parts[p].length);
+      corpora.add(corpus);
+    }
+    return corpora;
+  }
+
+  /**
+   * Create a subset corpus with a random sample of n documents, see
+   * {@link #sample(int)}.
+   *
+   * @param name
+   * @param n
+   * @return
+   * @throws ResourceInstantiationException
+   */
+  public VirtualSubsetCorpus createSample(String name, int n)
+    throws ResourceInstantiationException {
+    int[] indexes = sample(n);
+    VirtualSubsetCorpus corpus = parent.createSubsetCorpus(name);
+    corpus.addParentIndexesAndFire(indexes, indexes.length);
+    return corpus;
+  }
+
+  /**
+   * Group the parent indexes by stratum in a single pass over the names.
+   * The strata are sorted by key so the result does not depend on hashing.
+   * Element 0 of each array holds the number of indexes which follow.
+   */
+  protected Map<String,int[]> getStrata() {
+    Map<String,int[]> strata = new TreeMap<String,int[]>();
+    int size = parent.size();
+    for(int i = 0; i < size; i++) {
+      String key = getStratum(parent.getDocumentName(i));
+      int[] indexes = strata.get(key);
+      if(indexes == null) {
+        indexes = new int[16];
+        strata.put(key, indexes);
+      }
+      int n = indexes[0] + 1;
+      if(n == indexes.length) {
+        indexes = Arrays.copyOf(indexes, indexes.length * 2);
+        strata.put(key, indexes);
+      }
+      indexes[n] = i;
+      indexes[0] = n;
+    }
+    return strata;
+  }
+
+  protected String getStratum(String docName) {
+    if(directoryDepth > 0) {
+      int pos = -1;
+      for(int d = 0; d < directoryDepth; d++) {
+        int next = docName.indexOf('/', pos + 1);
+        if(next < 0) {
+          break;
+        }
+        pos = next;
+      }
+      return pos < 0 ? "" : docName.substring(0, pos);
+    } else if(keyBuckets > 0) {
+      return Integer.toString((mix(docName.hashCode()) & Integer.MAX_VALUE) % keyBuckets);
+    } else {
+      return "";
+    }
+  }
+
+  // a random generator for the stratum which only depends on the seed
+  // and the stratum key
+  protected Random getRandom(String stratum) {
+    return new Random(seed * 31 + mix(stratum.hashCode()));
+  }
+
+  // move k randomly chosen elements of a[from..to) to the front of that
+  // range, in random order (a partial Fisher-Yates shuffle)
+  protected static void shuffle(int[] a, int from, int to, int k, Random random) {
+    int n = to - from;
+    for(int i = 0; i < k && i < n - 1; i++) {
+      int j = i + random.nextInt(n - i);
+      int tmp = a[from + i];
+      a[from + i] = a[from + j];
+      a[from + j] = tmp;
+    }
+  }
+
+  protected static int mix(int h) {
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (c) 2010- Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-VirtualCorpus
+ * (see https://github.com/johann-petrak/gateplugin-VirtualCorpus)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.ofai.gate.virtualcorpus;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A minimal reader for tar archives which reads the entries in a single
+ * pass from a stream, e.g. a GZIPInputStream over a .tar.gz file.
+ * <p>
+ * After {@link #nextEntry()} has returned an entry, reading from this 
+ * stream returns the data of that entry. Only regular files are returned,
+ * all other entries are skipped. Long names are supported in the GNU 
+ * format and through the <code>path</code> and <code>size</code> 
+ * records of POSIX pax headers, other extensions are ignored.
+ *
+ * @author Johann Petrak
+ */
+public class TarArchiveReader extends FilterInputStream {
+
+  protected static final int BLOCK_SIZE = 512;
+
+  /**
+   * A regular file in the archive.
+   */
+  public static class Entry {
+    public final String name;
+    public final long size;
+    Entry(String name, long size) {
+      this.name = name;
+      this.size = size;
+    }
+  }
+
+  protected byte[] header = new byte[BLOCK_SIZE];
+  // the unread data and padding of the current entry
+  protected long remaining = 0;
+  protected long padding = 0;
+  protected boolean finished = false;
+
+  public TarArchiveReader(InputStream in) {
+    super(in);
+  }
+
+  /**
+   * Skip the rest of the current entry and return the next regular file.
+   *
+   * @return the next entry or null at the end of the archive
+   * @throws IOException
+   */
+  public Entry nextEntry() throws IOException {
+    String longName = null;
+    long paxSize = -1;
+    while(!finished) {
+      skipFully(remaining + padding);
+      remaining = 0;
+      padding = 0;
+      if(!readBlock()) {
+        finished = true;
+        return null;
+      }
+      if(isZeroBlock()) {
+        // the end of the archive is marked by two zero blocks, but one
+        // is enough for us
+        finished = true;
+        return null;
+      }
+      long size = paxSize >= 0 ? paxSize : parseNumber(124, 12);
+      char type = (char)header[156];
+      String name = longName;
+      if(name == null) {
+        name = parseString(0, 100);
+        if(new String(header, 257, 5, "US-ASCII").equals("ustar")) {
+          String prefix = parseString(345, 155);
+          if(!prefix.isEmpty()) {
+            name = prefix+"/"+name;
+          }
+        }
+      }
+      remaining = size;
+      padding = (BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE;
+      if(type == 'L') {
+        longName = trimNul(new String(readData(size), "UTF-8"));
+        continue;
+      } else if(type == 'x') {
+        byte[] pax = readData(size);
+        longName = getPaxValue(pax, "path", longName);
+        String paxSizeValue = getPaxValue(pax, "size", null);
+        paxSize = paxSizeValue == null ? -1 : Long.parseLong(paxSizeValue);
+        continue;
+      } else if(type == '0' || type == '\0' || type == '7') {
+        return new Entry(name, size);
+      }
+      // directories, links, global pax headers etc. are skipped
+      longName = null;
+      paxSize = -1;
+    }
+    return null;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if(remaining <= 0) {
+      return -1;
+    }
+    int b = in.read();
+    if(b < 0) {
+      throw new EOFException("Unexpected end of tar archive");
+    }
+    remaining--;
+    return b;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if(remaining <= 0) {
+      return -1;
+    }
+    int n = in.read(b, off, (int)Math.min(len, remaining));
+    if(n < 0) {
+      throw new EOFException("Unexpected end of tar archive");
+    }
+    remaining -= n;
+    return n;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    long skipped = skipFully(Math.min(n, remaining));
+    remaining -= skipped;
+    return skipped;
+  }
+
+  @Override
+  public int available() throws IOException {
+    return (int)Math.min(in.available(), remaining);
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  protected byte[] readData(long size) throws IOException {
+    if(size > Integer.MAX_VALUE) {
+      throw new IOException("Tar header too big: "+size);
+    }
+    byte[] data = new byte[(int)size];
+    int pos = 0;
+    while(pos < data.length) {
+      int n = read(data, pos, data.length - pos);
+      if(n < 0) {
+        throw new EOFException("Unexpected end of tar archive");
+      }
+      pos += n;
+    }
+    return data;
+  }
+
+  protected boolean readBlock() throws IOException {
+    int pos = 0;
+    while(pos < BLOCK_SIZE) {
+      int n = in.read(header, pos, BLOCK_SIZE - pos);
+      if(n < 0) {
+        if(pos == 0) {
+          return false;
+        }
+        throw new EOFException("Unexpected end of tar archive");
+      }
+      pos += n;
+    }
+    return true;
+  }
+
+  protected long skipFully(long n) throws IOException {
+    long skipped = 0;
+    byte[] buffer = null;
+    while(skipped < n) {
+      long s = in.skip(n - skipped);
+      if(s <= 0) {
+        // some streams do not skip, read instead
+        if(buffer == null) {
+          buffer = new byte[8192];
+        }
+        int r = in.read(buffer, 0, (int)Math.min(buffer.length, n - skipped));
+        if(r < 0) {
+          throw new EOFException("Unexpected end of tar archive");
+        }
+        s = r;
+      }
+      skipped += s;
+    }
+    return skipped;
+  }
+
+  protected boolean isZeroBlock() {
+    for(byte b : header) {
+      if(b != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  protected String parseString(int offset, int length) throws IOException {
+    int end = offset;
+    while(end < offset + length && header[end] != 0) {
+      end++;
+    }
+    return new String(header, offset, end - offset, "UTF-8");
+  }
+
+  // numbers are octal, or binary big endian if the high bit of the first
+  // byte is set
+  protected long parseNumber(int offset, int length) throws IOException {
+    if((header[offset] & 0x80) != 0) {
+      long value = header[offset] & 0x7f;
+      for(int i = offset + 1; i < offset + length; i++) {
+        value = (value << 8) | (header[i] & 0xff);
+      }
+      return value;
+    }
+    String octal = parseString(offset, length).trim();
+    if(octal.isEmpty()) {
+      return 0;
+    }
+    try {
+      return Long.parseLong(octal, 8);
+    } catch (NumberFormatException ex) {
+      throw new IOException("Invalid number in tar header: "+octal);
+    }
+  }
+
+  // pax records have the form "length key=value\n", where the length is
+  // the number of bytes of the whole record
+  protected static String getPaxValue(byte[] pax, String key, String defaultValue) 
+    throws IOException {
+    int pos = 0;
+    String value = defaultValue;
+    while(pos < pax.length) {
+      int space = pos;
+      while(space < pax.length && pax[space] != ' ') {
+        space++;
+      }
+      int length;
+      try {
+        length = Integer.parseInt(new String(pax, pos, space - pos, "US-ASCII"));
+      } catch (NumberFormatException ex) {
+        break;
+      }
+      if(length <= space - pos || pos + length > pax.length) {
+        break;
+      }
+      // without the space and the trailing newline
+      String record = new String(pax, space + 1, pos + length - space - 2, "UTF-8");
+      if(record.startsWith(key+"=")) {
+        value = record.substring(key.length() + 1);
+      }
+      pos += length;
+    }
+    return value;
+  }
+
+  protected static String trimNul(String s) {
+    int end = s.indexOf('\0');
+    return end < 0 ? s : s.substring(0, end);
+  }
+
+}
@@ -0,0 +1,545 @@
+/*
+ * Copyright (c) 2010- Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-VirtualCorpus
+ * (see https://github.com/johann-petrak/gateplugin-VirtualCorpus)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package at.ofai.gate.virtualcorpus;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import gate.*;
+import gate.corpora.DocumentImpl;
+import gate.creole.*;
+import gate.creole.metadata.*;
+import gate.event.CreoleListener;
+import gate.persist.PersistenceException;
+import gate.util.*;
+import gate.util.persistence.PersistenceManager;
+import org.apache.log4j.Logger;
+
+/** 
+ * A Corpus LR which reads the documents from a tar archive, optionally
+ * gzip-compressed, in a single sequential pass without unpacking the 
+ * archive. 
+ * <p>
+ * Since the archive can only be read sequentially, the corpus only ever 
+ * knows the documents read so far and the next one: <code>size()</code>
+ * is the number of documents read so far plus one as long as there is 
+ * another document in the archive, so a controller which loops while the
+ * index is smaller than the size processes all documents. Only the 
+ * documents which are still loaded and the next document can be 
+ * retrieved with <code>get</code>, asking for any other document throws
+ * a GateRuntimeException. For the same reason there are no subset 
+ * corpora for this corpus.
+ * <p>
+ * If <code>mimeType</code> is empty, each file in the archive must be a
+ * GATE XML document, which is parsed directly from the decompressed 
+ * stream. Otherwise each file is read as the content of a document of
+ * that MIME type. Only files with one of the <code>extensions</code> are 
+ * used if that parameter is specified. The document name is the path of 
+ * the file in the archive.
+ * <p>
+ * Unless the corpus is read-only, saved documents are written as GATE 
+ * XML files to <code>outputDirectoryURL</code>, with the same relative 
+ * path and the extension ".xml", and/or stored in the PackedCorpus 
+ * <code>outputCorpus</code>.
+ * 
+ * @author Johann Petrak
+ */
+@CreoleResource(
+    name = "TarCorpus",
+    interfaceName = "gate.Corpus", 
+    icon = "corpus", 
+    helpURL = "http://code.google.com/p/gateplugin-virtualcorpus/",
+    comment = "A corpus which reads the documents sequentially from a tar or tar.gz archive")
+public class TarCorpus  
+  extends VirtualCorpus
+  implements Corpus, CreoleListener
+  {
+
+  //*****
+  // Fields
+  //******
+  
+  private static final long serialVersionUID = 1569047782436014582L;
+  
+  private static final Logger logger = Logger.getLogger(TarCorpus.class);
+  
+  protected TarArchiveReader reader = null;
+  // the entry of the next document, which is already in the corpus but
+  // has not been read yet
+  protected TarArchiveReader.Entry nextEntry = null;
+  protected boolean haveNextEntry = false;
+  protected File outputDirectory = null;
+
+  //***************
+  // Parameters
+  //***************
+  
+  @CreoleParameter(comment = "The URL of the tar or tar.gz archive")
+  public void setArchiveURL(URL url) {
+    this.archiveURL = url;
+  }
+  public URL getArchiveURL() { return archiveURL; }
+  protected URL archiveURL = null;
+  
+  @Optional
+  @CreoleParameter(comment = "The directory where saved documents are written as GATE XML files")
+  public void setOutputDirectoryURL(URL dirURL) {
+    this.outputDirectoryURL = dirURL;
+  }
+  public URL getOutputDirectoryURL() { return outputDirectoryURL; }
+  protected URL outputDirectoryURL = null;
+  
+  @Optional
+  @CreoleParameter(comment = "A PackedCorpus where saved documents are stored", defaultValue = "")
+  public void setOutputCorpus(PackedCorpus corpus) {
+    this.outputCorpus = corpus;
+  }
+  public PackedCorpus getOutputCorpus() { return outputCorpus; }
+  protected PackedCorpus outputCorpus = null;
+  
+  @Optional
+  @CreoleParameter(comment = "MIME type of the files in the archive, if empty, the files must be GATE XML", defaultValue = "")
+  public void setMimeType(String type) {
+    this.mimeType = type;
+  }
+  public String getMimeType() { return mimeType; }
+  protected String mimeType = "";
+  
+  @Optional
+  @CreoleParameter(comment = "The encoding of the files in the archive", defaultValue = "UTF-8")
+  public void setEncoding(String encoding) {
+    this.encoding = encoding;
+  }
+  public String getEncoding() { return encoding; }
+  protected String encoding = "UTF-8";
+  
+  @Optional
+  @CreoleParameter(comment = "Only use files with one of these extensions, if empty, all files")
+  public void setExtensions(List<String> extensions) {
+    this.extensions = extensions;
+  }
+  public List<String> getExtensions() { return extensions; }
+  protected List<String> extensions;
+  
+  /**
+   * Initializes the TarCorpus LR
+   * @return 
+   * @throws ResourceInstantiationException
+   */
+  @Override
+  public Resource init() 
+    throws ResourceInstantiationException {
+    logger.info("TarCorpus: calling init");
+    if(getArchiveURL() == null) {
+      throw new ResourceInstantiationException("archiveURL must be set");
+    }
+    if(!getReadonly() && getOutputDirectoryURL() == null && getOutputCorpus() == null) {
+      throw new ResourceInstantiationException(
+        "outputDirectoryURL or outputCorpus must be set unless the corpus is read-only");
+    }
+    if(getOutputDirectoryURL() != null) {
+      outputDirectory = Files.fileFromURL(getOutputDirectoryURL());
+      try {
+        outputDirectory = outputDirectory.getCanonicalFile();
+      } catch (IOException ex) {
+        throw new ResourceInstantiationException(
+                "Cannot get canonical file for "+outputDirectory,ex);
+      }
+    }
+    try {
+      InputStream in = new BufferedInputStream(getArchiveURL().openStream(), 65536);
+      // gzip-compressed archives are recognized by their magic number
+      in.mark(2);
+      int b1 = in.read();
+      int b2 = in.read();
+      in.reset();
+      if(b1 == (GZIPInputStream.GZIP_MAGIC & 0xff) && 
+         b2 == ((GZIPInputStream.GZIP_MAGIC >> 8) & 0xff)) {
+        in = new GZIPInputStream(in, 65536);
+      }
+      reader = new TarArchiveReader(in);
+    } catch (IOException ex) {
+      throw new ResourceInstantiationException("Could not open archive "+getArchiveURL(), ex);
+    }
+    
+    try {
+        ourDS =
+          (DummyDataStore4TarCorp) Factory.createDataStore("at.ofai.gate.virtualcorpus.DummyDataStore4TarCorp", 
+            getArchiveURL().toString());
+        ourDS.setName("DummyDS4_" + this.getName());
+        ourDS.setComment("Dummy DataStore for TarCorpus " + this.getName());
+        ourDS.setCorpus(this);
+    } catch (Exception ex) {
+        throw new ResourceInstantiationException(
+          "Could not create dummy data store", ex);
+    }
+    try {
+      PersistenceManager.registerPersistentEquivalent(
+          at.ofai.gate.virtualcorpus.TarCorpus.class,
+          at.ofai.gate.virtualcorpus.TarCorpusPersistence.class);
+    } catch (PersistenceException e) {
+      throw new ResourceInstantiationException(
+              "Could not register persistence",e);
+    }
+    Gate.getCreoleRegister().addCreoleListener(this);
+    startAutoSaving();
+    return this;
+  }
+
+  @Override
+  public void cleanup() {
+    stopAutoSaving();
+    if(reader != null) {
+      try {
+        reader.close();
+      } catch (IOException ex) {
+        // ignore, we only read from it
+      }
+      reader = null;
+    }
+    Gate.getDataStoreRegister().remove(ourDS);
+  }
+
+  // Methods to be implemented from List
+
+  /**
+   * This method is not implemented and always throws a
+   * MethodNotImplementedException.
+   */
+  @Override
+  public boolean add(Document doc) {
+    throw new MethodNotImplementedException(notImplementedMessage("add(Document doc)"));
+  }
+
+  /**
+   * This method is not implemented and always throws a
+   * MethodNotImplementedException.
+   */
+  @Override
+  public void clear() {
+    throw new MethodNotImplementedException(notImplementedMessage("clear()"));
+  }
+  
+  /**
+   * This checks if a document with the same name as the document
+   * passed has already been seen in the archive.
+   */
+  @Override
+  public boolean contains(Object docObj) {
+    Document doc = (Document)docObj;
+    String docName = doc.getName();
+    return (documentIndexes.get(docName) != null);
+  }
+
+  /**
+   * Return the document for the given index in the corpus, which must 
+   * either still be loaded or be the next document in the archive.
+   * An IndexOutOfBoundsException is thrown when the index is not contained
+   * in the corpus.
+   * 
+   * @param index
+   * @return 
+   */
+  @Override
+  public synchronized Document get(int index) {
+    if(index < 0 || index >= size()) {
+      throw new IndexOutOfBoundsException(
+          "Index "+index+" not in corpus "+this.getName()+
+          " of size "+documentNames.size());
+    }
+    String docName = documentNames.get(index);
+    if(isDocumentLoaded(index)) {
+      return getLoadedDocument(docName);
+    }
+    if(nextEntry == null || index != documentNames.size() - 1) {
+      throw new GateRuntimeException("TarCorpus "+getName()+
+        " can only be read sequentially, document "+index+" is not available any more");
+    }
+    TarArchiveReader.Entry entry = nextEntry;
+    nextEntry = null;
+    haveNextEntry = false;
+    Document doc = readDocument(docName, entry);
+    loadedDocuments.put(docName, doc);
+    isLoadeds.set(index, true);
+    adoptDocument(doc);
+    return doc;
+  }
+
+  /**
+   * Returns the index of the document with the same name as the given document
+   * in the corpus. The content of the document is not considered for this.
+   * 
+   * @param docObj
+   * @return
+   */
+  @Override
+  public int indexOf(Object docObj) {
+    Document doc = (Document)docObj;
+    Integer index = documentIndexes.get(doc.getName());
+    if(index == null) {
+      return -1;
+    } else {
+      return index;
+    }
+  }
+
+  /**
+   * Returns an iterator to iterate through the documents of the
+   * corpus. Since the archive can only be read once, only one iterator
+   * can be used and only if the documents have not been read by index.
+   * 
+   * @return
+   */
+  @Override
+  public Iterator<Document> iterator() {
+    return new TarCorpusIterator();
+  }
+
+  /**
+   * This method is not implemented and always throws a
+   * MethodNotImplementedException.
+   */
+  @Override
+  public Document remove(int index) {
+    throw new MethodNotImplementedException(notImplementedMessage("remove(int index)"));
+  }
+
+  /**
+   * This method is not implemented and always throws a
+   * MethodNotImplementedException.
+   */
+  @Override
+  public boolean remove(Object docObj) {
+    throw new MethodNotImplementedException(notImplementedMessage("remove(Object docObj)"));
+  }
+
+  /**
+   * This method is not implemented and always throws a
+   * MethodNotImplementedException.
+   */
+  @Override
+  public boolean removeAll(Collection coll) {
+    throw new MethodNotImplementedException(notImplementedMessage("removeAll(Collection coll)"));
+  }
+
+  @Override
+  public boolean hasFixedSize() {
+    return false;
+  }
+
+  /**
+   * Return the number of documents read so far plus one, if there is 
+   * another document in the archive. To find out, this reads ahead to the
+   * next entry in the archive, skipping what is left of the entry of 
+   * the last document.
+   * 
+   * @return 
+   */
+  @Override
+  public synchronized int size() {
+    if(!haveNextEntry && reader != null) {
+      haveNextEntry = true;
+      try {
+        nextEntry = readNextEntry();
+      } catch (IOException ex) {
+        throw new GateRuntimeException("Could not read archive "+getArchiveURL(), ex);
+      }
+      if(nextEntry != null) {
+        String docName = nextEntry.name;
+        if(docName.startsWith("./")) {
+          docName = docName.substring(2);
+        }
+        if(documentIndexes.containsKey(docName)) {
+          // the same path can occur several times in an archive
+          docName = docName+"#"+documentNames.size();
+        }
+        documentIndexes.put(docName, documentNames.size());
+        documentNames.add(docName);
+        isLoadeds.add(false);
+      }
+    }
+    return documentNames.size();
+  }
+  
+  @Override
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  //**************************
+  // helper methods
+  // ************************
+  
+  protected TarArchiveReader.Entry readNextEntry() throws IOException {
+    TarArchiveReader.Entry entry;
+    while((entry = reader.nextEntry()) != null) {
+      if(getExtensions() == null || getExtensions().isEmpty()) {
+        return entry;
+      }
+      int dot = entry.name.lastIndexOf('.');
+      if(dot >= 0 && getExtensions().contains(entry.name.substring(dot + 1))) {
+        return entry;
+      }
+    }
+    return null;
+  }
+  
+  // read the document from the data of the current entry
+  protected Document readDocument(String docName, TarArchiveReader.Entry entry) {
+    if(getMimeType() == null || getMimeType().isEmpty()) {
+      return createDocumentFromXmlStream(docName, reader, getEncoding());
+    }
+    if(entry.size > Integer.MAX_VALUE) {
+      throw new GateRuntimeException("Document "+docName+" is too big");
+    }
+    FeatureMap params = Factory.newFeatureMap();
+    try {
+      ByteArrayOutputStream content = new ByteArrayOutputStream((int)entry.size);
+      byte[] buffer = new byte[65536];
+      int n;
+      while((n = reader.read(buffer)) > 0) {
+        content.write(buffer, 0, n);
+      }
+      params.put(Document.DOCUMENT_STRING_CONTENT_PARAMETER_NAME, content.toString(getEncoding()));
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Could not read document "+docName+" from archive", ex);
+    }
+    params.put(Document.DOCUMENT_MIME_TYPE_PARAMETER_NAME, getMimeType());
+    try {
+      return (Document) Factory.createResource(DocumentImpl.class.getName(),
+          params, null, docName);
+    } catch (ResourceInstantiationException ex) {
+      throw new GateRuntimeException("Could not create document "+docName, ex);
+    }
+  }
+  
+  @Override
+  protected void saveDocument(Document doc) {
+    if(getReadonly()) {
+      return;
+    }
+    if(outputCorpus != null) {
+      outputCorpus.store(doc);
+    }
+    if(outputDirectory != null) {
+      String docName = doc.getName();
+      File docFile = getOutputFile(docName.endsWith(".xml") ? docName : docName+".xml");
+      docFile.getParentFile().mkdirs();
+      try {
+        Writer writer = new OutputStreamWriter(
+          new BufferedOutputStream(new FileOutputStream(docFile)), "UTF-8");
+        try {
+          writeDocumentXml(doc, writer, "UTF-8");
+        } finally {
+          writer.close();
+        }
+      } catch (IOException ex) {
+        throw new GateRuntimeException("Could not save file: "+docFile, ex);
+      }
+    }
+  }
+
+  /**
+   * Return the file in the output directory for the given relative path.
+   * The path comes from the archive entry name, so entries with an absolute
+   * path, a ".." segment or any other path that resolves outside the 
+   * output directory are rejected with a GateRuntimeException.
+   * 
+   * @param relativePath
+   * @return 
+   */
+  protected File getOutputFile(String relativePath) {
+    String path = relativePath.replace('\\', '/');
+    if(path.startsWith("/") || new File(relativePath).isAbsolute() ||
+       path.matches("^[A-Za-z]:.*")) {
+      throw new GateRuntimeException("Refusing to save document with absolute path "+
+        relativePath+" for TarCorpus "+getName());
+    }
+    for(String segment : path.split("/")) {
+      if(segment.equals("..")) {
+        throw new GateRuntimeException("Refusing to save document with path "+
+          relativePath+" outside of the output directory for TarCorpus "+getName());
+      }
+    }
+    File docFile = new File(outputDirectory, relativePath);
+    try {
+      docFile = docFile.getCanonicalFile();
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Cannot get canonical file for "+docFile, ex);
+    }
+    if(!docFile.getPath().startsWith(outputDirectory.getPath()+File.separator)) {
+      throw new GateRuntimeException("Refusing to save document with path "+
+        relativePath+" outside of the output directory for TarCorpus "+getName());
+    }
+    return docFile;
+  }
+
+  protected void adoptDocument(Document doc) {
+    try {
+      doc.setDataStore(ourDS);
+    } catch (PersistenceException ex) {
+      // ignore, see DirectoryCorpus
+    }
+    ourDS.trackDocument(doc);
+  }
+  
+  protected class TarCorpusIterator implements Iterator<Document> {
+    int nextIndex = 0;
+    @Override
+    public boolean hasNext() {
+      while(size() > nextIndex) {
+        if(lockForIteration(nextIndex)) {
+          return true;
+        }
+        nextIndex++;
+      }
+      return false;
+    }
+    @Override
+    public Document next() {
+      if(hasNext()) {
+        return get(nextIndex++);
+      } else {
+        return null;
+      }
+    }
+    @Override
+    public void remove() {
+      throw new MethodNotImplementedException();
+    }    
+  }
+
+} // class TarCorpus
@@ -0,0 +1,549 @@
+/*
+ * Copyright (c) 2010- Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-VirtualCorpus
+ * (see https://github.com/johann-petrak/gateplugin-VirtualCorpus)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package at.ofai.gate.virtualcorpus;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import gate.*;
+import gate.creole.*;
+import gate.creole.metadata.*;
+import gate.event.CreoleListener;
+import gate.persist.PersistenceException;
+import gate.util.*;
+import gate.util.persistence.PersistenceManager;
+import org.apache.log4j.Logger;
+
+/** 
+ * A Corpus LR which combines the documents of several other virtual 
+ * corpora, e.g. several DirectoryCorpus and JDBCCorpus LRs, so that one 
+ * pipeline run can process all of them.
+ * <p>
+ * The child corpora can be given as existing corpora in the parameter 
+ * <code>corpora</code>, or they are created by this corpus from the 
+ * class names in <code>childClassNames</code> and the init parameters in
+ * <code>childParameters</code>. Corpora created by this corpus are 
+ * initialized in parallel, so that e.g. the directory scans and database
+ * queries of all children happen at the same time, and they are deleted
+ * when this corpus is deleted.
+ * <p>
+ * By default, the documents of the first child come first, followed by 
+ * those of the second child etc. If <code>interleave</code> is true, the 
+ * children take turns instead: the first document of each child, then the
+ * second document of each child etc., to spread the reading and writing 
+ * of documents over the devices of the children. All operations on a 
+ * document, including saving and unloading, are passed on to the child 
+ * which owns it, so each document is still read from and saved to where 
+ * it came from. 
+ * <p>
+ * The documents of the children are mapped when this corpus is created,
+ * so the children must not change their size later: children in 
+ * work-queue mode, with a coordination directory or a TarCorpus are
+ * rejected, see {@link VirtualCorpus#hasFixedSize()}. Document names are the names in the children and may not be
+ * unique across children. There are no subset corpora for this corpus.
+ * 
+ * @author Johann Petrak
+ */
+@CreoleResource(
+    name = "UnionCorpus",
+    interfaceName = "gate.Corpus", 
+    icon = "corpus", 
+    helpURL = "http://code.google.com/p/gateplugin-virtualcorpus/",
+    comment = "A corpus which combines the documents of several virtual corpora")
+public class UnionCorpus  
+  extends VirtualCorpus
+  implements Corpus, CreoleListener
+  {
+
+  //*****
+  // Fields
+  //******
+  
+  private static final long serialVersionUID = -6069264375532281447L;
+  
+  private static final Logger logger = Logger.getLogger(UnionCorpus.class);
+  
+  protected List<VirtualCorpus> children = new ArrayList<VirtualCorpus>();
+  // the children created by this corpus, which it deletes when it is deleted
+  protected List<VirtualCorpus> createdChildren = new ArrayList<VirtualCorpus>();
+  protected int size = 0;
+  // without interleaving: the index of the first document of each child
+  protected int[] offsets;
+  // with interleaving: the child and the index in the child of each 
+  // document, and for each child the indexes of its documents in this corpus
+  protected int[] childOf;
+  protected int[] localIndexOf;
+  protected int[][] unionIndexes;
+
+  //***************
+  // Parameters
+  //***************
+  
+  @Optional
+  @CreoleParameter(comment = "Existing virtual corpora to combine")
+  public void setCorpora(List<VirtualCorpus> corpora) {
+    this.corpora = corpora;
+  }
+  public List<VirtualCorpus> getCorpora() { return corpora; }
+  protected List<VirtualCorpus> corpora;
+  
+  /**
+   * @param names The class names of the virtual corpora to create, with 
+   * the init parameters at the same position in <code>childParameters</code>.
+   */
+  @Optional
+  @CreoleParameter(comment = "Class names of virtual corpora to create and combine")
+  public void setChildClassNames(List<String> names) {
+    this.childClassNames = names;
+  }
+  public List<String> getChildClassNames() { return childClassNames; }
+  protected List<String> childClassNames;
+  
+  @Optional
+  @CreoleParameter(comment = "The init parameters for each of the childClassNames")
+  public void setChildParameters(List<FeatureMap> parameters) {
+    this.childParameters = parameters;
+  }
+  public List<FeatureMap> getChildParameters() { return childParameters; }
+  protected List<FeatureMap> childParameters;
+  
+  @Optional
+  @CreoleParameter(comment = "Take the documents from the children in turn instead of one child after the other", defaultValue = "false")
+  public void setInterleave(Boolean value) {
+    this.interleave = value;
+  }
+  public Boolean getInterleave() { return interleave; }
+  protected Boolean interleave = false;
+  
+  /**
+   * Initializes the UnionCorpus LR
+   * @return 
+   * @throws ResourceInstantiationException
+   */
+  @Override
+  public Resource init() 
+    throws ResourceInstantiationException {
+    logger.info("UnionCorpus: calling init");
+    if(getCorpora() != null) {
+      children.addAll(getCorpora());
+    }
+    if(getChildClassNames() != null && !getChildClassNames().isEmpty()) {
+      createChildren();
+    }
+    if(children.isEmpty()) {
+      throw new ResourceInstantiationException("corpora or childClassNames must be set");
+    }
+    // size() of the other corpora claims or reads documents, and the
+    // mapping below needs the final number of documents of each child
+    for(VirtualCorpus child : children) {
+      if(!child.hasFixedSize()) {
+        deleteCreatedChildren();
+        throw new ResourceInstantiationException("Corpus "+child.getName()+
+          " does not have a fixed size and cannot be combined: "+
+          "no work-queue mode, coordination directory or TarCorpus");
+      }
+    }
+    long total = 0;
+    for(VirtualCorpus child : children) {
+      total += child.size();
+    }
+    if(total > Integer.MAX_VALUE) {
+      throw new ResourceInstantiationException("Too many documents in the children: "+total);
+    }
+    size = (int)total;
+    if(getInterleave()) {
+      mapInterleaved();
+    } else {
+      offsets = new int[children.size()];
+      int offset = 0;
+      for(int c = 0; c < children.size(); c++) {
+        offsets[c] = offset;
+        offset += children.get(c).size();
+      }
+    }
+    logger.info("UnionCorpus/init: "+size+" documents in "+children.size()+" corpora");
+    try {
+      PersistenceManager.registerPersistentEquivalent(
+          at.ofai.gate.virtualcorpus.UnionCorpus.class,
+          at.ofai.gate.virtualcorpus.UnionCorpusPersistence.class);
+    } catch (PersistenceException e) {
+      throw new ResourceInstantiationException(
+              "Could not register persistence",e);
+    }
+    Gate.getCreoleRegister().addCreoleListener(this);
+    return this;
+  }
+  
+  // Create the children from the class names and parameters, all at the 
+  // same time. If any of them fails, the ones created are deleted again.
+  protected void createChildren() throws ResourceInstantiationException {
+    final List<String> classNames = getChildClassNames();
+    if(getChildParameters() == null || getChildParameters().size() != classNames.size()) {
+      throw new ResourceInstantiationException(
+        "childParameters must contain one parameter map for each of the childClassNames");
+    }
+    ExecutorService pool = Executors.newFixedThreadPool(classNames.size());
+    List<Future<Resource>> futures = new ArrayList<Future<Resource>>();
+    for(int c = 0; c < classNames.size(); c++) {
+      final String className = classNames.get(c);
+      final FeatureMap parameters = getChildParameters().get(c);
+      final String name = getName()+"_"+c;
+      futures.add(pool.submit(new Callable<Resource>() {
+        @Override
+        public Resource call() throws ResourceInstantiationException {
+          return Factory.createResource(className, parameters, null, name);
+        }
+      }));
+    }
+    pool.shutdown();
+    ResourceInstantiationException failure = null;
+    for(int c = 0; c < futures.size(); c++) {
+      try {
+        Resource child = futures.get(c).get();
+        if(child instanceof VirtualCorpus) {
+          createdChildren.add((VirtualCorpus)child);
+        } else {
+          Factory.deleteResource(child);
+          failure = new ResourceInstantiationException(
+            "Not a virtual corpus: "+classNames.get(c));
+        }
+      } catch (InterruptedException ex) {
+        failure = new ResourceInstantiationException("Interrupted while creating the corpora", ex);
+      } catch (ExecutionException ex) {
+        Throwable cause = ex.getCause();
+        failure = new ResourceInstantiationException(
+          "Could not create corpus "+classNames.get(c), 
+          cause instanceof Exception ? (Exception)cause : ex);
+      }
+    }
+    if(failure != null) {
+      deleteCreatedChildren();
+      throw failure;
+    }
+    children.addAll(createdChildren);
+  }
+  
+  protected void mapInterleaved() {
+    int n = children.size();
+    int[] sizes = new int[n];
+    unionIndexes = new int[n][];
+    for(int c = 0; c < n; c++) {
+      sizes[c] = children.get(c).size();
+      unionIndexes[c] = new int[sizes[c]];
+    }
+    childOf = new int[size];
+    localIndexOf = new int[size];
+    int[] next = new int[n];
+    int i = 0;
+    while(i < size) {
+      for(int c = 0; c < n; c++) {
+        if(next[c] < sizes[c]) {
+          childOf[i] = c;
+          localIndexOf[i] = next[c];
+          unionIndexes[c][next[c]] = i;
+          next[c]++;
+          i++;
+        }
+      }
+    }
+  }
+
+  protected void deleteCreatedChildren() {
+    for(VirtualCorpus child : createdChildren) {
+      Factory.deleteResource(child);
+    }
+    createdChildren.clear();
+  }
+
+  @Override
+  public void cleanup() {
+    deleteCreatedChildren();
+  }
+  
+  /**
+   * Return the child corpora.
+   * @return 
+   */
+  public List<VirtualCorpus> getChildren() {
+    return new ArrayList<VirtualCorpus>(children);
+  }
+  
+  //**************************
+  // routing to the children
+  // ************************
+  
+  protected int getChildNumber(int index) {
+    if(index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException(
+          "Index "+index+" not in corpus "+this.getName()+" of size "+size);
+    }
+    if(childOf != null) {
+      return childOf[index];
+    }
+    int lo = 0;
+    int hi = offsets.length - 1;
+    while(lo < hi) {
+      int mid = (lo + hi + 1) >>> 1;
+      if(offsets[mid] <= index) {
+        lo = mid;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    // skip over empty children which share the offset
+    while(lo < offsets.length - 1 && offsets[lo + 1] <= index) {
+      lo++;
+    }
+    return lo;
+  }
+  
+  protected int getLocalIndex(int child, int index) {
+    return childOf != null ? localIndexOf[index] : index - offsets[child];
+  }
+  
+  protected int getUnionIndex(int child, int localIndex) {
+    return unionIndexes != null ? unionIndexes[child][localIndex] : offsets[child] + localIndex;
+  }
+  
+  // the child which owns the document, found through its datastore, or -1
+  protected int getOwner(Document doc) {
+    DataStore ds = doc.getDataStore();
+    for(int c = 0; c < children.size(); c++) {
+      if(ds != null && ds == children.get(c).getDataStore()) {
+        return c;
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  public Document get(int index) {
+    int c = getChildNumber(index);
+    return children.get(c).get(getLocalIndex(c, index));
+  }
+  
+  @Override
+  public boolean isDocumentLoaded(int index) {
+    int c = getChildNumber(index);
+    return children.get(c).isDocumentLoaded(getLocalIndex(c, index));
+  }
+
+  @Override
+  public boolean isDocumentLoaded(Document doc) {
+    int c = getOwner(doc);
+    if(c < 0) {
+      throw new GateRuntimeException("Document "+doc.getName()+
+        " is not contained in corpus "+this.getName());
+    }
+    return children.get(c).isDocumentLoaded(doc);
+  }
+
+  @Override
+  public void unloadDocument(Document doc, boolean sync) {
+    int c = getOwner(doc);
+    if(c < 0) {
+      throw new GateRuntimeException("Document "+doc.getName()+
+        " is not contained in corpus "+this.getName());
+    }
+    children.get(c).unloadDocument(doc, sync);
+  }
+  
+  @Override
+  protected void saveDocument(Document doc) {
+    int c = getOwner(doc);
+    if(c >= 0) {
+      children.get(c).saveDocument(doc);
+    }
+  }
+  
+  @Override
+  public String getDocumentName(int index) {
+    int c = getChildNumber(index);
+    return children.get(c).getDocumentName(getLocalIndex(c, index));
+  }
+
+  @Override
+  public long getDocumentSize(int index) {
+    int c = getChildNumber(index);
+    return children.get(c).getDocumentSize(getLocalIndex(c, index));
+  }
+
+  @Override
+  public List<String> getDocumentNames() {
+    List<String> names = new ArrayList<String>(size);
+    for(int i = 0; i < size; i++) {
+      names.add(getDocumentName(i));
+    }
+    return names;
+  }
+  
+  @Override
+  public long getNameListFingerprint() {
+    return getNameListFingerprint(getDocumentNames());
+  }
+  
+  @Override
+  protected boolean lockForIteration(int index) {
+    int c = getChildNumber(index);
+    return children.get(c).lockForIteration(getLocalIndex(c, index));
+  }
+  
+  /**
+   * Syncing the corpus syncs all the children.
+   */
+  @Override
+  public void sync() {
+    for(VirtualCorpus child : children) {
+      child.sync();
+    }
+  }
+
+  // Methods to be implemented from List
+
+  /**
+   * This method is not implemented and always throws a
+   * MethodNotImplementedException.
+   */
+  @Override
+  public boolean add(Document doc) {
+    throw new MethodNotImplementedException(notImplementedMessage("add(Document doc)"));
+  }
+
+  /**
+   * This method is not implemented and always throws a
+   * MethodNotImplementedException.
+   */
+  @Override
+  public void clear() {
+    throw new MethodNotImplementedException(notImplementedMessage("clear()"));
+  }
+  
+  /**
+   * Check if the document belongs to one of the children and is contained
+   * in it.
+   */
+  @Override
+  public boolean contains(Object docObj) {
+    return indexOf(docObj) >= 0;
+  }
+
+  /**
+   * Returns the index of the document in this corpus, if it belongs to
+   * one of the children. 
+   * 
+   * @param docObj
+   * @return
+   */
+  @Override
+  public int indexOf(Object docObj) {
+    Document doc = (Document)docObj;
+    int c = getOwner(doc);
+    if(c < 0) {
+      return -1;
+    }
+    int localIndex = children.get(c).indexOf(doc);
+    return localIndex < 0 ? -1 : getUnionIndex(c, localIndex);
+  }
+
+  /**
+   * Returns an iterator to iterate through the documents of the
+   * corpus. The iterator does not allow modification of the corpus.
+   * 
+   * @return
+   */
+  @Override
+  public Iterator<Document> iterator() {
+    return new UnionCorpusIterator();
+  }
+
+  /**
+   * This method is not implemented and always throws a
+   * MethodNotImplementedException.
+   */
+  @Override
+  public Document remove(int index) {
+    throw new MethodNotImplementedException(notImplementedMessage("remove(int index)"));
+  }
+
+  /**
+   * This method is not implemented and always throws a
+   * MethodNotImplementedException.
+   */
+  @Override
+  public boolean remove(Object docObj) {
+    throw new MethodNotImplementedException(notImplementedMessage("remove(Object docObj)"));
+  }
+
+  /**
+   * This method is not implemented and always throws a
+   * MethodNotImplementedException.
+   */
+  @Override
+  public boolean removeAll(Collection coll) {
+    throw new MethodNotImplementedException(notImplementedMessage("removeAll(Collection coll)"));
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+  
+  @Override
+  public boolean isEmpty() {
+    return size == 0;
+  }
+  
+  protected class UnionCorpusIterator implements Iterator<Document> {
+    int nextIndex = 0;
+    @Override
+    public boolean hasNext() {
+      while(size > nextIndex) {
+        if(lockForIteration(nextIndex)) {
+          return true;
+        }
+        nextIndex++;
+      }
+      return false;
+    }
+    @Override
+    public Document next() {
+      if(hasNext()) {
+        return get(nextIndex++);
+      } else {
+        return null;
+      }
+    }
+    @Override
+    public void remove() {
+      throw new MethodNotImplementedException();
+    }    
+  }
+
+} // class UnionCorpus
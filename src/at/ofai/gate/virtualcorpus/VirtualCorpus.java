@@ -24,8 +24,12 @@ package at.ofai.gate.virtualcorpus;
 import gate.Corpus;
 import gate.DataStore;
 import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
 import gate.Gate;
 import gate.Resource;
+import gate.corpora.DocumentImpl;
+import gate.corpora.DocumentStaxUtils;
 import gate.creole.*;
 import gate.creole.metadata.CreoleParameter;
 import gate.creole.metadata.HiddenCreoleParameter;
@@ -35,16 +39,28 @@ import gate.event.CorpusListener;
 import gate.event.CreoleEvent;
 import gate.event.CreoleListener;
 import gate.persist.PersistenceException;
+import gate.util.Files;
 import gate.util.GateRuntimeException;
 import gate.util.MethodNotImplementedException;
+import java.io.File;
 import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
 import org.apache.log4j.Logger;
 
 /** 
@@ -97,6 +113,153 @@ public abstract class VirtualCorpus
   }
   protected Boolean readonly = true;
 
+  /**
+   * Setter for the <code>indexedFeatures</code> LR initialization parameter.
+   * 
+   * @param features The names of document features for which an index
+   * from feature value to documents is kept, see {@link FeatureIndex}. The
+   * index is updated whenever a document is saved and stored by the corpus
+   * so that documents can be found by feature value without loading them.
+   */
+  @Optional
+  @CreoleParameter(comment="Document features to index by value when documents are saved")
+  public void setIndexedFeatures(List<String> features) {
+    this.indexedFeatures = features;
+  }
+  public List<String> getIndexedFeatures() {
+    return this.indexedFeatures;
+  }
+  protected List<String> indexedFeatures;
+  
+  // the index of the indexedFeatures, null if no features are indexed
+  protected FeatureIndex featureIndex = null;
+
+  /**
+   * Setter for the <code>autoSaveInterval</code> LR initialization parameter.
+   * 
+   * @param seconds If bigger than 0, loaded documents which have been 
+   * changed are saved in the background every that many seconds, once 
+   * they have not been changed or returned by the corpus for that long, or
+   * right away if they were released with 
+   * {@link #releaseDocument(gate.Document)}. A processing resource which
+   * changes a document after such a pause while it is being saved can 
+   * make the save fail or leave it incomplete until the next save, only
+   * unloading a document saves it safely. See
+   * {@link DummyDataStore4Virtuals#setAutoSaving(boolean)}. 
+   */
+  @Optional
+  @CreoleParameter(comment="Save changed loaded documents in the background every that many seconds once they have been idle for that long, 0 to turn off",
+    defaultValue="0")
+  public void setAutoSaveInterval(Integer seconds) {
+    this.autoSaveInterval = seconds;
+  }
+  public Integer getAutoSaveInterval() {
+    return this.autoSaveInterval;
+  }
+  protected Integer autoSaveInterval = 0;
+
+  /**
+   * Setter for the <code>autoSaveBatchSize</code> LR initialization parameter.
+   * 
+   * @param size The maximum number of documents saved by one background 
+   * save.
+   */
+  @Optional
+  @CreoleParameter(comment="Maximum number of documents saved by one background save",
+    defaultValue="100")
+  public void setAutoSaveBatchSize(Integer size) {
+    this.autoSaveBatchSize = size;
+  }
+  public Integer getAutoSaveBatchSize() {
+    return this.autoSaveBatchSize;
+  }
+  protected Integer autoSaveBatchSize = 100;
+
+  /**
+   * Setter for the <code>lockDocuments</code> LR initialization parameter.
+   * 
+   * @param lock If true, the iterator of the corpus locks each document 
+   * before returning it, see {@link #lockDocument(java.lang.String)}, and 
+   * skips documents which are locked by some other process. The lock is
+   * released when the document is unloaded. This allows several 
+   * processes to work on the same corpus at the same time.
+   */
+  @Optional
+  @CreoleParameter(comment="Lock documents while they are processed and skip documents locked by other processes",
+    defaultValue="false")
+  public void setLockDocuments(Boolean lock) {
+    this.lockDocuments = lock;
+  }
+  public Boolean getLockDocuments() {
+    return this.lockDocuments;
+  }
+  protected Boolean lockDocuments = false;
+
+  /**
+   * Setter for the <code>documentOrder</code> LR initialization parameter.
+   * 
+   * @param order The order of the documents in corpora which record the
+   * byte size of each document when they are created: empty for the order
+   * in which the documents were found, "largestFirst" or "balanced", see
+   * {@link SizeScheduler}. 
+   */
+  @Optional
+  @CreoleParameter(comment="Order of the documents by size: empty, largestFirst or balanced",
+    defaultValue="")
+  public void setDocumentOrder(String order) {
+    this.documentOrder = order;
+  }
+  public String getDocumentOrder() {
+    return this.documentOrder;
+  }
+  protected String documentOrder = "";
+
+  /**
+   * Setter for the <code>checkpointFileURL</code> LR initialization parameter.
+   * 
+   * @param url The file where the corpus records which documents have been
+   * completed, i.e. unloaded after they were saved, see 
+   * {@link CompletionCheckpoint}. When the corpus is created again with the
+   * same file, its iterator skips the completed documents, so an 
+   * interrupted run can be resumed. Access by index with get(int) and 
+   * size() still includes the completed documents, so to resume a run 
+   * with a controller which processes the corpus by index, e.g. a GATE
+   * pipeline, run it on the subset corpus returned by 
+   * {@link #createRemainingCorpus(java.lang.String)}. This is used by 
+   * DirectoryCorpus and JDBCCorpus.
+   */
+  @Optional
+  @CreoleParameter(comment="File for recording completed documents, which are skipped by the iterator when the corpus is created again, use createRemainingCorpus for pipelines")
+  public void setCheckpointFileURL(URL url) {
+    this.checkpointFileURL = url;
+  }
+  public URL getCheckpointFileURL() {
+    return this.checkpointFileURL;
+  }
+  protected URL checkpointFileURL;
+
+  /**
+   * Setter for the <code>checkpointSaveInterval</code> LR initialization parameter.
+   * 
+   * @param seconds The checkpoint is saved when a document is completed 
+   * and it was last saved at least that many seconds ago, and when the
+   * corpus is synced or closed.
+   */
+  @Optional
+  @CreoleParameter(comment="Minimum number of seconds between saves of the checkpoint",
+    defaultValue="30")
+  public void setCheckpointSaveInterval(Integer seconds) {
+    this.checkpointSaveInterval = seconds;
+  }
+  public Integer getCheckpointSaveInterval() {
+    return this.checkpointSaveInterval;
+  }
+  protected Integer checkpointSaveInterval = 30;
+  
+  // the completed documents, null if no checkpoint is used
+  protected CompletionCheckpoint checkpoint = null;
+  protected long lastCheckpointSave = 0L;
+
   
   public void populate( // OK
       URL directory, FileFilter filter,
@@ -152,6 +315,8 @@ public abstract class VirtualCorpus
   // for finding index for document name
   //REMOVE protected Map<String,Integer> documentIndexes = new HashMap<String,Integer>();
   
+  // the size in bytes of each document, null if not known
+  protected long[] documentSizes = null;
   protected Map<String,Document> loadedDocuments = new HashMap<String,Document>();
   
   private static Logger logger = Logger.getLogger(VirtualCorpus.class);
@@ -212,6 +377,10 @@ public abstract class VirtualCorpus
               " is not contained in corpus "+this.getName());
     }
     if(isDocumentLoaded(index)) {
+      if(ourDS != null) {
+        // wait for an autosave of the document which is in progress
+        ourDS.acquireDocument(doc);
+      }
       if(sync) { 
         try { 
           doc.sync();
@@ -221,10 +390,48 @@ public abstract class VirtualCorpus
       }
       loadedDocuments.remove(docName);
       isLoadeds.set(index, false);
+      if(ourDS != null) {
+        ourDS.untrackDocument(doc);
+      }
+      if(sync) {
+        documentCompleted(index);
+      }
+      if(getLockDocuments()) {
+        unlockDocument(docName);
+      }
       //System.err.println("Document unloaded: "+docName);
     } // else silently do nothing
   }
   
+  /**
+   * Tell the corpus that the loaded document is not changed by anyone 
+   * until it is returned by the corpus again or unloaded, so that it can 
+   * be saved by autosaving in the meantime without waiting for it to be
+   * idle. This does nothing if autosaving is off.
+   * 
+   * @param doc
+   */
+  public void releaseDocument(Document doc) {
+    if(ourDS != null) {
+      ourDS.releaseDocument(doc);
+    }
+  }
+
+  /**
+   * Return the loaded document with the given name, acquired again if it
+   * was released, see {@link #releaseDocument(gate.Document)}.
+   * 
+   * @param docName
+   * @return the document or null if it is not loaded
+   */
+  protected Document getLoadedDocument(String docName) {
+    Document doc = loadedDocuments.get(docName);
+    if(doc != null && ourDS != null) {
+      ourDS.acquireDocument(doc);
+    }
+    return doc;
+  }
+
   /**
    * Get the list of document names in this corpus.
    *
@@ -246,6 +453,114 @@ public abstract class VirtualCorpus
     return documentNames.get(i);
   }
 
+  /**
+   * Return a 64 bit fingerprint of the document names of this corpus, in
+   * order. This is used to detect if something that refers to documents by
+   * their index, like a saved subset corpus membership, is still valid for
+   * the corpus. The fingerprint is calculated from all names on each call.
+   *
+   * @return the fingerprint
+   */
+  public long getNameListFingerprint() {
+    return getNameListFingerprint(documentNames);
+  }
+
+  /**
+   * Return the size in bytes of the document with the given index, as 
+   * recorded when the document names were read, or -1 if it is not known.
+   * The size is the size of the stored document, e.g. the file length, 
+   * not the length of the document content.
+   *
+   * @param index
+   * @return
+   */
+  public long getDocumentSize(int index) {
+    if(index < 0 || index >= documentNames.size()) {
+      throw new IndexOutOfBoundsException(
+          "Index "+index+" not in corpus "+this.getName()+" of size "+documentNames.size());
+    }
+    if(documentSizes == null || index >= documentSizes.length) {
+      return -1L;
+    }
+    return documentSizes[index];
+  }
+
+  protected void setDocumentSize(int index, long size) {
+    if(documentSizes == null) {
+      documentSizes = new long[Math.max(16, index + 1)];
+      Arrays.fill(documentSizes, -1L);
+    } else if(index >= documentSizes.length) {
+      int oldLength = documentSizes.length;
+      documentSizes = Arrays.copyOf(documentSizes, Math.max(index + 1, oldLength * 2));
+      Arrays.fill(documentSizes, oldLength, documentSizes.length, -1L);
+    }
+    documentSizes[index] = size;
+  }
+
+  /**
+   * Put the documents into the order given by the documentOrder parameter.
+   * This must be called when all document names and sizes have been read,
+   * before anything refers to documents by index.
+   */
+  protected void applyDocumentOrder() throws ResourceInstantiationException {
+    if(getDocumentOrder() == null || getDocumentOrder().isEmpty() || 
+       documentNames.isEmpty()) {
+      return;
+    }
+    if(documentSizes == null) {
+      throw new ResourceInstantiationException(
+        "documentOrder "+getDocumentOrder()+" needs document sizes, but none were recorded");
+    }
+    long[] sizes = new long[documentNames.size()];
+    for(int i = 0; i < sizes.length; i++) {
+      sizes[i] = getDocumentSize(i);
+    }
+    int[] order;
+    try {
+      order = new SizeScheduler(sizes).getOrder(getDocumentOrder());
+    } catch (IllegalArgumentException ex) {
+      throw new ResourceInstantiationException(ex.getMessage());
+    }
+    reorderDocuments(order);
+  }
+
+  /**
+   * Reorder the documents so that the document at index i is the one which
+   * was at index order[i]. No document must be loaded.
+   * @param order
+   */
+  protected void reorderDocuments(int[] order) {
+    List<String> names = new ArrayList<String>(order.length);
+    long[] sizes = new long[order.length];
+    documentIndexes.clear();
+    for(int i = 0; i < order.length; i++) {
+      String name = documentNames.get(order[i]);
+      names.add(name);
+      documentIndexes.put(name, i);
+      sizes[i] = getDocumentSize(order[i]);
+    }
+    documentNames.clear();
+    documentNames.addAll(names);
+    documentSizes = sizes;
+  }
+
+  protected static long getNameListFingerprint(List<String> names) {
+    // 64 bit FNV-1a over the characters of all names, with a value
+    // outside of the char range mixed in after each name
+    long hash = 0xcbf29ce484222325L;
+    int n = names.size();
+    for(int i = 0; i < n; i++) {
+      String name = names.get(i);
+      for(int c = 0; c < name.length(); c++) {
+        hash ^= name.charAt(c);
+        hash *= 0x100000001b3L;
+      }
+      hash ^= 0x10000;
+      hash *= 0x100000001b3L;
+    }
+    return hash ^ n;
+  }
+
   /**
    * @return
    */
@@ -321,6 +636,346 @@ public abstract class VirtualCorpus
 
   protected abstract void saveDocument(Document doc);
   
+  /**
+   * Turn on autosaving in the dummy datastore if an autoSaveInterval 
+   * is set and the corpus is not read-only. This must be called after
+   * the dummy datastore has been created.
+   */
+  protected void startAutoSaving() throws ResourceInstantiationException {
+    if(getAutoSaveInterval() == null || getAutoSaveInterval() <= 0 || getReadonly()) {
+      return;
+    }
+    try {
+      ourDS.setAutoSaveInterval(getAutoSaveInterval());
+      if(getAutoSaveBatchSize() != null) {
+        ourDS.setAutoSaveBatchSize(getAutoSaveBatchSize());
+      }
+      ourDS.setAutoSaving(true);
+    } catch (Exception ex) {
+      throw new ResourceInstantiationException("Could not turn on autosaving", ex);
+    }
+  }
+  
+  /**
+   * Try to get an exclusive lock on the document with the given name, 
+   * which is shared with all other processes using the same corpus. This
+   * never waits for a lock held by someone else. Locking a document 
+   * which is already locked by this corpus succeeds.
+   * 
+   * @param docName
+   * @return true if the lock was acquired, false if the document is 
+   * locked by someone else
+   */
+  public boolean lockDocument(String docName) {
+    throw new MethodNotImplementedException(
+            notImplementedMessage("lockDocument(String)"));
+  }
+  
+  /**
+   * Release the lock on the document if this corpus holds it.
+   * 
+   * @param docName 
+   */
+  public void unlockDocument(String docName) {
+    throw new MethodNotImplementedException(
+            notImplementedMessage("unlockDocument(String)"));
+  }
+  
+  /**
+   * For iterators: true if the document with the index can be returned,
+   * which is always the case unless it was completed in an earlier run or
+   * lockDocuments is true and the document is locked by someone else. 
+   */
+  protected boolean lockForIteration(int index) {
+    if(checkpoint != null && checkpoint.isCompleted(index)) {
+      return false;
+    }
+    return !getLockDocuments() || lockDocument(documentNames.get(index));
+  }
+  
+  /**
+   * True if a checkpoint of completed documents is kept.
+   * @return
+   */
+  protected boolean isCheckpointEnabled() {
+    return getCheckpointFileURL() != null;
+  }
+  
+  /**
+   * Create the checkpoint and load the documents completed earlier, if
+   * a checkpoint is enabled. This must be called when the documents and 
+   * their order are final.
+   */
+  protected void startCheckpointing() throws ResourceInstantiationException {
+    if(!isCheckpointEnabled()) {
+      return;
+    }
+    checkpoint = new CompletionCheckpoint();
+    try {
+      loadCheckpoint();
+    } catch (IOException ex) {
+      throw new ResourceInstantiationException("Could not load the checkpoint", ex);
+    }
+    lastCheckpointSave = System.currentTimeMillis();
+    logger.info("VirtualCorpus "+getName()+": "+checkpoint.size()+
+      " documents completed earlier will be skipped");
+  }
+  
+  /**
+   * Load the completed documents into the checkpoint. 
+   */
+  protected void loadCheckpoint() throws IOException {
+    File file = Files.fileFromURL(getCheckpointFileURL());
+    if(file.exists() && 
+       !checkpoint.load(file, documentNames.size(), getNameListFingerprint())) {
+      logger.warn("VirtualCorpus warning: the documents have changed since checkpoint "+
+        file+" was saved, starting with no completed documents");
+    }
+  }
+  
+  /**
+   * Store the checkpoint. This is only called if documents were completed 
+   * since the last save.
+   */
+  protected void saveCheckpoint() throws IOException {
+    checkpoint.save(Files.fileFromURL(getCheckpointFileURL()), 
+      documentNames.size(), getNameListFingerprint());
+  }
+  
+  /**
+   * Save the checkpoint if documents were completed since it was last 
+   * saved. This happens automatically when the corpus is synced or closed.
+   */
+  public synchronized void saveCheckpointIfModified() {
+    if(checkpoint == null || !checkpoint.isModified()) {
+      return;
+    }
+    try {
+      saveCheckpoint();
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Could not save the checkpoint", ex);
+    }
+    lastCheckpointSave = System.currentTimeMillis();
+  }
+  
+  /**
+   * Called when the document with the index has been unloaded after it 
+   * was synced. This records the document as completed in the checkpoint
+   * and saves the checkpoint if the checkpointSaveInterval has passed.
+   * Subclasses which do not write saved documents immediately should only 
+   * call {@link #markCompleted(int)} once the document has been written.
+   * @param index
+   */
+  protected void documentCompleted(int index) {
+    markCompleted(index);
+  }
+  
+  protected synchronized void markCompleted(int index) {
+    if(checkpoint == null || !checkpoint.markCompleted(index)) {
+      return;
+    }
+    long interval = getCheckpointSaveInterval() == null ? 0L : getCheckpointSaveInterval() * 1000L;
+    if(System.currentTimeMillis() - lastCheckpointSave >= interval) {
+      try {
+        saveCheckpointIfModified();
+      } catch (GateRuntimeException ex) {
+        // try again with the next completed document
+        logger.error("VirtualCorpus: could not save the checkpoint", ex);
+        lastCheckpointSave = System.currentTimeMillis();
+      }
+    }
+  }
+  
+  /**
+   * True if the document with the index was completed in this run or
+   * an earlier run using the same checkpoint.
+   * @param index
+   * @return
+   */
+  public boolean isDocumentCompleted(int index) {
+    return checkpoint != null && checkpoint.isCompleted(index);
+  }
+  
+  /**
+   * Create a subset corpus with all documents which have not been 
+   * completed yet. Controllers which process a corpus by index instead of 
+   * using its iterator can be run on this corpus to resume a run.
+   * 
+   * @param name
+   * @return
+   * @throws ResourceInstantiationException 
+   */
+  public VirtualSubsetCorpus createRemainingCorpus(String name) 
+    throws ResourceInstantiationException {
+    int n = size();
+    int[] remaining = new int[n];
+    int m = 0;
+    for(int i = 0; i < n; i++) {
+      if(!isDocumentCompleted(i)) {
+        remaining[m++] = i;
+      }
+    }
+    VirtualSubsetCorpus corpus = createSubsetCorpus(name);
+    corpus.addParentIndexesAndFire(remaining, m);
+    return corpus;
+  }
+  
+  protected void stopAutoSaving() {
+    if(ourDS != null && ourDS.isAutoSaving()) {
+      try {
+        ourDS.setAutoSaving(false);
+      } catch (PersistenceException ex) {
+        logger.error("Could not turn off autosaving", ex);
+      }
+    }
+  }
+  
+  /**
+   * Return the feature index of this corpus or null if no features 
+   * are indexed.
+   * 
+   * @return 
+   */
+  public FeatureIndex getFeatureIndex() {
+    return featureIndex;
+  }
+  
+  /**
+   * Update the feature index with the features of a document which is 
+   * being saved. 
+   * 
+   * @param doc
+   * @return the indexed features of the document and their values, or null
+   * if there is no feature index
+   */
+  protected Map<String,String> updateFeatureIndex(Document doc) {
+    if(featureIndex == null) {
+      return null;
+    }
+    Integer index = documentIndexes.get(doc.getName());
+    if(index == null) {
+      return null;
+    }
+    return featureIndex.update(index, doc.getFeatures());
+  }
+  
+  /**
+   * Create a new, empty subset corpus for this corpus. The documents can
+   * then be added to the subset corpus by their index in this corpus, 
+   * without loading them.
+   * 
+   * @param name the name of the new corpus
+   * @return the new subset corpus
+   * @throws ResourceInstantiationException 
+   */
+  public VirtualSubsetCorpus createSubsetCorpus(String name) 
+    throws ResourceInstantiationException {
+    throw new MethodNotImplementedException(
+            notImplementedMessage("createSubsetCorpus(String)"));
+  }
+  
+  protected VirtualSubsetCorpus createSubsetCorpus(String className, 
+      String parentParameter, String name) throws ResourceInstantiationException {
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put(parentParameter, this);
+    return (VirtualSubsetCorpus)Factory.createResource(className, parms, null, name);
+  }
+  
+  /**
+   * Create a new document from GATE XML which is read from the given
+   * stream reader. The XML is parsed directly from the stream, so the
+   * serialized form of the document never has to be held in memory.
+   * 
+   * @param docName the name of the new document
+   * @param xsr a stream reader positioned at the start of the GATE XML
+   * @return the new document
+   */
+  protected Document createDocumentFromXmlStream(String docName, XMLStreamReader xsr) {
+    FeatureMap params = Factory.newFeatureMap();
+    params.put(Document.DOCUMENT_STRING_CONTENT_PARAMETER_NAME, "");
+    params.put(Document.DOCUMENT_MIME_TYPE_PARAMETER_NAME, "text/plain");
+    Document doc;
+    try {
+      doc = (Document) Factory.createResource(DocumentImpl.class.getName(),
+          params, null, docName);
+    } catch (ResourceInstantiationException ex) {
+      throw new GateRuntimeException("Exception creating the document "+docName, ex);
+    }
+    try {
+      // readGateXmlDocument expects the reader to be positioned on the 
+      // GateDocument tag
+      xsr.nextTag();
+      DocumentStaxUtils.readGateXmlDocument(xsr, doc);
+    } catch (XMLStreamException ex) {
+      Factory.deleteResource(doc);
+      throw new GateRuntimeException("Could not parse GATE XML for document "+docName, ex);
+    } finally {
+      try {
+        xsr.close();
+      } catch (XMLStreamException ex) {
+        logger.debug("Could not close the XML reader for document "+docName, ex);
+      }
+    }
+    return doc;
+  }
+  
+  protected Document createDocumentFromXmlStream(String docName, InputStream is, String encoding) {
+    try {
+      return createDocumentFromXmlStream(docName, 
+        getXmlInputFactory().createXMLStreamReader(is, encoding));
+    } catch (XMLStreamException ex) {
+      throw new GateRuntimeException("Could not read GATE XML for document "+docName, ex);
+    }
+  }
+  
+  protected Document createDocumentFromXmlStream(String docName, Reader reader) {
+    try {
+      return createDocumentFromXmlStream(docName, 
+        getXmlInputFactory().createXMLStreamReader(reader));
+    } catch (XMLStreamException ex) {
+      throw new GateRuntimeException("Could not read GATE XML for document "+docName, ex);
+    }
+  }
+  
+  /**
+   * Write the document in GATE XML format to the given writer. This 
+   * produces the same output as doc.toXml() but without creating a String
+   * of the whole serialization first. The writer is flushed but not closed.
+   * 
+   * @param doc the document to write
+   * @param writer the writer to write to 
+   * @param encoding the encoding to put into the XML declaration
+   */
+  protected void writeDocumentXml(Document doc, Writer writer, String encoding) {
+    try {
+      XMLStreamWriter xsw = getXmlOutputFactory().createXMLStreamWriter(writer);
+      xsw.writeStartDocument(encoding, "1.0");
+      xsw.writeCharacters("\n");
+      DocumentStaxUtils.writeDocument(doc, xsw, "");
+      xsw.writeEndDocument();
+      xsw.flush();
+    } catch (XMLStreamException ex) {
+      throw new GateRuntimeException("Could not write GATE XML for document "+doc.getName(), ex);
+    }
+  }
+  
+  private static XMLInputFactory xmlInputFactory = null;
+  private static XMLOutputFactory xmlOutputFactory = null;
+  
+  protected static synchronized XMLInputFactory getXmlInputFactory() {
+    if(xmlInputFactory == null) {
+      xmlInputFactory = XMLInputFactory.newInstance();
+    }
+    return xmlInputFactory;
+  }
+
+  protected static synchronized XMLOutputFactory getXmlOutputFactory() {
+    if(xmlOutputFactory == null) {
+      xmlOutputFactory = XMLOutputFactory.newInstance();
+    }
+    return xmlOutputFactory;
+  }
+  
   
   @Override
   public abstract Document get(int index);
@@ -532,6 +1187,16 @@ public abstract class VirtualCorpus
   }
 
 
+  /**
+   * True if the documents of the corpus are all known when it is created,
+   * so that calling size() has no side effects. Corpora which claim or 
+   * read documents while they are processed return false.
+   * @return
+   */
+  public boolean hasFixedSize() {
+    return true;
+  }
+
   /**
    * Check if the corpus is empty.
    *
@@ -21,12 +21,31 @@
 
 package at.ofai.gate.virtualcorpus;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.URL;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import gate.*;
 import gate.creole.*;
+import gate.creole.metadata.CreoleParameter;
+import gate.creole.metadata.Optional;
 import gate.event.CorpusEvent;
 import gate.event.CorpusListener;
 import gate.event.CreoleEvent;
@@ -48,6 +67,11 @@ import gate.util.*;
  * with a VirtualCorpus and other situations where one wants to create 
  * corpora from documents in an existing corpus for subsetting, sampling etc.
  * <p>
+ * Instead of adding documents one by one, the initial content can be 
+ * specified by name patterns, index ranges or a file of names, which 
+ * are evaluated on the names of the parent corpus without loading any
+ * document.
+ * <p>
  * NOTE: all non-subset corpora are currently immutable!
  * <p>
  * Removing a SubsetCorpus will not remove the datastore. The normal way
@@ -70,13 +94,10 @@ public abstract class VirtualSubsetCorpus  extends AbstractLanguageResource
    * 
    */
 
-  // for accessing document name by index
-  protected List<String> documentNames = new ArrayList<String>();
-  protected List<Integer> originalIndexes = new ArrayList<Integer>();
-  // for checking if ith document is loaded
-  //protected List<Boolean> isLoadeds = new ArrayList<Boolean>();
-  // for finding index for document name
-  protected Map<String,Integer> documentIndexes = new HashMap<String,Integer>();
+  // the indexes of our documents in the parent corpus, the position of
+  // a document in this corpus is its position in that set. Document names 
+  // are always looked up in the parent corpus.
+  protected ParentIndexSet members = new ParentIndexSet();
 
 
 
@@ -86,6 +107,87 @@ public abstract class VirtualSubsetCorpus  extends AbstractLanguageResource
 
   protected VirtualCorpus virtualCorpus;
   
+  //***************
+  // Parameters
+  //***************
+  
+  /**
+   * Patterns for the names of the documents of the parent corpus which 
+   * should initially be in this corpus. A pattern is a glob pattern, where 
+   * "*" matches any part of a name within one path segment, "**" matches
+   * across segments, "?" matches a single character and "{a,b}" matches 
+   * either alternative, e.g. <code>2019/**&#47;*.xml</code>. 
+   * Patterns which start with "regex:" are Java regular expressions which
+   * must match the whole name.
+   * 
+   * @param patterns 
+   */
+  @Optional
+  @CreoleParameter(
+    comment = "Glob or regex: patterns of parent document names to include initially")
+  public void setNamePatterns(List<String> patterns) { namePatterns = patterns; }
+  public List<String> getNamePatterns() { return namePatterns; }
+  protected List<String> namePatterns;
+  
+  /**
+   * Ranges of parent corpus indexes to include initially, a comma 
+   * separated list of "from-to" (inclusive), "from-" or single indexes,
+   * e.g. <code>0-99999,200000-</code>.
+   * 
+   * @param ranges 
+   */
+  @Optional
+  @CreoleParameter(
+    comment = "Comma separated ranges of parent indexes to include initially, e.g. 0-99,200-",
+    defaultValue = "")
+  public void setIndexRanges(String ranges) { indexRanges = ranges; }
+  public String getIndexRanges() { return indexRanges; }
+  protected String indexRanges = "";
+  
+  /**
+   * A UTF-8 text file with one document name per line. All documents of
+   * the parent corpus with these names are included initially.
+   * 
+   * @param url 
+   */
+  @Optional
+  @CreoleParameter(
+    comment = "File with one parent document name per line to include initially")
+  public void setKeyListFileUrl(URL url) { keyListFileUrl = url; }
+  public URL getKeyListFileUrl() { return keyListFileUrl; }
+  protected URL keyListFileUrl;
+  
+  /**
+   * A membership file written by {@link #saveMembership(java.io.File)}. 
+   * All documents saved in that file are included initially. If the 
+   * document names of the parent corpus have changed since the file was
+   * written, initialization fails.
+   * 
+   * @param url 
+   */
+  @Optional
+  @CreoleParameter(
+    comment = "Membership file saved from a subset corpus of the same parent to include initially")
+  public void setMembershipFileUrl(URL url) { membershipFileUrl = url; }
+  public URL getMembershipFileUrl() { return membershipFileUrl; }
+  protected URL membershipFileUrl;
+  
+  /**
+   * Feature names and values: all documents of the parent corpus which 
+   * have all these feature values, according to the feature index of the
+   * parent corpus, are included initially. 
+   * 
+   * @param constraints 
+   */
+  @Optional
+  @CreoleParameter(
+    comment = "Indexed feature values of the parent documents to include initially")
+  public void setFeatureConstraints(FeatureMap constraints) { featureConstraints = constraints; }
+  public FeatureMap getFeatureConstraints() { return featureConstraints; }
+  protected FeatureMap featureConstraints;
+  
+  protected static final int MEMBERSHIP_MAGIC = 0x56435342;
+  
   /**
    * Initializes the JDBCSubsetCorpus LR
    * @return 
@@ -103,9 +205,382 @@ public abstract class VirtualSubsetCorpus  extends AbstractLanguageResource
     // listen for events on this corpus
     // TODO: listen for events on the parent corpus too!
     Gate.getCreoleRegister().addCreoleListener(this);
+    if(getNamePatterns() != null) {
+      for(String pattern : getNamePatterns()) {
+        addDocumentsMatching(pattern);
+      }
+    }
+    if(getIndexRanges() != null && !getIndexRanges().trim().isEmpty()) {
+      for(String range : getIndexRanges().split(",")) {
+        range = range.trim();
+        int dash = range.indexOf('-');
+        try {
+          if(dash < 0) {
+            int index = Integer.parseInt(range);
+            addDocumentRange(index, index + 1);
+          } else {
+            int from = Integer.parseInt(range.substring(0, dash).trim());
+            String to = range.substring(dash + 1).trim();
+            addDocumentRange(from, 
+              to.isEmpty() ? virtualCorpus.size() : Integer.parseInt(to) + 1);
+          }
+        } catch (NumberFormatException ex) {
+          throw new ResourceInstantiationException("Not a valid index range: "+range, ex);
+        }
+      }
+    }
+    if(getKeyListFileUrl() != null) {
+      try {
+        addDocumentsFromFile(getKeyListFileUrl(), "UTF-8");
+      } catch (IOException ex) {
+        throw new ResourceInstantiationException("Could not read key list file "+
+          getKeyListFileUrl(), ex);
+      }
+    }
+    if(getFeatureConstraints() != null && !getFeatureConstraints().isEmpty()) {
+      try {
+        addDocumentsWithFeatures(getFeatureConstraints());
+      } catch (GateRuntimeException ex) {
+        throw new ResourceInstantiationException(ex.getMessage(), ex);
+      }
+    }
+    if(getMembershipFileUrl() != null) {
+      try {
+        loadMembership(getMembershipFileUrl());
+      } catch (IOException ex) {
+        throw new ResourceInstantiationException("Could not read membership file "+
+          getMembershipFileUrl(), ex);
+      } catch (GateRuntimeException ex) {
+        throw new ResourceInstantiationException(ex.getMessage(), ex);
+      }
+    }
     return this;
   }
   
+  /**
+   * Add all documents of the parent corpus whose name matches the pattern.
+   * See {@link #setNamePatterns(java.util.List)} for the pattern syntax.
+   * The names are matched in parallel and an event is fired for each 
+   * document added, see {@link #fireMembershipChanges(at.ofai.gate.virtualcorpus.ParentIndexSet)}.
+   * 
+   * @param pattern a glob pattern or a regular expression prefixed with "regex:"
+   * @return the number of documents added
+   */
+  public int addDocumentsMatching(String pattern) {
+    final Pattern regex;
+    if(pattern.startsWith("regex:")) {
+      regex = Pattern.compile(pattern.substring("regex:".length()));
+    } else {
+      regex = Pattern.compile(globToRegex(pattern));
+    }
+    final int n = virtualCorpus.size();
+    int nThreads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), n / 10000));
+    final int chunk = (n + nThreads - 1) / Math.max(nThreads, 1);
+    ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+    List<Future<int[]>> results = new ArrayList<Future<int[]>>();
+    try {
+      for(int t = 0; t < nThreads; t++) {
+        final int from = t * chunk;
+        final int to = Math.min(n, from + chunk);
+        results.add(executor.submit(new Callable<int[]>() {
+          @Override
+          public int[] call() {
+            int[] found = new int[64];
+            int m = 0;
+            Matcher matcher = regex.matcher("");
+            for(int i = from; i < to; i++) {
+              if(matcher.reset(virtualCorpus.getDocumentName(i)).matches()) {
+                if(m == found.length) {
+                  found = Arrays.copyOf(found, m * 2);
+                }
+                found[m++] = i;
+              }
+            }
+            return Arrays.copyOf(found, m);
+          }
+        }));
+      }
+      int total = 0;
+      List<int[]> parts = new ArrayList<int[]>();
+      for(Future<int[]> result : results) {
+        int[] part = result.get();
+        parts.add(part);
+        total += part.length;
+      }
+      int[] all = new int[total];
+      int pos = 0;
+      for(int[] part : parts) {
+        System.arraycopy(part, 0, all, pos, part.length);
+        pos += part.length;
+      }
+      return addParentIndexesAndFire(all, total);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new GateRuntimeException("Interrupted while matching "+pattern, ex);
+    } catch (ExecutionException ex) {
+      throw new GateRuntimeException("Could not match "+pattern, ex.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+  
+  /**
+   * Add all documents of the parent corpus with an index from "from" 
+   * (inclusive) to "to" (exclusive).
+   * 
+   * @param from
+   * @param to
+   * @return the number of documents added
+   */
+  public int addDocumentRange(int from, int to) {
+    if(from < 0 || to > virtualCorpus.size() || from > to) {
+      throw new GateRuntimeException("Range "+from+" to "+to+
+        " not in parent corpus of size "+virtualCorpus.size());
+    }
+    int[] indexes = new int[to - from];
+    for(int i = from; i < to; i++) {
+      indexes[i - from] = i;
+    }
+    return addParentIndexesAndFire(indexes, indexes.length);
+  }
+  
+  /**
+   * Add all documents of the parent corpus whose names are listed in the
+   * file, one name per line. Empty lines and names which are not in the 
+   * parent corpus are ignored.
+   * 
+   * @param url
+   * @param encoding
+   * @return the number of documents added
+   * @throws IOException 
+   */
+  public int addDocumentsFromFile(URL url, String encoding) throws IOException {
+    BufferedReader reader = new BufferedReader(
+      new InputStreamReader(url.openStream(), encoding));
+    int[] indexes = new int[1024];
+    int n = 0;
+    int notFound = 0;
+    try {
+      String line;
+      while((line = reader.readLine()) != null) {
+        line = line.trim();
+        if(line.isEmpty()) {
+          continue;
+        }
+        int parentIndex = getParentIndex(line);
+        if(parentIndex < 0) {
+          notFound++;
+          continue;
+        }
+        if(n == indexes.length) {
+          indexes = Arrays.copyOf(indexes, n * 2);
+        }
+        indexes[n++] = parentIndex;
+      }
+    } finally {
+      reader.close();
+    }
+    if(notFound > 0) {
+      System.err.println("VirtualSubsetCorpus: "+notFound+" names from "+url+
+        " not in parent corpus "+virtualCorpus.getName());
+    }
+    return addParentIndexesAndFire(indexes, n);
+  }
+  
+  /**
+   * Add all documents of the parent corpus which have all the given 
+   * feature values, according to the feature index of the parent corpus. 
+   * No documents are loaded for this.
+   * 
+   * @param constraints feature names and values
+   * @return the number of documents added
+   * @throws GateRuntimeException if the parent corpus does not index 
+   * all the features
+   */
+  public int addDocumentsWithFeatures(Map<?,?> constraints) {
+    FeatureIndex featureIndex = virtualCorpus.getFeatureIndex();
+    if(featureIndex == null) {
+      throw new GateRuntimeException("Parent corpus "+virtualCorpus.getName()+
+        " does not index any features");
+    }
+    ParentIndexSet before = membersForEvents();
+    int added = members.or(featureIndex.find(constraints));
+    fireMembershipChanges(before);
+    return added;
+  }
+  
+  /**
+   * Save the members of this corpus to a file as a compressed bitmap 
+   * over the parent indexes. The size of the parent corpus and a 
+   * fingerprint of its document names are saved too, so that a file
+   * which does not match the parent corpus any more is detected when
+   * it is loaded.
+   * 
+   * @param file
+   * @throws IOException 
+   */
+  public void saveMembership(File file) throws IOException {
+    File tmpFile = new File(file.getPath()+".tmp");
+    DataOutputStream out = new DataOutputStream(
+      new BufferedOutputStream(new FileOutputStream(tmpFile)));
+    try {
+      out.writeInt(MEMBERSHIP_MAGIC);
+      out.writeInt(virtualCorpus.documentNames.size());
+      out.writeLong(virtualCorpus.getNameListFingerprint());
+      members.write(out);
+    } finally {
+      out.close();
+    }
+    java.nio.file.Files.move(tmpFile.toPath(), file.toPath(), 
+      StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+  }
+  
+  /**
+   * Add the documents from a file written by {@link #saveMembership(java.io.File)}
+   * to this corpus. 
+   * 
+   * @param url
+   * @return the number of documents added
+   * @throws IOException 
+   * @throws GateRuntimeException if the file was not saved for the 
+   * parent corpus with its current document names
+   */
+  public int loadMembership(URL url) throws IOException {
+    ParentIndexSet saved;
+    DataInputStream in = new DataInputStream(
+      new BufferedInputStream(url.openStream()));
+    try {
+      if(in.readInt() != MEMBERSHIP_MAGIC) {
+        throw new IOException("Not a membership file: "+url);
+      }
+      int parentSize = in.readInt();
+      long fingerprint = in.readLong();
+      if(parentSize != virtualCorpus.documentNames.size() ||
+         fingerprint != virtualCorpus.getNameListFingerprint()) {
+        throw new GateRuntimeException("Membership file "+url+
+          " is stale, the documents of parent corpus "+virtualCorpus.getName()+
+          " have changed");
+      }
+      saved = ParentIndexSet.read(in);
+    } finally {
+      in.close();
+    }
+    if(saved.size() > 0 && saved.get(saved.size() - 1) >= virtualCorpus.documentNames.size()) {
+      throw new IOException("Membership file "+url+" contains indexes beyond the parent corpus");
+    }
+    ParentIndexSet before = membersForEvents();
+    int added = members.or(saved);
+    fireMembershipChanges(before);
+    return added;
+  }
+  
+  /**
+   * Add all documents of the other subset corpus to this corpus. Both 
+   * corpora must have the same parent corpus. This takes time linear in 
+   * the size of the parent corpus and does not look at document names.
+   * 
+   * @param other
+   * @return the number of documents added
+   */
+  public int unionWith(VirtualSubsetCorpus other) {
+    checkSameParent(other);
+    ParentIndexSet before = membersForEvents();
+    int added = members.or(other.members);
+    fireMembershipChanges(before);
+    return added;
+  }
+  
+  /**
+   * Remove all documents from this corpus which are not in the other 
+   * subset corpus, see {@link #unionWith(at.ofai.gate.virtualcorpus.VirtualSubsetCorpus)}.
+   * 
+   * @param other
+   * @return the number of documents removed
+   */
+  public int intersectWith(VirtualSubsetCorpus other) {
+    checkSameParent(other);
+    ParentIndexSet before = membersForEvents();
+    int removed = members.and(other.members);
+    fireMembershipChanges(before);
+    return removed;
+  }
+  
+  /**
+   * Remove all documents from this corpus which are in the other 
+   * subset corpus, see {@link #unionWith(at.ofai.gate.virtualcorpus.VirtualSubsetCorpus)}.
+   * 
+   * @param other
+   * @return the number of documents removed
+   */
+  public int differenceWith(VirtualSubsetCorpus other) {
+    checkSameParent(other);
+    ParentIndexSet before = membersForEvents();
+    int removed = members.andNot(other.members);
+    fireMembershipChanges(before);
+    return removed;
+  }
+  
+  protected void checkSameParent(VirtualSubsetCorpus other) {
+    if(other.virtualCorpus != virtualCorpus) {
+      throw new GateRuntimeException("Corpus "+other.getName()+
+        " is not a subset of the same parent corpus as "+getName());
+    }
+  }
+  
+  protected int addParentIndexesAndFire(int[] parentIndexes, int n) {
+    ParentIndexSet before = membersForEvents();
+    int added = addParentIndexes(parentIndexes, n);
+    fireMembershipChanges(before);
+    return added;
+  }
+  
+  /**
+   * Convert a glob pattern for document names to a regular expression.
+   * 
+   * @param glob
+   * @return 
+   */
+  protected static String globToRegex(String glob) {
+    StringBuilder sb = new StringBuilder();
+    boolean inGroup = false;
+    for(int i = 0; i < glob.length(); i++) {
+      char c = glob.charAt(i);
+      switch(c) {
+        case '*':
+          if(i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+            i++;
+            // "**/" also matches no directory at all
+            if(i + 1 < glob.length() && glob.charAt(i + 1) == '/') {
+              i++;
+              sb.append("(?:.*/)?");
+            } else {
+              sb.append(".*");
+            }
+          } else {
+            sb.append("[^/]*");
+          }
+          break;
+        case '?':
+          sb.append("[^/]");
+          break;
+        case '{':
+          inGroup = true;
+          sb.append("(?:");
+          break;
+        case '}':
+          inGroup = false;
+          sb.append(")");
+          break;
+        case ',':
+          sb.append(inGroup ? "|" : ",");
+          break;
+        default:
+          sb.append(Pattern.quote(String.valueOf(c)));
+      }
+    }
+    return sb.toString();
+  }
+  
   /**
    * Test if the document with the given index is loaded. If an index is
    * specified that is not in the corpus, a GateRuntimeException is thrown.
@@ -117,18 +592,18 @@ public abstract class VirtualSubsetCorpus  extends AbstractLanguageResource
    * @return true if the document is loaded, false otherwise. 
    */
   public boolean isDocumentLoaded(int index) {
-    if(index < 0 || index >= originalIndexes.size()) {
+    if(index < 0 || index >= members.size()) {
       throw new GateRuntimeException("Document number "+index+
-              " not in corpus "+this.getName()+" of size "+originalIndexes.size());
+              " not in corpus "+this.getName()+" of size "+members.size());
     }    
-    return virtualCorpus.isDocumentLoaded(originalIndexes.get(index));
+    return virtualCorpus.isDocumentLoaded(members.get(index));
   }
 
   public boolean isDocumentLoaded(Document doc) {
     String docName = doc.getName();
     //System.out.println("DirCorp: called unloadDocument: "+docName);
-    Integer index = documentIndexes.get(docName);
-    if(index == null) {
+    int index = indexOf(doc);
+    if(index < 0) {
       throw new RuntimeException("Document "+docName+
               " is not contained in corpus "+this.getName());
     }
@@ -141,8 +616,7 @@ public abstract class VirtualSubsetCorpus  extends AbstractLanguageResource
   public void unloadDocument(Document doc) {
 
     String docName = doc.getName();
-    Integer index = documentIndexes.get(docName);
-    if(index == null) {
+    if(indexOf(doc) < 0) {
       throw new RuntimeException("Document "+docName+
               " is not contained in corpus "+this.getName());
     }
@@ -163,7 +637,10 @@ public abstract class VirtualSubsetCorpus  extends AbstractLanguageResource
    * @return the list of document names 
    */
   public List<String> getDocumentNames() {
-    List<String> newList = new ArrayList<String>(documentNames);
+    List<String> newList = new ArrayList<String>(members.size());
+    for(int i = 0; i < members.size(); i++) {
+      newList.add(virtualCorpus.getDocumentName(members.get(i)));
+    }
     return newList;
   }
 
@@ -174,7 +651,49 @@ public abstract class VirtualSubsetCorpus  extends AbstractLanguageResource
    * @return the name of the document with the given index
    */
   public String getDocumentName(int i) {
-    return documentNames.get(i);
+    return virtualCorpus.getDocumentName(members.get(i));
+  }
+
+  /**
+   * Return the size in bytes of the document with the given index as 
+   * recorded by the parent corpus, or -1 if it is not known.
+   *
+   * @param i the index of the document
+   * @return
+   */
+  public long getDocumentSize(int i) {
+    return virtualCorpus.getDocumentSize(members.get(i));
+  }
+  
+  /**
+   * Return the index in the parent corpus of the document with the given 
+   * name or -1 if there is no such document in the parent corpus.
+   * 
+   * @param docName
+   * @return 
+   */
+  protected int getParentIndex(String docName) {
+    Integer parentIndex = virtualCorpus.documentIndexes.get(docName);
+    return parentIndex == null ? -1 : parentIndex;
+  }
+  
+  /**
+   * Add the documents with the given parent corpus indexes to this corpus,
+   * without ever loading them. Indexes which are already in the corpus 
+   * are ignored. No events are fired for the documents added.
+   * 
+   * @param parentIndexes the parent indexes, in any order
+   * @param n the number of entries of parentIndexes to use
+   * @return the number of documents added
+   */
+  protected int addParentIndexes(int[] parentIndexes, int n) {
+    for(int i = 0; i < n; i++) {
+      if(parentIndexes[i] < 0 || parentIndexes[i] >= virtualCorpus.size()) {
+        throw new GateRuntimeException("Index "+parentIndexes[i]+
+          " not in parent corpus "+virtualCorpus.getName());
+      }
+    }
+    return members.addAll(parentIndexes, n);
   }
 
   public void populate(
@@ -271,33 +790,29 @@ public abstract class VirtualSubsetCorpus  extends AbstractLanguageResource
    * in the list of documents, return false and do not add the document.
    * Note that only the name is checked!
    * Otherwise check if the document is in the parent corpus, if yes, add
-   * it to this corpus by adding the name and the original index.
+   * it to this corpus by adding its parent index. Documents are always 
+   * kept in the order of the parent corpus, so the document will not 
+   * necessarily be added at the end.
    */
   public boolean add(Document doc) {
     //System.out.println("DocCorp: called add(Object): "+doc.getName());
     String docName = doc.getName();
-    Integer index = documentIndexes.get(docName);
-    if(index != null) {
+    // get the index of this document in the parent corpus
+    int parentIndex = getParentIndex(docName);
+    if(parentIndex < 0) {
+      throw new GateRuntimeException(
+        "Attempt to add a document to JDBCSubsetCorpus "+
+        this.getName()+
+        " but no document with that name is in the parent jdbc corpus "+
+        virtualCorpus.getName());
+    }
+    int i = members.add(parentIndex);
+    if(i < 0) {
       return false;  // if that name is already in the corpus, do not add
-    } else {
-      // get the index of this document in the parent corpus
-      Integer parentIndex = virtualCorpus.documentIndexes.get(docName);
-      if(parentIndex == null) {
-        throw new GateRuntimeException(
-          "Attempt to add a document to JDBCSubsetCorpus "+
-          this.getName()+
-          " but no document with that name is in the parent jdbc corpus "+
-          virtualCorpus.getName());
-      }
-      int i = documentNames.size();
-      documentNames.add(docName);
-      originalIndexes.add(parentIndex);
-      documentIndexes.put(docName, i);
-      fireDocumentAdded(new CorpusEvent(
-          this, doc, i, CorpusEvent.DOCUMENT_ADDED));
-      
-      return true;
     }
+    fireDocumentAdded(new CorpusEvent(
+        this, doc, i, CorpusEvent.DOCUMENT_ADDED));
+    return true;
   }
 
   /**
@@ -329,13 +844,14 @@ public abstract class VirtualSubsetCorpus  extends AbstractLanguageResource
   }
 
   /**
-   * This removes all documents from the corpus. Note that this does nothing
-   * when the saveDocuments parameter is set to false.
+   * This removes all documents from the corpus. The documents in the 
+   * parent corpus are not affected. An event is fired for each document
+   * removed, see {@link #fireMembershipChanges(at.ofai.gate.virtualcorpus.ParentIndexSet)}.
    */
   public void clear() {
-    for(int i=documentNames.size()-1; i>=0; i--) {
-      remove(i);
-    }
+    ParentIndexSet before = membersForEvents();
+    members.clear();
+    fireMembershipChanges(before);
   }
   
   /**
@@ -344,9 +860,7 @@ public abstract class VirtualSubsetCorpus  extends AbstractLanguageResource
    * for this.
    */
   public boolean contains(Object docObj) {
-    Document doc = (Document)docObj;
-    String docName = doc.getName();
-    return (documentIndexes.get(docName) != null);
+    return indexOf(docObj) >= 0;
   }
   
   /**
@@ -373,13 +887,12 @@ public abstract class VirtualSubsetCorpus  extends AbstractLanguageResource
    */
   public Document get(int index) {
     //System.out.println("DirCorp: called get(index): "+index);
-    if(index < 0 || index >= documentNames.size()) {
+    if(index < 0 || index >= members.size()) {
       throw new IndexOutOfBoundsException(
           "Index "+index+" not in corpus "+this.getName()+
-          " of size "+documentNames.size());
+          " of size "+members.size());
     }
-    String docName = documentNames.get(index);
-    return virtualCorpus.get(originalIndexes.get(index));
+    return virtualCorpus.get(members.get(index));
   }
 
   /**
@@ -391,12 +904,11 @@ public abstract class VirtualSubsetCorpus  extends AbstractLanguageResource
    */
   public int indexOf(Object docObj) {
     Document doc = (Document)docObj;
-    String docName = doc.getName();
-    Integer index = documentIndexes.get(docName);
-    if(index == null) {
+    int parentIndex = getParentIndex(doc.getName());
+    if(parentIndex < 0) {
       return -1;
     } else {
-      return index;
+      return members.indexOf(parentIndex);
     }
   }
 
@@ -406,7 +918,7 @@ public abstract class VirtualSubsetCorpus  extends AbstractLanguageResource
    * @return true if the corpus is empty
    */
   public boolean isEmpty() {
-    return (documentNames.isEmpty());
+    return (members.size() == 0);
   }
 
   /**
@@ -468,16 +980,13 @@ public abstract class VirtualSubsetCorpus  extends AbstractLanguageResource
    * @return the document that was just removed from the corpus
    */
   public Document remove(int index) {
-    if(index < 0 || index >= documentNames.size()) {
+    if(index < 0 || index >= members.size()) {
       throw new GateRuntimeException("Attempt to remove document with index "+
         index+
         "from JDBCSubsetCorpus "+this.getName()+
-        " of size "+documentNames.size());
+        " of size "+members.size());
     }
-    String docName = documentNames.get(index);
-    documentNames.remove(index);
-    originalIndexes.remove(index);
-    documentIndexes.remove(docName);
+    members.remove(index);
     fireDocumentRemoved(new CorpusEvent(
         this, null,  // can we get away with using null instead of doc?
         index, CorpusEvent.DOCUMENT_REMOVED));
@@ -495,10 +1004,7 @@ public abstract class VirtualSubsetCorpus  extends AbstractLanguageResource
     if(index == -1) {
       return false;
     }
-    String docName = documentNames.get(index);
-    documentNames.remove(index);
-    originalIndexes.remove(index);
-    documentIndexes.remove(docName);
+    members.remove(index);
     fireDocumentRemoved(new CorpusEvent(
         this, null,
         index, CorpusEvent.DOCUMENT_REMOVED));
@@ -545,7 +1051,7 @@ public abstract class VirtualSubsetCorpus  extends AbstractLanguageResource
   }
   
   public int size() {
-    return documentNames.size();
+    return members.size();
   }
 
   /**
@@ -593,6 +1099,52 @@ public abstract class VirtualSubsetCorpus  extends AbstractLanguageResource
     }
   }
 
+  /**
+   * Return a copy of the members before a bulk change, which is passed 
+   * to {@link #fireMembershipChanges(at.ofai.gate.virtualcorpus.ParentIndexSet)}
+   * after the change, or null if there are no listeners.
+   * 
+   * @return 
+   */
+  protected ParentIndexSet membersForEvents() {
+    if(listeners.isEmpty()) {
+      return null;
+    }
+    ParentIndexSet copy = new ParentIndexSet();
+    copy.or(members);
+    return copy;
+  }
+
+  /**
+   * Inform the listeners about a bulk change of the members, with one
+   * event per document. The removals are fired first, from the highest 
+   * index down, then the additions from the lowest index up, so the 
+   * index of each event is the index of the document in the corpus at 
+   * the time of the event. Since the documents are not loaded for this, 
+   * the document of the events is null and listeners have to use the 
+   * index, e.g. with {@link #getDocumentName(int)}.
+   * 
+   * @param before the members before the change, as returned by
+   * {@link #membersForEvents()}, nothing is fired if this is null
+   */
+  protected void fireMembershipChanges(ParentIndexSet before) {
+    if(before == null) {
+      return;
+    }
+    for(int i = before.size() - 1; i >= 0; i--) {
+      if(!members.contains(before.get(i))) {
+        fireDocumentRemoved(new CorpusEvent(
+            this, null, i, CorpusEvent.DOCUMENT_REMOVED));
+      }
+    }
+    for(int i = 0; i < members.size(); i++) {
+      if(!before.contains(members.get(i))) {
+        fireDocumentAdded(new CorpusEvent(
+            this, null, i, CorpusEvent.DOCUMENT_ADDED));
+      }
+    }
+  }
+
   protected void fireDocumentRemoved(CorpusEvent e) {
     for(CorpusListener listener : listeners) {
       listener.documentRemoved(e);
@@ -631,7 +1183,7 @@ public abstract class VirtualSubsetCorpus  extends AbstractLanguageResource
     int nextIndex = 0;
     @Override
     public boolean hasNext() {
-      return (documentNames.size() > nextIndex);
+      return (members.size() > nextIndex);
     }
     @Override
     public Document next() {
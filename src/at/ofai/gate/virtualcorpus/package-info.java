@@ -32,5 +32,7 @@
  * do not support adding or removing documents at this time: all VirtualCorpus
  * LRs are currently immutable (i.e. the content of corpus itself cannot be
  * changed, but the documents can of course be changed). 
+ * The exception is the PackedCorpus, which stores documents in large 
+ * segment files and allows adding documents so that it can be filled.
  */
 package at.ofai.gate.virtualcorpus;
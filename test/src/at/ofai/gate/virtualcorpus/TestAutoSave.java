@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2010- Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-VirtualCorpus
+ * (see https://github.com/johann-petrak/gateplugin-VirtualCorpus)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package at.ofai.gate.virtualcorpus;
+
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import java.io.File;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests for autosaving the changed loaded documents of a DirectoryCorpus.
+ * 
+ * @author Johann Petrak
+ */
+public class TestAutoSave extends VirtualCorpusTestCase {
+
+  protected File docDir;
+  protected DirectoryCorpus corpus;
+  
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    register(DirectoryCorpus.class);
+    docDir = createDocumentDirectory("docs", 3);
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("directoryURL", docDir.toURI().toURL());
+    params.put("readonly", false);
+    params.put("autoSaveInterval", 1);
+    corpus = (DirectoryCorpus)Factory.createResource(DirectoryCorpus.class.getName(), params);
+  }
+  
+  @Override
+  protected void tearDown() throws Exception {
+    Factory.deleteResource(corpus);
+    super.tearDown();
+  }
+  
+  public void testIdleDocumentIsSaved() throws Exception {
+    Document doc = corpus.get(0);
+    doc.getFeatures().put("autosaved", "yes");
+    // nobody releases the document, it is saved because it is idle
+    assertTrue("Document was autosaved", waitForFile(doc.getName(), "autosaved", 10000));
+    assertTrue(corpus.isDocumentLoaded(0));
+  }
+  
+  public void testBusyDocumentIsNotSaved() throws Exception {
+    Document doc = corpus.get(1);
+    long until = System.currentTimeMillis() + 3000;
+    int n = 0;
+    while(System.currentTimeMillis() < until) {
+      doc.getFeatures().put("busy"+(n++), "yes");
+      Thread.sleep(100);
+    }
+    assertFalse("Document changed all the time was saved", 
+      readFile(doc.getName()).contains("busy0"));
+    assertTrue("Document was autosaved after it became idle", 
+      waitForFile(doc.getName(), "busy"+(n-1), 10000));
+  }
+  
+  public void testReleasedDocumentIsSaved() throws Exception {
+    Document doc = corpus.get(2);
+    doc.getFeatures().put("released", "yes");
+    corpus.releaseDocument(doc);
+    assertTrue("Document was autosaved", waitForFile(doc.getName(), "released", 10000));
+    // getting the document again acquires it again
+    assertSame(doc, corpus.get(2));
+  }
+  
+  protected boolean waitForFile(String docName, String text, long millis) throws Exception {
+    long until = System.currentTimeMillis() + millis;
+    while(System.currentTimeMillis() < until) {
+      if(readFile(docName).contains(text)) {
+        return true;
+      }
+      Thread.sleep(100);
+    }
+    return false;
+  }
+  
+  protected String readFile(String docName) throws Exception {
+    return FileUtils.readFileToString(new File(docDir, docName), "UTF-8");
+  }
+}
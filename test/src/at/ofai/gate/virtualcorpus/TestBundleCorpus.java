@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2010- Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-VirtualCorpus
+ * (see https://github.com/johann-petrak/gateplugin-VirtualCorpus)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.ofai.gate.virtualcorpus;
+
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import java.io.File;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests for reading bundle files with one document per line through 
+ * their line index, and for writing the parallel output bundles.
+ * 
+ * @author Johann Petrak
+ */
+public class TestBundleCorpus extends VirtualCorpusTestCase {
+
+  protected File bundleA;
+  protected File bundleB;
+  protected File indexDir;
+  protected File outDir;
+  
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    register(BundleCorpus.class);
+    bundleA = new File(tmpDir, "a.txt");
+    FileUtils.writeStringToFile(bundleA, "first\n\nsecond\r\nthird\nfourth", "UTF-8");
+    bundleB = new File(tmpDir, "b.txt");
+    FileUtils.writeStringToFile(bundleB, "fifth\n", "UTF-8");
+    indexDir = new File(tmpDir, "index");
+    indexDir.mkdirs();
+    outDir = new File(tmpDir, "out");
+  }
+  
+  public void testReadLines() throws Exception {
+    BundleCorpus corpus = createCorpus(true, "text/plain", bundleA, bundleB);
+    try {
+      assertEquals(Arrays.asList("a.txt:0", "a.txt:1", "a.txt:2", "a.txt:3", "b.txt:0"), 
+        corpus.getDocumentNames());
+      assertEquals(Arrays.asList("first", "second", "third", "fourth", "fifth"), 
+        getContents(corpus));
+    } finally {
+      Factory.deleteResource(corpus);
+    }
+    // the line index is reused while the bundle does not change
+    File index = new File(indexDir, "a.txt.lineindex");
+    assertTrue(index.exists());
+    long modified = index.lastModified() - 10000;
+    index.setLastModified(modified);
+    corpus = createCorpus(true, "text/plain", bundleA);
+    try {
+      assertEquals(4, corpus.size());
+      assertEquals(modified, index.lastModified());
+    } finally {
+      Factory.deleteResource(corpus);
+    }
+    FileUtils.writeStringToFile(bundleA, "first\nsecond\n", "UTF-8");
+    corpus = createCorpus(true, "text/plain", bundleA);
+    try {
+      assertEquals(Arrays.asList("first", "second"), getContents(corpus));
+    } finally {
+      Factory.deleteResource(corpus);
+    }
+  }
+  
+  // documents are written in corpus order whatever order they are 
+  // finished in, up to the last saved one
+  public void testWriteOutput() throws Exception {
+    BundleCorpus corpus = createCorpus(false, "text/plain", bundleA);
+    try {
+      process(corpus, 2, true);
+      process(corpus, 0, true);
+      process(corpus, 1, false);
+    } finally {
+      Factory.deleteResource(corpus);
+    }
+    File output = new File(outDir, "a.txt");
+    assertEquals(3, FileUtils.readLines(output, "UTF-8").size());
+    corpus = createCorpus(true, "", output);
+    try {
+      assertEquals(Arrays.asList("first", "second", "third"), getContents(corpus));
+      assertEquals("yes", loadFeature(corpus, 0));
+      assertNull(loadFeature(corpus, 1));
+      assertEquals("yes", loadFeature(corpus, 2));
+    } finally {
+      Factory.deleteResource(corpus);
+    }
+  }
+  
+  protected void process(BundleCorpus corpus, int index, boolean save) {
+    Document doc = corpus.get(index);
+    doc.getFeatures().put("processed", "yes");
+    corpus.unloadDocument(doc, save);
+    Factory.deleteResource(doc);
+  }
+  
+  protected Object loadFeature(BundleCorpus corpus, int index) {
+    Document doc = corpus.get(index);
+    Object value = doc.getFeatures().get("processed");
+    corpus.unloadDocument(doc);
+    Factory.deleteResource(doc);
+    return value;
+  }
+  
+  protected static List<String> getContents(BundleCorpus corpus) {
+    String[] contents = new String[corpus.size()];
+    for(int i = 0; i < contents.length; i++) {
+      Document doc = corpus.get(i);
+      contents[i] = doc.getContent().toString();
+      corpus.unloadDocument(doc);
+      Factory.deleteResource(doc);
+    }
+    return Arrays.asList(contents);
+  }
+  
+  protected BundleCorpus createCorpus(boolean readonly, String mimeType, File... files) 
+    throws Exception {
+    FeatureMap params = Factory.newFeatureMap();
+    URL[] urls = new URL[files.length];
+    for(int i = 0; i < files.length; i++) {
+      urls[i] = files[i].toURI().toURL();
+    }
+    params.put("bundleURLs", Arrays.asList(urls));
+    params.put("readonly", readonly);
+    params.put("mimeType", mimeType);
+    params.put("indexDirectoryURL", indexDir.toURI().toURL());
+    if(!readonly) {
+      params.put("outputDirectoryURL", outDir.toURI().toURL());
+    }
+    return (BundleCorpus)Factory.createResource(BundleCorpus.class.getName(), params);
+  }
+}
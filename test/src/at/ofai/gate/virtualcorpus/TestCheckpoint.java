@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2010- Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-VirtualCorpus
+ * (see https://github.com/johann-petrak/gateplugin-VirtualCorpus)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.ofai.gate.virtualcorpus;
+
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests for recording completed documents in a checkpoint and skipping
+ * them when a DirectoryCorpus is created again.
+ * 
+ * @author Johann Petrak
+ */
+public class TestCheckpoint extends VirtualCorpusTestCase {
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    register(DirectoryCorpus.class);
+    register(DirectorySubsetCorpus.class);
+  }
+  
+  public void testSaveAndLoad() throws Exception {
+    CompletionCheckpoint checkpoint = new CompletionCheckpoint();
+    assertFalse(checkpoint.isModified());
+    assertTrue(checkpoint.markCompleted(7));
+    assertTrue(checkpoint.markCompleted(2));
+    assertFalse(checkpoint.markCompleted(7));
+    assertTrue(checkpoint.isModified());
+    assertEquals("[7, 2]", Arrays.toString(checkpoint.takeNewlyCompleted()));
+    assertFalse(checkpoint.isModified());
+    assertTrue(checkpoint.markCompleted(40));
+    File file = new File(tmpDir, "checkpoint");
+    checkpoint.save(file, 50, 1234L);
+    assertFalse(checkpoint.isModified());
+    assertFalse(new File(tmpDir, "checkpoint.tmp").exists());
+    CompletionCheckpoint loaded = new CompletionCheckpoint();
+    assertTrue(loaded.load(file, 50, 1234L));
+    assertEquals("[2, 7, 40]", Arrays.toString(loaded.getCompleted()));
+    assertTrue(loaded.isCompleted(40));
+    assertFalse(loaded.isCompleted(3));
+    assertFalse(loaded.isModified());
+    // saved for a different corpus
+    loaded = new CompletionCheckpoint();
+    assertFalse(loaded.load(file, 51, 1234L));
+    assertFalse(loaded.load(file, 50, 4321L));
+    assertEquals(0, loaded.size());
+    FileUtils.writeStringToFile(file, "something else", "UTF-8");
+    try {
+      loaded.load(file, 50, 1234L);
+      fail("Expected an IOException");
+    } catch (IOException ex) {
+      // expected
+    }
+  }
+  
+  public void testResume() throws Exception {
+    File dir = createDocumentDirectory("docs", 6);
+    File checkpointFile = new File(tmpDir, "checkpoint");
+    File crashFile = new File(tmpDir, "crash");
+    DirectoryCorpus corpus = createCorpus(dir, checkpointFile, 0);
+    List<String> names = corpus.getDocumentNames();
+    try {
+      Iterator<Document> it = corpus.iterator();
+      for(int i = 0; i < 4; i++) {
+        Document doc = it.next();
+        // the third document is not saved and not completed
+        corpus.unloadDocument(doc, i != 2);
+        Factory.deleteResource(doc);
+      }
+      assertTrue(corpus.isDocumentCompleted(0));
+      assertFalse(corpus.isDocumentCompleted(2));
+      // the checkpoint is saved after each document with an interval of 0,
+      // this is what is left when the process dies now
+      FileUtils.copyFile(checkpointFile, crashFile);
+    } finally {
+      Factory.deleteResource(corpus);
+    }
+    corpus = createCorpus(dir, crashFile, 0);
+    VirtualSubsetCorpus remaining = null;
+    try {
+      assertEquals(6, corpus.size());
+      List<String> expected = Arrays.asList(names.get(2), names.get(4), names.get(5));
+      assertEquals(expected, iterate(corpus, false));
+      // documents which were only iterated are not completed
+      assertEquals(expected, iterate(corpus, false));
+      remaining = corpus.createRemainingCorpus("remaining");
+      assertEquals(expected, remaining.getDocumentNames());
+    } finally {
+      if(remaining != null) {
+        Factory.deleteResource(remaining);
+      }
+      Factory.deleteResource(corpus);
+    }
+    // a checkpoint of different documents is ignored
+    createDocumentDirectory("docs", 7);
+    corpus = createCorpus(dir, crashFile, 0);
+    try {
+      assertEquals(7, iterate(corpus, false).size());
+    } finally {
+      Factory.deleteResource(corpus);
+    }
+  }
+  
+  public void testSaveInterval() throws Exception {
+    File dir = createDocumentDirectory("docs", 4);
+    File checkpointFile = new File(tmpDir, "checkpoint");
+    DirectoryCorpus corpus = createCorpus(dir, checkpointFile, 3600);
+    try {
+      assertEquals(4, iterate(corpus, true).size());
+      // not saved until the interval has passed or the corpus is synced
+      assertFalse(checkpointFile.exists());
+      corpus.sync();
+      assertTrue(checkpointFile.exists());
+    } finally {
+      Factory.deleteResource(corpus);
+    }
+    corpus = createCorpus(dir, checkpointFile, 3600);
+    try {
+      assertEquals(0, iterate(corpus, true).size());
+      VirtualSubsetCorpus remaining = corpus.createRemainingCorpus("remaining");
+      assertEquals(0, remaining.size());
+      Factory.deleteResource(remaining);
+    } finally {
+      Factory.deleteResource(corpus);
+    }
+  }
+  
+  // process all documents the iterator returns and return their names
+  protected List<String> iterate(DirectoryCorpus corpus, boolean save) {
+    List<String> names = new ArrayList<String>();
+    Iterator<Document> it = corpus.iterator();
+    while(it.hasNext()) {
+      Document doc = it.next();
+      names.add(doc.getName());
+      corpus.unloadDocument(doc, save);
+      Factory.deleteResource(doc);
+    }
+    return names;
+  }
+  
+  protected DirectoryCorpus createCorpus(File dir, File checkpointFile, int interval) 
+    throws Exception {
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("directoryURL", dir.toURI().toURL());
+    params.put("checkpointFileURL", checkpointFile.toURI().toURL());
+    params.put("checkpointSaveInterval", interval);
+    return (DirectoryCorpus)Factory.createResource(DirectoryCorpus.class.getName(), params);
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2010- Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-VirtualCorpus
+ * (see https://github.com/johann-petrak/gateplugin-VirtualCorpus)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.ofai.gate.virtualcorpus;
+
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.persist.PersistenceException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests for looking up and finding the documents of a DirectoryCorpus 
+ * through its dummy datastore.
+ * 
+ * @author Johann Petrak
+ */
+public class TestDataStoreLookup extends VirtualCorpusTestCase {
+
+  protected DirectoryCorpus corpus;
+  protected DummyDataStore4Virtuals ds;
+  
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    register(DirectoryCorpus.class);
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("directoryURL", createDocumentDirectory("docs", 12).toURI().toURL());
+    params.put("readonly", true);
+    corpus = (DirectoryCorpus)Factory.createResource(DirectoryCorpus.class.getName(), params);
+    ds = (DummyDataStore4Virtuals)corpus.getDataStore();
+  }
+  
+  @Override
+  protected void tearDown() throws Exception {
+    Factory.deleteResource(corpus);
+    super.tearDown();
+  }
+  
+  public void testLrIds() throws Exception {
+    assertEquals(corpus.getDocumentNames(), ds.getLrIds(Document.class.getName()));
+    assertEquals(corpus.getDocumentNames(), ds.getLrNames(null));
+    assertTrue(ds.getLrIds("gate.corpora.SerialCorpusImpl").isEmpty());
+    try {
+      ds.getLrIds(null).add("doc12.xml");
+      fail("Expected an UnsupportedOperationException");
+    } catch (UnsupportedOperationException ex) {
+      // the ids are a read-only view
+    }
+    assertEquals("doc03.xml", ds.getLrName("doc03.xml"));
+    try {
+      ds.getLrName("nodoc.xml");
+      fail("Expected a PersistenceException");
+    } catch (PersistenceException ex) {
+      // expected
+    }
+  }
+  
+  public void testGetLr() throws Exception {
+    Document doc = (Document)ds.getLr(Document.class.getName(), "doc07.xml");
+    assertEquals("doc07.xml", doc.getName());
+    assertEquals(getText("doc07.xml"), doc.getContent().toString());
+    assertTrue(corpus.isDocumentLoaded(doc));
+    try {
+      ds.getLr(Document.class.getName(), "nodoc.xml");
+      fail("Expected a PersistenceException");
+    } catch (PersistenceException ex) {
+      // expected
+    }
+  }
+  
+  public void testFindByPrefix() throws Exception {
+    assertEquals(names(0, 12), ds.findLrIds(Collections.emptyList()));
+    assertEquals(names(0, 10), ds.findLrIds(Arrays.asList("doc0")));
+    assertEquals(names(10, 12), ds.findLrIds(Arrays.asList("doc1"), null));
+    assertEquals(names(5, 6), ds.findLrIds(Arrays.asList("doc0", "doc05")));
+    assertEquals(names(5, 6), ds.findLrIds(Arrays.asList("doc05", "doc0")));
+    assertTrue(ds.findLrIds(Arrays.asList("doc0", "doc1")).isEmpty());
+    assertTrue(ds.findLrIds(Arrays.asList("x")).isEmpty());
+    assertTrue(ds.findLrIds(Arrays.asList("doc11.xml~")).isEmpty());
+  }
+  
+  public void testFindByRestriction() throws Exception {
+    assertEquals(names(3, 4), ds.findLrIds(Arrays.asList(new Restriction(
+      DummyDataStore4Virtuals.NAME_KEY, "doc03.xml", Restriction.OPERATOR_EQUATION))));
+    assertEquals(Arrays.asList("doc01.xml", "doc11.xml"), ds.findLrIds(Arrays.asList(
+      new Restriction(DummyDataStore4Virtuals.NAME_KEY, "doc_1.%", Restriction.OPERATOR_LIKE))));
+    assertEquals(names(10, 12), ds.findLrIds(Arrays.asList("doc1", 
+      new Restriction(DummyDataStore4Virtuals.NAME_KEY, "%.xml", Restriction.OPERATOR_LIKE))));
+    assertTrue(ds.findLrIds(Arrays.asList(new Restriction(
+      DummyDataStore4Virtuals.NAME_KEY, "doc03", Restriction.OPERATOR_EQUATION))).isEmpty());
+    try {
+      ds.findLrIds(Arrays.asList(new Restriction(
+        DummyDataStore4Virtuals.NAME_KEY, "doc03.xml", Restriction.OPERATOR_BIGGER)));
+      fail("Expected an UnsupportedOperationException");
+    } catch (UnsupportedOperationException ex) {
+      // only equation and like are supported
+    }
+  }
+  
+  // the names docFrom.xml to docTo.xml (exclusive) in sorted order
+  protected static List<String> names(int from, int to) {
+    List<String> names = new ArrayList<String>();
+    for(int i = from; i < to; i++) {
+      names.add(String.format("doc%02d.xml", i));
+    }
+    return names;
+  }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2010- Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-VirtualCorpus
+ * (see https://github.com/johann-petrak/gateplugin-VirtualCorpus)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package at.ofai.gate.virtualcorpus;
+
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import java.io.File;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests for sharing the documents of a DirectoryCorpus between several
+ * corpora through chunk lease files in a coordination directory.
+ * 
+ * @author Johann Petrak
+ */
+public class TestDirectoryCorpusChunks extends VirtualCorpusTestCase {
+
+  protected File docDir;
+  protected File coordDir;
+  
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    register(DirectoryCorpus.class);
+    docDir = createDocumentDirectory("docs", 8);
+    coordDir = new File(tmpDir, "coord");
+    coordDir.mkdirs();
+  }
+  
+  public void testSizeHasNoSideEffects() throws Exception {
+    DirectoryCorpus corpus = createCorpus("worker1");
+    try {
+      // the first chunk is claimed when the corpus is created
+      assertEquals(2, corpus.size());
+      assertEquals(1, countFiles(".lease"));
+      corpus.get(0);
+      // asking for the size again and again does not claim anything
+      for(int i = 0; i < 5; i++) {
+        assertEquals(2, corpus.size());
+        assertTrue(corpus.isEmpty() == false);
+      }
+      assertEquals(1, countFiles(".lease"));
+      assertEquals(0, countFiles(".done"));
+    } finally {
+      Factory.deleteResource(corpus);
+    }
+  }
+  
+  public void testGetClaimsNextChunk() throws Exception {
+    DirectoryCorpus corpus = createCorpus("worker1");
+    Set<String> seen = new HashSet<String>();
+    try {
+      // the way a corpus controller processes a corpus
+      for(int i = 0; i < corpus.size(); i++) {
+        Document doc = corpus.get(i);
+        assertTrue(seen.add(doc.getName()));
+        corpus.unloadDocument(doc);
+        Factory.deleteResource(doc);
+      }
+    } finally {
+      Factory.deleteResource(corpus);
+    }
+    assertEquals(8, seen.size());
+    assertEquals(4, countFiles(".done"));
+    assertEquals(0, countFiles(".lease"));
+  }
+  
+  public void testIteratorsShareChunks() throws Exception {
+    DirectoryCorpus corpus1 = createCorpus("worker1");
+    DirectoryCorpus corpus2 = createCorpus("worker2");
+    Set<String> seen1 = new HashSet<String>();
+    Set<String> seen2 = new HashSet<String>();
+    try {
+      Iterator<Document> it1 = corpus1.iterator();
+      Iterator<Document> it2 = corpus2.iterator();
+      boolean more = true;
+      while(more) {
+        more = false;
+        if(it1.hasNext()) {
+          process(corpus1, it1.next(), seen1);
+          more = true;
+        }
+        if(it2.hasNext()) {
+          process(corpus2, it2.next(), seen2);
+          more = true;
+        }
+      }
+    } finally {
+      Factory.deleteResource(corpus1);
+      Factory.deleteResource(corpus2);
+    }
+    Set<String> both = new HashSet<String>(seen1);
+    both.retainAll(seen2);
+    assertTrue("Documents processed by both workers: "+both, both.isEmpty());
+    assertEquals(8, seen1.size() + seen2.size());
+    assertEquals(4, countFiles(".done"));
+  }
+  
+  public void testLostLeaseDropsRemainingDocuments() throws Exception {
+    DirectoryCorpus corpus = createCorpus("worker1");
+    try {
+      assertEquals(2, corpus.size());
+      Set<String> seen = new HashSet<String>();
+      Iterator<Document> it = corpus.iterator();
+      process(corpus, it.next(), seen);
+      // another worker takes over the lease of our chunk
+      DirectoryCorpus.Chunk chunk = corpus.ownedChunks.get(0);
+      FileUtils.writeStringToFile(chunk.leaseFile, "worker2", "UTF-8");
+      corpus.renewLeases();
+      assertTrue(chunk.lost);
+      // the second document of the lost chunk is not handed out any more,
+      // the iterator continues with the next chunk
+      while(it.hasNext()) {
+        process(corpus, it.next(), seen);
+      }
+      assertEquals(7, seen.size());
+      assertEquals("worker2", FileUtils.readFileToString(chunk.leaseFile, "UTF-8"));
+    } finally {
+      Factory.deleteResource(corpus);
+    }
+    // the lost chunk is left to the other worker
+    assertEquals(3, countFiles(".done"));
+    assertEquals(1, countFiles(".lease"));
+  }
+  
+  protected void process(DirectoryCorpus corpus, Document doc, Set<String> seen) {
+    assertTrue("Document "+doc.getName()+" seen twice", seen.add(doc.getName()));
+    assertEquals(getText(doc.getName()), doc.getContent().toString());
+    corpus.unloadDocument(doc);
+    Factory.deleteResource(doc);
+  }
+  
+  protected int countFiles(String extension) {
+    int n = 0;
+    for(File file : coordDir.listFiles()) {
+      if(file.getName().endsWith(extension)) {
+        n++;
+      }
+    }
+    return n;
+  }
+  
+  protected DirectoryCorpus createCorpus(String workerId) throws Exception {
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("directoryURL", docDir.toURI().toURL());
+    params.put("readonly", true);
+    params.put("coordinationDirectoryURL", coordDir.toURI().toURL());
+    params.put("chunkSize", 2);
+    params.put("workerId", workerId);
+    return (DirectoryCorpus)Factory.createResource(DirectoryCorpus.class.getName(), params);
+  }
+}
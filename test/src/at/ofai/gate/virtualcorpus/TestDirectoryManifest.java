@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2010- Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-VirtualCorpus
+ * (see https://github.com/johann-petrak/gateplugin-VirtualCorpus)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.ofai.gate.virtualcorpus;
+
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.creole.ResourceInstantiationException;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests for the manifest of processed files and for a DirectoryCorpus 
+ * which only contains the files which are new or have changed since the
+ * last run.
+ * 
+ * @author Johann Petrak
+ */
+public class TestDirectoryManifest extends VirtualCorpusTestCase {
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    register(DirectoryCorpus.class);
+  }
+  
+  public void testChanges() throws Exception {
+    File a = new File(tmpDir, "a.txt");
+    File b = new File(tmpDir, "b.txt");
+    FileUtils.writeStringToFile(a, "content a", "UTF-8");
+    FileUtils.writeStringToFile(b, "content b", "UTF-8");
+    a.setLastModified(1000000000L);
+    b.setLastModified(1000000000L);
+    DirectoryManifest manifest = new DirectoryManifest(false);
+    assertTrue(manifest.isChanged("a.txt", a, a.length()));
+    manifest.update("a.txt", a);
+    manifest.update("b.txt", b);
+    assertEquals(2, manifest.size());
+    File file = new File(tmpDir, "manifest");
+    manifest.save(file);
+    assertFalse(manifest.isModified());
+    manifest = new DirectoryManifest(false);
+    manifest.load(file);
+    assertFalse(manifest.isChanged("a.txt", a, a.length()));
+    // the same size, but a different modification time
+    a.setLastModified(2000000000L);
+    assertTrue(manifest.isChanged("a.txt", a, a.length()));
+    assertTrue(manifest.isChanged("a.txt", a, a.length() + 1));
+    // b was not seen
+    assertEquals(1, manifest.removeUnseen());
+    assertTrue(manifest.isModified());
+    assertEquals(1, manifest.size());
+    // files which do not exist are removed
+    manifest.update("c.txt", new File(tmpDir, "c.txt"));
+    assertEquals(1, manifest.size());
+    FileUtils.writeStringToFile(file, "something else", "UTF-8");
+    try {
+      manifest.load(file);
+      fail("Expected an IOException");
+    } catch (IOException ex) {
+      // expected
+    }
+  }
+  
+  public void testContentHashes() throws Exception {
+    File a = new File(tmpDir, "a.txt");
+    FileUtils.writeStringToFile(a, "content a", "UTF-8");
+    a.setLastModified(1000000000L);
+    DirectoryManifest manifest = new DirectoryManifest(true);
+    manifest.update("a.txt", a);
+    File file = new File(tmpDir, "manifest");
+    manifest.save(file);
+    manifest = new DirectoryManifest(true);
+    manifest.load(file);
+    // touched, but the content is the same
+    a.setLastModified(2000000000L);
+    assertFalse(manifest.isChanged("a.txt", a, a.length()));
+    // the new modification time is recorded, the file is not read again
+    assertTrue(manifest.isModified());
+    FileUtils.writeStringToFile(a, "content A", "UTF-8");
+    a.setLastModified(3000000000L);
+    assertTrue(manifest.isChanged("a.txt", a, a.length()));
+  }
+  
+  public void testIncrementalRuns() throws Exception {
+    File dir = createDocumentDirectory("docs", 4);
+    File manifestFile = new File(tmpDir, "manifest");
+    DirectoryCorpus corpus = createCorpus(dir, manifestFile);
+    String unsaved;
+    try {
+      assertEquals(4, corpus.size());
+      unsaved = corpus.getDocumentName(3);
+      process(corpus, 3);
+    } finally {
+      Factory.deleteResource(corpus);
+    }
+    assertTrue(manifestFile.exists());
+    // only the document which was not saved is still there
+    corpus = createCorpus(dir, manifestFile);
+    try {
+      assertEquals(Arrays.asList(unsaved), corpus.getDocumentNames());
+      process(corpus, 1);
+    } finally {
+      Factory.deleteResource(corpus);
+    }
+    corpus = createCorpus(dir, manifestFile);
+    try {
+      assertEquals(0, corpus.size());
+    } finally {
+      Factory.deleteResource(corpus);
+    }
+    // change one file, add a copy of a processed one and remove one
+    File changed = new File(dir, "doc01.xml");
+    FileUtils.writeStringToFile(changed, 
+      FileUtils.readFileToString(changed, "UTF-8").replace("document", "changed document"), 
+      "UTF-8");
+    FileUtils.copyFile(new File(dir, "doc00.xml"), new File(dir, "doc04.xml"));
+    new File(dir, "doc02.xml").delete();
+    corpus = createCorpus(dir, manifestFile);
+    try {
+      List<String> names = new ArrayList<String>(corpus.getDocumentNames());
+      Collections.sort(names);
+      assertEquals(Arrays.asList("doc01.xml", "doc04.xml"), names);
+      Document doc = corpus.get(corpus.getDocumentNames().indexOf("doc01.xml"));
+      assertEquals("This is the text of changed document doc01.xml", 
+        doc.getContent().toString());
+      corpus.unloadDocument(doc, false);
+      Factory.deleteResource(doc);
+      assertEquals(3, corpus.manifest.size());
+    } finally {
+      Factory.deleteResource(corpus);
+    }
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("directoryURL", dir.toURI().toURL());
+    params.put("manifestFileURL", manifestFile.toURI().toURL());
+    params.put("coordinationDirectoryURL", new File(tmpDir, "coordination").toURI().toURL());
+    try {
+      Factory.createResource(DirectoryCorpus.class.getName(), params);
+      fail("Expected a ResourceInstantiationException");
+    } catch (ResourceInstantiationException ex) {
+      // every corpus would record its own files
+    }
+  }
+  
+  // process and save the first n documents
+  protected void process(DirectoryCorpus corpus, int n) {
+    for(int i = 0; i < n; i++) {
+      Document doc = corpus.get(i);
+      doc.getFeatures().put("processed", "yes");
+      corpus.unloadDocument(doc);
+      Factory.deleteResource(doc);
+    }
+  }
+  
+  protected DirectoryCorpus createCorpus(File dir, File manifestFile) throws Exception {
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("directoryURL", dir.toURI().toURL());
+    params.put("manifestFileURL", manifestFile.toURI().toURL());
+    return (DirectoryCorpus)Factory.createResource(DirectoryCorpus.class.getName(), params);
+  }
+}
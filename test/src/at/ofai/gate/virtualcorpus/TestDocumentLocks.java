@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2010- Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-VirtualCorpus
+ * (see https://github.com/johann-petrak/gateplugin-VirtualCorpus)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.ofai.gate.virtualcorpus;
+
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Tests for locking the documents of two DirectoryCorpus instances on 
+ * the same directory.
+ * 
+ * @author Johann Petrak
+ */
+public class TestDocumentLocks extends VirtualCorpusTestCase {
+
+  protected File docDir;
+  protected DirectoryCorpus corpus1;
+  protected DirectoryCorpus corpus2;
+  
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    register(DirectoryCorpus.class);
+    docDir = createDocumentDirectory("docs", 4);
+    corpus1 = createCorpus(false);
+    corpus2 = createCorpus(true);
+  }
+  
+  @Override
+  protected void tearDown() throws Exception {
+    Factory.deleteResource(corpus1);
+    Factory.deleteResource(corpus2);
+    super.tearDown();
+  }
+  
+  public void testLockAndUnlock() throws Exception {
+    assertTrue(corpus1.lockDocument("doc00.xml"));
+    // locking again from the same corpus succeeds, from another one not
+    assertTrue(corpus1.lockDocument("doc00.xml"));
+    assertFalse(corpus2.lockDocument("doc00.xml"));
+    assertTrue(corpus2.lockDocument("doc01.xml"));
+    corpus1.unlockDocument("doc00.xml");
+    assertTrue(corpus2.lockDocument("doc00.xml"));
+    assertFalse(corpus1.lockDocument("doc00.xml"));
+    assertTrue(new File(docDir, ".locks/doc00.xml.lock").exists());
+  }
+  
+  public void testLockLr() throws Exception {
+    Document doc = corpus1.get(corpus1.getDocumentNames().indexOf("doc02.xml"));
+    DummyDataStore4Virtuals ds = (DummyDataStore4Virtuals)corpus1.getDataStore();
+    assertTrue(ds.lockLr(doc));
+    assertFalse(corpus2.lockDocument("doc02.xml"));
+    ds.unlockLr(doc);
+    assertTrue(corpus2.lockDocument("doc02.xml"));
+    corpus1.unloadDocument(doc);
+    Factory.deleteResource(doc);
+  }
+  
+  // with lockDocuments, the iterator skips documents locked elsewhere and 
+  // unloading a document releases its lock
+  public void testIteratorSkipsLockedDocuments() throws Exception {
+    assertTrue(corpus1.lockDocument("doc01.xml"));
+    List<String> seen = new ArrayList<String>();
+    Iterator<Document> it = corpus2.iterator();
+    while(it.hasNext()) {
+      Document doc = it.next();
+      seen.add(doc.getName());
+      assertFalse(corpus1.lockDocument(doc.getName()));
+      corpus2.unloadDocument(doc);
+      Factory.deleteResource(doc);
+      assertTrue(corpus1.lockDocument(doc.getName()));
+    }
+    assertEquals(3, seen.size());
+    assertFalse(seen.contains("doc01.xml"));
+  }
+  
+  protected DirectoryCorpus createCorpus(boolean lockDocuments) throws Exception {
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("directoryURL", docDir.toURI().toURL());
+    params.put("readonly", true);
+    params.put("lockDocuments", lockDocuments);
+    return (DirectoryCorpus)Factory.createResource(DirectoryCorpus.class.getName(), params);
+  }
+}
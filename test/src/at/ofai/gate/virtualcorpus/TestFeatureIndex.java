@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2010- Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-VirtualCorpus
+ * (see https://github.com/johann-petrak/gateplugin-VirtualCorpus)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.ofai.gate.virtualcorpus;
+
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Tests for the inverted index of document features, on its own and 
+ * kept by a DirectoryCorpus.
+ * 
+ * @author Johann Petrak
+ */
+public class TestFeatureIndex extends VirtualCorpusTestCase {
+
+  protected File docDir;
+  
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    register(DirectoryCorpus.class);
+    register(DirectorySubsetCorpus.class);
+    docDir = createDocumentDirectory("docs", 6);
+  }
+  
+  public void testUpdateAndFind() throws Exception {
+    FeatureIndex index = new FeatureIndex(Arrays.asList("genre", "year"));
+    index.update(0, features("genre", "news", "year", 2019));
+    index.update(1, features("genre", "blog", "year", 2019));
+    index.update(2, features("genre", "news", "other", "x"));
+    assertEquals(Arrays.asList(0, 2), toList(index.find(features("genre", "news"))));
+    assertEquals(Arrays.asList(0), toList(index.find(features("genre", "news", "year", "2019"))));
+    assertEquals(0, index.find(features("genre", "poem")).size());
+    // a new value of a document replaces the old one
+    index.update(0, features("genre", "blog"));
+    assertEquals(Arrays.asList(2), toList(index.find(features("genre", "news"))));
+    assertEquals(Arrays.asList(0, 1), toList(index.find(features("genre", "blog"))));
+    assertEquals(Arrays.asList(1), toList(index.find(features("year", 2019))));
+    assertEquals(Arrays.asList(0, 1, 2), 
+      toList(index.findMatching("genre", Pattern.compile("n.*|b.*"))));
+    assertEquals(Arrays.asList("blog", "news"), 
+      Arrays.asList(index.getValues("genre").toArray()));
+    try {
+      index.find(features("other", "x"));
+      fail("Expected a GateRuntimeException");
+    } catch (gate.util.GateRuntimeException ex) {
+      // not indexed
+    }
+  }
+  
+  public void testSaveAndLoad() throws Exception {
+    FeatureIndex index = new FeatureIndex(Arrays.asList("genre"));
+    index.update(3, features("genre", "news"));
+    index.update(5, features("genre", "news"));
+    assertTrue(index.isModified());
+    File file = new File(tmpDir, "index");
+    index.save(file, 6, 1234L);
+    assertFalse(index.isModified());
+    FeatureIndex loaded = new FeatureIndex(Arrays.asList("genre"));
+    assertTrue(loaded.load(file, 6, 1234L));
+    assertEquals(Arrays.asList(3, 5), toList(loaded.find(features("genre", "news"))));
+    // an index saved for different documents is not used
+    loaded = new FeatureIndex(Arrays.asList("genre"));
+    assertFalse(loaded.load(file, 6, 4321L));
+    assertEquals(0, loaded.find(features("genre", "news")).size());
+  }
+  
+  // the index is updated when documents are saved and kept in a file 
+  // in the corpus directory, so a new corpus can find documents without 
+  // loading them
+  public void testDirectoryCorpus() throws Exception {
+    DirectoryCorpus corpus = createCorpus();
+    try {
+      setGenre(corpus, 1, "news");
+      setGenre(corpus, 3, "news");
+      setGenre(corpus, 4, "blog");
+    } finally {
+      Factory.deleteResource(corpus);
+    }
+    corpus = createCorpus();
+    try {
+      DummyDataStore4Virtuals ds = (DummyDataStore4Virtuals)corpus.getDataStore();
+      List<String> found = ds.findLrIds(Collections.singletonList(features("genre", "news")));
+      assertEquals(Arrays.asList(corpus.getDocumentName(1), corpus.getDocumentName(3)), found);
+      for(int i = 0; i < corpus.size(); i++) {
+        assertFalse(corpus.isDocumentLoaded(i));
+      }
+      String name3 = corpus.getDocumentName(3);
+      found = ds.findLrIds(Arrays.asList(
+        new Restriction("genre", "n_w%", Restriction.OPERATOR_LIKE),
+        new Restriction(DummyDataStore4Virtuals.NAME_KEY, name3, Restriction.OPERATOR_EQUATION)));
+      assertEquals(Arrays.asList(name3), found);
+      found = ds.findLrIds(Arrays.asList(
+        new Restriction("genre", "blog", Restriction.OPERATOR_EQUATION),
+        new Restriction(DummyDataStore4Virtuals.NAME_KEY, "doc%", Restriction.OPERATOR_LIKE)));
+      assertEquals(Arrays.asList(corpus.getDocumentName(4)), found);
+      try {
+        ds.findLrIds(Arrays.asList(
+          new Restriction("genre", "blog", Restriction.OPERATOR_BIGGER)));
+        fail("Expected an UnsupportedOperationException");
+      } catch (UnsupportedOperationException ex) {
+        // only equation and like are supported
+      }
+      FeatureMap params = Factory.newFeatureMap();
+      params.put("directoryCorpus", corpus);
+      params.put("featureConstraints", features("genre", "blog"));
+      VirtualSubsetCorpus subset = (VirtualSubsetCorpus)Factory.createResource(
+        DirectorySubsetCorpus.class.getName(), params);
+      assertEquals(Arrays.asList(corpus.getDocumentName(4)), subset.getDocumentNames());
+      Factory.deleteResource(subset);
+    } finally {
+      Factory.deleteResource(corpus);
+    }
+  }
+  
+  protected void setGenre(DirectoryCorpus corpus, int index, String genre) {
+    Document doc = corpus.get(index);
+    doc.getFeatures().put("genre", genre);
+    corpus.unloadDocument(doc);
+    Factory.deleteResource(doc);
+  }
+  
+  protected DirectoryCorpus createCorpus() throws Exception {
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("directoryURL", docDir.toURI().toURL());
+    params.put("readonly", false);
+    params.put("indexedFeatures", Arrays.asList("genre"));
+    return (DirectoryCorpus)Factory.createResource(DirectoryCorpus.class.getName(), params);
+  }
+  
+  protected static FeatureMap features(Object... keysAndValues) {
+    FeatureMap features = Factory.newFeatureMap();
+    for(int i = 0; i < keysAndValues.length; i += 2) {
+      features.put(keysAndValues[i], keysAndValues[i + 1]);
+    }
+    return features;
+  }
+  
+  protected static List<Integer> toList(ParentIndexSet set) {
+    Integer[] members = new Integer[set.size()];
+    for(int i = 0; i < members.length; i++) {
+      members[i] = set.get(i);
+    }
+    return Arrays.asList(members);
+  }
+}
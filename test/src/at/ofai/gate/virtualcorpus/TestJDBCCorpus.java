@@ -0,0 +1,710 @@
+/*
+ * Copyright (c) 2010- Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-VirtualCorpus
+ * (see https://github.com/johann-petrak/gateplugin-VirtualCorpus)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package at.ofai.gate.virtualcorpus;
+
+import gate.Corpus;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.creole.ResourceInstantiationException;
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Smoke tests for the JDBCCorpus with the H2 and SQLite drivers from the
+ * lib directory: reading documents, writing them in batches to an output
+ * table which already contains some of them, and sharing a table between
+ * two corpora in work-queue mode. Each test uses a new database in a 
+ * temporary directory. Run with "ant test".
+ * 
+ * @author Johann Petrak
+ */
+public class TestJDBCCorpus extends VirtualCorpusTestCase {
+
+  protected static final int N_DOCS = 10;
+  
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    register(JDBCCorpus.class);
+  }
+  
+  public void testReadH2() throws Exception {
+    doTestRead("org.h2.Driver", getH2Url());
+  }
+  
+  public void testReadSQLite() throws Exception {
+    doTestRead("org.sqlite.JDBC", getSQLiteUrl());
+  }
+  
+  public void testWriteBatchUpsertH2() throws Exception {
+    doTestWriteBatchUpsert("org.h2.Driver", getH2Url());
+  }
+  
+  public void testWriteBatchUpsertSQLite() throws Exception {
+    doTestWriteBatchUpsert("org.sqlite.JDBC", getSQLiteUrl());
+  }
+  
+  public void testNumericKeysH2() throws Exception {
+    doTestNumericKeys("org.h2.Driver", getH2Url());
+  }
+  
+  public void testNumericKeysSQLite() throws Exception {
+    doTestNumericKeys("org.sqlite.JDBC", getSQLiteUrl());
+  }
+  
+  public void testPrefetchH2() throws Exception {
+    doTestPrefetch("org.h2.Driver", getH2Url());
+  }
+  
+  public void testPrefetchSQLite() throws Exception {
+    doTestPrefetch("org.sqlite.JDBC", getSQLiteUrl());
+  }
+  
+  // the change token is the row count: after one row is replaced by 
+  // another the snapshot still counts as up to date and is used as is
+  public void testSnapshotReused() throws Exception {
+    String url = getH2Url();
+    createDocumentTable("org.h2.Driver", url);
+    assertEquals(N_DOCS, getSnapshotCorpusNames(url, false).size());
+    Connection connection = openConnection("org.h2.Driver", url);
+    try {
+      execute(connection, "DELETE FROM docs WHERE name = 'doc00'");
+      execute(connection, "INSERT INTO docs ( name, content ) VALUES ( 'new', 'text' )");
+    } finally {
+      connection.close();
+    }
+    List<String> names = getSnapshotCorpusNames(url, false);
+    assertEquals(N_DOCS, names.size());
+    assertTrue(names.contains("doc00"));
+    assertFalse(names.contains("new"));
+  }
+  
+  public void testSnapshotRefreshed() throws Exception {
+    String url = getH2Url();
+    createDocumentTable("org.h2.Driver", url);
+    getSnapshotCorpusNames(url, false);
+    Connection connection = openConnection("org.h2.Driver", url);
+    try {
+      execute(connection, "DELETE FROM docs WHERE name = 'doc00'");
+      execute(connection, "INSERT INTO docs ( name, content ) VALUES ( 'new1', 'text' )");
+      execute(connection, "INSERT INTO docs ( name, content ) VALUES ( 'new2', 'text' )");
+    } finally {
+      connection.close();
+    }
+    // string keys always get a full refresh, even with monotonicKeys
+    List<String> names = getSnapshotCorpusNames(url, true);
+    assertEquals(N_DOCS + 1, names.size());
+    assertFalse(names.contains("doc00"));
+    assertTrue(names.contains("new2"));
+  }
+  
+  // with monotonic numeric keys only the keys after the biggest one in the
+  // snapshot are selected, so a deleted row is not noticed
+  public void testSnapshotMonotonicKeys() throws Exception {
+    String url = getH2Url();
+    createNumericDocumentTable("org.h2.Driver", url, new long[] { 1L, 2L, 3L });
+    getSnapshotCorpusNames(url, true);
+    Connection connection = openConnection("org.h2.Driver", url);
+    try {
+      execute(connection, "DELETE FROM docs WHERE name = 2");
+      execute(connection, "INSERT INTO docs ( name, content ) VALUES ( 10, 'text' )");
+      execute(connection, "INSERT INTO docs ( name, content ) VALUES ( 11, 'text' )");
+    } finally {
+      connection.close();
+    }
+    assertEquals(Arrays.asList("1", "2", "3", "10", "11"), 
+      getSnapshotCorpusNames(url, true));
+  }
+  
+  public void testSubsetCorpusH2() throws Exception {
+    doTestSubsetCorpus("org.h2.Driver", getH2Url());
+  }
+  
+  public void testSubsetCorpusSQLite() throws Exception {
+    doTestSubsetCorpus("org.sqlite.JDBC", getSQLiteUrl());
+  }
+  
+  public void testFeatureIndexH2() throws Exception {
+    doTestFeatureIndex("org.h2.Driver", getH2Url());
+  }
+  
+  public void testFeatureIndexSQLite() throws Exception {
+    doTestFeatureIndex("org.sqlite.JDBC", getSQLiteUrl());
+  }
+  
+  public void testLocksH2() throws Exception {
+    doTestLocks("org.h2.Driver", getH2Url());
+  }
+  
+  public void testLocksSQLite() throws Exception {
+    doTestLocks("org.sqlite.JDBC", getSQLiteUrl());
+  }
+  
+  public void testDocumentSizesH2() throws Exception {
+    doTestDocumentSizes("org.h2.Driver", getH2Url());
+  }
+  
+  public void testDocumentSizesSQLite() throws Exception {
+    doTestDocumentSizes("org.sqlite.JDBC", getSQLiteUrl());
+  }
+  
+  public void testCheckpointTableH2() throws Exception {
+    doTestCheckpointTable("org.h2.Driver", getH2Url());
+  }
+  
+  public void testCheckpointTableSQLite() throws Exception {
+    doTestCheckpointTable("org.sqlite.JDBC", getSQLiteUrl());
+  }
+  
+  public void testClaimH2() throws Exception {
+    doTestClaim("org.h2.Driver", getH2Url());
+  }
+  
+  public void testClaimSQLite() throws Exception {
+    doTestClaim("org.sqlite.JDBC", getSQLiteUrl());
+  }
+  
+  protected void doTestRead(String driver, String url) throws Exception {
+    createDocumentTable(driver, url);
+    JDBCCorpus corpus = createCorpus(driver, url, Factory.newFeatureMap());
+    try {
+      assertEquals(N_DOCS, corpus.size());
+      for(int i = 0; i < corpus.size(); i++) {
+        Document doc = corpus.get(i);
+        assertEquals("Content of document "+doc.getName(), 
+          getText(doc.getName()), doc.getContent().toString());
+        corpus.unloadDocument(doc);
+        Factory.deleteResource(doc);
+      }
+    } finally {
+      Factory.deleteResource(corpus);
+    }
+  }
+  
+  // With writeBatchSize 3, H2 upserts in batches. The bundled SQLite is too
+  // old for an upsert and falls back to an update and insert per document.
+  protected void doTestWriteBatchUpsert(String driver, String url) throws Exception {
+    createDocumentTable(driver, url);
+    Connection connection = openConnection(driver, url);
+    try {
+      execute(connection, "CREATE TABLE out ( name VARCHAR(255) PRIMARY KEY, "+
+        "content "+getTextType(driver)+" )");
+      execute(connection, "INSERT INTO out ( name, content ) VALUES ( 'doc03', 'old' )");
+    } finally {
+      connection.close();
+    }
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("readonly", false);
+    params.put("outTableName", "out");
+    params.put("outDocumentContentField", "content");
+    params.put("writeBatchSize", 3);
+    JDBCCorpus corpus = createCorpus(driver, url, params);
+    try {
+      processAll(corpus, null);
+    } finally {
+      // closing the corpus writes the last, incomplete batch
+      Factory.deleteResource(corpus);
+    }
+    connection = openConnection(driver, url);
+    try {
+      Statement stmt = connection.createStatement();
+      ResultSet rs = stmt.executeQuery("SELECT name, content FROM out");
+      Set<String> names = new HashSet<String>();
+      while(rs.next()) {
+        String content = rs.getString(2);
+        assertTrue("Document "+rs.getString(1)+" was saved", 
+          content.contains("processed") && content.contains(getText(rs.getString(1))));
+        names.add(rs.getString(1));
+      }
+      rs.close();
+      stmt.close();
+      assertEquals(N_DOCS, names.size());
+    } finally {
+      connection.close();
+    }
+  }
+  
+  // an integer key column is kept as primitive keys, the document names 
+  // are the keys in decimal and updates bind the key as a number
+  protected void doTestNumericKeys(String driver, String url) throws Exception {
+    long[] keys = new long[] { 17L, -3L, 10000000000L };
+    createNumericDocumentTable(driver, url, keys);
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("readonly", false);
+    JDBCCorpus corpus = createCorpus(driver, url, params);
+    try {
+      assertNotNull("Numeric keys are used", corpus.numericKeys);
+      assertEquals(keys.length, corpus.size());
+      Set<String> names = new HashSet<String>();
+      for(int i = 0; i < corpus.size(); i++) {
+        Document doc = corpus.get(i);
+        assertEquals(getText(doc.getName()), doc.getContent().toString());
+        names.add(doc.getName());
+        process(corpus, doc, null);
+      }
+      assertTrue(names.contains("10000000000"));
+      assertTrue(names.contains("-3"));
+    } finally {
+      Factory.deleteResource(corpus);
+    }
+    Connection connection = openConnection(driver, url);
+    try {
+      PreparedStatement select = connection.prepareStatement(
+        "SELECT content FROM docs WHERE name = ?");
+      select.setLong(1, 10000000000L);
+      ResultSet rs = select.executeQuery();
+      assertTrue(rs.next());
+      assertTrue("Document was saved", rs.getString(1).contains("processed"));
+      rs.close();
+      select.close();
+    } finally {
+      connection.close();
+    }
+  }
+  
+  // documents requested in order come from the prefetcher, a request out
+  // of order restarts prefetching at the new position
+  protected void doTestPrefetch(String driver, String url) throws Exception {
+    createDocumentTable(driver, url);
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("readonly", true);
+    params.put("prefetchSize", 3);
+    JDBCCorpus corpus = createCorpus(driver, url, params);
+    try {
+      int[] order = new int[] { 0, 1, 2, 3, 7, 8, 2, 3, 4, 9 };
+      for(int i : order) {
+        Document doc = corpus.get(i);
+        assertEquals(String.format("doc%02d", i), doc.getName());
+        assertEquals(getText(doc.getName()), doc.getContent().toString());
+        corpus.unloadDocument(doc);
+        Factory.deleteResource(doc);
+      }
+      assertTrue(corpus.getPrefetchStatistics().length() > 0);
+    } finally {
+      Factory.deleteResource(corpus);
+    }
+  }
+  
+  protected void doTestClaim(String driver, String url) throws Exception {
+    createDocumentTable(driver, url);
+    JDBCCorpus corpus1 = createCorpus(driver, url, getWorkQueueParameters("worker1"));
+    JDBCCorpus corpus2 = createCorpus(driver, url, getWorkQueueParameters("worker2"));
+    Set<String> seen1 = new HashSet<String>();
+    Set<String> seen2 = new HashSet<String>();
+    try {
+      // the two corpora take turns as long as either one gets documents
+      Iterator<Document> it1 = corpus1.iterator();
+      Iterator<Document> it2 = corpus2.iterator();
+      boolean more = true;
+      while(more) {
+        more = false;
+        if(it1.hasNext()) {
+          process(corpus1, it1.next(), seen1);
+          more = true;
+        }
+        if(it2.hasNext()) {
+          process(corpus2, it2.next(), seen2);
+          more = true;
+        }
+      }
+    } finally {
+      Factory.deleteResource(corpus1);
+      Factory.deleteResource(corpus2);
+    }
+    assertFalse("worker1 got documents", seen1.isEmpty());
+    assertFalse("worker2 got documents", seen2.isEmpty());
+    Set<String> both = new HashSet<String>(seen1);
+    both.retainAll(seen2);
+    assertTrue("Documents claimed by both workers: "+both, both.isEmpty());
+    assertEquals(N_DOCS, seen1.size() + seen2.size());
+    Connection connection = openConnection(driver, url);
+    try {
+      Statement stmt = connection.createStatement();
+      ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM docs WHERE status = "+
+        JDBCCorpus.WORK_STATUS_DONE);
+      rs.next();
+      assertEquals("Rows marked done", N_DOCS, rs.getInt(1));
+      rs.close();
+      stmt.close();
+    } finally {
+      connection.close();
+    }
+  }
+  
+  // subset corpora defined by a condition or a key query contain the 
+  // matching documents in the order of the parent corpus
+  protected void doTestSubsetCorpus(String driver, String url) throws Exception {
+    register(JDBCSubsetCorpus.class);
+    createDocumentTable(driver, url);
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("readonly", true);
+    JDBCCorpus corpus = createCorpus(driver, url, params);
+    try {
+      params = Factory.newFeatureMap();
+      params.put("jdbcCorpus", corpus);
+      params.put("whereClause", "name IN ( 'doc07', 'doc03', 'nodoc' )");
+      Corpus subset = (Corpus)Factory.createResource(
+        JDBCSubsetCorpus.class.getName(), params);
+      assertEquals(Arrays.asList("doc03", "doc07"), subset.getDocumentNames());
+      Document doc = subset.get(1);
+      assertEquals(getText("doc07"), doc.getContent().toString());
+      subset.unloadDocument(doc);
+      Factory.deleteResource(doc);
+      Factory.deleteResource(subset);
+      params = Factory.newFeatureMap();
+      params.put("jdbcCorpus", corpus);
+      params.put("keySQL", "SELECT ${documentNameField} FROM ${tableName} "+
+        "WHERE ${documentNameField} >= 'doc08'");
+      subset = (Corpus)Factory.createResource(
+        JDBCSubsetCorpus.class.getName(), params);
+      assertEquals(Arrays.asList("doc08", "doc09"), subset.getDocumentNames());
+      Factory.deleteResource(subset);
+      params.put("whereClause", "name = 'doc01'");
+      try {
+        Factory.createResource(JDBCSubsetCorpus.class.getName(), params);
+        fail("Expected a ResourceInstantiationException");
+      } catch (ResourceInstantiationException ex) {
+        // only one of whereClause and keySQL can be used
+      }
+    } finally {
+      Factory.deleteResource(corpus);
+    }
+  }
+  
+  // the indexed feature values are written to the side table when a 
+  // document is saved and loaded from there by the next corpus
+  protected void doTestFeatureIndex(String driver, String url) throws Exception {
+    createDocumentTable(driver, url);
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("readonly", false);
+    params.put("indexedFeatures", Arrays.asList("genre"));
+    JDBCCorpus corpus = createCorpus(driver, url, params);
+    try {
+      for(int i : new int[] { 2, 5, 6 }) {
+        Document doc = corpus.get(i);
+        doc.getFeatures().put("genre", i == 6 ? "blog" : "news");
+        corpus.unloadDocument(doc);
+        Factory.deleteResource(doc);
+      }
+    } finally {
+      Factory.deleteResource(corpus);
+    }
+    corpus = createCorpus(driver, url, params);
+    try {
+      Map<String,String> news = Collections.singletonMap("genre", "news");
+      ParentIndexSet found = corpus.getFeatureIndex().find(news);
+      assertEquals(2, found.size());
+      assertEquals("doc02", corpus.getDocumentName(found.get(0)));
+      assertEquals("doc05", corpus.getDocumentName(found.get(1)));
+    } finally {
+      Factory.deleteResource(corpus);
+    }
+    Connection connection = openConnection(driver, url);
+    try {
+      Statement stmt = connection.createStatement();
+      ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM docs_features");
+      rs.next();
+      assertEquals(3, rs.getInt(1));
+      rs.close();
+      stmt.close();
+    } finally {
+      connection.close();
+    }
+  }
+  
+  // a lock is a row in the lock table, an expired lock can be taken over
+  protected void doTestLocks(String driver, String url) throws Exception {
+    createDocumentTable(driver, url);
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("readonly", true);
+    params.put("workerId", "worker1");
+    JDBCCorpus corpus1 = createCorpus(driver, url, params);
+    params.put("workerId", "worker2");
+    JDBCCorpus corpus2 = createCorpus(driver, url, params);
+    try {
+      assertTrue(corpus1.lockDocument("doc00"));
+      assertTrue(corpus1.lockDocument("doc00"));
+      assertFalse(corpus2.lockDocument("doc00"));
+      corpus1.unlockDocument("doc00");
+      assertTrue(corpus2.lockDocument("doc00"));
+      assertFalse(corpus1.lockDocument("doc00"));
+      Connection connection = openConnection(driver, url);
+      try {
+        execute(connection, "INSERT INTO docs_locks ( doc_name, owner, lease_until ) "+
+          "VALUES ( 'doc01', 'crashed', "+(System.currentTimeMillis() - 1000)+" )");
+        execute(connection, "INSERT INTO docs_locks ( doc_name, owner, lease_until ) "+
+          "VALUES ( 'doc02', 'busy', "+(System.currentTimeMillis() + 600000)+" )");
+      } finally {
+        connection.close();
+      }
+      assertTrue(corpus1.lockDocument("doc01"));
+      assertFalse(corpus1.lockDocument("doc02"));
+    } finally {
+      Factory.deleteResource(corpus1);
+      Factory.deleteResource(corpus2);
+    }
+    // removing the corpora released their locks
+    Connection connection = openConnection(driver, url);
+    try {
+      Statement stmt = connection.createStatement();
+      ResultSet rs = stmt.executeQuery("SELECT doc_name FROM docs_locks");
+      assertTrue(rs.next());
+      assertEquals("doc02", rs.getString(1));
+      assertFalse(rs.next());
+      rs.close();
+      stmt.close();
+    } finally {
+      connection.close();
+    }
+  }
+  
+  // the sizes of the content are selected and the biggest documents come first
+  protected void doTestDocumentSizes(String driver, String url) throws Exception {
+    createDocumentTable(driver, url);
+    Connection connection = openConnection(driver, url);
+    try {
+      execute(connection, "UPDATE docs SET content = '"+
+        TestSizeScheduler.pad(getText("doc07"), 500)+"' WHERE name = 'doc07'");
+      execute(connection, "UPDATE docs SET content = '"+
+        TestSizeScheduler.pad(getText("doc03"), 200)+"' WHERE name = 'doc03'");
+    } finally {
+      connection.close();
+    }
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("readonly", true);
+    params.put("selectDocumentSizes", true);
+    params.put("documentOrder", SizeScheduler.ORDER_LARGEST_FIRST);
+    JDBCCorpus corpus = createCorpus(driver, url, params);
+    try {
+      assertEquals(N_DOCS, corpus.size());
+      assertEquals(Arrays.asList("doc07", "doc03", "doc00", "doc01"), 
+        corpus.getDocumentNames().subList(0, 4));
+      assertEquals(500L, corpus.getDocumentSize(0));
+      assertEquals(200L, corpus.getDocumentSize(1));
+      assertEquals((long)getText("doc00").length(), corpus.getDocumentSize(2));
+      Document doc = corpus.get(1);
+      assertEquals("doc03", doc.getName());
+      assertEquals(200, doc.getContent().size().intValue());
+      corpus.unloadDocument(doc);
+      Factory.deleteResource(doc);
+    } finally {
+      Factory.deleteResource(corpus);
+    }
+    // without the sizes, the order cannot be used
+    params.put("selectDocumentSizes", false);
+    try {
+      createCorpus(driver, url, params);
+      fail("Expected a ResourceInstantiationException");
+    } catch (ResourceInstantiationException ex) {
+      // expected
+    }
+  }
+  
+  // completed documents are recorded in a table and skipped the next time
+  protected void doTestCheckpointTable(String driver, String url) throws Exception {
+    createDocumentTable(driver, url);
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("readonly", false);
+    params.put("checkpointTable", "docs_done");
+    JDBCCorpus corpus = createCorpus(driver, url, params);
+    Set<String> seen = new HashSet<String>();
+    try {
+      Iterator<Document> it = corpus.iterator();
+      for(int i = 0; i < 4; i++) {
+        process(corpus, it.next(), seen);
+      }
+      // iterated but not saved
+      Document doc = it.next();
+      corpus.unloadDocument(doc, false);
+      Factory.deleteResource(doc);
+    } finally {
+      Factory.deleteResource(corpus);
+    }
+    assertEquals(4, seen.size());
+    Connection connection = openConnection(driver, url);
+    try {
+      Statement stmt = connection.createStatement();
+      ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM docs_done");
+      assertTrue(rs.next());
+      assertEquals(4, rs.getInt(1));
+      rs.close();
+      stmt.close();
+    } finally {
+      connection.close();
+    }
+    corpus = createCorpus(driver, url, params);
+    try {
+      assertEquals(N_DOCS, corpus.size());
+      Set<String> rest = new HashSet<String>();
+      Iterator<Document> it = corpus.iterator();
+      while(it.hasNext()) {
+        process(corpus, it.next(), rest);
+      }
+      assertEquals(N_DOCS - 4, rest.size());
+      rest.retainAll(seen);
+      assertTrue(rest.isEmpty());
+    } finally {
+      Factory.deleteResource(corpus);
+    }
+  }
+  
+  // create a corpus with a snapshot and return its document names
+  protected List<String> getSnapshotCorpusNames(String url, boolean monotonicKeys) 
+    throws Exception {
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("readonly", true);
+    params.put("snapshotFileUrl", new File(tmpDir, "snapshot").toURI().toURL());
+    params.put("changeTokenSQL", "SELECT COUNT(*) FROM docs");
+    params.put("monotonicKeys", monotonicKeys);
+    JDBCCorpus corpus = createCorpus("org.h2.Driver", url, params);
+    try {
+      assertTrue(new File(tmpDir, "snapshot").exists());
+      return new ArrayList<String>(corpus.getDocumentNames());
+    } finally {
+      Factory.deleteResource(corpus);
+    }
+  }
+  
+  protected FeatureMap getWorkQueueParameters(String workerId) {
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("readonly", false);
+    params.put("workStatusField", "status");
+    params.put("workLeaseField", "lease");
+    params.put("workOwnerField", "owner");
+    params.put("workerId", workerId);
+    params.put("workClaimSize", 2);
+    return params;
+  }
+  
+  protected void processAll(Corpus corpus, Set<String> seen) {
+    for(int i = 0; i < corpus.size(); i++) {
+      process(corpus, corpus.get(i), seen);
+    }
+  }
+  
+  protected void process(Corpus corpus, Document doc, Set<String> seen) {
+    if(seen != null) {
+      assertTrue("Document "+doc.getName()+" seen twice", seen.add(doc.getName()));
+    }
+    doc.getFeatures().put("processed", "yes");
+    corpus.unloadDocument(doc);
+    Factory.deleteResource(doc);
+  }
+  
+  protected JDBCCorpus createCorpus(String driver, String url, FeatureMap extra) 
+    throws Exception {
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("jdbcDriver", driver);
+    params.put("jdbcUrl", url);
+    params.put("dbDirectoryUrl", tmpDir.toURI().toURL());
+    params.put("tableName", "docs");
+    params.put("documentNameField", "name");
+    params.put("documentContentField", "content");
+    params.put("mimeType", "text/plain");
+    params.putAll(extra);
+    return (JDBCCorpus)Factory.createResource(JDBCCorpus.class.getName(), params);
+  }
+  
+  protected void createDocumentTable(String driver, String url) throws SQLException {
+    Connection connection = openConnection(driver, url);
+    try {
+      execute(connection, "CREATE TABLE docs ( name VARCHAR(255) PRIMARY KEY, "+
+        "content "+getTextType(driver)+", status INTEGER, lease BIGINT, owner VARCHAR(255) )");
+      PreparedStatement insert = connection.prepareStatement(
+        "INSERT INTO docs ( name, content, status ) VALUES ( ?, ?, 0 )");
+      for(int i = 0; i < N_DOCS; i++) {
+        String name = String.format("doc%02d", i);
+        insert.setString(1, name);
+        insert.setString(2, getText(name));
+        insert.executeUpdate();
+      }
+      insert.close();
+    } finally {
+      connection.close();
+    }
+  }
+  
+  protected void createNumericDocumentTable(String driver, String url, long[] keys) 
+    throws SQLException {
+    Connection connection = openConnection(driver, url);
+    try {
+      execute(connection, "CREATE TABLE docs ( name BIGINT PRIMARY KEY, "+
+        "content "+getTextType(driver)+" )");
+      PreparedStatement insert = connection.prepareStatement(
+        "INSERT INTO docs ( name, content ) VALUES ( ?, ? )");
+      for(long key : keys) {
+        insert.setLong(1, key);
+        insert.setString(2, getText(Long.toString(key)));
+        insert.executeUpdate();
+      }
+      insert.close();
+    } finally {
+      connection.close();
+    }
+  }
+  
+  protected static String getTextType(String driver) {
+    return driver.contains("sqlite") ? "TEXT" : "CLOB";
+  }
+  
+  protected String getH2Url() throws IOException {
+    return "jdbc:h2:"+new File(tmpDir, "smoke").getAbsolutePath();
+  }
+  
+  protected String getSQLiteUrl() throws IOException {
+    return "jdbc:sqlite:"+new File(tmpDir, "smoke.db").getAbsolutePath();
+  }
+  
+  protected static Connection openConnection(String driver, String url) throws SQLException {
+    try {
+      Class.forName(driver);
+    } catch (ClassNotFoundException ex) {
+      throw new SQLException("No driver "+driver, ex);
+    }
+    return DriverManager.getConnection(url, "", "");
+  }
+  
+  protected static void execute(Connection connection, String sql) throws SQLException {
+    Statement stmt = connection.createStatement();
+    try {
+      stmt.executeUpdate(sql);
+    } finally {
+      stmt.close();
+    }
+  }
+}
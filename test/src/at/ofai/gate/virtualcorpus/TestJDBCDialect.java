@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2010- Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-VirtualCorpus
+ * (see https://github.com/johann-petrak/gateplugin-VirtualCorpus)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package at.ofai.gate.virtualcorpus;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.TestCase;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.core.BaseConnection;
+import org.postgresql.core.QueryExecutor;
+
+/**
+ * Tests for the database profiles. The PostgreSQL profile is tested 
+ * against a connection which only records the statements and the COPY
+ * data it gets, since the tests cannot rely on a PostgreSQL server.
+ * 
+ * @author Johann Petrak
+ */
+public class TestJDBCDialect extends TestCase {
+
+  public void testGetDialect() {
+    assertEquals(JDBCDialect.H2, JDBCDialect.getDialect(null, "org.h2.Driver"));
+    assertEquals(JDBCDialect.SQLITE, JDBCDialect.getDialect("", "org.sqlite.JDBC"));
+    assertEquals(JDBCDialect.POSTGRESQL, JDBCDialect.getDialect(null, "org.postgresql.Driver"));
+    assertEquals(JDBCDialect.MYSQL, JDBCDialect.getDialect(null, "com.mysql.jdbc.Driver"));
+    assertEquals(JDBCDialect.GENERIC, JDBCDialect.getDialect(null, "com.example.Driver"));
+    assertEquals(JDBCDialect.GENERIC, JDBCDialect.getDialect("generic", "org.h2.Driver"));
+  }
+  
+  public void testIsVersionAtLeast() {
+    assertTrue(JDBCDialect.isVersionAtLeast("3.24.0", 3, 24));
+    assertTrue(JDBCDialect.isVersionAtLeast("3.30", 3, 24));
+    assertFalse(JDBCDialect.isVersionAtLeast("3.6.3", 3, 24));
+    assertTrue(JDBCDialect.isVersionAtLeast("9.5.25", 9, 5));
+    assertFalse(JDBCDialect.isVersionAtLeast("9.4.26", 9, 5));
+    assertTrue(JDBCDialect.isVersionAtLeast("10.4 (Debian 10.4-2.pgdg90+1)", 9, 5));
+    assertTrue(JDBCDialect.isVersionAtLeast("12", 9, 5));
+    assertFalse(JDBCDialect.isVersionAtLeast("beta", 9, 5));
+    assertFalse(JDBCDialect.isVersionAtLeast(null, 9, 5));
+  }
+  
+  public void testSQLiteUpsertNeedsNewVersion() throws Exception {
+    Class.forName("org.sqlite.JDBC");
+    Connection connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+    try {
+      // the bundled driver comes with SQLite 3.6
+      assertFalse(JDBCDialect.SQLITE.supportsUpsert(connection));
+    } finally {
+      connection.close();
+    }
+  }
+  
+  public void testPostgreSQLUpsertNeedsNewVersion() throws Exception {
+    assertFalse(JDBCDialect.POSTGRESQL.supportsUpsert(new RecordingConnection("9.0.23").connection));
+    assertFalse(JDBCDialect.POSTGRESQL.supportsUpsert(new RecordingConnection("9.4.1").connection));
+    assertTrue(JDBCDialect.POSTGRESQL.supportsUpsert(new RecordingConnection("9.5.0").connection));
+    assertTrue(JDBCDialect.POSTGRESQL.supportsUpsert(new RecordingConnection("11.2").connection));
+  }
+  
+  public void testPostgreSQLBulkUpsert() throws Exception {
+    RecordingConnection rec = new RecordingConnection("9.6.1");
+    assertTrue(JDBCDialect.POSTGRESQL.supportsBulkUpsert(rec.connection));
+    List<String> names = Arrays.asList("doc1", "doc\t2");
+    List<SpooledOutputStream> contents = new ArrayList<SpooledOutputStream>();
+    contents.add(spool("line1\nline2"));
+    contents.add(spool("back\\slash"));
+    JDBCDialect.POSTGRESQL.bulkUpsert(rec.connection, "out", "name", "content", 
+      names, contents, false, "UTF-8");
+    assertEquals(1, rec.copies.size());
+    assertEquals("COPY "+rec.copies.get(0).split(" ")[1]+
+      " ( name, content ) FROM STDIN WITH ( FORMAT text, ENCODING 'UTF-8' )", 
+      rec.copies.get(0));
+    assertEquals("doc1\tline1\\nline2\ndoc\\t2\tback\\\\slash\n", 
+      new String(rec.copyData.toByteArray(), "UTF-8"));
+    String last = rec.updates.get(rec.updates.size()-1);
+    assertTrue(last, last.startsWith("INSERT INTO out ( name, content ) SELECT name, content FROM "));
+  }
+  
+  public void testPostgreSQLBulkUpsertBinary() throws Exception {
+    RecordingConnection rec = new RecordingConnection("9.6.1");
+    List<SpooledOutputStream> contents = new ArrayList<SpooledOutputStream>();
+    SpooledOutputStream content = new SpooledOutputStream(1024);
+    content.write(new byte[]{ 0x00, 0x7f, (byte)0xff });
+    contents.add(content);
+    JDBCDialect.POSTGRESQL.bulkUpsert(rec.connection, "out", "name", "content", 
+      Arrays.asList("doc1"), contents, true, "UTF-8");
+    assertEquals("doc1\t\\\\x007fff\n", new String(rec.copyData.toByteArray(), "UTF-8"));
+  }
+  
+  protected static SpooledOutputStream spool(String text) throws Exception {
+    SpooledOutputStream out = new SpooledOutputStream(1024);
+    out.write(text.getBytes("UTF-8"));
+    return out;
+  }
+  
+  /**
+   * A PostgreSQL connection which reports the given server version and
+   * records all updates, COPY statements and COPY data.
+   */
+  protected static class RecordingConnection {
+    final String serverVersion;
+    final List<String> updates = new ArrayList<String>();
+    final List<String> copies = new ArrayList<String>();
+    final ByteArrayOutputStream copyData = new ByteArrayOutputStream();
+    final Connection connection;
+    
+    RecordingConnection(String serverVersion) {
+      this.serverVersion = serverVersion;
+      connection = (Connection)proxy(BaseConnection.class, new InvocationHandler() {
+        @Override
+        public Object invoke(Object p, Method m, Object[] args) throws Throwable {
+          if(m.getName().equals("createStatement")) {
+            return proxy(Statement.class, new StatementHandler());
+          } else if(m.getName().equals("getQueryExecutor")) {
+            return proxy(QueryExecutor.class, new InvocationHandler() {
+              @Override
+              public Object invoke(Object p, Method m, Object[] args) {
+                if(m.getName().equals("startCopy")) {
+                  copies.add((String)args[0]);
+                  return proxy(CopyIn.class, new CopyHandler());
+                }
+                throw new UnsupportedOperationException(m.getName());
+              }
+            });
+          } else if(m.getName().equals("getCopyAPI")) {
+            return new org.postgresql.copy.CopyManager((BaseConnection)p);
+          } 
+          return defaultValue(m);
+        }
+      });
+    }
+    
+    class StatementHandler implements InvocationHandler {
+      @Override
+      public Object invoke(Object p, Method m, Object[] args) {
+        if(m.getName().equals("executeUpdate")) {
+          updates.add((String)args[0]);
+          return 0;
+        } else if(m.getName().equals("executeQuery")) {
+          assertEquals("SHOW server_version", args[0]);
+          return proxy(ResultSet.class, new InvocationHandler() {
+            boolean consumed = false;
+            @Override
+            public Object invoke(Object p, Method m, Object[] args) {
+              if(m.getName().equals("next")) {
+                boolean ret = !consumed;
+                consumed = true;
+                return ret;
+              } else if(m.getName().equals("getString")) {
+                return serverVersion;
+              }
+              return null;
+            }
+          });
+        }
+        return defaultValue(m);
+      }
+    }
+    
+    class CopyHandler implements InvocationHandler {
+      @Override
+      public Object invoke(Object p, Method m, Object[] args) {
+        if(m.getName().equals("writeToCopy")) {
+          copyData.write((byte[])args[0], (Integer)args[1], (Integer)args[2]);
+        } else if(m.getName().equals("endCopy") || m.getName().equals("getHandledRowCount")) {
+          return 0L;
+        } else if(m.getName().equals("isActive")) {
+          return false;
+        } else if(m.getName().equals("getFieldCount") || m.getName().equals("getFormat")) {
+          return 0;
+        }
+        return defaultValue(m);
+      }
+    }
+  }
+  
+  // null, or false or 0 for methods with a primitive return type
+  protected static Object defaultValue(Method m) {
+    Class<?> type = m.getReturnType();
+    if(type == boolean.class) {
+      return false;
+    } else if(type == int.class) {
+      return 0;
+    } else if(type == long.class) {
+      return 0L;
+    }
+    return null;
+  }
+  
+  protected static Object proxy(Class<?> type, InvocationHandler handler) {
+    return Proxy.newProxyInstance(TestJDBCDialect.class.getClassLoader(), 
+      new Class<?>[]{ type }, handler);
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2010- Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-VirtualCorpus
+ * (see https://github.com/johann-petrak/gateplugin-VirtualCorpus)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.ofai.gate.virtualcorpus;
+
+import java.util.List;
+import java.util.Map;
+import junit.framework.TestCase;
+
+/**
+ * Tests for the primitive key list and hash table used for numeric 
+ * JDBCCorpus keys.
+ * 
+ * @author Johann Petrak
+ */
+public class TestLongKeyIndex extends TestCase {
+
+  public void testAddAndIndexOf() {
+    LongKeyIndex index = new LongKeyIndex();
+    // enough keys to make the list and the hash table grow several times
+    for(int i = 0; i < 1000; i++) {
+      assertEquals(i, index.add(i * 7919L - 500000L));
+    }
+    assertEquals(1000, index.size());
+    for(int i = 0; i < 1000; i++) {
+      assertEquals(i * 7919L - 500000L, index.getKey(i));
+      assertEquals(i, index.indexOf(i * 7919L - 500000L));
+    }
+    assertEquals(-1, index.indexOf(1L));
+    assertEquals(-1, index.indexOf(Long.MAX_VALUE));
+  }
+  
+  public void testRemoveShiftsPositions() {
+    LongKeyIndex index = new LongKeyIndex();
+    for(long key = 10; key < 20; key++) {
+      index.add(key);
+    }
+    assertEquals(13L, index.remove(3));
+    assertEquals(9, index.size());
+    assertEquals(-1, index.indexOf(13L));
+    assertEquals(2, index.indexOf(12L));
+    assertEquals(3, index.indexOf(14L));
+    assertEquals(8, index.indexOf(19L));
+    assertEquals(14L, index.getKey(3));
+    assertEquals(10L, index.remove(0));
+    assertEquals(0, index.indexOf(11L));
+    assertEquals(7, index.indexOf(19L));
+    try {
+      index.getKey(8);
+      fail("Expected an IndexOutOfBoundsException");
+    } catch (IndexOutOfBoundsException ex) {
+      // expected
+    }
+  }
+  
+  public void testNameViews() {
+    LongKeyIndex index = new LongKeyIndex();
+    List<String> names = index.asNameList();
+    Map<String,Integer> indexes = index.asIndexMap();
+    names.add("42");
+    names.add("-3");
+    index.add(0L);
+    assertEquals(3, names.size());
+    assertEquals("-3", names.get(1));
+    assertEquals(Integer.valueOf(2), indexes.get("0"));
+    assertTrue(names.contains("42"));
+    assertEquals(1, names.indexOf("-3"));
+    assertNull(indexes.get("doc"));
+    assertFalse(names.contains("doc"));
+    assertEquals(-1, names.indexOf("7"));
+    assertEquals(3, indexes.size());
+    assertEquals("42", names.remove(0));
+    assertEquals(Integer.valueOf(0), indexes.get("-3"));
+    try {
+      names.add("doc");
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException ex) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2010- Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-VirtualCorpus
+ * (see https://github.com/johann-petrak/gateplugin-VirtualCorpus)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.ofai.gate.virtualcorpus;
+
+import gate.Corpus;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import java.io.File;
+import java.io.FileOutputStream;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests for storing documents in the segment files of a PackedCorpus,
+ * recovering records which are not in the index yet and compacting 
+ * segments.
+ * 
+ * @author Johann Petrak
+ */
+public class TestPackedCorpus extends VirtualCorpusTestCase {
+
+  protected File packedDir;
+  
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    register(PackedCorpus.class);
+    register(PackedSubsetCorpus.class);
+    packedDir = new File(tmpDir, "packed");
+  }
+  
+  public void testAddAndReopen() throws Exception {
+    PackedCorpus corpus = createCorpus(packedDir, false, true);
+    try {
+      for(int i = 0; i < 5; i++) {
+        addDocument(corpus, String.format("doc%02d", i), getText("doc"+i));
+      }
+      addDocument(corpus, "other", "other text");
+      // only the name is checked for duplicates
+      Document duplicate = Factory.newDocument("duplicate");
+      duplicate.setName("doc03");
+      assertFalse(corpus.add(duplicate));
+      Factory.deleteResource(duplicate);
+    } finally {
+      Factory.deleteResource(corpus);
+    }
+    assertTrue(new File(packedDir, "packed.index").exists());
+    corpus = createCorpus(packedDir, true, true);
+    try {
+      assertEquals(6, corpus.size());
+      Document doc = corpus.get(corpus.getDocumentNames().indexOf("doc03"));
+      assertEquals(getText("doc3"), doc.getContent().toString());
+      assertSame(corpus.getDataStore(), doc.getDataStore());
+      corpus.unloadDocument(doc);
+      Factory.deleteResource(doc);
+    } finally {
+      Factory.deleteResource(corpus);
+    }
+  }
+  
+  // a record appended after the index was written is found again when 
+  // the corpus is opened, a torn record at the end is ignored
+  public void testRecoverRecords() throws Exception {
+    PackedCorpus corpus = createCorpus(packedDir, false, true);
+    File copyDir = new File(tmpDir, "copy");
+    try {
+      addDocument(corpus, "doc00", getText("doc00"));
+      corpus.sync();
+      addDocument(corpus, "doc01", getText("doc01"));
+      // the copy is what a crash right now would leave behind
+      FileUtils.copyDirectory(packedDir, copyDir);
+    } finally {
+      Factory.deleteResource(corpus);
+    }
+    for(File file : copyDir.listFiles()) {
+      if(file.getName().endsWith(".vcp")) {
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(new byte[] { 0x56, 0x43, 0x50, 0x52, 0, 0, 1 });
+        out.close();
+      }
+    }
+    corpus = createCorpus(copyDir, false, true);
+    try {
+      assertEquals(2, corpus.size());
+      Document doc = corpus.get(corpus.getDocumentNames().indexOf("doc01"));
+      assertEquals(getText("doc01"), doc.getContent().toString());
+      corpus.unloadDocument(doc);
+      Factory.deleteResource(doc);
+      addDocument(corpus, "doc02", getText("doc02"));
+    } finally {
+      Factory.deleteResource(corpus);
+    }
+    corpus = createCorpus(copyDir, true, true);
+    try {
+      assertEquals(3, corpus.size());
+      Document doc = corpus.get(corpus.getDocumentNames().indexOf("doc02"));
+      assertEquals(getText("doc02"), doc.getContent().toString());
+    } finally {
+      Factory.deleteResource(corpus);
+    }
+  }
+  
+  // with 1MB segments and uncompressed documents of 300KB, saving the 
+  // documents of the first segment again makes it all dead space
+  public void testCompaction() throws Exception {
+    StringBuilder sb = new StringBuilder();
+    while(sb.length() < 300000) {
+      sb.append("Some longer text for a document. ");
+    }
+    String text = sb.toString();
+    PackedCorpus corpus = createCorpus(packedDir, false, false);
+    try {
+      for(int i = 0; i < 8; i++) {
+        addDocument(corpus, String.format("doc%02d", i), i+text);
+      }
+      assertTrue(countSegments() > 1);
+      File first = new File(packedDir, corpus.segments.firstEntry().getValue().file.getName());
+      for(int i = 0; i < 3; i++) {
+        Document doc = corpus.get(i);
+        doc.getFeatures().put("saved", "again");
+        corpus.unloadDocument(doc);
+        Factory.deleteResource(doc);
+      }
+      corpus.compact();
+      long until = System.currentTimeMillis() + 10000;
+      while(first.exists() && System.currentTimeMillis() < until) {
+        Thread.sleep(100);
+      }
+      assertFalse("Compacted segment "+first+" was removed", first.exists());
+    } finally {
+      Factory.deleteResource(corpus);
+    }
+    corpus = createCorpus(packedDir, true, false);
+    try {
+      assertEquals(8, corpus.size());
+      for(int i = 0; i < 8; i++) {
+        Document doc = corpus.get(i);
+        assertEquals(i+text, doc.getContent().toString());
+        assertEquals(i < 3 ? "again" : null, doc.getFeatures().get("saved"));
+        corpus.unloadDocument(doc);
+        Factory.deleteResource(doc);
+      }
+    } finally {
+      Factory.deleteResource(corpus);
+    }
+  }
+  
+  // the datastore adopts an empty transient corpus as a subset corpus
+  public void testAdoptCorpus() throws Exception {
+    PackedCorpus corpus = createCorpus(packedDir, false, true);
+    try {
+      addDocument(corpus, "doc00", getText("doc00"));
+      Corpus transientCorpus = Factory.newCorpus("subset");
+      transientCorpus.getFeatures().put("purpose", "test");
+      Corpus subset = (Corpus)corpus.getDataStore().adopt(transientCorpus);
+      assertTrue(subset instanceof PackedSubsetCorpus);
+      assertEquals("subset", subset.getName());
+      assertEquals("test", subset.getFeatures().get("purpose"));
+      Factory.deleteResource(subset);
+      Factory.deleteResource(transientCorpus);
+    } finally {
+      Factory.deleteResource(corpus);
+    }
+  }
+  
+  protected int countSegments() {
+    int n = 0;
+    for(File file : packedDir.listFiles()) {
+      if(file.getName().endsWith(".vcp")) {
+        n++;
+      }
+    }
+    return n;
+  }
+  
+  protected static void addDocument(PackedCorpus corpus, String name, String text) 
+    throws Exception {
+    Document doc = Factory.newDocument(text);
+    doc.setName(name);
+    assertTrue(corpus.add(doc));
+    Factory.deleteResource(doc);
+  }
+  
+  protected static PackedCorpus createCorpus(File dir, boolean readonly, boolean compressed) 
+    throws Exception {
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("directoryURL", dir.toURI().toURL());
+    params.put("readonly", readonly);
+    params.put("useCompression", compressed);
+    params.put("maxSegmentMB", 1);
+    return (PackedCorpus)Factory.createResource(PackedCorpus.class.getName(), params);
+  }
+}
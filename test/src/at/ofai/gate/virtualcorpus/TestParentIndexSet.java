@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2010- Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-VirtualCorpus
+ * (see https://github.com/johann-petrak/gateplugin-VirtualCorpus)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.ofai.gate.virtualcorpus;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import junit.framework.TestCase;
+
+/**
+ * Tests for the bitmap of parent indexes which holds the members of a 
+ * subset corpus. The results of random operations, set operations and
+ * writing and reading the set are compared with a sorted set.
+ * 
+ * @author Johann Petrak
+ */
+public class TestParentIndexSet extends TestCase {
+
+  public void testRandomOperations() {
+    Random random = new Random(42);
+    ParentIndexSet set = new ParentIndexSet();
+    TreeSet<Integer> expected = new TreeSet<Integer>();
+    for(int round = 0; round < 2000; round++) {
+      int op = random.nextInt(10);
+      if(op < 4) {
+        int p = random.nextInt(5000);
+        int position = set.add(p);
+        if(expected.add(p)) {
+          assertEquals(expected.headSet(p).size(), position);
+        } else {
+          assertEquals(-1, position);
+        }
+      } else if(op < 5) {
+        int[] ps = new int[random.nextInt(50)];
+        int added = 0;
+        for(int i = 0; i < ps.length; i++) {
+          ps[i] = random.nextInt(6000);
+        }
+        for(int p : ps) {
+          if(expected.add(p)) {
+            added++;
+          }
+        }
+        assertEquals(added, set.addAll(ps, ps.length));
+      } else if(!expected.isEmpty()) {
+        int position = random.nextInt(expected.size());
+        int p = new ArrayList<Integer>(expected).get(position);
+        assertEquals(p, set.remove(position));
+        expected.remove(p);
+      }
+      check(expected, set);
+    }
+    set.clear();
+    assertEquals(0, set.size());
+    assertFalse(set.contains(0));
+  }
+  
+  public void testWordBoundaries() {
+    ParentIndexSet set = new ParentIndexSet();
+    int[] ps = new int[] { 0, 63, 64, 127, 128, 4095, 4096 };
+    assertEquals(ps.length, set.addAll(ps, ps.length));
+    for(int i = 0; i < ps.length; i++) {
+      assertEquals(ps[i], set.get(i));
+      assertEquals(i, set.indexOf(ps[i]));
+    }
+    assertEquals(-1, set.indexOf(65));
+    assertEquals(64, set.remove(2));
+    assertEquals(127, set.get(2));
+    assertEquals(2, set.indexOf(127));
+    try {
+      set.get(6);
+      fail("Expected an IndexOutOfBoundsException");
+    } catch (IndexOutOfBoundsException ex) {
+      // expected
+    }
+  }
+  
+  public void testSetOperations() {
+    Random random = new Random(7);
+    for(int round = 0; round < 50; round++) {
+      TreeSet<Integer> expected1 = new TreeSet<Integer>();
+      TreeSet<Integer> expected2 = new TreeSet<Integer>();
+      ParentIndexSet set1 = randomSet(random, expected1);
+      ParentIndexSet set2 = randomSet(random, expected2);
+      int op = round % 3;
+      int before = expected1.size();
+      if(op == 0) {
+        expected1.addAll(expected2);
+        assertEquals(expected1.size() - before, set1.or(set2));
+      } else if(op == 1) {
+        expected1.retainAll(expected2);
+        assertEquals(before - expected1.size(), set1.and(set2));
+      } else {
+        expected1.removeAll(expected2);
+        assertEquals(before - expected1.size(), set1.andNot(set2));
+      }
+      check(expected1, set1);
+      check(expected2, set2);
+    }
+  }
+  
+  public void testWriteAndRead() throws IOException {
+    Random random = new Random(3);
+    for(int round = 0; round < 20; round++) {
+      TreeSet<Integer> expected = new TreeSet<Integer>();
+      ParentIndexSet set = randomSet(random, expected);
+      if(round == 0) {
+        set.clear();
+        expected.clear();
+      } else if(round == 1) {
+        // a dense range
+        int[] ps = new int[3000];
+        for(int i = 0; i < ps.length; i++) {
+          ps[i] = i + 100;
+          expected.add(i + 100);
+        }
+        set.addAll(ps, ps.length);
+      }
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      set.write(out);
+      out.close();
+      ParentIndexSet read = ParentIndexSet.read(
+        new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+      check(expected, read);
+    }
+  }
+  
+  // sets of very different density and size
+  protected static ParentIndexSet randomSet(Random random, TreeSet<Integer> expected) {
+    int range = 1 + random.nextInt(10000);
+    int n = random.nextInt(range);
+    int[] ps = new int[n];
+    for(int i = 0; i < n; i++) {
+      ps[i] = random.nextInt(range);
+      expected.add(ps[i]);
+    }
+    ParentIndexSet set = new ParentIndexSet();
+    set.addAll(ps, n);
+    return set;
+  }
+  
+  protected static void check(TreeSet<Integer> expected, ParentIndexSet set) {
+    assertEquals(expected.size(), set.size());
+    List<Integer> members = new ArrayList<Integer>(expected);
+    for(int i = 0; i < members.size(); i++) {
+      assertEquals(members.get(i).intValue(), set.get(i));
+      assertEquals(i, set.indexOf(members.get(i)));
+    }
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2010- Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-VirtualCorpus
+ * (see https://github.com/johann-petrak/gateplugin-VirtualCorpus)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.ofai.gate.virtualcorpus;
+
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.creole.ResourceInstantiationException;
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests for ordering and distributing documents by size, with the
+ * {@link SizeScheduler} on its own and with the documentOrder parameter
+ * of a DirectoryCorpus.
+ * 
+ * @author Johann Petrak
+ */
+public class TestSizeScheduler extends VirtualCorpusTestCase {
+
+  protected static final long[] SIZES = {5, 100, 20, 100, -1, 7, 300};
+  
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    register(DirectoryCorpus.class);
+    register(DirectorySubsetCorpus.class);
+  }
+  
+  public void testOrders() throws Exception {
+    SizeScheduler scheduler = new SizeScheduler(SIZES);
+    assertEquals("[0, 1, 2, 3, 4, 5, 6]", 
+      Arrays.toString(scheduler.getOrder(SizeScheduler.ORDER_NONE)));
+    // equal sizes keep the order of their index, unknown sizes count as 0
+    assertEquals("[6, 1, 3, 2, 5, 0, 4]", 
+      Arrays.toString(scheduler.getOrder(SizeScheduler.ORDER_LARGEST_FIRST)));
+    assertEquals("[6, 4, 1, 0, 3, 5, 2]", 
+      Arrays.toString(scheduler.getOrder(SizeScheduler.ORDER_BALANCED)));
+    try {
+      scheduler.getOrder("smallestFirst");
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException ex) {
+      // expected
+    }
+  }
+  
+  public void testAssignShards() throws Exception {
+    SizeScheduler scheduler = new SizeScheduler(SIZES);
+    int[][] shards = scheduler.assignShards(3);
+    assertEquals("[6]", Arrays.toString(shards[0]));
+    assertEquals("[1, 2]", Arrays.toString(shards[1]));
+    assertEquals("[0, 3, 4, 5]", Arrays.toString(shards[2]));
+    assertEquals(120L, scheduler.getTotalSize(shards[1]));
+    assertEquals(112L, scheduler.getTotalSize(shards[2]));
+    // more shards than documents leaves some empty
+    shards = scheduler.assignShards(10);
+    int count = 0;
+    for(int[] shard : shards) {
+      assertTrue(shard.length <= 1);
+      count += shard.length;
+    }
+    assertEquals(SIZES.length, count);
+    try {
+      scheduler.assignShards(0);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException ex) {
+      // expected
+    }
+  }
+  
+  public void testDirectoryCorpus() throws Exception {
+    File dir = new File(tmpDir, "docs");
+    dir.mkdirs();
+    for(int i = 0; i < 6; i++) {
+      // every other document is big, in the reverse order of the names
+      int length = (i % 2 == 0 ? 1000 * (6 - i) : 10) + i;
+      String name = String.format("doc%02d.txt", i);
+      FileUtils.writeStringToFile(new File(dir, name), pad(name, length), "UTF-8");
+    }
+    List<String> bySize = Arrays.asList("doc00.txt", "doc02.txt", "doc04.txt", 
+      "doc05.txt", "doc03.txt", "doc01.txt");
+    DirectoryCorpus corpus = createCorpus(dir, SizeScheduler.ORDER_LARGEST_FIRST);
+    List<VirtualSubsetCorpus> shards = null;
+    try {
+      assertEquals(bySize, corpus.getDocumentNames());
+      for(int i = 0; i < corpus.size(); i++) {
+        assertEquals(new File(dir, bySize.get(i)).length(), corpus.getDocumentSize(i));
+      }
+      Document doc = corpus.get(0);
+      assertEquals("doc00.txt", doc.getName());
+      corpus.unloadDocument(doc, false);
+      Factory.deleteResource(doc);
+      // the sizes come from the corpus and the shards are subset corpora
+      shards = new SizeScheduler(corpus).createShards(corpus, new String[]{"s0", "s1"});
+      assertEquals(Arrays.asList("doc00.txt", "doc05.txt", "doc01.txt"), 
+        shards.get(0).getDocumentNames());
+      assertEquals(Arrays.asList("doc02.txt", "doc04.txt", "doc03.txt"), 
+        shards.get(1).getDocumentNames());
+      try {
+        new SizeScheduler(new long[3]).createShards(corpus, new String[]{"s"});
+        fail("Expected an IllegalArgumentException");
+      } catch (IllegalArgumentException ex) {
+        // the sizes are for a different corpus
+      }
+    } finally {
+      if(shards != null) {
+        for(VirtualSubsetCorpus shard : shards) {
+          Factory.deleteResource(shard);
+        }
+      }
+      Factory.deleteResource(corpus);
+    }
+    corpus = createCorpus(dir, SizeScheduler.ORDER_BALANCED);
+    try {
+      assertEquals(Arrays.asList("doc00.txt", "doc01.txt", "doc02.txt", 
+        "doc03.txt", "doc04.txt", "doc05.txt"), corpus.getDocumentNames());
+    } finally {
+      Factory.deleteResource(corpus);
+    }
+    try {
+      createCorpus(dir, "smallestFirst");
+      fail("Expected a ResourceInstantiationException");
+    } catch (ResourceInstantiationException ex) {
+      // unknown order
+    }
+  }
+  
+  protected DirectoryCorpus createCorpus(File dir, String order) throws Exception {
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("directoryURL", dir.toURI().toURL());
+    params.put("documentOrder", order);
+    params.put("readonly", true);
+    return (DirectoryCorpus)Factory.createResource(DirectoryCorpus.class.getName(), params);
+  }
+  
+  protected static String pad(String text, int length) {
+    StringBuilder sb = new StringBuilder(text);
+    sb.append(' ');
+    while(sb.length() < length) {
+      sb.append('x');
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2010- Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-VirtualCorpus
+ * (see https://github.com/johann-petrak/gateplugin-VirtualCorpus)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.ofai.gate.virtualcorpus;
+
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.creole.ResourceInstantiationException;
+import gate.event.CorpusEvent;
+import gate.event.CorpusListener;
+import gate.util.GateRuntimeException;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests for building subset corpora of a DirectoryCorpus without loading
+ * any documents.
+ * 
+ * @author Johann Petrak
+ */
+public class TestSubsetCorpus extends VirtualCorpusTestCase {
+
+  protected File docDir;
+  protected DirectoryCorpus corpus;
+  
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    register(DirectoryCorpus.class);
+    register(DirectorySubsetCorpus.class);
+    FeatureMap params = Factory.newFeatureMap();
+    docDir = createDocumentDirectory("docs", 12);
+    params.put("directoryURL", docDir.toURI().toURL());
+    params.put("readonly", true);
+    corpus = (DirectoryCorpus)Factory.createResource(DirectoryCorpus.class.getName(), params);
+  }
+  
+  @Override
+  protected void tearDown() throws Exception {
+    Factory.deleteResource(corpus);
+    super.tearDown();
+  }
+  
+  public void testNamePatterns() throws Exception {
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("namePatterns", Arrays.asList("doc0{1,3}.xml", "regex:doc1[01]\\.xml"));
+    assertEquals(inParentOrder("doc01.xml", "doc03.xml", "doc10.xml", "doc11.xml"),
+      createSubsetCorpus(params).getDocumentNames());
+  }
+  
+  public void testIndexRanges() throws Exception {
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("indexRanges", "0-1, 5,10-");
+    assertEquals(parentNames(0, 1, 5, 10, 11),
+      createSubsetCorpus(params).getDocumentNames());
+  }
+  
+  public void testKeyListFile() throws Exception {
+    File keyFile = new File(tmpDir, "keys.txt");
+    FileUtils.writeStringToFile(keyFile, "doc04.xml\n\nnodoc.xml\ndoc02.xml\n", "UTF-8");
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("keyListFileUrl", keyFile.toURI().toURL());
+    // the documents are in the order of the parent corpus
+      assertEquals(inParentOrder("doc02.xml", "doc04.xml"),
+      createSubsetCorpus(params).getDocumentNames());
+  }
+  
+  public void testGlobToRegex() {
+    String regex = VirtualSubsetCorpus.globToRegex("a/**/*.xml");
+    assertTrue("a/b/c/d.xml".matches(regex));
+    assertFalse("a/b/c/d.txt".matches(regex));
+    regex = VirtualSubsetCorpus.globToRegex("a/*.xml");
+    assertTrue("a/d.xml".matches(regex));
+    assertFalse("a/b/d.xml".matches(regex));
+    regex = VirtualSubsetCorpus.globToRegex("doc?.{xml,txt}");
+    assertTrue("doc1.txt".matches(regex));
+    assertFalse("doc12.txt".matches(regex));
+    assertFalse("doc1.xmltxt".matches(regex));
+  }
+  
+  // a bulk add fires one event per added document with the index that
+  // document has in the subset corpus
+  public void testBulkAddEvents() throws Exception {
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("indexRanges", "4");
+    VirtualSubsetCorpus subset = createSubsetCorpus(params);
+    EventRecorder recorder = new EventRecorder();
+    subset.addCorpusListener(recorder);
+    assertEquals(3, subset.addDocumentRange(2, 6));
+    assertEquals(Arrays.asList("added 0", "added 1", "added 3"), recorder.events);
+    assertEquals(parentNames(2, 3, 4, 5), subset.getDocumentNames());
+  }
+  
+  // after a removal the positions of the following documents shift down
+  public void testRemoveAndClear() throws Exception {
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("indexRanges", "0-");
+    VirtualSubsetCorpus subset = createSubsetCorpus(params);
+    subset.remove(3);
+    subset.remove(3);
+    subset.remove(0);
+    assertEquals(parentNames(1, 2, 5, 6, 7, 8, 9, 10, 11), subset.getDocumentNames());
+    Document doc = subset.get(2);
+    assertEquals(corpus.getDocumentName(5), doc.getName());
+    assertEquals(2, subset.indexOf(doc));
+    subset.unloadDocument(doc);
+    Factory.deleteResource(doc);
+    subset.remove(7);
+    EventRecorder recorder = new EventRecorder();
+    subset.addCorpusListener(recorder);
+    subset.clear();
+    assertTrue(subset.isEmpty());
+    assertEquals(8, recorder.events.size());
+    assertEquals("removed 7", recorder.events.get(0));
+    assertEquals("removed 0", recorder.events.get(7));
+  }
+  
+  public void testMembershipFile() throws Exception {
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("indexRanges", "1,4-6,11");
+    VirtualSubsetCorpus subset = createSubsetCorpus(params);
+    File file = new File(tmpDir, "members.bin");
+    subset.saveMembership(file);
+    params = Factory.newFeatureMap();
+    params.put("membershipFileUrl", file.toURI().toURL());
+    assertEquals(parentNames(1, 4, 5, 6, 11), createSubsetCorpus(params).getDocumentNames());
+    // a parent corpus with different documents cannot use the file
+    FileUtils.writeStringToFile(new File(docDir, "new.xml"), 
+      FileUtils.readFileToString(new File(docDir, "doc00.xml"), "UTF-8"), "UTF-8");
+    params = Factory.newFeatureMap();
+    params.put("directoryURL", docDir.toURI().toURL());
+    params.put("readonly", true);
+    DirectoryCorpus changed = (DirectoryCorpus)Factory.createResource(
+      DirectoryCorpus.class.getName(), params);
+    try {
+      params = Factory.newFeatureMap();
+      params.put("directoryCorpus", changed);
+      params.put("membershipFileUrl", file.toURI().toURL());
+      Factory.createResource(DirectorySubsetCorpus.class.getName(), params);
+      fail("Expected a ResourceInstantiationException");
+    } catch (ResourceInstantiationException ex) {
+      // the file is stale
+    } finally {
+      Factory.deleteResource(changed);
+    }
+  }
+  
+  public void testSetOperations() throws Exception {
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("indexRanges", "0-5");
+    VirtualSubsetCorpus subset1 = createSubsetCorpus(params);
+    params = Factory.newFeatureMap();
+    params.put("indexRanges", "4-7");
+    VirtualSubsetCorpus subset2 = createSubsetCorpus(params);
+    EventRecorder recorder = new EventRecorder();
+    subset1.addCorpusListener(recorder);
+    assertEquals(2, subset1.unionWith(subset2));
+    assertEquals(parentNames(0, 1, 2, 3, 4, 5, 6, 7), subset1.getDocumentNames());
+    assertEquals(Arrays.asList("added 6", "added 7"), recorder.events);
+    recorder.events.clear();
+    assertEquals(4, subset1.differenceWith(subset2));
+    assertEquals(parentNames(0, 1, 2, 3), subset1.getDocumentNames());
+    assertEquals(Arrays.asList("removed 7", "removed 6", "removed 5", "removed 4"), 
+      recorder.events);
+    subset1.addDocumentRange(5, 6);
+    assertEquals(4, subset1.intersectWith(subset2));
+    assertEquals(parentNames(5), subset1.getDocumentNames());
+    DirectorySubsetCorpus other = new DirectorySubsetCorpus();
+    try {
+      subset1.unionWith(other);
+      fail("Expected a GateRuntimeException");
+    } catch (GateRuntimeException ex) {
+      // different parent corpus
+    }
+  }
+  
+  // the names, ordered by their index in the parent corpus
+  protected List<String> inParentOrder(String... names) {
+    List<String> ordered = new ArrayList<String>();
+    for(String name : corpus.getDocumentNames()) {
+      if(Arrays.asList(names).contains(name)) {
+        ordered.add(name);
+      }
+    }
+    return ordered;
+  }
+  
+  protected List<String> parentNames(int... indexes) {
+    List<String> names = new ArrayList<String>();
+    for(int index : indexes) {
+      names.add(corpus.getDocumentName(index));
+    }
+    return names;
+  }
+  
+  protected VirtualSubsetCorpus createSubsetCorpus(FeatureMap params) throws Exception {
+    params.put("directoryCorpus", corpus);
+    return (VirtualSubsetCorpus)Factory.createResource(
+      DirectorySubsetCorpus.class.getName(), params);
+  }
+  
+  protected static class EventRecorder implements CorpusListener {
+    List<String> events = new ArrayList<String>();
+    @Override
+    public void documentAdded(CorpusEvent e) {
+      assertNull(e.getDocument());
+      events.add("added "+e.getDocumentIndex());
+    }
+    @Override
+    public void documentRemoved(CorpusEvent e) {
+      assertNull(e.getDocument());
+      events.add("removed "+e.getDocumentIndex());
+    }
+  }
+}
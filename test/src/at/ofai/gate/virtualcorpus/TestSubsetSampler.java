@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2010- Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-VirtualCorpus
+ * (see https://github.com/johann-petrak/gateplugin-VirtualCorpus)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.ofai.gate.virtualcorpus;
+
+import gate.Factory;
+import gate.FeatureMap;
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tests for seeded samples and splits of a DirectoryCorpus with 
+ * 8 documents in directory "a" and 12 in directory "b".
+ * 
+ * @author Johann Petrak
+ */
+public class TestSubsetSampler extends VirtualCorpusTestCase {
+
+  protected DirectoryCorpus corpus;
+  
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    register(DirectoryCorpus.class);
+    register(DirectorySubsetCorpus.class);
+    createDocumentDirectory("docs/a", 8);
+    createDocumentDirectory("docs/b", 12);
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("directoryURL", new File(tmpDir, "docs").toURI().toURL());
+    params.put("recurseDirectory", true);
+    params.put("readonly", true);
+    corpus = (DirectoryCorpus)Factory.createResource(DirectoryCorpus.class.getName(), params);
+  }
+  
+  @Override
+  protected void tearDown() throws Exception {
+    Factory.deleteResource(corpus);
+    super.tearDown();
+  }
+  
+  public void testSplitIsPartitionAndRepeatable() {
+    int[][] parts = new SubsetSampler(corpus, 42).split(0.5, 0.25, 0.25);
+    assertEquals(10, parts[0].length);
+    assertEquals(5, parts[1].length);
+    assertEquals(5, parts[2].length);
+    Set<Integer> all = new HashSet<Integer>();
+    for(int[] part : parts) {
+      for(int index : part) {
+        assertTrue("Index "+index+" in two parts", all.add(index));
+      }
+    }
+    assertEquals(20, all.size());
+    int[][] again = new SubsetSampler(corpus, 42).split(0.5, 0.25, 0.25);
+    for(int p = 0; p < parts.length; p++) {
+      assertTrue(Arrays.equals(parts[p], again[p]));
+    }
+    int[][] other = new SubsetSampler(corpus, 43).split(0.5, 0.25, 0.25);
+    assertFalse(Arrays.equals(parts[0], other[0]));
+    // fractions which add up to less than one leave documents out
+    assertEquals(4, new SubsetSampler(corpus, 42).split(0.2)[0].length);
+  }
+  
+  public void testStratifiedSplit() {
+    SubsetSampler sampler = new SubsetSampler(corpus, 7);
+    sampler.setStratifyByDirectory(1);
+    int[][] parts = sampler.split(0.75, 0.25);
+    // each directory is split separately: 6+2 of "a" and 9+3 of "b"
+    assertEquals(6, countInDirectory(parts[0], "a"));
+    assertEquals(9, countInDirectory(parts[0], "b"));
+    assertEquals(2, countInDirectory(parts[1], "a"));
+    assertEquals(3, countInDirectory(parts[1], "b"));
+  }
+  
+  public void testSample() {
+    int[] sample = new SubsetSampler(corpus, 1).sample(6);
+    assertEquals(6, sample.length);
+    assertEquals(6, new HashSet<Integer>(toList(sample)).size());
+    assertTrue(Arrays.equals(sample, new SubsetSampler(corpus, 1).sample(6)));
+    assertEquals(20, new SubsetSampler(corpus, 1).sample(100).length);
+    SubsetSampler sampler = new SubsetSampler(corpus, 1);
+    sampler.setStratifyByDirectory(1);
+    sample = sampler.sample(5);
+    assertEquals(2, countInDirectory(sample, "a"));
+    assertEquals(3, countInDirectory(sample, "b"));
+    sampler = new SubsetSampler(corpus, 1);
+    sampler.setStratifyByKeyBucket(3);
+    assertEquals(5, new HashSet<Integer>(toList(sampler.sample(5))).size());
+  }
+  
+  public void testCreateSplits() throws Exception {
+    List<VirtualSubsetCorpus> splits = new SubsetSampler(corpus, 42).createSplits(
+      new String[] { "train", "test" }, 0.8, 0.2);
+    assertEquals(2, splits.size());
+    assertEquals("train", splits.get(0).getName());
+    assertEquals(16, splits.get(0).size());
+    assertEquals(4, splits.get(1).size());
+    Set<String> names = new HashSet<String>(splits.get(0).getDocumentNames());
+    names.retainAll(splits.get(1).getDocumentNames());
+    assertTrue(names.isEmpty());
+    VirtualSubsetCorpus sample = new SubsetSampler(corpus, 42).createSample("sample", 3);
+    assertEquals(3, sample.size());
+    for(VirtualSubsetCorpus subset : splits) {
+      Factory.deleteResource(subset);
+    }
+    Factory.deleteResource(sample);
+  }
+  
+  protected int countInDirectory(int[] indexes, String dir) {
+    int n = 0;
+    for(int index : indexes) {
+      if(corpus.getDocumentName(index).startsWith(dir+"/")) {
+        n++;
+      }
+    }
+    return n;
+  }
+  
+  protected static List<Integer> toList(int[] indexes) {
+    Integer[] boxed = new Integer[indexes.length];
+    for(int i = 0; i < indexes.length; i++) {
+      boxed[i] = indexes[i];
+    }
+    return Arrays.asList(boxed);
+  }
+}
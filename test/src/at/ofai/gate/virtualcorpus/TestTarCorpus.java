@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2010- Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-VirtualCorpus
+ * (see https://github.com/johann-petrak/gateplugin-VirtualCorpus)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.ofai.gate.virtualcorpus;
+
+import gate.Corpus;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.persist.PersistenceException;
+import gate.util.GateRuntimeException;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests for reading the documents of tar and tar.gz archives in a single
+ * pass and saving them to a directory and a PackedCorpus. The archives 
+ * are written by the test, in the ustar format with GNU and pax long 
+ * names.
+ * 
+ * @author Johann Petrak
+ */
+public class TestTarCorpus extends VirtualCorpusTestCase {
+
+  protected static final String LONG_NAME = 
+    "docs/a/directory/name/which/is/longer/than/the/one/hundred/characters/"+
+    "of/the/name/field/of/a/tar/header";
+  
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    register(TarCorpus.class);
+    register(PackedCorpus.class);
+  }
+  
+  public void testReadArchive() throws Exception {
+    File archive = new File(tmpDir, "docs.tar.gz");
+    ByteArrayOutputStream tar = new ByteArrayOutputStream();
+    writeEntry(tar, "docs/", '5', new byte[0]);
+    writeEntry(tar, "docs/a.txt", '0', bytes("text a"));
+    writeEntry(tar, "docs/skip.bin", '0', bytes("binary"));
+    writeEntry(tar, "././@LongLink", 'L', bytes(LONG_NAME+"/gnu.txt\0"));
+    writeEntry(tar, "gnu-truncated", '0', bytes("text gnu"));
+    byte[] pax = bytes(paxRecord("path", LONG_NAME+"/pax.txt"));
+    writeEntry(tar, "PaxHeaders/pax", 'x', pax);
+    writeEntry(tar, "pax-truncated", '0', bytes("text pax"));
+    writeEntry(tar, "docs/empty.txt", '0', new byte[0]);
+    tar.write(new byte[1024]);
+    OutputStream out = new GZIPOutputStream(new FileOutputStream(archive));
+    out.write(tar.toByteArray());
+    out.close();
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("archiveURL", archive.toURI().toURL());
+    params.put("mimeType", "text/plain");
+    params.put("extensions", Arrays.asList("txt"));
+    params.put("readonly", true);
+    TarCorpus corpus = (TarCorpus)Factory.createResource(TarCorpus.class.getName(), params);
+    List<String> names = new ArrayList<String>();
+    List<String> contents = new ArrayList<String>();
+    try {
+      // the way a corpus controller processes a corpus
+      for(int i = 0; i < corpus.size(); i++) {
+        Document doc = corpus.get(i);
+        names.add(doc.getName());
+        contents.add(doc.getContent().toString());
+        corpus.unloadDocument(doc);
+        Factory.deleteResource(doc);
+      }
+      try {
+        corpus.get(0);
+        fail("Expected a GateRuntimeException");
+      } catch (GateRuntimeException ex) {
+        // documents cannot be read again
+      }
+      try {
+        corpus.getDataStore().adopt(Factory.newCorpus("subset"));
+        fail("Expected a PersistenceException");
+      } catch (PersistenceException ex) {
+        // there are no subset corpora
+      }
+    } finally {
+      Factory.deleteResource(corpus);
+    }
+    assertEquals(Arrays.asList("docs/a.txt", LONG_NAME+"/gnu.txt", LONG_NAME+"/pax.txt", 
+      "docs/empty.txt"), names);
+    assertEquals(Arrays.asList("text a", "text gnu", "text pax", ""), contents);
+  }
+  
+  // GATE XML entries of an uncompressed archive are saved to a directory
+  // and a packed corpus
+  public void testSaveDocuments() throws Exception {
+    File archive = new File(tmpDir, "docs.tar");
+    OutputStream out = new FileOutputStream(archive);
+    for(int i = 0; i < 3; i++) {
+      Document doc = Factory.newDocument(getText("doc"+i));
+      writeEntry(out, "in/doc"+i+".xml", '0', bytes(doc.toXml()));
+      Factory.deleteResource(doc);
+    }
+    out.write(new byte[1024]);
+    out.close();
+    File outDir = new File(tmpDir, "out");
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("directoryURL", new File(tmpDir, "packed").toURI().toURL());
+    params.put("readonly", false);
+    PackedCorpus packed = (PackedCorpus)Factory.createResource(PackedCorpus.class.getName(), params);
+    params = Factory.newFeatureMap();
+    params.put("archiveURL", archive.toURI().toURL());
+    params.put("readonly", false);
+    params.put("outputDirectoryURL", outDir.toURI().toURL());
+    params.put("outputCorpus", packed);
+    TarCorpus corpus = (TarCorpus)Factory.createResource(TarCorpus.class.getName(), params);
+    try {
+      Iterator<Document> it = corpus.iterator();
+      while(it.hasNext()) {
+        Document doc = it.next();
+        assertEquals(getText(doc.getName().replaceAll("in/|\\.xml", "")), 
+          doc.getContent().toString());
+        doc.getFeatures().put("processed", "yes");
+        corpus.unloadDocument(doc);
+        Factory.deleteResource(doc);
+      }
+      assertEquals(3, corpus.size());
+      try {
+        corpus.getOutputFile("../outside.xml");
+        fail("Expected a GateRuntimeException");
+      } catch (GateRuntimeException ex) {
+        // outside of the output directory
+      }
+      try {
+        corpus.getOutputFile("/tmp/outside.xml");
+        fail("Expected a GateRuntimeException");
+      } catch (GateRuntimeException ex) {
+        // absolute
+      }
+    } finally {
+      Factory.deleteResource(corpus);
+    }
+    try {
+      assertEquals(3, packed.size());
+      Document doc = packed.get(packed.getDocumentNames().indexOf("in/doc1.xml"));
+      assertEquals("yes", doc.getFeatures().get("processed"));
+      packed.unloadDocument(doc, false);
+      Factory.deleteResource(doc);
+    } finally {
+      Factory.deleteResource(packed);
+    }
+    String saved = FileUtils.readFileToString(new File(outDir, "in/doc2.xml"), "UTF-8");
+    assertTrue(saved.contains("processed"));
+  }
+  
+  protected static byte[] bytes(String s) throws IOException {
+    return s.getBytes("UTF-8");
+  }
+  
+  protected static String paxRecord(String key, String value) throws IOException {
+    String record = " "+key+"="+value+"\n";
+    // the length includes the length field itself
+    int length = bytes(record).length;
+    length += Integer.toString(length + Integer.toString(length).length()).length();
+    return length+record;
+  }
+  
+  // write a ustar header and the data padded to whole blocks
+  protected static void writeEntry(OutputStream out, String name, char type, byte[] data) 
+    throws IOException {
+    byte[] header = new byte[512];
+    put(header, 0, bytes(name.length() > 100 ? name.substring(0, 100) : name));
+    put(header, 100, bytes("0000644\0"));
+    put(header, 108, bytes("0000000\0"));
+    put(header, 116, bytes("0000000\0"));
+    put(header, 124, bytes(String.format("%011o\0", data.length)));
+    put(header, 136, bytes(String.format("%011o\0", 0)));
+    header[156] = (byte)type;
+    put(header, 257, bytes("ustar\0"));
+    put(header, 263, bytes("00"));
+    Arrays.fill(header, 148, 156, (byte)' ');
+    int sum = 0;
+    for(byte b : header) {
+      sum += b & 0xff;
+    }
+    put(header, 148, bytes(String.format("%06o\0 ", sum)));
+    out.write(header);
+    out.write(data);
+    out.write(new byte[(512 - data.length % 512) % 512]);
+  }
+  
+  protected static void put(byte[] header, int offset, byte[] value) {
+    System.arraycopy(value, 0, header, offset, value.length);
+  }
+}
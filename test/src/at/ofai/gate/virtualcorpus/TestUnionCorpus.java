@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2010- Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-VirtualCorpus
+ * (see https://github.com/johann-petrak/gateplugin-VirtualCorpus)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.ofai.gate.virtualcorpus;
+
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.Gate;
+import gate.creole.ResourceInstantiationException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests for combining several directory corpora in a UnionCorpus, one 
+ * after the other or interleaved, and for creating the children.
+ * 
+ * @author Johann Petrak
+ */
+public class TestUnionCorpus extends VirtualCorpusTestCase {
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    register(DirectoryCorpus.class);
+    register(TarCorpus.class);
+    register(UnionCorpus.class);
+  }
+  
+  public void testConcatenate() throws Exception {
+    DirectoryCorpus first = createDirectoryCorpus(createDocumentDirectory("first", 3));
+    DirectoryCorpus second = createDirectoryCorpus(createDocumentDirectory("second", 4));
+    DirectoryCorpus empty = createDirectoryCorpus(createDocumentDirectory("empty", 0));
+    UnionCorpus union = createUnionCorpus(Arrays.asList(first, empty, second), false);
+    try {
+      assertEquals(7, union.size());
+      List<String> expected = new ArrayList<String>(first.getDocumentNames());
+      expected.addAll(second.getDocumentNames());
+      assertEquals(expected, union.getDocumentNames());
+      assertEquals(second.getDocumentSize(1), union.getDocumentSize(4));
+      Document doc = union.get(4);
+      assertEquals(getText(doc.getName()), doc.getContent().toString());
+      assertSame(second.getDataStore(), doc.getDataStore());
+      assertEquals(4, union.indexOf(doc));
+      assertTrue(union.isDocumentLoaded(4));
+      doc.getFeatures().put("processed", "yes");
+      // unloading is routed to the child, which saves the document
+      union.unloadDocument(doc, true);
+      assertFalse(second.isDocumentLoaded(1));
+      Factory.deleteResource(doc);
+      String saved = FileUtils.readFileToString(
+        new File(new File(tmpDir, "second"), expected.get(4)), "UTF-8");
+      assertTrue(saved.contains("processed"));
+      assertEquals(expected, iterate(union));
+    } finally {
+      Factory.deleteResource(union);
+    }
+    // the children were not created by the union and remain
+    assertEquals(3, first.size());
+    Factory.deleteResource(first);
+    Factory.deleteResource(second);
+    Factory.deleteResource(empty);
+  }
+  
+  public void testInterleave() throws Exception {
+    DirectoryCorpus first = createDirectoryCorpus(createDocumentDirectory("first", 2));
+    DirectoryCorpus second = createDirectoryCorpus(createDocumentDirectory("second", 4));
+    UnionCorpus union = createUnionCorpus(Arrays.<VirtualCorpus>asList(first, second), true);
+    try {
+      List<String> a = first.getDocumentNames();
+      List<String> b = second.getDocumentNames();
+      assertEquals(Arrays.asList(a.get(0), b.get(0), a.get(1), b.get(1), b.get(2), b.get(3)), 
+        union.getDocumentNames());
+      Document doc = second.get(2);
+      assertEquals(4, union.indexOf(doc));
+      assertTrue(union.contains(doc));
+      second.unloadDocument(doc, false);
+      Factory.deleteResource(doc);
+      doc = union.get(3);
+      assertSame(second.getDataStore(), doc.getDataStore());
+      assertEquals(b.get(1), doc.getName());
+      union.unloadDocument(doc, false);
+      Factory.deleteResource(doc);
+      assertEquals(union.getDocumentNames(), iterate(union));
+    } finally {
+      Factory.deleteResource(union);
+      Factory.deleteResource(first);
+      Factory.deleteResource(second);
+    }
+  }
+  
+  public void testCreateChildren() throws Exception {
+    File first = createDocumentDirectory("first", 3);
+    File second = createDocumentDirectory("second", 2);
+    int instances = getDirectoryCorpusCount();
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("childClassNames", Arrays.asList(DirectoryCorpus.class.getName(), 
+      DirectoryCorpus.class.getName()));
+    params.put("childParameters", Arrays.asList(getDirectoryParameters(first), 
+      getDirectoryParameters(second)));
+    UnionCorpus union = (UnionCorpus)Factory.createResource(UnionCorpus.class.getName(), params);
+    assertEquals(5, union.size());
+    assertEquals(2, union.getChildren().size());
+    assertEquals(instances + 2, getDirectoryCorpusCount());
+    Factory.deleteResource(union);
+    // created children are deleted with the union
+    assertEquals(instances, getDirectoryCorpusCount());
+    // if one of the children cannot be created, the others are deleted again
+    params.put("childParameters", Arrays.asList(getDirectoryParameters(first), 
+      getDirectoryParameters(new File(tmpDir, "missing"))));
+    try {
+      Factory.createResource(UnionCorpus.class.getName(), params);
+      fail("Expected a ResourceInstantiationException");
+    } catch (ResourceInstantiationException ex) {
+      // expected
+    }
+    assertEquals(instances, getDirectoryCorpusCount());
+    params.put("childParameters", Arrays.asList(getDirectoryParameters(first)));
+    try {
+      Factory.createResource(UnionCorpus.class.getName(), params);
+      fail("Expected a ResourceInstantiationException");
+    } catch (ResourceInstantiationException ex) {
+      // one parameter map for each class name
+    }
+  }
+  
+  public void testRejectNotFixedSize() throws Exception {
+    File archive = new File(tmpDir, "docs.tar");
+    OutputStream out = new FileOutputStream(archive);
+    TestTarCorpus.writeEntry(out, "a.txt", '0', TestTarCorpus.bytes("text a"));
+    out.write(new byte[1024]);
+    out.close();
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("archiveURL", archive.toURI().toURL());
+    params.put("mimeType", "text/plain");
+    TarCorpus tar = (TarCorpus)Factory.createResource(TarCorpus.class.getName(), params);
+    DirectoryCorpus dir = createDirectoryCorpus(createDocumentDirectory("dir", 2));
+    try {
+      createUnionCorpus(Arrays.<VirtualCorpus>asList(dir, tar), false);
+      fail("Expected a ResourceInstantiationException");
+    } catch (ResourceInstantiationException ex) {
+      // the size of a TarCorpus is not known in advance
+    } finally {
+      Factory.deleteResource(tar);
+      Factory.deleteResource(dir);
+    }
+  }
+  
+  protected List<String> iterate(UnionCorpus union) {
+    List<String> names = new ArrayList<String>();
+    Iterator<Document> it = union.iterator();
+    while(it.hasNext()) {
+      Document doc = it.next();
+      names.add(doc.getName());
+      union.unloadDocument(doc, false);
+      Factory.deleteResource(doc);
+    }
+    return names;
+  }
+  
+  protected FeatureMap getDirectoryParameters(File dir) throws Exception {
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("directoryURL", dir.toURI().toURL());
+    return params;
+  }
+  
+  protected DirectoryCorpus createDirectoryCorpus(File dir) throws Exception {
+    return (DirectoryCorpus)Factory.createResource(
+      DirectoryCorpus.class.getName(), getDirectoryParameters(dir));
+  }
+  
+  protected UnionCorpus createUnionCorpus(List<? extends VirtualCorpus> corpora, boolean interleave) 
+    throws Exception {
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("corpora", new ArrayList<VirtualCorpus>(corpora));
+    params.put("interleave", interleave);
+    return (UnionCorpus)Factory.createResource(UnionCorpus.class.getName(), params);
+  }
+  
+  protected static int getDirectoryCorpusCount() throws Exception {
+    return Gate.getCreoleRegister().getAllInstances(DirectoryCorpus.class.getName()).size();
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2010- Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-VirtualCorpus
+ * (see https://github.com/johann-petrak/gateplugin-VirtualCorpus)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package at.ofai.gate.virtualcorpus;
+
+import gate.Document;
+import gate.Factory;
+import gate.Gate;
+import gate.Resource;
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Common setup for the tests which need GATE: GATE is initialized once, 
+ * the corpus classes a test uses get registered with the CREOLE register
+ * and each test gets a new temporary directory.
+ * 
+ * @author Johann Petrak
+ */
+public abstract class VirtualCorpusTestCase extends TestCase {
+
+  private static boolean gateInitialized = false;
+  private static Set<Class<?>> registered = new HashSet<Class<?>>();
+  
+  protected File tmpDir;
+  
+  @Override
+  protected void setUp() throws Exception {
+    if(!gateInitialized) {
+      Gate.runInSandbox(true);
+      Gate.init();
+      gateInitialized = true;
+    }
+    tmpDir = File.createTempFile("vctest", "");
+    tmpDir.delete();
+    tmpDir.mkdirs();
+  }
+  
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(tmpDir);
+  }
+  
+  /**
+   * Create a directory with n GATE XML documents named doc00.xml, doc01.xml
+   * etc., whose text is the result of {@link #getText(String)} for the
+   * document name.
+   */
+  protected File createDocumentDirectory(String name, int n) throws Exception {
+    File dir = new File(tmpDir, name);
+    dir.mkdirs();
+    for(int i = 0; i < n; i++) {
+      String docName = String.format("doc%02d.xml", i);
+      Document doc = Factory.newDocument(getText(docName));
+      try {
+        FileUtils.writeStringToFile(new File(dir, docName), doc.toXml(), "UTF-8");
+      } finally {
+        Factory.deleteResource(doc);
+      }
+    }
+    return dir;
+  }
+  
+  protected static String getText(String docName) {
+    return "This is the text of document "+docName;
+  }
+  
+  /**
+   * Register the resource class with the CREOLE register, unless that 
+   * has already been done.
+   */
+  protected static void register(Class<? extends Resource> resourceClass) throws Exception {
+    if(registered.add(resourceClass)) {
+      Gate.getCreoleRegister().registerComponent(resourceClass);
+    }
+  }
+  
+}